@@ -1,42 +1,61 @@
 package com.some.company.mv2prd.file;
 
+import com.some.company.mv2prd.util.NormalisedPath;
 import com.some.company.mv2prd.util.logging.Logger;
 
+// The paths are normalised once when the file is built. The absolute git and target paths are usually joined onto the
+// relative path (see NormalisedPath), so the three share one copy of the relative part.
 public abstract class BasicFile {
 
     private static final Logger logger = Logger.getLogger(BasicFile.class);
 
-    protected String workingTreeDir;
-    protected String relativeGitFilePath;
-    protected String absoluteGitFilePath;
-    protected String absoluteTargetFilePath;
+    protected NormalisedPath workingTreeDir;
+    protected NormalisedPath relativeGitFilePath;
+    protected NormalisedPath absoluteGitFilePath;
+    protected NormalisedPath absoluteTargetFilePath;
 
     protected BasicFile() {
     }
 
     public BasicFile(String workingTreeDir, String relativeGitFilePath, String absoluteGitFilePath, String absoluteTargetFilePath) {
-        this.workingTreeDir = workingTreeDir;
-        this.relativeGitFilePath = relativeGitFilePath;
-        this.absoluteGitFilePath = absoluteGitFilePath;
-        this.absoluteTargetFilePath = absoluteTargetFilePath;
+        this.workingTreeDir = NormalisedPath.of(workingTreeDir);
+        this.relativeGitFilePath = NormalisedPath.of(relativeGitFilePath);
+        this.absoluteGitFilePath = NormalisedPath.of(absoluteGitFilePath);
+        this.absoluteTargetFilePath = NormalisedPath.of(absoluteTargetFilePath);
     }
 
     public String getWorkingTreeDir() {
-        return workingTreeDir;
+        return toStringOrNull(workingTreeDir);
     }
 
     public String getRelativeGitFilePath() {
-        return relativeGitFilePath;
+        return toStringOrNull(relativeGitFilePath);
     }
 
     public String getAbsoluteGitFilePath() {
-        return absoluteGitFilePath;
+        return toStringOrNull(absoluteGitFilePath);
     }
 
     public String getAbsoluteTargetFilePath() {
+        return toStringOrNull(absoluteTargetFilePath);
+    }
+
+    public NormalisedPath getRelativeGitPath() {
+        return relativeGitFilePath;
+    }
+
+    public NormalisedPath getAbsoluteGitPath() {
+        return absoluteGitFilePath;
+    }
+
+    public NormalisedPath getAbsoluteTargetPath() {
         return absoluteTargetFilePath;
     }
 
+    private static String toStringOrNull(NormalisedPath path) {
+        return path == null ? null : path.toString();
+    }
+
     @Override
     public String toString() {
         return "BasicFile{" +
@@ -22,8 +22,18 @@ public class CopyFileChange extends FileChange {
         return copyFile(dryRun, absoluteGitFilePath, absoluteTargetFilePath, userPrincipal, groupPrincipal, posixFilePermissionString);
     }
 
+    @Override
+    protected Boolean isTargetAlreadyCurrent() {
+        return targetMatchesGitFile();
+    }
+
     @Override
     String getClassType() {
         return "COPY";
     }
+
+    @Override
+    UndoJournalAction getUndoJournalAction(Boolean targetBackedUp) {
+        return targetBackedUp ? UndoJournalAction.OVERWRITTEN : UndoJournalAction.CREATED;
+    }
 }
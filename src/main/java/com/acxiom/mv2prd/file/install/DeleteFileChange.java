@@ -26,4 +26,9 @@ public class DeleteFileChange extends FileChange {
     String getClassType() {
         return "DELETE";
     }
+
+    @Override
+    UndoJournalAction getUndoJournalAction(Boolean targetBackedUp) {
+        return UndoJournalAction.DELETED;
+    }
 }
@@ -0,0 +1,127 @@
+package com.some.company.mv2prd.file.install;
+
+import com.some.company.mv2prd.util.FileMetadataCacheSingleton;
+import com.some.company.mv2prd.util.Utils;
+import com.some.company.mv2prd.util.logging.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// Every delete of an install, gathered up so it can be shown and confirmed once instead of prompting per file.
+// The plan hash covers each target path, its size and its backup path, so a logged pre-approval can later be
+// matched to exactly what was removed.
+public class DeletePlan {
+
+    private static final Logger logger = Logger.getLogger(DeletePlan.class);
+
+    private final List<FileChange> deleteFileChangeList;
+    // Only targets that exist are part of the plan, missing ones just end up DELETE_SKIPPED
+    private final List<FileChange> plannedFileChangeList = new ArrayList<>();
+    private final List<Long> plannedSizeList = new ArrayList<>();
+    private long totalBytes = 0;
+
+    public DeletePlan(List<FileChange> deleteFileChangeList) {
+        this.deleteFileChangeList = deleteFileChangeList;
+
+        List<FileChange> sortedFileChangeList = new ArrayList<>(deleteFileChangeList);
+        sortedFileChangeList.removeIf(fileChange -> fileChange.getAbsoluteTargetFilePath() == null);
+        sortedFileChangeList.sort(Comparator.comparing(FileChange::getAbsoluteTargetFilePath));
+        for (FileChange fileChange : sortedFileChangeList) {
+            PosixFileAttributes attributes = FileMetadataCacheSingleton.getInstance().getAttributes(Paths.get(fileChange.getAbsoluteTargetFilePath()));
+            if (attributes == null)
+                continue;
+            plannedFileChangeList.add(fileChange);
+            plannedSizeList.add(attributes.size());
+            totalBytes += attributes.size();
+        }
+    }
+
+    public List<FileChange> getDeleteFileChangeList() {
+        return deleteFileChangeList;
+    }
+
+    public Boolean isEmpty() {
+        return plannedFileChangeList.isEmpty();
+    }
+
+    public int getPlannedCount() {
+        return plannedFileChangeList.size();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public String getPlanHash() {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to ship SHA-256
+            throw new IllegalStateException("DeletePlan: SHA-256 is not available", e);
+        }
+        for (int i = 0; i < plannedFileChangeList.size(); i++) {
+            FileChange fileChange = plannedFileChangeList.get(i);
+            String line = fileChange.getAbsoluteTargetFilePath() + "\t" + plannedSizeList.get(i) + "\t" + fileChange.getAbsoluteBackupFilePath() + "\n";
+            messageDigest.update(line.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hexSb = new StringBuilder();
+        for (byte b : messageDigest.digest())
+            hexSb.append(String.format("%02x", b));
+        return hexSb.toString();
+    }
+
+    public StringBuilder generatePlanReport(Boolean dryRun) {
+        int col1Len = "Size".length();
+        int col2Len = "Target Path".length();
+        for (int i = 0; i < plannedFileChangeList.size(); i++) {
+            col1Len = Math.max(col1Len, Long.toString(plannedSizeList.get(i)).length());
+            col2Len = Math.max(col2Len, plannedFileChangeList.get(i).getAbsoluteTargetFilePath().length());
+        }
+        String formatString = "%" + col1Len + "s  %-" + col2Len + "s  %s\n";
+
+        StringBuilder sb = new StringBuilder(String.format(formatString, "Size", "Target Path", "Backup Path") + "\n");
+        for (int i = 0; i < plannedFileChangeList.size(); i++) {
+            FileChange fileChange = plannedFileChangeList.get(i);
+            sb.append(String.format(formatString, plannedSizeList.get(i), fileChange.getAbsoluteTargetFilePath(), fileChange.getAbsoluteBackupFilePath()));
+        }
+        sb.append("\nFiles: " + plannedFileChangeList.size() + "  Total bytes: " + totalBytes + "\nPlan hash: " + getPlanHash() + "\n");
+
+        int maxLen = Utils.getLongestLineLengthInStringBuilder(sb);
+        int halfLen = (maxLen / 2) - 10;
+
+        StringBuilder innerHeaderSb = new StringBuilder(
+                "   "
+                        + Utils.printNTimes("_", halfLen - 3)
+                        + " M2PRD DELETE PLAN "
+                        + Utils.printNTimes("_", halfLen - 3)
+                        + "   \n\n");
+        if (dryRun) innerHeaderSb.append(Utils.printNTimes(" ", halfLen + 1) + "*** DRY RUN ONLY ***" + Utils.printNTimes(" ", halfLen + 1) + "\n\n");
+
+        return new StringBuilder("Delete plan below:\n\n").append(Utils.boxitizeMe(innerHeaderSb.append(sb))).append("\n");
+    }
+
+    // Asks once for the whole plan, unless the deletes were pre-approved on the command line. Dry runs never prompt.
+    public Boolean confirm(Boolean dryRun) {
+        logger.info(generatePlanReport(dryRun).toString());
+        if (dryRun || isEmpty())
+            return true;
+        if (InstallSettingSingleton.getInstance().preApproveDeletesEnabled()) {
+            logger.info("Delete plan pre-approved on the command line. Plan hash: " + getPlanHash());
+            return true;
+        }
+        Boolean confirmation = Utils.promptUserYesNo("About to delete " + plannedFileChangeList.size() + " files (" + totalBytes
+                + " bytes), plan hash: " + getPlanHash() + "\nAre you sure you want to proceed?");
+        if (confirmation)
+            logger.info("Delete plan approved by user. Plan hash: " + getPlanHash());
+        else
+            logger.error("User denied the delete plan, no files will be deleted. Plan hash: " + getPlanHash());
+        return confirmation;
+    }
+}
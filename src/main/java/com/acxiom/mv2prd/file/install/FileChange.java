@@ -2,17 +2,28 @@ package com.some.company.mv2prd.file.install;
 
 import com.some.company.mv2prd.file.BasicFile;
 import com.some.company.mv2prd.json.Mv2prdHooks;
+import com.some.company.mv2prd.util.BackupStoreSingleton;
+import com.some.company.mv2prd.util.FileMetadataCacheSingleton;
 import com.some.company.mv2prd.util.GitUtils;
+import com.some.company.mv2prd.util.NormalisedPath;
 import com.some.company.mv2prd.util.Utils;
 import com.some.company.mv2prd.util.logging.Logger;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.Repository;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.UserPrincipal;
 import java.util.Comparator;
+import java.util.Set;
 
 public abstract class FileChange extends BasicFile {
 
@@ -27,16 +38,20 @@ public abstract class FileChange extends BasicFile {
     private UserPrincipal userPrincipal;
     private GroupPrincipal groupPrincipal;
     private String posixFilePermissionString;
+    private String backupDirectory;
+    // Built on first use, most changes never back anything up
     private String absoluteBackupFilePath;
 
     private FileChangeResult fileChangeResult;
+    // Whether execChange found an existing target and backed it up before the primary change
+    protected Boolean targetBackedUp = false;
 
     protected FileChange(Boolean dryRun, String gitTag, DiffEntry diffEntry, String workingTreeDir,
                          UserPrincipal userPrincipal, GroupPrincipal groupPrincipal,
                          String posixFilePermissionString, Mv2prdHooks mv2prdHooks) {
 
         this.diffEntry = diffEntry;
-        this.workingTreeDir = workingTreeDir;
+        this.workingTreeDir = NormalisedPath.of(workingTreeDir);
         this.wasExecuted = false;
         this.dryRun = dryRun;
         this.diffEntry = diffEntry;
@@ -46,10 +61,10 @@ public abstract class FileChange extends BasicFile {
         this.groupPrincipal = groupPrincipal;
         this.posixFilePermissionString = posixFilePermissionString;
 
-        this.relativeGitFilePath = GitUtils.determineRelativeGitFilePathFromDiffEntry(this.diffEntry);
+        this.relativeGitFilePath = NormalisedPath.of(GitUtils.determineRelativeGitFilePathFromDiffEntry(this.diffEntry));
         this.absoluteGitFilePath = GitUtils.buildAbsoluteGitFilePath(this.workingTreeDir, this.relativeGitFilePath);
-        this.absoluteTargetFilePath = GitUtils.buildAbsoluteTargetFilePath(this.relativeGitFilePath, mv2prdHooks.getGitToTargetMap());
-        this.absoluteBackupFilePath = GitUtils.buildAbsoluteBackupFilePath(this.relativeGitFilePath, this.gitTag, mv2prdHooks.getBackupDirectory());
+        this.absoluteTargetFilePath = GitUtils.buildAbsoluteTargetFilePath(this.relativeGitFilePath, mv2prdHooks.getPathMappingIndex());
+        this.backupDirectory = mv2prdHooks.getBackupDirectory();
 
         this.fileChangeResult = FileChangeResult.PENDING;
     }
@@ -67,13 +82,21 @@ public abstract class FileChange extends BasicFile {
             this.fileChangeResult = FileChangeResult.NOT_APPLICABLE;
             return false;
         }
+        // A target that already holds exactly what we would write is left alone: no backup, no rewrite, no attributes
+        if (InstallSettingSingleton.getInstance().skipIdenticalEnabled() && isTargetAlreadyCurrent()) {
+            this.fileChangeResult = FileChangeResult.ALREADY_CURRENT;
+            return true;
+        }
         // Only back the file up if the target file exists
-        if (Files.exists(Paths.get(this.absoluteTargetFilePath))) {
-            this.fileChangeResult = backupFile(this.dryRun, this.absoluteTargetFilePath, this.absoluteBackupFilePath, this.userPrincipal, this.groupPrincipal, this.posixFilePermissionString);
+        if (FileMetadataCacheSingleton.getInstance().exists(this.absoluteTargetFilePath.toPath())) {
+            this.fileChangeResult = backupFile(this.dryRun, getAbsoluteTargetFilePath(), getAbsoluteBackupFilePath(), this.userPrincipal, this.groupPrincipal, this.posixFilePermissionString);
             if (this.fileChangeResult == FileChangeResult.BACKUP_FAILED)
                 return false;
+            this.targetBackedUp = true;
         }
-        this.fileChangeResult = execPrimaryChange(this.dryRun, this.absoluteGitFilePath, this.absoluteTargetFilePath, this.userPrincipal, this.groupPrincipal, this.posixFilePermissionString);
+        this.fileChangeResult = execPrimaryChange(this.dryRun, getAbsoluteGitFilePath(), getAbsoluteTargetFilePath(), this.userPrincipal, this.groupPrincipal, this.posixFilePermissionString);
+        if (this.fileChangeResult == FileChangeResult.SUCCESS)
+            recordUndoJournal();
         if (this.fileChangeResult != FileChangeResult.SUCCESS || this.fileChangeResult != FileChangeResult.DELETE_SKIPPED)
             return false;
 
@@ -81,9 +104,15 @@ public abstract class FileChange extends BasicFile {
     }
     ////////////////////////////////////
 
+    // Used when the user turns down the DeletePlan: the change is settled without touching the target
+    void denyChange() {
+        this.wasExecuted = true;
+        this.fileChangeResult = FileChangeResult.DELETE_DENIED;
+    }
+
     private FileChangeResult backupFile(Boolean dryRun, String absoluteTargetFilePath, String absoluteBackupFilePath, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, String posixFilePermissionString) {
         try {
-            if (!dryRun) Utils.copyFile(absoluteTargetFilePath, absoluteBackupFilePath, userPrincipal, groupPrincipal, posixFilePermissionString);
+            if (!dryRun) BackupStoreSingleton.getInstance().backupFile(absoluteTargetFilePath, absoluteBackupFilePath, getPreviousBlobId(), groupPrincipal, posixFilePermissionString);
         } catch (IOException e) {
             logger.error("backupFile: Could not back up source file: " + absoluteTargetFilePath + " to backup: " + absoluteBackupFilePath);
             return FileChangeResult.BACKUP_FAILED;
@@ -91,30 +120,125 @@ public abstract class FileChange extends BasicFile {
         return FileChangeResult.PENDING;
     }
 
+    // The blob git had at this target's path before the change, if it was a plain file. A target still holding it can
+    // be rebuilt from history, so its backup is only a pointer. Renames override this, the old blob belongs to another path.
+    protected AnyObjectId getPreviousBlobId() {
+        DiffEntry.ChangeType changeType = this.diffEntry.getChangeType();
+        if (changeType != DiffEntry.ChangeType.MODIFY && changeType != DiffEntry.ChangeType.DELETE)
+            return null;
+        FileMode oldMode = this.diffEntry.getOldMode();
+        if (oldMode != FileMode.REGULAR_FILE && oldMode != FileMode.EXECUTABLE_FILE)
+            return null;
+        return this.diffEntry.getOldId().isComplete() ? this.diffEntry.getOldId().toObjectId() : null;
+    }
+
+    // Record what was done so a rollback can undo it. The journal is only open for real (non dry) runs.
+    protected void recordUndoJournal() {
+        UndoJournalSingleton.getInstance().append(getUndoJournalAction(this.targetBackedUp), getRelativeGitFilePath(),
+                getAbsoluteTargetFilePath(), this.targetBackedUp ? getAbsoluteBackupFilePath() : null);
+    }
+
+    // Overridden by change types that write content to the target
+    protected Boolean isTargetAlreadyCurrent() {
+        return false;
+    }
+
+    // Cheap size check first, only reads content if the sizes agree
+    protected Boolean targetMatchesGitFile() {
+        Repository blobSourceRepository = InstallSettingSingleton.getInstance().getBlobSourceRepository();
+        if (blobSourceRepository != null) {
+            try {
+                return GitUtils.blobMatchesFile(blobSourceRepository, this.diffEntry.getNewId().toObjectId(), this.absoluteTargetFilePath.toPath());
+            } catch (IOException e) {
+                logger.warn("targetMatchesGitFile: Could not compare content with git blob, installing normally: " + this.absoluteTargetFilePath + " : " + e);
+                return false;
+            }
+        }
+
+        Path gitFilePath = this.absoluteGitFilePath.toPath();
+        Path targetFilePath = this.absoluteTargetFilePath.toPath();
+        PosixFileAttributes gitFileAttributes = FileMetadataCacheSingleton.getInstance().getAttributes(gitFilePath);
+        PosixFileAttributes targetFileAttributes = FileMetadataCacheSingleton.getInstance().getAttributes(targetFilePath);
+
+        if (gitFileAttributes == null || targetFileAttributes == null || !targetFileAttributes.isRegularFile())
+            return false;
+        if (gitFileAttributes.size() != targetFileAttributes.size())
+            return false;
+        try {
+            return Utils.filesHaveSameContent(gitFilePath, targetFilePath);
+        } catch (IOException e) {
+            logger.warn("targetMatchesGitFile: Could not compare content, installing normally: " + this.absoluteTargetFilePath + " : " + e);
+            return false;
+        }
+    }
+
     abstract FileChangeResult execPrimaryChange(Boolean dryRun, String absoluteGitFilePath,
                                         String absoluteTargetFilePath, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, String posixFilePermissionString);
 
+    // Content, owner, group and mode all go onto a temp file next to the target, which is then renamed over the target
+    // in one step. A failure at any point leaves the existing target untouched.
     protected FileChangeResult copyFile(Boolean dryRun, String absoluteGitFilePath, String absoluteTargetFilePath, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, String posixFilePermissionString) {
+        if (dryRun)
+            return FileChangeResult.SUCCESS;
+
+        Repository blobSourceRepository = InstallSettingSingleton.getInstance().getBlobSourceRepository();
+        Path tempFilePath;
         try {
-            if (!dryRun) Utils.copyFile(absoluteGitFilePath, absoluteTargetFilePath, userPrincipal, groupPrincipal, posixFilePermissionString);
+            if (blobSourceRepository != null)
+                tempFilePath = GitUtils.copyBlobToTempSibling(blobSourceRepository, this.diffEntry.getNewId().toObjectId(), absoluteTargetFilePath, groupPrincipal, posixFilePermissionString);
+            else
+                tempFilePath = Utils.copyFileToTempSibling(absoluteGitFilePath, absoluteTargetFilePath, groupPrincipal, posixFilePermissionString);
         } catch (IOException e) {
             logger.error("copyFile: Could not copy git file: " + absoluteGitFilePath + " to target: " + absoluteTargetFilePath);
             return FileChangeResult.COPY_FAILED;
         }
+
+        FileChangeResult attributeResult = applyTargetAttributes(tempFilePath, absoluteTargetFilePath, userPrincipal, groupPrincipal, posixFilePermissionString);
+        if (attributeResult != FileChangeResult.SUCCESS) {
+            Utils.deleteTempFileQuietly(tempFilePath);
+            return attributeResult;
+        }
+
+        try {
+            Utils.moveIntoPlace(tempFilePath, Paths.get(absoluteTargetFilePath));
+        } catch (IOException e) {
+            logger.error("copyFile: Could not move temp file: " + tempFilePath + " into place at target: " + absoluteTargetFilePath);
+            Utils.deleteTempFileQuietly(tempFilePath);
+            return FileChangeResult.COPY_FAILED;
+        }
+        return FileChangeResult.SUCCESS;
+    }
+
+    // One readAttributes call, then only the owner/group/mode changes that are actually needed. COPY_ATTRIBUTES and a
+    // setgid parent directory often leave some of them right already, which saves a metadata round trip each.
+    protected FileChangeResult applyTargetAttributes(Path tempFilePath, String absoluteTargetFilePath, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, String posixFilePermissionString) {
+        PosixFileAttributeView posixFileAttributeView = Files.getFileAttributeView(tempFilePath, PosixFileAttributeView.class);
+        Set<PosixFilePermission> posixFilePermissionSet = Utils.getPosixFilePermissionSet(posixFilePermissionString);
+        PosixFileAttributes currentAttributes = null;
+        try {
+            currentAttributes = posixFileAttributeView.readAttributes();
+        } catch (IOException e) {
+            // Without the current values just apply everything
+            logger.warn("copyFile: Could not read attributes of temp file, applying all of them: " + tempFilePath + " : " + e);
+        }
+
         try {
-            if (!dryRun) Utils.chownFile(absoluteTargetFilePath, userPrincipal);
+            if (currentAttributes == null || !currentAttributes.owner().equals(userPrincipal))
+                posixFileAttributeView.setOwner(userPrincipal);
         } catch (IOException e) {
             logger.error("copyFile: Could not chown target: " + absoluteTargetFilePath + " to " + userPrincipal.getName());
             return FileChangeResult.CHOWN_FAILED;
         }
         try {
-            if (!dryRun) Utils.chgrpFile(absoluteTargetFilePath, groupPrincipal);
+            if (currentAttributes == null || !currentAttributes.group().equals(groupPrincipal))
+                posixFileAttributeView.setGroup(groupPrincipal);
         } catch (IOException e) {
             logger.error("copyFile: Could not change group of target: " + absoluteTargetFilePath + " to " + groupPrincipal);
             return FileChangeResult.CHGRP_FAILED;
         }
         try {
-            if (!dryRun) Utils.chmodFile(absoluteTargetFilePath, posixFilePermissionString);
+            if (currentAttributes == null || !currentAttributes.permissions().equals(posixFilePermissionSet))
+                posixFileAttributeView.setPermissions(posixFilePermissionSet);
         } catch (IOException e) {
             logger.error("copyFile: Could not chmod " + posixFilePermissionString + " target: " + absoluteTargetFilePath);
             return FileChangeResult.CHMOD_FAILED;
@@ -123,12 +247,13 @@ public abstract class FileChange extends BasicFile {
     }
 
     protected FileChangeResult deleteFile(Boolean dryRun, String absoluteTargetFilePath) {
-        if (!Files.exists(Paths.get(this.absoluteTargetFilePath))) {
+        if (!FileMetadataCacheSingleton.getInstance().exists(this.absoluteTargetFilePath.toPath())) {
             logger.warn("deleteFile: File to delete does not exist, skipping it: " + absoluteTargetFilePath);
             return FileChangeResult.DELETE_SKIPPED;
         }
         try {
-            if (!dryRun) Utils.deleteFileWithUserConfirmation(absoluteTargetFilePath);
+            // The user already confirmed the whole DeletePlan, so no per-file prompt here
+            if (!dryRun) Utils.deleteFileNoConfirmation(Paths.get(absoluteTargetFilePath));
         } catch (IOException e) {
             logger.error("deleteFile: Could not remove target file: " + absoluteTargetFilePath);
             return FileChangeResult.DELETE_FAILED;
@@ -138,6 +263,8 @@ public abstract class FileChange extends BasicFile {
 
     abstract String getClassType();
 
+    abstract UndoJournalAction getUndoJournalAction(Boolean targetBackedUp);
+
     public Boolean getWasExecuted() {
         return wasExecuted;
     }
@@ -154,10 +281,6 @@ public abstract class FileChange extends BasicFile {
         return diffEntry;
     }
 
-    public String getWorkingTreeDir() {
-        return workingTreeDir;
-    }
-
     public UserPrincipal getUserPrincipal() {
         return userPrincipal;
     }
@@ -170,20 +293,14 @@ public abstract class FileChange extends BasicFile {
         return posixFilePermissionString;
     }
 
-    public String getRelativeGitFilePath() {
-        return relativeGitFilePath;
-    }
-
-    public String getAbsoluteGitFilePath() {
-        return absoluteGitFilePath;
-    }
-
-    public String getAbsoluteTargetFilePath() {
-        return absoluteTargetFilePath;
+    protected String getBackupDirectory() {
+        return backupDirectory;
     }
 
     public String getAbsoluteBackupFilePath() {
-        return absoluteBackupFilePath;
+        if (this.absoluteBackupFilePath == null)
+            this.absoluteBackupFilePath = GitUtils.buildAbsoluteBackupFilePath(getRelativeGitFilePath(), this.gitTag, this.backupDirectory);
+        return this.absoluteBackupFilePath;
     }
 
     public FileChangeResult getFileChangeResult() {
@@ -12,7 +12,9 @@ public class FileChangeFactory {
                                            String workingTreeDir, UserPrincipal userPrincipal,
                                            GroupPrincipal groupPrincipal, String posixFilePermissionString,
                                            Mv2prdHooks mv2prdHooks) {
-        if (diffEntry.getNewMode() == FileMode.MISSING)
+        if (diffEntry.getChangeType() == DiffEntry.ChangeType.RENAME)
+            return new MoveFileChange(dryRun, gitTag, diffEntry, workingTreeDir, userPrincipal, groupPrincipal, posixFilePermissionString, mv2prdHooks);
+        else if (diffEntry.getNewMode() == FileMode.MISSING)
             return new DeleteFileChange(dryRun, gitTag, diffEntry, workingTreeDir, userPrincipal, groupPrincipal, posixFilePermissionString, mv2prdHooks);
         else
             return new CopyFileChange(dryRun, gitTag, diffEntry, workingTreeDir, userPrincipal, groupPrincipal, posixFilePermissionString, mv2prdHooks);
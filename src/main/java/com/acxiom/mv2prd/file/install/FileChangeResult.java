@@ -1,7 +1,7 @@
 package com.some.company.mv2prd.file.install;
 
 public enum FileChangeResult {
-    SUCCESS, PENDING, BACKUP_FAILED, CHOWN_FAILED, CHGRP_FAILED, CHMOD_FAILED, COPY_FAILED, DELETE_SKIPPED, DELETE_FAILED, FAILED, NOT_APPLICABLE;
+    SUCCESS, PENDING, BACKUP_FAILED, CHOWN_FAILED, CHGRP_FAILED, CHMOD_FAILED, COPY_FAILED, DELETE_SKIPPED, DELETE_FAILED, FAILED, NOT_APPLICABLE, ALREADY_CURRENT, MOVE_FAILED, DELETE_DENIED;
 
     @Override
     public String toString() {
@@ -17,6 +17,9 @@ public enum FileChangeResult {
             case DELETE_FAILED: return "DELETE_FAILED";
             case FAILED: return "FAILED";
             case NOT_APPLICABLE: return "NOT_APPLICABLE";
+            case ALREADY_CURRENT: return "ALREADY_CURRENT";
+            case MOVE_FAILED: return "MOVE_FAILED";
+            case DELETE_DENIED: return "DELETE_DENIED";
             default: throw new IllegalArgumentException();
         }
     }
@@ -1,6 +1,9 @@
 package com.some.company.mv2prd.file.install;
 
 import com.some.company.mv2prd.json.Mv2prdHooks;
+import com.some.company.mv2prd.util.GitDiffEntry;
+import com.some.company.mv2prd.util.GitUtils;
+import com.some.company.mv2prd.util.PartitionedExecutor;
 import com.some.company.mv2prd.util.Utils;
 import com.some.company.mv2prd.util.logging.Logger;
 import org.eclipse.jgit.diff.DiffEntry;
@@ -8,27 +11,256 @@ import org.eclipse.jgit.diff.DiffEntry;
 import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.UserPrincipal;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class FileChangeUtils {
 
     private static final Logger logger = Logger.getLogger(FileChangeUtils.class);
 
-    public static List<FileChange> executeAllFileChanges(Boolean dryRun, String gitTag, List<DiffEntry> diffEntryList, String workingTreeDir, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, Mv2prdHooks mv2prdHooks, String posixFilePermissionString) {
+    public static List<FileChange> buildFileChangeList(Boolean dryRun, String gitTag, List<DiffEntry> diffEntryList, String workingTreeDir, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, Mv2prdHooks mv2prdHooks, String posixFilePermissionString) {
         List<FileChange> fileChangeList = new ArrayList<>();
 
-        for (DiffEntry diffEntry : diffEntryList) {
+        for (DiffEntry diffEntry : splitUnmappedRenames(diffEntryList, mv2prdHooks)) {
 //            logger.debug("\n" + diffEntry.getChangeType().toString() + "\nnewpath: " + diffEntry.getNewPath()
 //                    + "\noldpath: " + diffEntry.getOldPath() + "\n");
 
-            FileChange fileChange = FileChangeFactory.getFileChange(dryRun, gitTag, diffEntry, workingTreeDir, userPrincipal, groupPrincipal, posixFilePermissionString, mv2prdHooks);
-            fileChange.execChange();
-            fileChangeList.add(fileChange);
+            fileChangeList.add(FileChangeFactory.getFileChange(dryRun, gitTag, diffEntry, workingTreeDir, userPrincipal, groupPrincipal, posixFilePermissionString, mv2prdHooks));
+        }
+        return fileChangeList;
+    }
+
+    public static List<FileChange> executeAllFileChanges(Boolean dryRun, String gitTag, List<DiffEntry> diffEntryList, String workingTreeDir, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, Mv2prdHooks mv2prdHooks, String posixFilePermissionString, int installThreads) throws InterruptedException {
+        List<FileChange> fileChangeList = buildFileChangeList(dryRun, gitTag, diffEntryList, workingTreeDir, userPrincipal, groupPrincipal, mv2prdHooks, posixFilePermissionString);
+        List<MoveFileChange> moveFileChangeList = new ArrayList<>();
+        for (FileChange fileChange : fileChangeList) {
+            if (fileChange instanceof MoveFileChange)
+                moveFileChangeList.add((MoveFileChange) fileChange);
+        }
+
+        // Moves always go first, since they vacate paths that other changes may then write to. Each rename chain or
+        // cycle runs in order on one worker, unrelated moves run across all install threads.
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("mv2prd-move", installThreads, 64);
+        try {
+            for (List<MoveFileChange> moveGroup : orderMoveFileChanges(moveFileChangeList)) {
+                partitionedExecutor.submit(moveGroup.get(0).getOldAbsoluteTargetFilePath(), () -> {
+                    for (MoveFileChange moveFileChange : moveGroup)
+                        moveFileChange.execChange();
+                });
+            }
+        } finally {
+            partitionedExecutor.awaitCompletion();
+        }
+
+        List<FileChange> remainingFileChangeList = new ArrayList<>();
+        for (FileChange fileChange : fileChangeList) {
+            if (!(fileChange instanceof MoveFileChange))
+                remainingFileChangeList.add(fileChange);
         }
+        executeFileChangesStreaming(dryRun, gitTag, remainingFileChangeList.iterator(), workingTreeDir, userPrincipal, groupPrincipal, mv2prdHooks, posixFilePermissionString, installThreads, false);
+
+        return fileChangeList;
+    }
+
+    // Install pipeline. Each diff entry becomes a FileChange as soon as it arrives and is handed to one of installThreads
+    // workers, so copying starts while the tree walk is still running. Every change is routed to a worker by its target
+    // path, so changes against the same target stay serial and in diff order (and each change still does its own backup
+    // before its overwrite). Each worker queue is bounded, which stops the walk from running far ahead of the copies.
+    // Parent directory creation is serialized inside Utils. Deletes run only after all copies are done, as one
+    // confirmed DeletePlan.
+    public static List<FileChange> executeFileChangesStreaming(Boolean dryRun, String gitTag, Iterator<DiffEntry> diffEntryIterator, String workingTreeDir, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, Mv2prdHooks mv2prdHooks, String posixFilePermissionString, int installThreads) throws InterruptedException {
+        List<FileChange> fileChangeList = new ArrayList<>();
+        Iterator<FileChange> fileChangeIterator = new Iterator<FileChange>() {
+            @Override
+            public boolean hasNext() {
+                return diffEntryIterator.hasNext();
+            }
 
+            @Override
+            public FileChange next() {
+                FileChange fileChange = FileChangeFactory.getFileChange(dryRun, gitTag, diffEntryIterator.next(), workingTreeDir, userPrincipal, groupPrincipal, posixFilePermissionString, mv2prdHooks);
+                fileChangeList.add(fileChange);
+                return fileChange;
+            }
+        };
+        executeFileChangesStreaming(dryRun, gitTag, fileChangeIterator, workingTreeDir, userPrincipal, groupPrincipal, mv2prdHooks, posixFilePermissionString, installThreads, true);
         return fileChangeList;
     }
 
+    private static void executeFileChangesStreaming(Boolean dryRun, String gitTag, Iterator<FileChange> fileChangeIterator, String workingTreeDir, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, Mv2prdHooks mv2prdHooks, String posixFilePermissionString, int installThreads, Boolean logProgress) throws InterruptedException {
+        List<FileChange> deleteFileChangeList = new ArrayList<>();
+
+        logger.info("Executing file changes with " + installThreads + " install threads.");
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("mv2prd-install", installThreads, 64);
+        int submittedCount = 0;
+        try {
+            while (fileChangeIterator.hasNext()) {
+                FileChange fileChange = fileChangeIterator.next();
+                if (fileChange instanceof DeleteFileChange) {
+                    deleteFileChangeList.add(fileChange);
+                    continue;
+                }
+                partitionedExecutor.submit(fileChange.getAbsoluteTargetFilePath(), fileChange::execChange);
+                submittedCount++;
+                if (logProgress && submittedCount % 1000 == 0)
+                    logger.info("Submitted " + submittedCount + " file changes so far...");
+            }
+        } finally {
+            // Even if the walk fails, let the changes already handed out finish before the failure propagates
+            partitionedExecutor.awaitCompletion();
+        }
+
+        executeDeletePlan(new DeletePlan(deleteFileChangeList), installThreads);
+    }
+
+    // Deletes only run once the copies are done and the whole plan has been confirmed. A denied plan leaves every
+    // target in place and marks its changes DELETE_DENIED. Diff entries are always single files, so the deletes
+    // never overlap and can run across all install threads.
+    private static void executeDeletePlan(DeletePlan deletePlan, int installThreads) throws InterruptedException {
+        List<FileChange> deleteFileChangeList = deletePlan.getDeleteFileChangeList();
+        if (deleteFileChangeList.isEmpty())
+            return;
+
+        Boolean dryRun = deleteFileChangeList.get(0).getDryRun();
+        if (!deletePlan.confirm(dryRun)) {
+            for (FileChange fileChange : deleteFileChangeList)
+                fileChange.denyChange();
+            return;
+        }
+
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("mv2prd-delete", installThreads, 64);
+        try {
+            for (FileChange fileChange : deleteFileChangeList)
+                partitionedExecutor.submit(fileChange.getAbsoluteTargetFilePath(), fileChange::execChange);
+        } finally {
+            partitionedExecutor.awaitCompletion();
+        }
+    }
+
+    // Unmapped files and targets that were already current or already gone count as installed, anything else does not
+    public static Boolean allSucceeded(List<FileChange> fileChangeList) {
+        for (FileChange fileChange : fileChangeList) {
+            switch (fileChange.getFileChangeResult()) {
+                case SUCCESS:
+                case ALREADY_CURRENT:
+                case DELETE_SKIPPED:
+                case NOT_APPLICABLE:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    public static Boolean anyDeleteDenied(List<FileChange> fileChangeList) {
+        for (FileChange fileChange : fileChangeList) {
+            if (fileChange.getFileChangeResult() == FileChangeResult.DELETE_DENIED)
+                return true;
+        }
+        return false;
+    }
+
+    // A rename is only a target-side move when both its old and new git paths map to targets. Anything else goes back
+    // to being the plain delete and add it was before rename detection.
+    private static List<DiffEntry> splitUnmappedRenames(List<DiffEntry> diffEntryList, Mv2prdHooks mv2prdHooks) {
+        List<DiffEntry> splitDiffEntryList = new ArrayList<>();
+        for (DiffEntry diffEntry : diffEntryList) {
+            if (diffEntry.getChangeType() == DiffEntry.ChangeType.RENAME) {
+                String oldAbsoluteTargetFilePath = GitUtils.buildAbsoluteTargetFilePath(diffEntry.getOldPath(), mv2prdHooks.getPathMappingIndex());
+                String newAbsoluteTargetFilePath = GitUtils.buildAbsoluteTargetFilePath(diffEntry.getNewPath(), mv2prdHooks.getPathMappingIndex());
+                if (oldAbsoluteTargetFilePath == null || newAbsoluteTargetFilePath == null || oldAbsoluteTargetFilePath.equals(newAbsoluteTargetFilePath)) {
+                    splitDiffEntryList.add(GitDiffEntry.delete(diffEntry.getOldPath(), diffEntry.getOldMode(), diffEntry.getOldId().toObjectId()));
+                    splitDiffEntryList.add(GitDiffEntry.add(diffEntry.getNewPath(), diffEntry.getNewMode(), diffEntry.getNewId().toObjectId()));
+                    continue;
+                }
+            }
+            splitDiffEntryList.add(diffEntry);
+        }
+        return splitDiffEntryList;
+    }
+
+    // Orders moves so that none lands on a target another pending move still has to vacate (for B->C, A->B the B->C
+    // move must go first), and splits them into groups that share no target path. Each group is one rename chain or
+    // cycle and has to run in order, different groups can run at the same time. A cycle (A->B, B->A) cannot be ordered,
+    // so one of its moves is turned into a copy from git and deferred to the end of its group. That frees its old path
+    // for the rest of the cycle, whose moves then go ahead normally.
+    static List<List<MoveFileChange>> orderMoveFileChanges(List<MoveFileChange> moveFileChangeList) {
+        // A move waits for the move whose old target is its new target
+        Map<String, MoveFileChange> moveBySourceMap = new HashMap<>();
+        Map<String, String> groupParentMap = new HashMap<>();
+        for (MoveFileChange moveFileChange : moveFileChangeList) {
+            moveBySourceMap.putIfAbsent(moveFileChange.getOldAbsoluteTargetFilePath(), moveFileChange);
+            unionGroups(groupParentMap, moveFileChange.getOldAbsoluteTargetFilePath(), moveFileChange.getAbsoluteTargetFilePath());
+        }
+
+        Map<String, List<MoveFileChange>> moveGroupMap = new LinkedHashMap<>();
+        Map<String, List<MoveFileChange>> deferredMoveGroupMap = new HashMap<>();
+        Set<MoveFileChange> placedMoveFileChangeSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (MoveFileChange moveFileChange : moveFileChangeList) {
+            // Follow what each move waits for, up to a move that waits for nothing, one already placed, or back round
+            // to a move already on this chain (a cycle)
+            List<MoveFileChange> chainList = new ArrayList<>();
+            Set<MoveFileChange> chainSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            MoveFileChange current = moveFileChange;
+            while (current != null && !placedMoveFileChangeSet.contains(current) && chainSet.add(current)) {
+                chainList.add(current);
+                current = moveBySourceMap.get(current.getAbsoluteTargetFilePath());
+            }
+            MoveFileChange cycleMoveFileChange = chainSet.contains(current) ? current : null;
+
+            // The end of the chain goes first
+            for (int i = chainList.size() - 1; i >= 0; i--) {
+                MoveFileChange chainedMoveFileChange = chainList.get(i);
+                placedMoveFileChangeSet.add(chainedMoveFileChange);
+                String groupKey = findGroup(groupParentMap, chainedMoveFileChange.getOldAbsoluteTargetFilePath());
+                List<MoveFileChange> moveGroup = moveGroupMap.computeIfAbsent(groupKey, k -> new ArrayList<>());
+                if (chainedMoveFileChange == cycleMoveFileChange) {
+                    logger.warn("orderMoveFileChanges: Rename is part of a cycle, installing it as a copy instead: " + chainedMoveFileChange.getOldRelativeGitFilePath() + " -> " + chainedMoveFileChange.getRelativeGitFilePath());
+                    chainedMoveFileChange.setForceCopy(true);
+                    deferredMoveGroupMap.computeIfAbsent(groupKey, k -> new ArrayList<>()).add(chainedMoveFileChange);
+                } else {
+                    moveGroup.add(chainedMoveFileChange);
+                }
+            }
+        }
+
+        List<List<MoveFileChange>> moveGroupList = new ArrayList<>();
+        for (Map.Entry<String, List<MoveFileChange>> moveGroupEntry : moveGroupMap.entrySet()) {
+            List<MoveFileChange> moveGroup = moveGroupEntry.getValue();
+            moveGroup.addAll(deferredMoveGroupMap.getOrDefault(moveGroupEntry.getKey(), Collections.emptyList()));
+            moveGroupList.add(moveGroup);
+        }
+        return moveGroupList;
+    }
+
+    // Union-find over target paths, two moves touching the same path end up in the same group
+    private static String findGroup(Map<String, String> groupParentMap, String path) {
+        String root = path;
+        for (String parent = groupParentMap.get(root); parent != null && !parent.equals(root); parent = groupParentMap.get(root))
+            root = parent;
+        // Point everything on the way straight at the root so later lookups are one step
+        for (String current = path; !current.equals(root); ) {
+            String parent = groupParentMap.get(current);
+            groupParentMap.put(current, root);
+            current = parent;
+        }
+        return root;
+    }
+
+    private static void unionGroups(Map<String, String> groupParentMap, String firstPath, String secondPath) {
+        String firstRoot = findGroup(groupParentMap, firstPath);
+        String secondRoot = findGroup(groupParentMap, secondPath);
+        if (!firstRoot.equals(secondRoot))
+            groupParentMap.put(secondRoot, firstRoot);
+    }
+
     public static StringBuilder prettyPrintFileChangeList(List<FileChange> fileChangeList) {
         int col1Len = getMaxLengthChangeResult(fileChangeList);
         int col2Len = getMaxLengthRelativeGit(fileChangeList);
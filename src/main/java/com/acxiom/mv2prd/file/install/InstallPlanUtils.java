@@ -0,0 +1,171 @@
+package com.some.company.mv2prd.file.install;
+
+import com.some.company.mv2prd.json.InstallPlan;
+import com.some.company.mv2prd.json.InstallPlanEntry;
+import com.some.company.mv2prd.json.JsonUtils;
+import com.some.company.mv2prd.json.Mv2prdHooks;
+import com.some.company.mv2prd.json.TargetPreState;
+import com.some.company.mv2prd.util.FileMetadataCacheSingleton;
+import com.some.company.mv2prd.util.GitDiffEntry;
+import com.some.company.mv2prd.util.GitUtils;
+import com.some.company.mv2prd.util.Utils;
+import com.some.company.mv2prd.util.logging.Logger;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.FileMode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+// Plan mode resolves an install (diff, path mapping, target stats) ahead of the change window and saves it here.
+// Apply mode reads it back and runs it without re-diffing. Before it does, apply checks that the tag still points at
+// the same commit, paths still map and back up the same way, and every target still has the size, mtime and content
+// it had. Content is only hashed once size and mtime agree.
+public class InstallPlanUtils {
+
+    private static final Logger logger = Logger.getLogger(InstallPlanUtils.class);
+
+    public static final int INSTALL_PLAN_VERSION = 2;
+
+    public static InstallPlan buildInstallPlan(String project, String gitTag, String fromTag, String commitId, List<FileChange> fileChangeList) throws IOException {
+        InstallPlan installPlan = new InstallPlan();
+        installPlan.setPlanVersion(INSTALL_PLAN_VERSION);
+        installPlan.setProject(project);
+        installPlan.setGitTag(gitTag);
+        installPlan.setFromTag(fromTag);
+        installPlan.setCommitId(commitId);
+        installPlan.setCreatedMillis(System.currentTimeMillis());
+
+        for (FileChange fileChange : fileChangeList) {
+            DiffEntry diffEntry = fileChange.getDiffEntry();
+            InstallPlanEntry installPlanEntry = new InstallPlanEntry();
+            installPlanEntry.setChangeType(diffEntry.getChangeType().name());
+            installPlanEntry.setOldPath(diffEntry.getOldPath());
+            installPlanEntry.setNewPath(diffEntry.getNewPath());
+            installPlanEntry.setOldMode(diffEntry.getOldMode().getBits());
+            installPlanEntry.setNewMode(diffEntry.getNewMode().getBits());
+            installPlanEntry.setOldId(diffEntry.getOldId().name());
+            installPlanEntry.setNewId(diffEntry.getNewId().name());
+            installPlanEntry.setScore(diffEntry.getScore());
+            installPlanEntry.setAbsoluteTargetFilePath(fileChange.getAbsoluteTargetFilePath());
+            installPlanEntry.setAbsoluteBackupFilePath(fileChange.getAbsoluteBackupFilePath());
+            installPlanEntry.setTargetPreState(captureTargetPreState(fileChange.getAbsoluteTargetFilePath()));
+            if (fileChange instanceof MoveFileChange) {
+                String oldAbsoluteTargetFilePath = ((MoveFileChange) fileChange).getOldAbsoluteTargetFilePath();
+                installPlanEntry.setOldAbsoluteTargetFilePath(oldAbsoluteTargetFilePath);
+                installPlanEntry.setOldTargetPreState(captureTargetPreState(oldAbsoluteTargetFilePath));
+            }
+            installPlan.getInstallPlanEntryList().add(installPlanEntry);
+        }
+        return installPlan;
+    }
+
+    // Null for unmapped targets, they are never touched so there is nothing to check
+    private static TargetPreState captureTargetPreState(String absoluteTargetFilePath) throws IOException {
+        if (absoluteTargetFilePath == null)
+            return null;
+        Path targetFilePath = Paths.get(absoluteTargetFilePath);
+        PosixFileAttributes attributes = FileMetadataCacheSingleton.getInstance().getAttributes(targetFilePath);
+        if (attributes == null)
+            return new TargetPreState(false, null, null, null);
+        return new TargetPreState(true, attributes.size(), attributes.lastModifiedTime().toMillis(), computeContentBlobId(targetFilePath, attributes));
+    }
+
+    private static String computeContentBlobId(Path targetFilePath, PosixFileAttributes attributes) throws IOException {
+        if (Files.isSymbolicLink(targetFilePath))
+            return GitUtils.computeSymlinkBlobId(targetFilePath).name();
+        if (!attributes.isRegularFile())
+            return null;
+        return GitUtils.computeBlobId(targetFilePath, attributes.size()).name();
+    }
+
+    // Written to a temp file and renamed into place, so an interrupted plan run never leaves half a plan behind
+    public static void writeInstallPlan(InstallPlan installPlan, Path installPlanPath, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        Path tempFilePath = Utils.createTempSiblingFile(installPlanPath, groupPrincipal, posixFilePermissionString);
+        try {
+            Files.write(tempFilePath, JsonUtils.convertInstallPlanToJsonData(installPlan));
+            // Apply may be run by another operator in the group
+            Utils.applyGroupAndPerms(tempFilePath, groupPrincipal, posixFilePermissionString);
+            Utils.moveIntoPlace(tempFilePath, installPlanPath);
+        } catch (IOException e) {
+            Utils.deleteTempFileQuietly(tempFilePath);
+            throw e;
+        }
+        logger.info("Install plan with " + installPlan.getInstallPlanEntryList().size() + " file changes written to: " + installPlanPath);
+    }
+
+    public static InstallPlan readInstallPlan(Path installPlanPath) throws IOException {
+        InstallPlan installPlan = JsonUtils.convertJsonDataToInstallPlan(JsonUtils.readJsonData(installPlanPath));
+        if (installPlan.getPlanVersion() == null || installPlan.getPlanVersion() != INSTALL_PLAN_VERSION)
+            throw new IOException("readInstallPlan: Unsupported install plan version: " + installPlan.getPlanVersion() + " in: " + installPlanPath);
+        if (!Utils.isNotNullOrEmptyOrBlank(installPlan.getGitTag()) || !Utils.isNotNullOrEmptyOrBlank(installPlan.getCommitId()))
+            throw new IOException("readInstallPlan: Install plan has no gitTag or commitId, re-run plan mode: " + installPlanPath);
+        return installPlan;
+    }
+
+    public static List<DiffEntry> rebuildDiffEntryList(InstallPlan installPlan) {
+        List<DiffEntry> diffEntryList = new ArrayList<>();
+        for (InstallPlanEntry installPlanEntry : installPlan.getInstallPlanEntryList()) {
+            diffEntryList.add(GitDiffEntry.of(DiffEntry.ChangeType.valueOf(installPlanEntry.getChangeType()),
+                    installPlanEntry.getOldPath(), FileMode.fromBits(installPlanEntry.getOldMode()), installPlanEntry.getOldId(),
+                    installPlanEntry.getNewPath(), FileMode.fromBits(installPlanEntry.getNewMode()), installPlanEntry.getNewId(),
+                    installPlanEntry.getScore()));
+        }
+        return diffEntryList;
+    }
+
+    // Returns one line per difference between the plan and the current state, an empty list means the plan can run
+    public static List<String> findDrift(InstallPlan installPlan, Mv2prdHooks mv2prdHooks) {
+        List<String> driftList = new ArrayList<>();
+        for (InstallPlanEntry installPlanEntry : installPlan.getInstallPlanEntryList()) {
+            String relativeGitFilePath = DiffEntry.DEV_NULL.equals(installPlanEntry.getNewPath()) ? installPlanEntry.getOldPath() : installPlanEntry.getNewPath();
+            String mappedTargetFilePath = GitUtils.buildAbsoluteTargetFilePath(relativeGitFilePath, mv2prdHooks.getPathMappingIndex());
+            if (!Objects.equals(mappedTargetFilePath, installPlanEntry.getAbsoluteTargetFilePath())) {
+                driftList.add("MAPPING  " + relativeGitFilePath + " planned: " + installPlanEntry.getAbsoluteTargetFilePath() + " now: " + mappedTargetFilePath);
+                continue;
+            }
+            // Apply backs up to wherever the hooks now say, which must be where the plan said it would
+            String backupFilePath = GitUtils.buildAbsoluteBackupFilePath(relativeGitFilePath, installPlan.getGitTag(), mv2prdHooks.getBackupDirectory());
+            if (!Objects.equals(backupFilePath, installPlanEntry.getAbsoluteBackupFilePath())) {
+                driftList.add("BACKUP   " + relativeGitFilePath + " planned: " + installPlanEntry.getAbsoluteBackupFilePath() + " now: " + backupFilePath);
+                continue;
+            }
+            checkTargetPreState(installPlanEntry.getAbsoluteTargetFilePath(), installPlanEntry.getTargetPreState(), driftList);
+            checkTargetPreState(installPlanEntry.getOldAbsoluteTargetFilePath(), installPlanEntry.getOldTargetPreState(), driftList);
+        }
+        return driftList;
+    }
+
+    private static void checkTargetPreState(String absoluteTargetFilePath, TargetPreState plannedTargetPreState, List<String> driftList) {
+        if (absoluteTargetFilePath == null || plannedTargetPreState == null)
+            return;
+        Path targetFilePath = Paths.get(absoluteTargetFilePath);
+        PosixFileAttributes attributes = FileMetadataCacheSingleton.getInstance().getAttributes(targetFilePath);
+        TargetPreState currentTargetPreState = attributes == null ? new TargetPreState(false, null, null, null)
+                : new TargetPreState(true, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+        if (!Objects.equals(plannedTargetPreState.getExists(), currentTargetPreState.getExists())
+                || !Objects.equals(plannedTargetPreState.getSize(), currentTargetPreState.getSize())
+                || !Objects.equals(plannedTargetPreState.getLastModifiedMillis(), currentTargetPreState.getLastModifiedMillis())) {
+            driftList.add("TARGET   " + absoluteTargetFilePath + " planned: " + plannedTargetPreState + " now: " + currentTargetPreState);
+            return;
+        }
+        if (attributes == null)
+            return;
+
+        // Same size and mtime, so only now read the content (an edit that kept both still shows up here)
+        try {
+            currentTargetPreState.setBlobId(computeContentBlobId(targetFilePath, attributes));
+        } catch (IOException e) {
+            driftList.add("TARGET   " + absoluteTargetFilePath + " planned: " + plannedTargetPreState + " now: could not be read: " + e);
+            return;
+        }
+        if (!Objects.equals(plannedTargetPreState.getBlobId(), currentTargetPreState.getBlobId()))
+            driftList.add("TARGET   " + absoluteTargetFilePath + " planned: " + plannedTargetPreState + " now: " + currentTargetPreState);
+    }
+}
@@ -0,0 +1,53 @@
+package com.some.company.mv2prd.file.install;
+
+import com.some.company.mv2prd.util.logging.Logger;
+import org.eclipse.jgit.lib.Repository;
+
+// Run-wide install options that are needed deep inside FileChange, set once from the command line
+public class InstallSettingSingleton {
+
+    private static Logger logger = Logger.getLogger(InstallSettingSingleton.class);
+
+    private static InstallSettingSingleton instance;
+
+    private Boolean skipIdenticalEnabled = false;
+    private Boolean preApproveDeletesEnabled = false;
+    // Set for worktree-less installs and plan applies, copies then come straight from this repo's object database
+    private Repository blobSourceRepository = null;
+
+    private InstallSettingSingleton(){}
+
+    public static synchronized InstallSettingSingleton getInstance() {
+        if (instance == null) {
+            instance = new InstallSettingSingleton();
+        }
+        return instance;
+    }
+
+    public void enableSkipIdentical() {
+        this.skipIdenticalEnabled = true;
+        logger.info("Skip-identical install enabled, targets already matching git will not be backed up or rewritten.");
+    }
+
+    public Boolean skipIdenticalEnabled() {
+        return skipIdenticalEnabled;
+    }
+
+    public void enablePreApproveDeletes() {
+        this.preApproveDeletesEnabled = true;
+        logger.info("Pre-approved deletes enabled, the delete plan will be logged with its hash instead of prompting.");
+    }
+
+    public Boolean preApproveDeletesEnabled() {
+        return preApproveDeletesEnabled;
+    }
+
+    public void setBlobSourceRepository(Repository blobSourceRepository) {
+        this.blobSourceRepository = blobSourceRepository;
+        logger.info("File content will be read from the git object database: " + blobSourceRepository.getDirectory());
+    }
+
+    public Repository getBlobSourceRepository() {
+        return blobSourceRepository;
+    }
+}
@@ -0,0 +1,175 @@
+package com.some.company.mv2prd.file.install;
+
+import com.some.company.mv2prd.json.Mv2prdHooks;
+import com.some.company.mv2prd.util.BackupStoreSingleton;
+import com.some.company.mv2prd.util.ContentCompareSingleton;
+import com.some.company.mv2prd.util.FileMetadataCacheSingleton;
+import com.some.company.mv2prd.util.GitUtils;
+import com.some.company.mv2prd.util.Utils;
+import com.some.company.mv2prd.util.logging.Logger;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.UserPrincipal;
+
+// A file renamed in git whose old and new paths both map to targets. The existing target is moved to the new path
+// with a single rename, and only rewritten afterwards if git also changed its content.
+public class MoveFileChange extends FileChange {
+
+    private static final Logger logger = Logger.getLogger(MoveFileChange.class);
+
+    private String oldRelativeGitFilePath;
+    private String oldAbsoluteTargetFilePath;
+    // Built on first use, like the new path's backup
+    private String oldAbsoluteBackupFilePath;
+
+    // Set when this move is part of a rename cycle (A->B, B->A) which cannot be done with moves
+    private Boolean forceCopy = false;
+    private Boolean movedOnTarget = false;
+
+    protected MoveFileChange(Boolean dryRun, String gitTag, DiffEntry diffEntry, String workingTreeDir, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, String posixFilePermissionString, Mv2prdHooks mv2prdHooks) {
+        super(dryRun, gitTag, diffEntry, workingTreeDir, userPrincipal, groupPrincipal, posixFilePermissionString, mv2prdHooks);
+        this.oldRelativeGitFilePath = diffEntry.getOldPath();
+        this.oldAbsoluteTargetFilePath = GitUtils.buildAbsoluteTargetFilePath(this.oldRelativeGitFilePath, mv2prdHooks.getPathMappingIndex());
+    }
+
+    @Override
+    protected FileChangeResult execPrimaryChange(Boolean dryRun, String absoluteGitFilePath,
+                                                 String absoluteTargetFilePath, UserPrincipal userPrincipal,
+                                                 GroupPrincipal groupPrincipal, String posixFilePermissionString) {
+        // Without the old file on the target there is nothing to move, so install the new path like any other copy
+        if (this.forceCopy || !FileMetadataCacheSingleton.getInstance().exists(Paths.get(this.oldAbsoluteTargetFilePath)))
+            return copyFile(dryRun, absoluteGitFilePath, absoluteTargetFilePath, userPrincipal, groupPrincipal, posixFilePermissionString);
+
+        if (dryRun)
+            return FileChangeResult.SUCCESS;
+
+        // An exact rename only moves the old target if it still holds the old blob. A target edited on the box is moved
+        // and then rewritten from git like a changed rename, with its edited content backed up first.
+        Boolean contentChanged = this.diffEntry.getScore() < 100 || !oldTargetMatchesRenameSource();
+        // The content that is about to be rewritten is backed up under the old git path so rollback can move it back intact
+        if (contentChanged) {
+            try {
+                BackupStoreSingleton.getInstance().backupFile(this.oldAbsoluteTargetFilePath, getOldAbsoluteBackupFilePath(), getRenameSourceBlobId(), groupPrincipal, posixFilePermissionString);
+            } catch (IOException e) {
+                logger.error("execPrimaryChange: Could not back up moved file: " + this.oldAbsoluteTargetFilePath + " to backup: " + getOldAbsoluteBackupFilePath());
+                return FileChangeResult.BACKUP_FAILED;
+            }
+        }
+
+        try {
+            Utils.moveFile(this.oldAbsoluteTargetFilePath, absoluteTargetFilePath, groupPrincipal, posixFilePermissionString);
+        } catch (IOException e) {
+            logger.error("execPrimaryChange: Could not move target: " + this.oldAbsoluteTargetFilePath + " to: " + absoluteTargetFilePath);
+            return FileChangeResult.MOVE_FAILED;
+        }
+        this.movedOnTarget = true;
+        // Journaled as each step happens, so a failure in the rewrite below still leaves the move undoable
+        if (this.targetBackedUp)
+            UndoJournalSingleton.getInstance().append(UndoJournalAction.OVERWRITTEN, getRelativeGitFilePath(), absoluteTargetFilePath, getAbsoluteBackupFilePath());
+        UndoJournalSingleton.getInstance().append(UndoJournalAction.MOVED, getRelativeGitFilePath(), absoluteTargetFilePath, null, this.oldAbsoluteTargetFilePath);
+
+        if (!contentChanged)
+            return applyTargetAttributes(Paths.get(absoluteTargetFilePath), absoluteTargetFilePath, userPrincipal, groupPrincipal, posixFilePermissionString);
+
+        FileChangeResult copyResult = copyFile(dryRun, absoluteGitFilePath, absoluteTargetFilePath, userPrincipal, groupPrincipal, posixFilePermissionString);
+        if (copyResult == FileChangeResult.SUCCESS)
+            UndoJournalSingleton.getInstance().append(UndoJournalAction.OVERWRITTEN, getRelativeGitFilePath(), absoluteTargetFilePath, getOldAbsoluteBackupFilePath());
+        return copyResult;
+    }
+
+    @Override
+    protected void recordUndoJournal() {
+        // The move path journals each of its steps itself
+        if (!this.movedOnTarget)
+            super.recordUndoJournal();
+    }
+
+    // Only current if the old file is gone too, otherwise the move still has work to do
+    @Override
+    protected Boolean isTargetAlreadyCurrent() {
+        return !FileMetadataCacheSingleton.getInstance().exists(Paths.get(this.oldAbsoluteTargetFilePath)) && targetMatchesGitFile();
+    }
+
+    @Override
+    String getClassType() {
+        return this.forceCopy ? "COPY" : "MOVE";
+    }
+
+    @Override
+    UndoJournalAction getUndoJournalAction(Boolean targetBackedUp) {
+        return targetBackedUp ? UndoJournalAction.OVERWRITTEN : UndoJournalAction.CREATED;
+    }
+
+    void setForceCopy(Boolean forceCopy) {
+        this.forceCopy = forceCopy;
+    }
+
+    // The new path had no blob before the rename, whatever sits at its target is not in git history
+    @Override
+    protected AnyObjectId getPreviousBlobId() {
+        return null;
+    }
+
+    // The old path's blob is what the moved-away target should still hold
+    private AnyObjectId getRenameSourceBlobId() {
+        FileMode oldMode = this.diffEntry.getOldMode();
+        if (oldMode != FileMode.REGULAR_FILE && oldMode != FileMode.EXECUTABLE_FILE)
+            return null;
+        return this.diffEntry.getOldId().isComplete() ? this.diffEntry.getOldId().toObjectId() : null;
+    }
+
+    // Sizes are compared first, so a target edited on the box is usually caught without reading it. Only a target of
+    // the right size is hashed, through the hash cache when one is open.
+    private Boolean oldTargetMatchesRenameSource() {
+        AnyObjectId renameSourceBlobId = getRenameSourceBlobId();
+        Path oldTargetFilePath = Paths.get(this.oldAbsoluteTargetFilePath);
+        PosixFileAttributes oldTargetAttributes = FileMetadataCacheSingleton.getInstance().getAttributes(oldTargetFilePath);
+        if (renameSourceBlobId == null || oldTargetAttributes == null || !oldTargetAttributes.isRegularFile() || Files.isSymbolicLink(oldTargetFilePath))
+            return false;
+        try {
+            long renameSourceSize = getRenameSourceSize(renameSourceBlobId);
+            if ((renameSourceSize < 0 || renameSourceSize == oldTargetAttributes.size())
+                    && ContentCompareSingleton.getInstance().matchesBlobId(oldTargetFilePath, oldTargetAttributes, renameSourceBlobId.toObjectId()))
+                return true;
+        } catch (IOException e) {
+            logger.warn("oldTargetMatchesRenameSource: Could not hash old target, rewriting it from git: " + this.oldAbsoluteTargetFilePath + " : " + e);
+            return false;
+        }
+        logger.warn("oldTargetMatchesRenameSource: Old target no longer holds the renamed blob, rewriting it from git: " + this.oldAbsoluteTargetFilePath);
+        return false;
+    }
+
+    // From the blob header with a bare repo, otherwise from the new path's working tree file, which holds the same blob
+    // for an exact rename. -1 if neither can be stat'ed.
+    private long getRenameSourceSize(AnyObjectId renameSourceBlobId) throws IOException {
+        Repository blobSourceRepository = InstallSettingSingleton.getInstance().getBlobSourceRepository();
+        if (blobSourceRepository != null)
+            return blobSourceRepository.open(renameSourceBlobId, Constants.OBJ_BLOB).getSize();
+        PosixFileAttributes gitFileAttributes = FileMetadataCacheSingleton.getInstance().getAttributes(Paths.get(getAbsoluteGitFilePath()));
+        return gitFileAttributes == null ? -1 : gitFileAttributes.size();
+    }
+
+    public String getOldRelativeGitFilePath() {
+        return oldRelativeGitFilePath;
+    }
+
+    private String getOldAbsoluteBackupFilePath() {
+        if (this.oldAbsoluteBackupFilePath == null)
+            this.oldAbsoluteBackupFilePath = GitUtils.buildAbsoluteBackupFilePath(this.oldRelativeGitFilePath, getGitTag(), getBackupDirectory());
+        return this.oldAbsoluteBackupFilePath;
+    }
+
+    public String getOldAbsoluteTargetFilePath() {
+        return oldAbsoluteTargetFilePath;
+    }
+}
@@ -0,0 +1,24 @@
+package com.some.company.mv2prd.file.install;
+
+// What an install did to a target, and therefore what a rollback has to do to undo it
+public enum UndoJournalAction {
+    // Target existed and was replaced, rollback restores it from its backup
+    OVERWRITTEN,
+    // Target did not exist before the install, rollback deletes it
+    CREATED,
+    // Target was deleted after being backed up, rollback recreates it from its backup
+    DELETED,
+    // Target was moved here from the previous target path, rollback moves it back
+    MOVED;
+
+    @Override
+    public String toString() {
+        switch(this) {
+            case OVERWRITTEN: return "OVERWRITTEN";
+            case CREATED: return "CREATED";
+            case DELETED: return "DELETED";
+            case MOVED: return "MOVED";
+            default: throw new IllegalArgumentException();
+        }
+    }
+}
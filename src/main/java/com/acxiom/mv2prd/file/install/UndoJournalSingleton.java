@@ -0,0 +1,83 @@
+package com.some.company.mv2prd.file.install;
+
+import com.some.company.mv2prd.json.JsonUtils;
+import com.some.company.mv2prd.json.UndoJournalEntry;
+import com.some.company.mv2prd.util.logging.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Append-only record of every change an install made to a target, one JSON line per change. Re-running the same tag
+// appends to the same journal. Rollback reads it back and undoes the entries in reverse.
+public class UndoJournalSingleton {
+
+    private static Logger logger = Logger.getLogger(UndoJournalSingleton.class);
+
+    private static UndoJournalSingleton instance;
+
+    private PrintWriter printWriter = null;
+    private Path journalPath = null;
+
+    private UndoJournalSingleton(){}
+
+    public static synchronized UndoJournalSingleton getInstance() {
+        if (instance == null) {
+            instance = new UndoJournalSingleton();
+        }
+        return instance;
+    }
+
+    public synchronized void open(Path journalPath) throws IOException {
+        BufferedWriter bufferedWriter = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        this.printWriter = new PrintWriter(bufferedWriter);
+        this.journalPath = journalPath;
+        logger.info("Recording undo journal to: " + journalPath);
+    }
+
+    // Does nothing when no journal is open (dry runs)
+    public void append(UndoJournalAction undoJournalAction, String relativeGitFilePath, String absoluteTargetFilePath, String absoluteBackupFilePath) {
+        append(undoJournalAction, relativeGitFilePath, absoluteTargetFilePath, absoluteBackupFilePath, null);
+    }
+
+    public synchronized void append(UndoJournalAction undoJournalAction, String relativeGitFilePath, String absoluteTargetFilePath, String absoluteBackupFilePath, String previousAbsoluteTargetFilePath) {
+        if (printWriter == null)
+            return;
+        UndoJournalEntry undoJournalEntry = new UndoJournalEntry(undoJournalAction.toString(), relativeGitFilePath, absoluteTargetFilePath, absoluteBackupFilePath);
+        undoJournalEntry.setPreviousAbsoluteTargetFilePath(previousAbsoluteTargetFilePath);
+        try {
+            printWriter.println(JsonUtils.convertUndoJournalEntryToJsonLine(undoJournalEntry));
+        } catch (IOException e) {
+            logger.error("append: Could not serialize undo journal entry: " + undoJournalEntry, e);
+        }
+        // Flushed per entry so that the journal survives a run that dies part way through
+        printWriter.flush();
+        if (printWriter.checkError())
+            logger.error("append: Error writing undo journal: " + journalPath + " entry: " + undoJournalEntry);
+    }
+
+    public synchronized void close() {
+        if (printWriter != null) {
+            printWriter.flush();
+            printWriter.close();
+            printWriter = null;
+        }
+    }
+
+    public static List<UndoJournalEntry> readJournal(Path journalPath) throws IOException {
+        List<UndoJournalEntry> undoJournalEntryList = new ArrayList<>();
+        for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty())
+                continue;
+            undoJournalEntryList.add(JsonUtils.convertJsonLineToUndoJournalEntry(line));
+        }
+        return undoJournalEntryList;
+    }
+}
@@ -0,0 +1,15 @@
+package com.some.company.mv2prd.file.prune;
+
+public enum PruneBackupResult {
+    SUCCESS, PENDING, DELETE_FAILED;
+
+    @Override
+    public String toString() {
+        switch(this) {
+            case SUCCESS: return "SUCCESS";
+            case PENDING: return "PENDING";
+            case DELETE_FAILED: return "DELETE_FAILED";
+            default: throw new IllegalArgumentException();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.some.company.mv2prd.file.prune;
+
+import com.some.company.mv2prd.json.BackupIndexEntry;
+import com.some.company.mv2prd.json.BackupRetention;
+import com.some.company.mv2prd.json.JsonUtils;
+import com.some.company.mv2prd.util.FileMetadataCacheSingleton;
+import com.some.company.mv2prd.util.GitUtils;
+import com.some.company.mv2prd.util.PartitionedExecutor;
+import com.some.company.mv2prd.util.RateLimiter;
+import com.some.company.mv2prd.util.Utils;
+import com.some.company.mv2prd.util.logging.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// prune_backups mode. What to delete is decided from the backup index alone (one line per install run), so the
+// backup tree is only walked for the tags that are actually being pruned. Deletes run on a bounded number of threads
+// behind a shared rate limiter, so a prune can run next to normal work without saturating the filesystem.
+public class PruneBackupUtils {
+
+    private static final Logger logger = Logger.getLogger(PruneBackupUtils.class);
+
+    private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+    // Runs of the same tag are merged: the newest run dates the tag and the bytes of all runs add up. Tag directories
+    // that predate the index are sized once with a walk and added to it. Tags may contain "/" (release/1.0), so a
+    // directory is only taken for a tag by what sits next to it, see findUnindexedTagDirectories.
+    public static List<BackupIndexEntry> readBackupIndex(String backupDirectory, Boolean dryRun) throws IOException {
+        Map<String, BackupIndexEntry> backupIndexEntryMap = new LinkedHashMap<>();
+        Path backupIndexPath = Paths.get(GitUtils.buildBackupIndexFilePath(backupDirectory));
+        if (Files.exists(backupIndexPath)) {
+            for (String line : Files.readAllLines(backupIndexPath, StandardCharsets.UTF_8)) {
+                if (!Utils.isNotNullOrEmptyOrBlank(line))
+                    continue;
+                BackupIndexEntry backupIndexEntry = JsonUtils.convertJsonLineToBackupIndexEntry(line);
+                BackupIndexEntry mergedBackupIndexEntry = backupIndexEntryMap.get(backupIndexEntry.getGitTag());
+                if (mergedBackupIndexEntry == null) {
+                    backupIndexEntryMap.put(backupIndexEntry.getGitTag(), backupIndexEntry);
+                } else {
+                    mergedBackupIndexEntry.setCreatedMillis(Math.max(mergedBackupIndexEntry.getCreatedMillis(), backupIndexEntry.getCreatedMillis()));
+                    mergedBackupIndexEntry.setBytes(mergedBackupIndexEntry.getBytes() + backupIndexEntry.getBytes());
+                }
+            }
+        }
+
+        Path backupDirectoryPath = Paths.get(backupDirectory);
+        if (!Files.isDirectory(backupDirectoryPath))
+            return new ArrayList<>(backupIndexEntryMap.values());
+
+        List<BackupIndexEntry> unindexedBackupIndexEntryList = new ArrayList<>();
+        for (String gitTag : findUnindexedTagDirectories(backupDirectoryPath, "", backupIndexEntryMap.keySet())) {
+            Path tagPath = backupDirectoryPath.resolve(gitTag);
+            unindexedBackupIndexEntryList.add(new BackupIndexEntry(gitTag, Files.getLastModifiedTime(tagPath).toMillis(), sizeOfTree(tagPath)));
+        }
+        if (unindexedBackupIndexEntryList.size() > 0) {
+            logger.info("Found " + unindexedBackupIndexEntryList.size() + " tag backup directories missing from the backup index" + (dryRun ? "." : ", adding them."));
+            List<String> lineList = new ArrayList<>();
+            for (BackupIndexEntry backupIndexEntry : unindexedBackupIndexEntryList) {
+                backupIndexEntryMap.put(backupIndexEntry.getGitTag(), backupIndexEntry);
+                lineList.add(JsonUtils.convertBackupIndexEntryToJsonLine(backupIndexEntry));
+            }
+            if (!dryRun)
+                Files.write(backupIndexPath, lineList, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        return new ArrayList<>(backupIndexEntryMap.values());
+    }
+
+    // A directory is a tag's backup directory if the tag's undo journal or manifest sits next to it. Indexed tags and
+    // the directories above them (release/ for release/1.0) are never taken for a tag, the search only goes through
+    // them. A top level directory with no tag found below it is a backup from before journals and is taken whole, unless
+    // it is empty (what pruning a nested tag leaves behind).
+    static List<String> findUnindexedTagDirectories(Path directoryPath, String relativePrefix, Set<String> indexedGitTagSet) throws IOException {
+        List<String> gitTagList = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directoryPath)) {
+            for (Path childPath : directoryStream) {
+                String childName = childPath.getFileName().toString();
+                if (childName.startsWith(".") || !Files.isDirectory(childPath, LinkOption.NOFOLLOW_LINKS))
+                    continue;
+                String gitTag = relativePrefix + childName;
+                if (indexedGitTagSet.contains(gitTag))
+                    continue;
+                if (hasTagSideFile(childPath)) {
+                    gitTagList.add(gitTag);
+                    continue;
+                }
+                List<String> nestedGitTagList = findUnindexedTagDirectories(childPath, gitTag + "/", indexedGitTagSet);
+                gitTagList.addAll(nestedGitTagList);
+                if (relativePrefix.isEmpty() && nestedGitTagList.isEmpty() && !isAncestorOfAny(gitTag, indexedGitTagSet) && !isEmptyTree(childPath))
+                    gitTagList.add(gitTag);
+            }
+        }
+        return gitTagList;
+    }
+
+    private static boolean hasTagSideFile(Path tagPath) throws IOException {
+        String tagName = tagPath.getFileName().toString();
+        // A filter rather than a glob, tag names may hold glob characters
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(tagPath.getParent(), path -> {
+            String fileName = path.getFileName().toString();
+            return fileName.startsWith(tagName + ".undo_journal") || fileName.equals(tagName + ".backup_manifest");
+        })) {
+            return directoryStream.iterator().hasNext();
+        }
+    }
+
+    static boolean isAncestorOfAny(String gitTag, Set<String> gitTagSet) {
+        for (String otherGitTag : gitTagSet) {
+            if (otherGitTag.startsWith(gitTag + "/"))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isEmptyTree(Path rootPath) throws IOException {
+        try (Stream<Path> pathStream = Files.walk(rootPath)) {
+            return pathStream.noneMatch(path -> !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS));
+        }
+    }
+
+    private static long sizeOfTree(Path rootPath) throws IOException {
+        try (Stream<Path> pathStream = Files.walk(rootPath)) {
+            long size = 0;
+            for (Path path : pathStream.collect(Collectors.toList())) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isRegularFile())
+                    size += attributes.size();
+            }
+            return size;
+        }
+    }
+
+    // Newest first, a tag is kept while every configured rule still keeps it. Once the byte cap is reached everything
+    // older goes too. The last deployed tag is always kept, and so is a directory it sits in.
+    public static List<PrunedBackup> selectPrunedBackups(List<BackupIndexEntry> backupIndexEntryList, BackupRetention backupRetention, String lastDeployedGitTag, long nowMillis) {
+        List<BackupIndexEntry> sortedBackupIndexEntryList = new ArrayList<>(backupIndexEntryList);
+        sortedBackupIndexEntryList.sort(Comparator.comparing(BackupIndexEntry::getCreatedMillis).reversed());
+
+        List<PrunedBackup> prunedBackupList = new ArrayList<>();
+        int keptCount = 0;
+        long keptBytes = 0;
+        boolean byteCapReached = false;
+        for (BackupIndexEntry backupIndexEntry : sortedBackupIndexEntryList) {
+            String reason = null;
+            if (backupIndexEntry.getGitTag().equals(lastDeployedGitTag)
+                    || (lastDeployedGitTag != null && isAncestorOfAny(backupIndexEntry.getGitTag(), Collections.singleton(lastDeployedGitTag)))) {
+                reason = null;
+            } else if (backupRetention.getKeepLastTags() != null && keptCount >= backupRetention.getKeepLastTags()) {
+                reason = "keepLastTags:" + backupRetention.getKeepLastTags();
+            } else if (backupRetention.getMaxDays() != null && nowMillis - backupIndexEntry.getCreatedMillis() > backupRetention.getMaxDays() * MILLIS_PER_DAY) {
+                reason = "maxDays:" + backupRetention.getMaxDays();
+            } else if (backupRetention.getMaxBytes() != null && (byteCapReached || keptBytes + backupIndexEntry.getBytes() > backupRetention.getMaxBytes())) {
+                byteCapReached = true;
+                reason = "maxBytes:" + backupRetention.getMaxBytes();
+            }
+
+            if (reason == null) {
+                keptCount++;
+                keptBytes += backupIndexEntry.getBytes();
+            } else {
+                prunedBackupList.add(new PrunedBackup(backupIndexEntry.getGitTag(), backupIndexEntry.getCreatedMillis(), backupIndexEntry.getBytes(), reason));
+            }
+        }
+        return prunedBackupList;
+    }
+
+    public static List<PrunedBackup> executeAllPrunedBackups(Boolean dryRun, String backupDirectory, List<PrunedBackup> prunedBackupList,
+                                                             GroupPrincipal groupPrincipal, String posixFilePermissionString,
+                                                             int pruneThreads, int deletesPerSecond) throws IOException, InterruptedException {
+        if (dryRun)
+            return prunedBackupList;
+
+        RateLimiter rateLimiter = new RateLimiter(deletesPerSecond);
+        for (PrunedBackup prunedBackup : prunedBackupList)
+            deleteTagTree(Paths.get(backupDirectory, prunedBackup.getGitTag()), prunedBackup, rateLimiter, pruneThreads);
+
+        // Only after every pruned tag's links are gone can an object's link count tell whether anything still uses it
+        for (PrunedBackup prunedBackup : prunedBackupList) {
+            deleteUnlinkedObjects(backupDirectory, prunedBackup, rateLimiter);
+            deleteTagSideFiles(backupDirectory, prunedBackup);
+            if (prunedBackup.getPruneBackupResult() == PruneBackupResult.PENDING)
+                prunedBackup.setPruneBackupResult(PruneBackupResult.SUCCESS);
+        }
+
+        rewriteBackupIndex(backupDirectory, prunedBackupList, groupPrincipal, posixFilePermissionString);
+        return prunedBackupList;
+    }
+
+    private static void deleteTagTree(Path tagPath, PrunedBackup prunedBackup, RateLimiter rateLimiter, int pruneThreads) throws IOException, InterruptedException {
+        if (!Files.exists(tagPath, LinkOption.NOFOLLOW_LINKS))
+            return;
+
+        List<Path> directoryPathList = new ArrayList<>();
+        List<Path> filePathList = new ArrayList<>();
+        try (Stream<Path> pathStream = Files.walk(tagPath)) {
+            for (Path path : pathStream.collect(Collectors.toList())) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+                    directoryPathList.add(path);
+                else
+                    filePathList.add(path);
+            }
+        }
+        logger.info("Pruning backups of gitTag: \"" + prunedBackup.getGitTag() + "\" (" + filePathList.size() + " files)");
+
+        AtomicBoolean deleteFailed = new AtomicBoolean(false);
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("mv2prd-prune", pruneThreads, 256);
+        try {
+            for (Path filePath : filePathList) {
+                partitionedExecutor.submit(filePath.toString(), () -> {
+                    try {
+                        rateLimiter.acquire();
+                        prunedBackup.recordDeletedFile(deleteCountingFreedBytes(filePath));
+                    } catch (IOException e) {
+                        logger.error("deleteTagTree: Could not delete backup file: " + filePath + " : " + e);
+                        deleteFailed.set(true);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        deleteFailed.set(true);
+                    }
+                });
+            }
+        } finally {
+            partitionedExecutor.awaitCompletion();
+        }
+
+        // Deepest first, so each directory is empty by the time it is removed
+        directoryPathList.sort(Comparator.comparing(Path::getNameCount).reversed());
+        for (Path directoryPath : directoryPathList) {
+            try {
+                rateLimiter.acquire();
+                Files.deleteIfExists(directoryPath);
+            } catch (IOException e) {
+                logger.error("deleteTagTree: Could not delete backup directory: " + directoryPath + " : " + e);
+                deleteFailed.set(true);
+            }
+        }
+        FileMetadataCacheSingleton.getInstance().invalidateTree(tagPath);
+
+        if (deleteFailed.get())
+            prunedBackup.setPruneBackupResult(PruneBackupResult.DELETE_FAILED);
+    }
+
+    // A hard linked backup frees nothing by itself, its bytes go once the last link to the object is removed
+    private static long deleteCountingFreedBytes(Path filePath) throws IOException {
+        Map<String, Object> attributeMap = Files.readAttributes(filePath, "unix:size,nlink", LinkOption.NOFOLLOW_LINKS);
+        long freedBytes = ((Number) attributeMap.get("nlink")).intValue() <= 1 ? ((Number) attributeMap.get("size")).longValue() : 0;
+        Files.deleteIfExists(filePath);
+        return freedBytes;
+    }
+
+    private static void deleteUnlinkedObjects(String backupDirectory, PrunedBackup prunedBackup, RateLimiter rateLimiter) throws IOException, InterruptedException {
+        Path backupManifestPath = Paths.get(GitUtils.buildBackupManifestFilePath(prunedBackup.getGitTag(), backupDirectory));
+        if (!Files.exists(backupManifestPath))
+            return;
+
+        for (String objectPathString : new HashSet<>(Files.readAllLines(backupManifestPath, StandardCharsets.UTF_8))) {
+            if (!Utils.isNotNullOrEmptyOrBlank(objectPathString))
+                continue;
+            Path objectPath = Paths.get(objectPathString);
+            try {
+                if (!Files.exists(objectPath, LinkOption.NOFOLLOW_LINKS))
+                    continue;
+                Map<String, Object> attributeMap = Files.readAttributes(objectPath, "unix:size,nlink", LinkOption.NOFOLLOW_LINKS);
+                if (((Number) attributeMap.get("nlink")).intValue() > 1)
+                    continue;
+                rateLimiter.acquire();
+                Files.deleteIfExists(objectPath);
+                FileMetadataCacheSingleton.getInstance().invalidate(objectPath);
+                prunedBackup.recordDeletedObject(((Number) attributeMap.get("size")).longValue());
+            } catch (IOException e) {
+                logger.error("deleteUnlinkedObjects: Could not delete backup object: " + objectPath + " : " + e);
+                prunedBackup.setPruneBackupResult(PruneBackupResult.DELETE_FAILED);
+            }
+        }
+    }
+
+    // The manifest and the undo journal (rolled back or not) are of no use once the backups they point at are gone
+    private static void deleteTagSideFiles(String backupDirectory, PrunedBackup prunedBackup) throws IOException {
+        Set<Path> sideFilePathSet = new HashSet<>();
+        sideFilePathSet.add(Paths.get(GitUtils.buildBackupManifestFilePath(prunedBackup.getGitTag(), backupDirectory)));
+        Path undoJournalPath = Paths.get(GitUtils.buildUndoJournalFilePath(prunedBackup.getGitTag(), backupDirectory));
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(undoJournalPath.getParent(), undoJournalPath.getFileName() + "*")) {
+            for (Path path : directoryStream)
+                sideFilePathSet.add(path);
+        }
+        for (Path sideFilePath : sideFilePathSet) {
+            try {
+                Files.deleteIfExists(sideFilePath);
+            } catch (IOException e) {
+                logger.error("deleteTagSideFiles: Could not delete: " + sideFilePath + " : " + e);
+                prunedBackup.setPruneBackupResult(PruneBackupResult.DELETE_FAILED);
+            }
+        }
+    }
+
+    // Fully pruned tags leave the index, tags that failed part way stay so the next prune picks them up again
+    private static void rewriteBackupIndex(String backupDirectory, List<PrunedBackup> prunedBackupList, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        Set<String> prunedGitTagSet = new HashSet<>();
+        for (PrunedBackup prunedBackup : prunedBackupList) {
+            if (prunedBackup.getPruneBackupResult() == PruneBackupResult.SUCCESS)
+                prunedGitTagSet.add(prunedBackup.getGitTag());
+        }
+
+        Path backupIndexPath = Paths.get(GitUtils.buildBackupIndexFilePath(backupDirectory));
+        if (prunedGitTagSet.isEmpty() || !Files.exists(backupIndexPath))
+            return;
+
+        List<String> keptLineList = new ArrayList<>();
+        for (String line : Files.readAllLines(backupIndexPath, StandardCharsets.UTF_8)) {
+            if (Utils.isNotNullOrEmptyOrBlank(line) && !prunedGitTagSet.contains(JsonUtils.convertJsonLineToBackupIndexEntry(line).getGitTag()))
+                keptLineList.add(line);
+        }
+        // The next install, maybe by another operator, appends to the index, so it keeps the group and mode it had
+        PosixFileAttributes backupIndexAttributes = Files.readAttributes(backupIndexPath, PosixFileAttributes.class);
+        Path tempFilePath = Utils.createTempSiblingFile(backupIndexPath, groupPrincipal, posixFilePermissionString);
+        try {
+            Files.write(tempFilePath, keptLineList, StandardCharsets.UTF_8);
+            Utils.applyGroupAndPerms(tempFilePath, backupIndexAttributes.group(), PosixFilePermissions.toString(backupIndexAttributes.permissions()));
+            Utils.moveIntoPlace(tempFilePath, backupIndexPath);
+        } catch (IOException e) {
+            Utils.deleteTempFileQuietly(tempFilePath);
+            throw e;
+        }
+    }
+
+    public static Boolean allSucceeded(List<PrunedBackup> prunedBackupList) {
+        for (PrunedBackup prunedBackup : prunedBackupList) {
+            if (prunedBackup.getPruneBackupResult() == PruneBackupResult.DELETE_FAILED)
+                return false;
+        }
+        return true;
+    }
+
+    public static StringBuilder generatePostExecReport(Boolean dryRun, BackupRetention backupRetention, List<PrunedBackup> prunedBackupList, long nowMillis) {
+        final double megabyte = 1024.0 * 1024.0;
+        int col1Len = "GitTag".length();
+        int col2Len = "Reason".length();
+        for (PrunedBackup prunedBackup : prunedBackupList) {
+            col1Len = Math.max(col1Len, prunedBackup.getGitTag().length());
+            col2Len = Math.max(col2Len, prunedBackup.getReason().length());
+        }
+        String formatString = "%-" + col1Len + "s  %-" + col2Len + "s  %8s  %10s  %8s  %8s  %10s  %s\n";
+
+        List<PrunedBackup> sortedPrunedBackupList = new ArrayList<>(prunedBackupList);
+        sortedPrunedBackupList.sort(Comparator.comparing(PrunedBackup::getCreatedMillis));
+
+        StringBuilder sb = new StringBuilder("Retention: " + backupRetention + "\n\n");
+        if (sortedPrunedBackupList.isEmpty()) {
+            sb.append("Nothing to prune, every tag's backups are within the retention rules.\n");
+        } else {
+            sb.append(String.format(formatString, "GitTag", "Reason", "Age(d)", "Index(MB)", "Files", "Objects", "Freed(MB)", "Result") + "\n");
+            long totalFreedBytes = 0;
+            for (PrunedBackup prunedBackup : sortedPrunedBackupList) {
+                totalFreedBytes += prunedBackup.getFreedBytes();
+                sb.append(String.format(formatString,
+                        prunedBackup.getGitTag(),
+                        prunedBackup.getReason(),
+                        (nowMillis - prunedBackup.getCreatedMillis()) / MILLIS_PER_DAY,
+                        String.format("%.1f", prunedBackup.getIndexedBytes() / megabyte),
+                        prunedBackup.getDeletedFileCount(),
+                        prunedBackup.getDeletedObjectCount(),
+                        String.format("%.1f", prunedBackup.getFreedBytes() / megabyte),
+                        prunedBackup.getPruneBackupResult()));
+            }
+            sb.append("\nTags: " + sortedPrunedBackupList.size() + "  Freed: " + String.format("%.1f", totalFreedBytes / megabyte) + "MB\n");
+        }
+
+        int maxLen = Utils.getLongestLineLengthInStringBuilder(sb);
+        int halfLen = (maxLen / 2) - 10;
+
+        StringBuilder header = new StringBuilder("Report below:\n\n");
+        StringBuilder dryRunHeader = new StringBuilder();
+        if (dryRun) dryRunHeader = new StringBuilder(Utils.printNTimes(" ",halfLen+1) + "*** DRY RUN ONLY ***" + Utils.printNTimes(" ",halfLen+1) + "\n\n");
+        StringBuilder innerHeaderSb = new StringBuilder(
+                        "   "
+                        + Utils.printNTimes("_",halfLen-3)
+                        + " M2PRD PRUNE REPORT "
+                        + Utils.printNTimes("_",halfLen-3)
+                        + "   \n\n")
+                .append(dryRunHeader);
+
+        return header
+                .append(
+                        Utils.boxitizeMe(
+                                innerHeaderSb
+                                        .append(sb)) + "\n");
+    }
+}
@@ -0,0 +1,72 @@
+package com.some.company.mv2prd.file.prune;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// The backups of one tag that the retention rules no longer keep
+public class PrunedBackup {
+
+    private final String gitTag;
+    private final Long createdMillis;
+    private final Long indexedBytes;
+    // Which retention rule dropped it, for the report
+    private final String reason;
+
+    private PruneBackupResult pruneBackupResult = PruneBackupResult.PENDING;
+    // Deleted from several prune threads at once
+    private final AtomicLong deletedFileCount = new AtomicLong();
+    private final AtomicLong freedBytes = new AtomicLong();
+    private long deletedObjectCount = 0;
+
+    public PrunedBackup(String gitTag, Long createdMillis, Long indexedBytes, String reason) {
+        this.gitTag = gitTag;
+        this.createdMillis = createdMillis;
+        this.indexedBytes = indexedBytes;
+        this.reason = reason;
+    }
+
+    public String getGitTag() {
+        return gitTag;
+    }
+
+    public Long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    public Long getIndexedBytes() {
+        return indexedBytes;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public PruneBackupResult getPruneBackupResult() {
+        return pruneBackupResult;
+    }
+
+    void setPruneBackupResult(PruneBackupResult pruneBackupResult) {
+        this.pruneBackupResult = pruneBackupResult;
+    }
+
+    public long getDeletedFileCount() {
+        return deletedFileCount.get();
+    }
+
+    public long getFreedBytes() {
+        return freedBytes.get();
+    }
+
+    public long getDeletedObjectCount() {
+        return deletedObjectCount;
+    }
+
+    void recordDeletedFile(long bytesFreed) {
+        deletedFileCount.incrementAndGet();
+        freedBytes.addAndGet(bytesFreed);
+    }
+
+    void recordDeletedObject(long bytesFreed) {
+        deletedObjectCount++;
+        freedBytes.addAndGet(bytesFreed);
+    }
+}
@@ -0,0 +1,155 @@
+package com.some.company.mv2prd.file.rollback;
+
+import com.some.company.mv2prd.file.BasicFile;
+import com.some.company.mv2prd.file.install.UndoJournalAction;
+import com.some.company.mv2prd.json.UndoJournalEntry;
+import com.some.company.mv2prd.util.BackupStoreSingleton;
+import com.some.company.mv2prd.util.FileMetadataCacheSingleton;
+import com.some.company.mv2prd.util.NormalisedPath;
+import com.some.company.mv2prd.util.Utils;
+import com.some.company.mv2prd.util.logging.Logger;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.GroupPrincipal;
+import java.util.Comparator;
+
+// Undoes a single undo journal entry written by an install
+public class RollbackFile extends BasicFile {
+
+    private static final Logger logger = Logger.getLogger(RollbackFile.class);
+
+    private UndoJournalAction undoJournalAction;
+    private String absoluteBackupFilePath;
+    private String previousAbsoluteTargetFilePath;
+
+    private RollbackFileResult rollbackFileResult;
+
+    public RollbackFile(UndoJournalEntry undoJournalEntry) {
+        this.undoJournalAction = UndoJournalAction.valueOf(undoJournalEntry.getAction());
+        this.relativeGitFilePath = NormalisedPath.of(undoJournalEntry.getRelativeGitFilePath());
+        this.absoluteTargetFilePath = NormalisedPath.of(undoJournalEntry.getAbsoluteTargetFilePath());
+        this.absoluteBackupFilePath = undoJournalEntry.getAbsoluteBackupFilePath();
+        this.previousAbsoluteTargetFilePath = undoJournalEntry.getPreviousAbsoluteTargetFilePath();
+        this.rollbackFileResult = RollbackFileResult.PENDING;
+    }
+
+    public RollbackFileResult execRollback(Boolean dryRun, Repository repository, GroupPrincipal groupPrincipal, String posixFilePermissionString) {
+        switch (this.undoJournalAction) {
+            case OVERWRITTEN:
+            case DELETED:
+                this.rollbackFileResult = restoreFromBackup(dryRun, repository, groupPrincipal, posixFilePermissionString);
+                break;
+            case CREATED:
+                this.rollbackFileResult = deleteCreatedFile(dryRun);
+                break;
+            case MOVED:
+                this.rollbackFileResult = moveBack(dryRun, groupPrincipal, posixFilePermissionString);
+                break;
+            default:
+                this.rollbackFileResult = RollbackFileResult.FAILED;
+        }
+        return this.rollbackFileResult;
+    }
+
+    private RollbackFileResult restoreFromBackup(Boolean dryRun, Repository repository, GroupPrincipal groupPrincipal, String posixFilePermissionString) {
+        // Targets that matched git at install time were only backed up as a pointer to their blob
+        if (this.absoluteBackupFilePath != null && !FileMetadataCacheSingleton.getInstance().exists(Paths.get(this.absoluteBackupFilePath))
+                && BackupStoreSingleton.blobRefExists(this.absoluteBackupFilePath)) {
+            try {
+                if (!dryRun) BackupStoreSingleton.restoreFromBlobRef(repository, this.absoluteBackupFilePath, getAbsoluteTargetFilePath(), groupPrincipal, posixFilePermissionString);
+            } catch (IOException e) {
+                logger.error("restoreFromBackup: Could not restore target: " + this.absoluteTargetFilePath + " from git history, pointer: " + this.absoluteBackupFilePath + ".blobref : " + e);
+                return RollbackFileResult.RESTORE_FAILED;
+            }
+            return RollbackFileResult.SUCCESS;
+        }
+        if (this.absoluteBackupFilePath == null || !FileMetadataCacheSingleton.getInstance().exists(Paths.get(this.absoluteBackupFilePath))) {
+            logger.error("restoreFromBackup: Backup file is missing, cannot restore target: " + this.absoluteTargetFilePath + " from backup: " + this.absoluteBackupFilePath);
+            return RollbackFileResult.BACKUP_MISSING;
+        }
+        try {
+            // The backup kept the original owner, group and mode, so a plain copy puts all of them back
+            if (!dryRun) Utils.copyFile(this.absoluteBackupFilePath, getAbsoluteTargetFilePath(), null, groupPrincipal, posixFilePermissionString);
+        } catch (IOException e) {
+            logger.error("restoreFromBackup: Could not restore target: " + this.absoluteTargetFilePath + " from backup: " + this.absoluteBackupFilePath);
+            return RollbackFileResult.RESTORE_FAILED;
+        }
+        return RollbackFileResult.SUCCESS;
+    }
+
+    private RollbackFileResult deleteCreatedFile(Boolean dryRun) {
+        if (!FileMetadataCacheSingleton.getInstance().exists(this.absoluteTargetFilePath.toPath())) {
+            logger.warn("deleteCreatedFile: File to delete does not exist, skipping it: " + this.absoluteTargetFilePath);
+            return RollbackFileResult.DELETE_SKIPPED;
+        }
+        try {
+            // The user already confirmed the rollback as a whole, so no per-file prompt here
+            if (!dryRun) Utils.deleteFileNoConfirmation(this.absoluteTargetFilePath.toPath());
+        } catch (IOException e) {
+            logger.error("deleteCreatedFile: Could not remove target file: " + this.absoluteTargetFilePath);
+            return RollbackFileResult.DELETE_FAILED;
+        }
+        return RollbackFileResult.SUCCESS;
+    }
+
+    private RollbackFileResult moveBack(Boolean dryRun, GroupPrincipal groupPrincipal, String posixFilePermissionString) {
+        if (!FileMetadataCacheSingleton.getInstance().exists(this.absoluteTargetFilePath.toPath())) {
+            logger.error("moveBack: Moved file is missing, cannot move it back: " + this.absoluteTargetFilePath + " to: " + this.previousAbsoluteTargetFilePath);
+            return RollbackFileResult.RESTORE_FAILED;
+        }
+        try {
+            if (!dryRun) Utils.moveFile(getAbsoluteTargetFilePath(), this.previousAbsoluteTargetFilePath, groupPrincipal, posixFilePermissionString);
+        } catch (IOException e) {
+            logger.error("moveBack: Could not move target: " + this.absoluteTargetFilePath + " back to: " + this.previousAbsoluteTargetFilePath);
+            return RollbackFileResult.RESTORE_FAILED;
+        }
+        return RollbackFileResult.SUCCESS;
+    }
+
+    String getClassType() {
+        switch (this.undoJournalAction) {
+            case CREATED: return "REMOVE";
+            case MOVED: return "UNMOVE";
+            default: return "RESTORE";
+        }
+    }
+
+    public UndoJournalAction getUndoJournalAction() {
+        return undoJournalAction;
+    }
+
+    public String getAbsoluteBackupFilePath() {
+        return absoluteBackupFilePath;
+    }
+
+    public String getPreviousAbsoluteTargetFilePath() {
+        return previousAbsoluteTargetFilePath;
+    }
+
+    public RollbackFileResult getRollbackFileResult() {
+        return rollbackFileResult;
+    }
+
+    // Will sort by RollbackFileResult, RelativeGitFilePath ascending
+    public static Comparator<RollbackFile> resultComparator = (rf1, rf2) -> {
+        if (rf1.getRollbackFileResult() == rf2.getRollbackFileResult())
+            // case insensitive
+            return rf1.getRelativeGitFilePath().toLowerCase().compareTo(rf2.getRelativeGitFilePath().toLowerCase());
+        else
+            return rf1.getRollbackFileResult().compareTo(rf2.getRollbackFileResult());
+    };
+
+    @Override
+    public String toString() {
+        return "RollbackFile{" +
+                "undoJournalAction=" + undoJournalAction +
+                ", relativeGitFilePath='" + relativeGitFilePath + '\'' +
+                ", absoluteTargetFilePath='" + absoluteTargetFilePath + '\'' +
+                ", absoluteBackupFilePath='" + absoluteBackupFilePath + '\'' +
+                ", previousAbsoluteTargetFilePath='" + previousAbsoluteTargetFilePath + '\'' +
+                ", rollbackFileResult=" + rollbackFileResult +
+                '}';
+    }
+}
@@ -0,0 +1,19 @@
+package com.some.company.mv2prd.file.rollback;
+
+public enum RollbackFileResult {
+    SUCCESS, PENDING, BACKUP_MISSING, RESTORE_FAILED, DELETE_SKIPPED, DELETE_FAILED, FAILED;
+
+    @Override
+    public String toString() {
+        switch(this) {
+            case SUCCESS: return "SUCCESS";
+            case PENDING: return "PENDING";
+            case BACKUP_MISSING: return "BACKUP_MISSING";
+            case RESTORE_FAILED: return "RESTORE_FAILED";
+            case DELETE_SKIPPED: return "DELETE_SKIPPED";
+            case DELETE_FAILED: return "DELETE_FAILED";
+            case FAILED: return "FAILED";
+            default: throw new IllegalArgumentException();
+        }
+    }
+}
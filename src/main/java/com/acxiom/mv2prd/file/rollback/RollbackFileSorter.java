@@ -0,0 +1,18 @@
+package com.some.company.mv2prd.file.rollback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class RollbackFileSorter {
+    List<RollbackFile> rollbackFileList = new ArrayList<>();
+
+    public RollbackFileSorter(List<RollbackFile> rollbackFileList) {
+        this.rollbackFileList = rollbackFileList;
+    }
+
+    public List<RollbackFile> getSortedRollbackFilesByResultAndGitPath() {
+        Collections.sort(this.rollbackFileList, RollbackFile.resultComparator);
+        return this.rollbackFileList;
+    }
+}
@@ -0,0 +1,186 @@
+package com.some.company.mv2prd.file.rollback;
+
+import com.some.company.mv2prd.file.install.UndoJournalAction;
+import com.some.company.mv2prd.json.UndoJournalEntry;
+import com.some.company.mv2prd.util.FileMetadataCacheSingleton;
+import com.some.company.mv2prd.util.GitUtils;
+import com.some.company.mv2prd.util.PartitionedExecutor;
+import com.some.company.mv2prd.util.Utils;
+import com.some.company.mv2prd.util.logging.Logger;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.GroupPrincipal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RollbackFileUtils {
+
+    private static final Logger logger = Logger.getLogger(RollbackFileUtils.class);
+
+    // Replays the journal newest entry first. Entries are routed to a worker by target path, so every entry for one target
+    // is undone in exact reverse order while independent targets are restored in parallel. A MOVED entry ties its two
+    // paths together, so everything touching either path lands on the same worker.
+    public static List<RollbackFile> executeAllRollbackFiles(Boolean dryRun, List<UndoJournalEntry> undoJournalEntryList, Repository repository, GroupPrincipal groupPrincipal, String posixFilePermissionString, int rollbackThreads) throws InterruptedException {
+        List<RollbackFile> rollbackFileList = new ArrayList<>();
+        for (int i = undoJournalEntryList.size() - 1; i >= 0; i--)
+            rollbackFileList.add(new RollbackFile(undoJournalEntryList.get(i)));
+
+        logger.info("Rolling back " + rollbackFileList.size() + " journal entries with " + rollbackThreads + " threads.");
+        Map<String, String> partitionKeyMap = buildPartitionKeyMap(rollbackFileList);
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("mv2prd-rollback", rollbackThreads, 256);
+        for (RollbackFile rollbackFile : rollbackFileList)
+            partitionedExecutor.submit(findPartitionKey(partitionKeyMap, rollbackFile.getAbsoluteTargetFilePath()),
+                    () -> rollbackFile.execRollback(dryRun, repository, groupPrincipal, posixFilePermissionString));
+        partitionedExecutor.awaitCompletion();
+
+        return rollbackFileList;
+    }
+
+    // Union-find over target paths, joined by MOVED entries. Paths not in the map are their own partition.
+    private static Map<String, String> buildPartitionKeyMap(List<RollbackFile> rollbackFileList) {
+        Map<String, String> partitionKeyMap = new HashMap<>();
+        for (RollbackFile rollbackFile : rollbackFileList) {
+            if (rollbackFile.getUndoJournalAction() != UndoJournalAction.MOVED)
+                continue;
+            String firstKey = findPartitionKey(partitionKeyMap, rollbackFile.getAbsoluteTargetFilePath());
+            String secondKey = findPartitionKey(partitionKeyMap, rollbackFile.getPreviousAbsoluteTargetFilePath());
+            if (!firstKey.equals(secondKey))
+                partitionKeyMap.put(secondKey, firstKey);
+        }
+        return partitionKeyMap;
+    }
+
+    private static String findPartitionKey(Map<String, String> partitionKeyMap, String absoluteTargetFilePath) {
+        String key = absoluteTargetFilePath;
+        while (partitionKeyMap.containsKey(key))
+            key = partitionKeyMap.get(key);
+        return key;
+    }
+
+    public static Boolean allSucceeded(List<RollbackFile> rollbackFileList) {
+        for (RollbackFile rollbackFile : rollbackFileList) {
+            RollbackFileResult rollbackFileResult = rollbackFile.getRollbackFileResult();
+            if (rollbackFileResult != RollbackFileResult.SUCCESS && rollbackFileResult != RollbackFileResult.DELETE_SKIPPED)
+                return false;
+        }
+        return true;
+    }
+
+    // Once every entry is rolled back the target holds the backed up content again. Backups are never replaced, so
+    // leaving them would make the next install of the tag keep them instead of backing up the target as it is then.
+    public static Boolean discardBackups(List<RollbackFile> rollbackFileList) {
+        boolean allDiscarded = true;
+        for (RollbackFile rollbackFile : rollbackFileList) {
+            if (rollbackFile.getAbsoluteBackupFilePath() == null)
+                continue;
+            for (String backupPathString : new String[]{rollbackFile.getAbsoluteBackupFilePath(), GitUtils.buildBackupBlobRefFilePath(rollbackFile.getAbsoluteBackupFilePath())}) {
+                Path backupPath = Paths.get(backupPathString);
+                try {
+                    Files.deleteIfExists(backupPath);
+                } catch (IOException e) {
+                    logger.error("discardBackups: Could not delete backup: " + backupPath + " : " + e);
+                    allDiscarded = false;
+                } finally {
+                    FileMetadataCacheSingleton.getInstance().invalidate(backupPath);
+                }
+            }
+        }
+        return allDiscarded;
+    }
+
+    public static int getMaxLengthRollbackResult(List<RollbackFile> rollbackFileList) {
+        int maxLen = 1;
+        for (RollbackFile rollbackFile : rollbackFileList) {
+            int len = rollbackFile.getRollbackFileResult().toString().length();
+            maxLen = (maxLen > len) ? maxLen : len;
+        }
+        return maxLen;
+    }
+
+    public static int getMaxLengthRelativeGit(List<RollbackFile> rollbackFileList) {
+        int maxLen = 1;
+        for (RollbackFile rollbackFile : rollbackFileList) {
+            int len = (rollbackFile.getRelativeGitFilePath() != null) ? rollbackFile.getRelativeGitFilePath().length() : 4;
+            maxLen = (maxLen > len) ? maxLen : len;
+        }
+        return maxLen;
+    }
+
+    public static int getMaxLengthAbsoluteTarget(List<RollbackFile> rollbackFileList) {
+        int maxLen = 1;
+        for (RollbackFile rollbackFile : rollbackFileList) {
+            int len = rollbackFile.getAbsoluteTargetFilePath().length();
+            maxLen = (maxLen > len) ? maxLen : len;
+        }
+        return maxLen;
+    }
+
+    public static StringBuilder generatePostExecReport(Boolean dryRun, String gitTag, List<RollbackFile> rollbackFileListPostExec) {
+        int col1Len = getMaxLengthRollbackResult(rollbackFileListPostExec);
+        int col2Len = getMaxLengthRelativeGit(rollbackFileListPostExec);
+        int col3Len = getMaxLengthAbsoluteTarget(rollbackFileListPostExec);
+        String formatString = "%-7s  %-" + col1Len + "s  %-" + col2Len + "s  %-" + col3Len + "s\n";
+
+        StringBuilder sb = new StringBuilder();
+
+        for (RollbackFileResult e : RollbackFileResult.values()) {
+            List<RollbackFile> tempRollbackFileList = new ArrayList<>();
+
+            for (RollbackFile rollbackFile : rollbackFileListPostExec) {
+                if (rollbackFile.getRollbackFileResult() == e) {
+                    tempRollbackFileList.add(rollbackFile);
+                }
+            }
+
+            if (tempRollbackFileList.size() > 0) {
+                sb.append("--- The following rollbacks are in state: " + e + " ---\n\n"
+                        + String.format(
+                                formatString,
+                                "OpType",
+                                "Result",
+                                "GIT Path",
+                                "Target Path"
+                        )
+                        + "\n");
+                List<RollbackFile> sortedRollbackFileList = new RollbackFileSorter(tempRollbackFileList).getSortedRollbackFilesByResultAndGitPath();
+                for (RollbackFile rollbackFile : sortedRollbackFileList) {
+                    sb.append(String.format(
+                            formatString,
+                            rollbackFile.getClassType(),
+                            rollbackFile.getRollbackFileResult(),
+                            rollbackFile.getRelativeGitFilePath(),
+                            rollbackFile.getAbsoluteTargetFilePath()
+                    ));
+                }
+                sb.append("\n\n");
+            }
+        }
+
+        int maxLen = Utils.getLongestLineLengthInStringBuilder(sb);
+        int halfLen = (maxLen / 2) - 10;
+
+        StringBuilder header = new StringBuilder("Report below:\n\n");
+        StringBuilder dryRunHeader = new StringBuilder();
+        if (dryRun) dryRunHeader = new StringBuilder(Utils.printNTimes(" ",halfLen+1) + "*** DRY RUN ONLY ***" + Utils.printNTimes(" ",halfLen+1) + "\n\n");
+        StringBuilder innerHeaderSb = new StringBuilder(
+                        "   "
+                        + Utils.printNTimes("_",halfLen-3)
+                        + " M2PRD ROLLBACK REPORT "
+                        + Utils.printNTimes("_",halfLen-3)
+                        + "   \n\n")
+                .append(dryRunHeader)
+                .append("gitTag: " + gitTag + "\n\n");
+
+        return header
+                .append(
+                        Utils.boxitizeMe(
+                                innerHeaderSb
+                                        .append(sb)) + "\n");
+    }
+}
@@ -0,0 +1,30 @@
+package com.some.company.mv2prd.file.sync;
+
+// How sync_check decides two files are in sync. SIZE only compares sizes, CONTENT also compares the bytes of files
+// whose sizes agree. BLOB takes the git side from the HEAD tree of a bare clone (ids and sizes only, no checkout and no
+// blob content read) and compares each target file's git blob id with it.
+public enum SyncCompareMode {
+    SIZE, CONTENT, BLOB;
+
+    public static SyncCompareMode getSyncCompareModeFromString(String compareModeString) {
+        // (?i:*) -> Ignore case
+        if (compareModeString.matches("(?i:" + SyncCompareMode.SIZE.toString() + ")")) {
+            return SyncCompareMode.SIZE;
+        } else if (compareModeString.matches("(?i:" + SyncCompareMode.CONTENT.toString() + ")")) {
+            return SyncCompareMode.CONTENT;
+        } else if (compareModeString.matches("(?i:" + SyncCompareMode.BLOB.toString() + ")")) {
+            return SyncCompareMode.BLOB;
+        } else
+            return null;
+    }
+
+    @Override
+    public String toString() {
+        switch(this) {
+            case SIZE: return "SIZE";
+            case CONTENT: return "CONTENT";
+            case BLOB: return "BLOB";
+            default: throw new IllegalArgumentException();
+        }
+    }
+}
@@ -2,14 +2,21 @@ package com.some.company.mv2prd.file.sync;
 
 import com.some.company.mv2prd.file.BasicFile;
 import com.some.company.mv2prd.json.Mv2prdHooks;
+import com.some.company.mv2prd.util.ContentCompareSingleton;
+import com.some.company.mv2prd.util.FileMetadataCacheSingleton;
 import com.some.company.mv2prd.util.GitUtils;
+import com.some.company.mv2prd.util.NormalisedPath;
 import com.some.company.mv2prd.util.logging.Logger;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.util.Comparator;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
 
 public class SyncFile extends BasicFile {
 
@@ -18,48 +25,98 @@ public class SyncFile extends BasicFile {
     private SyncFileStatus syncFileStatus;
     private SyncFileSource syncFileSource;
 
+    // Only set in BLOB mode, for files listed from the git tree. Null there means the file is not in git.
+    private ObjectId gitBlobId = null;
+    private long gitBlobSize = 0;
+    private FileMode gitFileMode = null;
+
     protected SyncFile(SyncFileSource syncFileSource, String absoluteFilePath, String workingTreeDir, Mv2prdHooks mv2prdHooks) {
 
         this.syncFileStatus = SyncFileStatus.PENDING;
         this.syncFileSource = syncFileSource;
-        this.workingTreeDir = workingTreeDir;
+        this.workingTreeDir = NormalisedPath.of(workingTreeDir);
 
         if (syncFileSource == SyncFileSource.SCM) {
-            this.absoluteGitFilePath = absoluteFilePath;
-            this.relativeGitFilePath = GitUtils.determineRelativeGitFilePathFromAbsGit(this.absoluteGitFilePath, mv2prdHooks.getGitToTargetMap());
-            this.absoluteTargetFilePath = GitUtils.buildAbsoluteTargetFilePath(this.relativeGitFilePath, mv2prdHooks.getGitToTargetMap());
+            this.absoluteGitFilePath = NormalisedPath.of(absoluteFilePath);
+            this.relativeGitFilePath = GitUtils.determineRelativeGitFilePathFromAbsGit(this.absoluteGitFilePath, this.workingTreeDir, mv2prdHooks.getPathMappingIndex());
+            this.absoluteTargetFilePath = GitUtils.buildAbsoluteTargetFilePath(this.relativeGitFilePath, mv2prdHooks.getPathMappingIndex());
         } else if (syncFileSource == SyncFileSource.TAR) {
-            this.absoluteTargetFilePath = absoluteFilePath;
-            this.relativeGitFilePath = GitUtils.determineRelativeGitFilePathFromAbsTarget(this.absoluteTargetFilePath, mv2prdHooks.getGitToTargetMap());
+            this.absoluteTargetFilePath = NormalisedPath.of(absoluteFilePath);
+            this.relativeGitFilePath = GitUtils.determineRelativeGitFilePathFromAbsTarget(this.absoluteTargetFilePath, mv2prdHooks.getPathMappingIndex());
             this.absoluteGitFilePath = GitUtils.buildAbsoluteGitFilePath(this.workingTreeDir, this.relativeGitFilePath);
         } else
             this.syncFileStatus = SyncFileStatus.COMP_FAILED;
+
+        // Not covered by any mapping, there is nothing on the other side to compare with
+        if (this.relativeGitFilePath == null)
+            this.syncFileStatus = SyncFileStatus.COMP_FAILED;
+    }
+
+    // A directory the walk could not list. It shows up in the report in place of the files it would have held.
+    protected static SyncFile unreadableDirectory(SyncFileSource syncFileSource, String absoluteDirectoryPath, String workingTreeDir, Mv2prdHooks mv2prdHooks) {
+        SyncFile syncFile = new SyncFile(syncFileSource, absoluteDirectoryPath, workingTreeDir, mv2prdHooks);
+        syncFile.syncFileStatus = SyncFileStatus.UNREADABLE;
+        return syncFile;
+    }
+
+    // One logical file out of the merge of the git and target listings. The join already knows which sides have it, so
+    // the status is either final (SCM_ONLY, TAR_ONLY, COMP_FAILED) or PENDING for execCompare. Either entry may be null.
+    protected SyncFile(SyncFileStatus syncFileStatus, SyncListingEntry gitEntry, SyncListingEntry targetEntry, NormalisedPath workingTreeDir) {
+        SyncListingEntry entry = (gitEntry != null) ? gitEntry : targetEntry;
+
+        this.syncFileStatus = syncFileStatus;
+        this.syncFileSource = (gitEntry != null) ? SyncFileSource.SCM : SyncFileSource.TAR;
+        this.workingTreeDir = workingTreeDir;
+        this.relativeGitFilePath = entry.getRelativeGitFilePath();
+        this.absoluteGitFilePath = GitUtils.buildAbsoluteGitFilePath(workingTreeDir, this.relativeGitFilePath);
+        this.absoluteTargetFilePath = entry.getAbsoluteTargetFilePath();
+
+        if (gitEntry != null) {
+            this.gitBlobId = gitEntry.getGitBlobId();
+            this.gitBlobSize = gitEntry.getGitBlobSize();
+            this.gitFileMode = gitEntry.getGitFileMode();
+        }
     }
 
     public SyncFileStatus execCompare() {
 
-        // If constructor failed, then don't try to compare and just return failed still
-        if (this.syncFileStatus == SyncFileStatus.COMP_FAILED) {
+        // Only files found on both sides are left to compare, the rest were settled when the listings were joined
+        if (this.syncFileStatus != SyncFileStatus.PENDING) {
+            return this.syncFileStatus;
+        }
+
+        if (SyncSettingSingleton.getInstance().getSyncCompareMode() == SyncCompareMode.BLOB) {
+            this.syncFileStatus = execBlobCompare();
+            return this.syncFileStatus;
+        }
+
+        Path gitFilePath = this.absoluteGitFilePath.toPath();
+        Path targetFilePath = this.absoluteTargetFilePath.toPath();
+
+        // One cached stat per side gives us both existence and size. A stat that fails says nothing about existence.
+        PosixFileAttributes gitFileAttributes;
+        PosixFileAttributes targetFileAttributes;
+        try {
+            gitFileAttributes = getAttributes(SyncSettingSingleton.getInstance().getGitIoSemaphore(), gitFilePath);
+            targetFileAttributes = getAttributes(SyncSettingSingleton.getInstance().getTargetIoSemaphore(), targetFilePath);
+        } catch (IOException e) {
+            logger.error("execCompare: Could not stat files: " + gitFilePath + " <-> " + targetFilePath + " : " + e);
+            this.syncFileStatus = SyncFileStatus.COMP_FAILED;
             return this.syncFileStatus;
         }
 
-        Path gitFilePath = Paths.get(this.absoluteGitFilePath);
-        Path targetFilePath = Paths.get(this.absoluteTargetFilePath);
-
-        if (Files.exists(gitFilePath) && Files.exists(targetFilePath)) {
-            // Check for differences in size
-            try {
-                if (Files.size(gitFilePath) == Files.size(targetFilePath)) {
-                    this.syncFileStatus = SyncFileStatus.SYNCED;
-                } else
-                    this.syncFileStatus = SyncFileStatus.DIFF;
-            } catch (IOException e) {
-                logger.error("execCompare: Could not compare file sizes: " + gitFilePath.toString() + " <-> " + targetFilePath);
-                this.syncFileStatus = SyncFileStatus.COMP_FAILED;
-            }
-        } else if (Files.exists(gitFilePath)) {
+        if (gitFileAttributes != null && targetFileAttributes != null) {
+            // Check for differences in size, and in content if asked to (a size mismatch settles it either way)
+            if (gitFileAttributes.size() != targetFileAttributes.size()) {
+                this.syncFileStatus = SyncFileStatus.DIFF;
+            } else if (SyncSettingSingleton.getInstance().getSyncCompareMode() == SyncCompareMode.CONTENT
+                    && gitFileAttributes.isRegularFile() && targetFileAttributes.isRegularFile()) {
+                this.syncFileStatus = compareContent(gitFilePath, gitFileAttributes, targetFilePath, targetFileAttributes);
+            } else
+                this.syncFileStatus = SyncFileStatus.SYNCED;
+        } else if (gitFileAttributes != null) {
             this.syncFileStatus = SyncFileStatus.SCM_ONLY;
-        } else if (Files.exists(targetFilePath)) {
+        } else if (targetFileAttributes != null) {
             this.syncFileStatus = SyncFileStatus.TAR_ONLY;
         } else {
             this.syncFileStatus = SyncFileStatus.MISSING_BOTH;
@@ -68,6 +125,71 @@ public class SyncFile extends BasicFile {
         return this.syncFileStatus;
     }
 
+    // The git side is the blob id and size from the tree, only the target is read (and only if its stat changed)
+    private SyncFileStatus execBlobCompare() {
+        Path targetFilePath = this.absoluteTargetFilePath.toPath();
+        Semaphore targetIoSemaphore = SyncSettingSingleton.getInstance().getTargetIoSemaphore();
+        PosixFileAttributes targetFileAttributes;
+        try {
+            targetFileAttributes = getAttributes(targetIoSemaphore, targetFilePath);
+        } catch (IOException e) {
+            logger.error("execBlobCompare: Could not stat target: " + targetFilePath + " : " + e);
+            return SyncFileStatus.COMP_FAILED;
+        }
+
+        if (this.gitBlobId == null)
+            return (targetFileAttributes != null) ? SyncFileStatus.TAR_ONLY : SyncFileStatus.MISSING_BOTH;
+        // The stat follows links, so a dangling symlink looks missing, but its link text can still match git's
+        if (targetFileAttributes == null && !(this.gitFileMode == FileMode.SYMLINK && Files.isSymbolicLink(targetFilePath)))
+            return SyncFileStatus.SCM_ONLY;
+
+        if (this.gitFileMode != FileMode.SYMLINK && (this.gitBlobSize != targetFileAttributes.size() || !targetFileAttributes.isRegularFile()))
+            return SyncFileStatus.DIFF;
+
+        targetIoSemaphore.acquireUninterruptibly();
+        try {
+            // A symlink in git holds its link text, the target matches if it is a link to the same place
+            if (this.gitFileMode == FileMode.SYMLINK)
+                return (Files.isSymbolicLink(targetFilePath) && GitUtils.computeSymlinkBlobId(targetFilePath).equals(this.gitBlobId))
+                        ? SyncFileStatus.SYNCED : SyncFileStatus.DIFF;
+            return ContentCompareSingleton.getInstance().matchesBlobId(targetFilePath, targetFileAttributes, this.gitBlobId)
+                    ? SyncFileStatus.SYNCED : SyncFileStatus.DIFF;
+        } catch (IOException e) {
+            logger.error("execBlobCompare: Could not compare target: " + targetFilePath + " with git blob: " + this.gitBlobId.name() + " : " + e);
+            return SyncFileStatus.COMP_FAILED;
+        } finally {
+            targetIoSemaphore.release();
+        }
+    }
+
+    // Reads both trees, so it holds a permit for each. Always git first, so two compares cannot wait on each other.
+    private SyncFileStatus compareContent(Path gitFilePath, PosixFileAttributes gitFileAttributes, Path targetFilePath, PosixFileAttributes targetFileAttributes) {
+        Semaphore gitIoSemaphore = SyncSettingSingleton.getInstance().getGitIoSemaphore();
+        Semaphore targetIoSemaphore = SyncSettingSingleton.getInstance().getTargetIoSemaphore();
+        gitIoSemaphore.acquireUninterruptibly();
+        targetIoSemaphore.acquireUninterruptibly();
+        try {
+            return ContentCompareSingleton.getInstance().sameContent(gitFilePath, gitFileAttributes, targetFilePath, targetFileAttributes,
+                    gitFileAttributes.size()) ? SyncFileStatus.SYNCED : SyncFileStatus.DIFF;
+        } catch (IOException e) {
+            logger.error("compareContent: Could not compare content of git file: " + gitFilePath + " with target: " + targetFilePath + " : " + e);
+            return SyncFileStatus.COMP_FAILED;
+        } finally {
+            targetIoSemaphore.release();
+            gitIoSemaphore.release();
+        }
+    }
+
+    // Cache hits are cheap, but a miss is a stat on that side's filer. Null only if the file does not exist.
+    private static PosixFileAttributes getAttributes(Semaphore ioSemaphore, Path path) throws IOException {
+        ioSemaphore.acquireUninterruptibly();
+        try {
+            return FileMetadataCacheSingleton.getInstance().getExistingAttributes(path);
+        } finally {
+            ioSemaphore.release();
+        }
+    }
+
     public SyncFileStatus getSyncFileStatus() {
         return syncFileStatus;
     }
@@ -107,17 +229,15 @@ public class SyncFile extends BasicFile {
             return false;
 
         SyncFile other = (SyncFile) obj;
-        if (this.getRelativeGitFilePath().equals(other.getRelativeGitFilePath()))
-            if (this.getAbsoluteGitFilePath().equals(other.getAbsoluteGitFilePath()))
-                if (this.getAbsoluteTargetFilePath().equals(other.getAbsoluteTargetFilePath()))
-                    if (this.getSyncFileStatus().equals(other.getSyncFileStatus()))
-                        return true;
-
-        return false;
+        return Objects.equals(this.relativeGitFilePath, other.relativeGitFilePath)
+                && Objects.equals(this.absoluteGitFilePath, other.absoluteGitFilePath)
+                && Objects.equals(this.absoluteTargetFilePath, other.absoluteTargetFilePath)
+                && this.syncFileStatus == other.syncFileStatus;
     }
 
+    // Built from the paths' own (cached) hashes rather than by concatenating their strings on every call
     @Override
     public int hashCode() {
-        return (this.getRelativeGitFilePath() + this.getAbsoluteGitFilePath() + this.getAbsoluteTargetFilePath() + this.getSyncFileStatus()).hashCode();
+        return Objects.hash(this.relativeGitFilePath, this.absoluteGitFilePath, this.absoluteTargetFilePath, this.syncFileStatus);
     }
 }
@@ -1,7 +1,7 @@
 package com.some.company.mv2prd.file.sync;
 
 public enum SyncFileStatus {
-    SYNCED, PENDING, SCM_ONLY, TAR_ONLY, DIFF, COMP_FAILED, MISSING_BOTH;
+    SYNCED, PENDING, SCM_ONLY, TAR_ONLY, DIFF, COMP_FAILED, UNREADABLE, MISSING_BOTH;
 
     @Override
     public String toString() {
@@ -12,6 +12,7 @@ public enum SyncFileStatus {
             case TAR_ONLY: return "TAR_ONLY";
             case DIFF: return "DIFF";
             case COMP_FAILED: return "COMP_FAILED";
+            case UNREADABLE: return "UNREADABLE";
             case MISSING_BOTH: return "MISSING_BOTH";
             default: throw new IllegalArgumentException();
         }
@@ -1,11 +1,24 @@
 package com.some.company.mv2prd.file.sync;
 
 import com.some.company.mv2prd.json.Mv2prdHooks;
+import com.some.company.mv2prd.util.ContentCompareSingleton;
 import com.some.company.mv2prd.util.GitUtils;
+import com.some.company.mv2prd.util.HashCacheSingleton;
+import com.some.company.mv2prd.util.NormalisedPath;
+import com.some.company.mv2prd.util.ParallelDirectoryWalker;
+import com.some.company.mv2prd.util.PartitionedExecutor;
+import com.some.company.mv2prd.util.PathFilterMatcher;
 import com.some.company.mv2prd.util.logging.Logger;
 import com.some.company.mv2prd.util.Utils;
 import org.apache.commons.text.WordUtils;
-
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
@@ -16,70 +29,183 @@ public class SyncFileUtils {
 
     private static final Logger logger = Logger.getLogger(SyncFileUtils.class);
 
-    private static List<SyncFile> getAllTargetFiles(Mv2prdHooks mv2prdHooks, String workingTreeDir) {
-        List<SyncFile> syncFileList = new ArrayList<>();
-
+    // Lists every file below the mapped target directories. Files the sync filter excludes are dropped here, before
+    // anything else is built for them.
+    private static void listTargetFiles(Mv2prdHooks mv2prdHooks, NormalisedPath workingTreeDir, ParallelDirectoryWalker parallelDirectoryWalker,
+                                        PathFilterMatcher pathFilterMatcher, List<SyncListingEntry> listingEntryList, List<SyncFile> unjoinedSyncFileList) {
         for (Map.Entry<String,String> entry : mv2prdHooks.getGitToTargetMap().entrySet()) {
             Path targetPath = Paths.get(entry.getValue());
             logger.info("Parsing target directory: " + targetPath.toString());
-            List<Path> pathList = Utils.getAllFilePathsInDirectory(targetPath);
-            for (Path path : pathList)
-            syncFileList.add(new SyncFile(SyncFileSource.TAR, path.toString(), workingTreeDir, mv2prdHooks));
+            ParallelDirectoryWalker.WalkResult walkResult = parallelDirectoryWalker.walk(targetPath,
+                    directory -> pathFilterMatcher.excludesSubtree(NormalisedPath.of(directory.toString()).toString()));
+            logExcludedDirectories(walkResult);
+            for (Path path : walkResult.getFilePathList()) {
+                NormalisedPath absoluteTargetFilePath = NormalisedPath.of(path.toString());
+                NormalisedPath relativeGitFilePath = GitUtils.determineRelativeGitFilePathFromAbsTarget(absoluteTargetFilePath, mv2prdHooks.getPathMappingIndex());
+                addListingEntry(new SyncListingEntry(relativeGitFilePath, absoluteTargetFilePath), false, workingTreeDir, pathFilterMatcher, listingEntryList, unjoinedSyncFileList);
+            }
+            addUnreadableDirectories(SyncFileSource.TAR, walkResult, workingTreeDir, mv2prdHooks, pathFilterMatcher, unjoinedSyncFileList);
         }
-        return syncFileList;
     }
 
-    private static List<SyncFile> getAllGitFiles(Mv2prdHooks mv2prdHooks, String workingTreeDir) {
-        List<SyncFile> syncFileList = new ArrayList<>();
-
+    private static void listGitFiles(Mv2prdHooks mv2prdHooks, NormalisedPath workingTreeDir, ParallelDirectoryWalker parallelDirectoryWalker,
+                                     PathFilterMatcher pathFilterMatcher, List<SyncListingEntry> listingEntryList, List<SyncFile> unjoinedSyncFileList) {
         for (Map.Entry<String,String> entry : mv2prdHooks.getGitToTargetMap().entrySet()) {
-            Path gitPath = Paths.get(GitUtils.buildAbsoluteGitFilePath(workingTreeDir, entry.getKey()));
+            Path gitPath = GitUtils.buildAbsoluteGitFilePath(workingTreeDir, NormalisedPath.of(entry.getKey())).toPath();
             logger.info("Parsing git directory: " + gitPath.toString());
-            List<Path> pathList = Utils.getAllFilePathsInDirectory(gitPath);
-            for (Path path : pathList)
-                syncFileList.add(new SyncFile(SyncFileSource.SCM, path.toString(), workingTreeDir, mv2prdHooks));
+            // The filters are written against target paths, so each git directory is tested as the target it maps to
+            ParallelDirectoryWalker.WalkResult walkResult = parallelDirectoryWalker.walk(gitPath,
+                    directory -> excludesTargetSubtree(NormalisedPath.of(directory.toString()), workingTreeDir, mv2prdHooks, pathFilterMatcher));
+            logExcludedDirectories(walkResult);
+            for (Path path : walkResult.getFilePathList()) {
+                NormalisedPath relativeGitFilePath = GitUtils.determineRelativeGitFilePathFromAbsGit(NormalisedPath.of(path.toString()), workingTreeDir, mv2prdHooks.getPathMappingIndex());
+                NormalisedPath absoluteTargetFilePath = GitUtils.buildAbsoluteTargetFilePath(relativeGitFilePath, mv2prdHooks.getPathMappingIndex());
+                addListingEntry(new SyncListingEntry(relativeGitFilePath, absoluteTargetFilePath), true, workingTreeDir, pathFilterMatcher, listingEntryList, unjoinedSyncFileList);
+            }
+            addUnreadableDirectories(SyncFileSource.SCM, walkResult, workingTreeDir, mv2prdHooks, pathFilterMatcher, unjoinedSyncFileList);
         }
-        return syncFileList;
     }
 
-    public static List<SyncFile> getFilteredSyncFiles(Mv2prdHooks mv2prdHooks, String workingTreeDir) {
-        List<SyncFile> gitSyncFileList = getAllGitFiles(mv2prdHooks, workingTreeDir);
-        List<SyncFile> tarSyncFileList = getAllTargetFiles(mv2prdHooks, workingTreeDir);
+    // BLOB mode's git side: one walk of the tree objects gives every mapped file's blob id, sizes come from the object
+    // headers. No blob content is read.
+    private static void listGitTreeFiles(Mv2prdHooks mv2prdHooks, Repository repository, String revision, NormalisedPath repositoryDir,
+                                         PathFilterMatcher pathFilterMatcher, List<SyncListingEntry> listingEntryList, List<SyncFile> unjoinedSyncFileList) throws IOException {
+        logger.info("Parsing git tree: " + revision + " in " + repositoryDir);
+
+        try (TreeWalk treeWalk = GitUtils.openTreeWalk(repository, revision, mv2prdHooks.getGitToTargetMap().keySet());
+             ObjectReader objectReader = repository.newObjectReader()) {
+            // Subtrees are entered by hand so that excluded ones are never read
+            treeWalk.setRecursive(false);
+            while (treeWalk.next()) {
+                if (treeWalk.isSubtree()) {
+                    NormalisedPath relativeGitDir = NormalisedPath.of(treeWalk.getPathString());
+                    if (excludesTargetSubtree(repositoryDir.resolve(relativeGitDir), repositoryDir, mv2prdHooks, pathFilterMatcher))
+                        logger.debug("Skipping excluded git tree: " + relativeGitDir);
+                    else
+                        treeWalk.enterSubtree();
+                    continue;
+                }
+                FileMode fileMode = treeWalk.getFileMode(0);
+                // Submodules have no content of their own in this repo
+                if (fileMode == FileMode.GITLINK)
+                    continue;
+                ObjectId blobId = treeWalk.getObjectId(0);
+                long blobSize = objectReader.getObjectSize(blobId, Constants.OBJ_BLOB);
+                NormalisedPath relativeGitFilePath = NormalisedPath.of(treeWalk.getPathString());
+                NormalisedPath absoluteTargetFilePath = GitUtils.buildAbsoluteTargetFilePath(relativeGitFilePath, mv2prdHooks.getPathMappingIndex());
+                addListingEntry(new SyncListingEntry(relativeGitFilePath, absoluteTargetFilePath, blobId, blobSize, fileMode), true,
+                        repositoryDir, pathFilterMatcher, listingEntryList, unjoinedSyncFileList);
+            }
+        }
+    }
 
-        List<SyncFile> withDupsSyncFileList = combineTwoLists(gitSyncFileList, tarSyncFileList);
-        List<SyncFile> dedupSyncFileList = dedupSyncFileList(withDupsSyncFileList);
+    // A git directory no mapping covers (or a mapping root itself) is never excluded, its files are filtered one by one
+    private static Boolean excludesTargetSubtree(NormalisedPath absoluteGitDir, NormalisedPath workingTreeDir, Mv2prdHooks mv2prdHooks, PathFilterMatcher pathFilterMatcher) {
+        NormalisedPath relativeGitDir = GitUtils.determineRelativeGitFilePathFromAbsGit(absoluteGitDir, workingTreeDir, mv2prdHooks.getPathMappingIndex());
+        NormalisedPath absoluteTargetDir = GitUtils.buildAbsoluteTargetFilePath(relativeGitDir, mv2prdHooks.getPathMappingIndex());
+        return absoluteTargetDir != null && pathFilterMatcher.excludesSubtree(absoluteTargetDir.toString());
+    }
 
-        List<SyncFile> filtDedupSyncFileList = filterSyncFileList(dedupSyncFileList, mv2prdHooks.getSyncFilterList());
+    private static void logExcludedDirectories(ParallelDirectoryWalker.WalkResult walkResult) {
+        if (!walkResult.getExcludedDirectoryList().isEmpty())
+            logger.info("Skipped " + walkResult.getExcludedDirectoryList().size() + " directories excluded by syncFilterList");
+    }
 
-        return filtDedupSyncFileList;
+    // If the absoluteTargetFilePath matches the filter regex, the file is dropped. A file no mapping covers cannot be
+    // joined, it goes straight to the result as COMP_FAILED.
+    private static void addListingEntry(SyncListingEntry listingEntry, Boolean fromGit, NormalisedPath workingTreeDir, PathFilterMatcher pathFilterMatcher,
+                                        List<SyncListingEntry> listingEntryList, List<SyncFile> unjoinedSyncFileList) {
+        if (listingEntry.getAbsoluteTargetFilePath() != null && pathFilterMatcher.matches(listingEntry.getAbsoluteTargetFilePath().toString()))
+            return;
+        if (listingEntry.isMapped())
+            listingEntryList.add(listingEntry);
+        else if (fromGit)
+            unjoinedSyncFileList.add(new SyncFile(SyncFileStatus.COMP_FAILED, listingEntry, null, workingTreeDir));
+        else
+            unjoinedSyncFileList.add(new SyncFile(SyncFileStatus.COMP_FAILED, null, listingEntry, workingTreeDir));
     }
 
-    public static List<SyncFile> combineTwoLists(List<SyncFile> list1, List<SyncFile> list2) {
-        list1.addAll(list2);
-        return list1;
+    // An unreadable git directory at a mapping root has no target path, it is always kept
+    private static void addUnreadableDirectories(SyncFileSource syncFileSource, ParallelDirectoryWalker.WalkResult walkResult, NormalisedPath workingTreeDir,
+                                                 Mv2prdHooks mv2prdHooks, PathFilterMatcher pathFilterMatcher, List<SyncFile> unjoinedSyncFileList) {
+        for (Path path : walkResult.getUnreadableDirectoryList()) {
+            SyncFile syncFile = SyncFile.unreadableDirectory(syncFileSource, path.toString(), workingTreeDir.toString(), mv2prdHooks);
+            if (syncFile.getAbsoluteTargetFilePath() == null || !pathFilterMatcher.matches(syncFile.getAbsoluteTargetFilePath()))
+                unjoinedSyncFileList.add(syncFile);
+        }
     }
 
-    // This removes duplicates using the overridden equals method in SyncFile
-    public static List<SyncFile> dedupSyncFileList(List<SyncFile> withDupsSyncFileList) {
-        return new ArrayList<>(new LinkedHashSet<>(withDupsSyncFileList));
+    public static List<SyncFile> getFilteredSyncFiles(Mv2prdHooks mv2prdHooks, PathFilterMatcher pathFilterMatcher, String workingTreeDir, int walkThreads) {
+        logger.info("syncFilterList regex:\n\n" + buildFilterRegexPattern(mv2prdHooks.getSyncFilterList()).toString() + "\n\n");
+
+        NormalisedPath workingTreePath = NormalisedPath.of(workingTreeDir);
+        List<SyncListingEntry> gitListingEntryList = new ArrayList<>();
+        List<SyncListingEntry> targetListingEntryList = new ArrayList<>();
+        List<SyncFile> syncFileList = new ArrayList<>();
+        try (ParallelDirectoryWalker parallelDirectoryWalker = new ParallelDirectoryWalker(walkThreads)) {
+            listGitFiles(mv2prdHooks, workingTreePath, parallelDirectoryWalker, pathFilterMatcher, gitListingEntryList, syncFileList);
+            listTargetFiles(mv2prdHooks, workingTreePath, parallelDirectoryWalker, pathFilterMatcher, targetListingEntryList, syncFileList);
+        }
+
+        return joinListings(gitListingEntryList, targetListingEntryList, workingTreePath, syncFileList);
     }
 
-    public static List<SyncFile> filterSyncFileList(List<SyncFile> unfiltSyncFileList, List<String> syncFilterList) {
-        Pattern pattern = buildFilterRegexPattern(syncFilterList);
-        logger.info("syncFilterList regex:\n\n" + pattern.toString() + "\n\n");
+    // Same as getFilteredSyncFiles, but the git side comes from the tree at the given revision of a (bare) repository
+    // rather than from a working tree
+    public static List<SyncFile> getFilteredBlobSyncFiles(Mv2prdHooks mv2prdHooks, PathFilterMatcher pathFilterMatcher, Repository repository, String revision,
+                                                          int walkThreads) throws IOException {
+        logger.info("syncFilterList regex:\n\n" + buildFilterRegexPattern(mv2prdHooks.getSyncFilterList()).toString() + "\n\n");
+
+        NormalisedPath repositoryDir = NormalisedPath.of(repository.getDirectory().toString());
+        List<SyncListingEntry> gitListingEntryList = new ArrayList<>();
+        List<SyncListingEntry> targetListingEntryList = new ArrayList<>();
+        List<SyncFile> syncFileList = new ArrayList<>();
+        listGitTreeFiles(mv2prdHooks, repository, revision, repositoryDir, pathFilterMatcher, gitListingEntryList, syncFileList);
+        try (ParallelDirectoryWalker parallelDirectoryWalker = new ParallelDirectoryWalker(walkThreads)) {
+            listTargetFiles(mv2prdHooks, repositoryDir, parallelDirectoryWalker, pathFilterMatcher, targetListingEntryList, syncFileList);
+        }
 
-//        for (SyncFile syncFile : unfiltSyncFileList) {
-//            if (pattern.matcher(syncFile.getAbsoluteTargetFilePath()).find()) {
-//                logger.debug("MATCHED: " + syncFile);
-//            }
-//        }
-//        logger.debug("HERE01");
+        return joinListings(gitListingEntryList, targetListingEntryList, repositoryDir, syncFileList);
+    }
 
-        // If the absoluteTargetFilePath does not match the filter regex, we add it and keep it on the list
-        return unfiltSyncFileList.stream()
-                .filter(s -> !pattern.matcher(s.getAbsoluteTargetFilePath()).find())
-                .collect(Collectors.toList());
+    // Sorts both listings and merges them in one pass, so each logical file becomes exactly one SyncFile: PENDING when
+    // both sides have it, SCM_ONLY or TAR_ONLY otherwise. Overlapping mappings can list a file twice on one side, the
+    // repeats sit next to each other once sorted and are skipped. The joined files are added to syncFileList, after any
+    // files that were settled while listing.
+    static List<SyncFile> joinListings(List<SyncListingEntry> gitListingEntryList, List<SyncListingEntry> targetListingEntryList,
+                                               NormalisedPath workingTreeDir, List<SyncFile> syncFileList) {
+        Collections.sort(gitListingEntryList);
+        Collections.sort(targetListingEntryList);
+
+        int gitIndex = 0;
+        int targetIndex = 0;
+        while (gitIndex < gitListingEntryList.size() || targetIndex < targetListingEntryList.size()) {
+            SyncListingEntry gitEntry = (gitIndex < gitListingEntryList.size()) ? gitListingEntryList.get(gitIndex) : null;
+            SyncListingEntry targetEntry = (targetIndex < targetListingEntryList.size()) ? targetListingEntryList.get(targetIndex) : null;
+
+            int comparison = (gitEntry == null) ? 1 : (targetEntry == null) ? -1 : gitEntry.compareTo(targetEntry);
+            if (comparison == 0) {
+                syncFileList.add(new SyncFile(SyncFileStatus.PENDING, gitEntry, targetEntry, workingTreeDir));
+                gitIndex = skipRepeats(gitListingEntryList, gitIndex);
+                targetIndex = skipRepeats(targetListingEntryList, targetIndex);
+            } else if (comparison < 0) {
+                syncFileList.add(new SyncFile(SyncFileStatus.SCM_ONLY, gitEntry, null, workingTreeDir));
+                gitIndex = skipRepeats(gitListingEntryList, gitIndex);
+            } else {
+                syncFileList.add(new SyncFile(SyncFileStatus.TAR_ONLY, null, targetEntry, workingTreeDir));
+                targetIndex = skipRepeats(targetListingEntryList, targetIndex);
+            }
+        }
+        return syncFileList;
+    }
 
+    // Index of the first entry after index that is not equal to it
+    private static int skipRepeats(List<SyncListingEntry> listingEntryList, int index) {
+        SyncListingEntry listingEntry = listingEntryList.get(index);
+        int nextIndex = index + 1;
+        while (nextIndex < listingEntryList.size() && listingEntryList.get(nextIndex).compareTo(listingEntry) == 0)
+            nextIndex++;
+        return nextIndex;
     }
 
     public static Pattern buildFilterRegexPattern(List<String> syncFilterList) {
@@ -88,17 +214,24 @@ public class SyncFileUtils {
                                 .collect(Collectors.joining("|")));
     }
 
-    public static List<SyncFile> executeAllSyncFiles(List<SyncFile> syncFileList) {
-        List<SyncFile> resultSyncFileList = new ArrayList<>();
-
-        for (SyncFile syncFile : syncFileList) {
-            syncFile.execCompare();
-
-//            logger.debug("\n" + syncFile.toString() + "\n");
-            resultSyncFileList.add(syncFile);
+    // Compares run on compareThreads workers, each SyncFile is independent of the others. How many of them touch each
+    // tree at a time is bounded separately (see SyncSettingSingleton). Every task only updates its own SyncFile, so the
+    // result is the input list in its original (sorted) order whatever order the compares finished in.
+    public static List<SyncFile> executeAllSyncFiles(List<SyncFile> syncFileList, int compareThreads) throws InterruptedException {
+        logger.info("Comparing " + syncFileList.size() + " files with " + compareThreads + " compare threads.");
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("mv2prd-sync", compareThreads, 256);
+        try {
+            for (SyncFile syncFile : syncFileList) {
+                // Settled when the listings were joined, not worth a trip through the queue
+                if (syncFile.getSyncFileStatus() != SyncFileStatus.PENDING)
+                    continue;
+                partitionedExecutor.submit(syncFile.getAbsoluteTargetFilePath(), syncFile::execCompare);
+            }
+        } finally {
+            partitionedExecutor.awaitCompletion();
         }
 
-        return resultSyncFileList;
+        return new ArrayList<>(syncFileList);
     }
 
     public static StringBuilder prettyPrintSyncFileList(List<SyncFile> syncFileList) {
@@ -208,6 +341,12 @@ public class SyncFileUtils {
                     "\\|")
                 + "\n\n");
 
+        SyncCompareMode syncCompareMode = SyncSettingSingleton.getInstance().getSyncCompareMode();
+        innerHeaderSb.append("--- Compare mode: " + syncCompareMode + " ---\n\n");
+        if (syncCompareMode == SyncCompareMode.CONTENT || syncCompareMode == SyncCompareMode.BLOB)
+            innerHeaderSb.append(ContentCompareSingleton.getInstance().generateStatsReport())
+                    .append(HashCacheSingleton.getInstance().generateStatsReport()).append("\n");
+
 //        int maxLen = Utils.getLongestLineLengthInStringBuilder(sb);
 //        StringBuilder header = new StringBuilder("Report below:\n\n");
 //        StringBuilder footer = new StringBuilder(Utils.printNTimes("*",maxLen) + "\n\n");
@@ -0,0 +1,64 @@
+package com.some.company.mv2prd.file.sync;
+
+import com.some.company.mv2prd.util.NormalisedPath;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+
+// One file from the git or the target listing, before the two are joined into SyncFiles. Ordered by relative git path
+// (then target path, which only differs when mappings overlap), so both sorted listings can be merged in one pass.
+class SyncListingEntry implements Comparable<SyncListingEntry> {
+
+    private final NormalisedPath relativeGitFilePath;
+    private final NormalisedPath absoluteTargetFilePath;
+
+    // Only set for entries from a git tree (BLOB mode)
+    private final ObjectId gitBlobId;
+    private final long gitBlobSize;
+    private final FileMode gitFileMode;
+
+    SyncListingEntry(NormalisedPath relativeGitFilePath, NormalisedPath absoluteTargetFilePath) {
+        this(relativeGitFilePath, absoluteTargetFilePath, null, 0, null);
+    }
+
+    SyncListingEntry(NormalisedPath relativeGitFilePath, NormalisedPath absoluteTargetFilePath, ObjectId gitBlobId, long gitBlobSize, FileMode gitFileMode) {
+        this.relativeGitFilePath = relativeGitFilePath;
+        this.absoluteTargetFilePath = absoluteTargetFilePath;
+        this.gitBlobId = gitBlobId;
+        this.gitBlobSize = gitBlobSize;
+        this.gitFileMode = gitFileMode;
+    }
+
+    // Not covered by any mapping, so it has no partner on the other side to join with
+    boolean isMapped() {
+        return this.relativeGitFilePath != null && this.absoluteTargetFilePath != null;
+    }
+
+    NormalisedPath getRelativeGitFilePath() {
+        return relativeGitFilePath;
+    }
+
+    NormalisedPath getAbsoluteTargetFilePath() {
+        return absoluteTargetFilePath;
+    }
+
+    ObjectId getGitBlobId() {
+        return gitBlobId;
+    }
+
+    long getGitBlobSize() {
+        return gitBlobSize;
+    }
+
+    FileMode getGitFileMode() {
+        return gitFileMode;
+    }
+
+    // Only mapped entries are sorted
+    @Override
+    public int compareTo(SyncListingEntry other) {
+        int result = this.relativeGitFilePath.compareTo(other.relativeGitFilePath);
+        if (result != 0)
+            return result;
+        return this.absoluteTargetFilePath.compareTo(other.absoluteTargetFilePath);
+    }
+}
@@ -0,0 +1,52 @@
+package com.some.company.mv2prd.file.sync;
+
+import com.some.company.mv2prd.util.logging.Logger;
+
+import java.util.concurrent.Semaphore;
+
+// Run-wide sync_check options that are needed inside SyncFile, set once from the command line
+public class SyncSettingSingleton {
+
+    private static Logger logger = Logger.getLogger(SyncSettingSingleton.class);
+
+    private static SyncSettingSingleton instance;
+
+    private SyncCompareMode syncCompareMode = SyncCompareMode.SIZE;
+
+    // Bound how many compare threads touch each tree at once, so a slow filer on one side is not flooded while the
+    // other side has spare capacity. Unlimited until configured.
+    private Semaphore gitIoSemaphore = new Semaphore(Integer.MAX_VALUE);
+    private Semaphore targetIoSemaphore = new Semaphore(Integer.MAX_VALUE);
+
+    private SyncSettingSingleton(){}
+
+    public static synchronized SyncSettingSingleton getInstance() {
+        if (instance == null) {
+            instance = new SyncSettingSingleton();
+        }
+        return instance;
+    }
+
+    public void setSyncCompareMode(SyncCompareMode syncCompareMode) {
+        this.syncCompareMode = syncCompareMode;
+        logger.info("Sync compare mode: " + syncCompareMode);
+    }
+
+    public SyncCompareMode getSyncCompareMode() {
+        return syncCompareMode;
+    }
+
+    public void configureIoLimits(int gitIoLimit, int targetIoLimit) {
+        this.gitIoSemaphore = new Semaphore(gitIoLimit);
+        this.targetIoSemaphore = new Semaphore(targetIoLimit);
+        logger.info("Sync I/O limits: git: " + gitIoLimit + " target: " + targetIoLimit);
+    }
+
+    public Semaphore getGitIoSemaphore() {
+        return gitIoSemaphore;
+    }
+
+    public Semaphore getTargetIoSemaphore() {
+        return targetIoSemaphore;
+    }
+}
@@ -0,0 +1,62 @@
+package com.some.company.mv2prd.json;
+
+// This class maps to a backup pointer record (<backup path>.blobref). It stands in for a backup whose content is a
+// blob in git history, rollback rebuilds the file from the blob and then puts these attributes back.
+public class BackupBlobRef {
+    private String blobId;
+    private String permissions;
+    private String owner;
+    private String group;
+    private Long lastModifiedMillis;
+
+    public BackupBlobRef() {
+    }
+
+    public BackupBlobRef(String blobId, String permissions, String owner, String group, Long lastModifiedMillis) {
+        this.blobId = blobId;
+        this.permissions = permissions;
+        this.owner = owner;
+        this.group = group;
+        this.lastModifiedMillis = lastModifiedMillis;
+    }
+
+    public String getBlobId() {
+        return blobId;
+    }
+
+    public void setBlobId(String blobId) {
+        this.blobId = blobId;
+    }
+
+    public String getPermissions() {
+        return permissions;
+    }
+
+    public void setPermissions(String permissions) {
+        this.permissions = permissions;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public void setGroup(String group) {
+        this.group = group;
+    }
+
+    public Long getLastModifiedMillis() {
+        return lastModifiedMillis;
+    }
+
+    public void setLastModifiedMillis(Long lastModifiedMillis) {
+        this.lastModifiedMillis = lastModifiedMillis;
+    }
+}
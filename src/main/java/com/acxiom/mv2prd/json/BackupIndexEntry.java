@@ -0,0 +1,42 @@
+package com.some.company.mv2prd.json;
+
+// This class maps to one line of the backup index (backupDirectory/.backup_index), appended by each install run
+public class BackupIndexEntry {
+    private String gitTag;
+    private Long createdMillis;
+    // Bytes this run added to the backup directory: newly stored objects and full copies, not links to existing objects
+    private Long bytes;
+
+    public BackupIndexEntry() {
+    }
+
+    public BackupIndexEntry(String gitTag, Long createdMillis, Long bytes) {
+        this.gitTag = gitTag;
+        this.createdMillis = createdMillis;
+        this.bytes = bytes;
+    }
+
+    public String getGitTag() {
+        return gitTag;
+    }
+
+    public void setGitTag(String gitTag) {
+        this.gitTag = gitTag;
+    }
+
+    public Long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    public void setCreatedMillis(Long createdMillis) {
+        this.createdMillis = createdMillis;
+    }
+
+    public Long getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(Long bytes) {
+        this.bytes = bytes;
+    }
+}
@@ -0,0 +1,45 @@
+package com.some.company.mv2prd.json;
+
+// This class maps to the backupRetention section of mv2prd_hooks.json, used by prune_backups mode.
+// Every rule is optional. A tag's backups are pruned once any configured rule no longer keeps it.
+public class BackupRetention {
+    // Keep the backups of this many most recent tags
+    private Integer keepLastTags;
+    // Keep backups for at most this many days
+    private Integer maxDays;
+    // Keep the newest backups whose total size stays under this many bytes
+    private Long maxBytes;
+
+    public Integer getKeepLastTags() {
+        return keepLastTags;
+    }
+
+    public void setKeepLastTags(Integer keepLastTags) {
+        this.keepLastTags = keepLastTags;
+    }
+
+    public Integer getMaxDays() {
+        return maxDays;
+    }
+
+    public void setMaxDays(Integer maxDays) {
+        this.maxDays = maxDays;
+    }
+
+    public Long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(Long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "BackupRetention{" +
+                "keepLastTags=" + keepLastTags +
+                ", maxDays=" + maxDays +
+                ", maxBytes=" + maxBytes +
+                '}';
+    }
+}
@@ -0,0 +1,76 @@
+package com.some.company.mv2prd.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// This class maps to the plan file written by plan mode and run by apply mode
+public class InstallPlan {
+    private Integer planVersion;
+    private String project;
+    private String gitTag;
+    // Start of the range for coalesced installs, null for a single tag
+    private String fromTag;
+    // The commit gitTag pointed at when the plan was made, apply refuses to run if the tag has moved since
+    private String commitId;
+    private Long createdMillis;
+    private List<InstallPlanEntry> installPlanEntryList = new ArrayList<>();
+
+    public InstallPlan() {
+    }
+
+    public Integer getPlanVersion() {
+        return planVersion;
+    }
+
+    public void setPlanVersion(Integer planVersion) {
+        this.planVersion = planVersion;
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public void setProject(String project) {
+        this.project = project;
+    }
+
+    public String getGitTag() {
+        return gitTag;
+    }
+
+    public void setGitTag(String gitTag) {
+        this.gitTag = gitTag;
+    }
+
+    public String getFromTag() {
+        return fromTag;
+    }
+
+    public void setFromTag(String fromTag) {
+        this.fromTag = fromTag;
+    }
+
+    public String getCommitId() {
+        return commitId;
+    }
+
+    public void setCommitId(String commitId) {
+        this.commitId = commitId;
+    }
+
+    public Long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    public void setCreatedMillis(Long createdMillis) {
+        this.createdMillis = createdMillis;
+    }
+
+    public List<InstallPlanEntry> getInstallPlanEntryList() {
+        return installPlanEntryList;
+    }
+
+    public void setInstallPlanEntryList(List<InstallPlanEntry> installPlanEntryList) {
+        this.installPlanEntryList = installPlanEntryList;
+    }
+}
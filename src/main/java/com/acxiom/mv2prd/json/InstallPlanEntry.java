@@ -0,0 +1,127 @@
+package com.some.company.mv2prd.json;
+
+// One resolved file change of an install plan: the git diff entry it came from plus the target it was mapped to
+public class InstallPlanEntry {
+    private String changeType;
+    private String oldPath;
+    private String newPath;
+    private Integer oldMode;
+    private Integer newMode;
+    private String oldId;
+    private String newId;
+    private Integer score;
+
+    private String absoluteTargetFilePath;
+    private String absoluteBackupFilePath;
+    private TargetPreState targetPreState;
+    // Only set for moves, the target the file is moved away from
+    private String oldAbsoluteTargetFilePath;
+    private TargetPreState oldTargetPreState;
+
+    public InstallPlanEntry() {
+    }
+
+    public String getChangeType() {
+        return changeType;
+    }
+
+    public void setChangeType(String changeType) {
+        this.changeType = changeType;
+    }
+
+    public String getOldPath() {
+        return oldPath;
+    }
+
+    public void setOldPath(String oldPath) {
+        this.oldPath = oldPath;
+    }
+
+    public String getNewPath() {
+        return newPath;
+    }
+
+    public void setNewPath(String newPath) {
+        this.newPath = newPath;
+    }
+
+    public Integer getOldMode() {
+        return oldMode;
+    }
+
+    public void setOldMode(Integer oldMode) {
+        this.oldMode = oldMode;
+    }
+
+    public Integer getNewMode() {
+        return newMode;
+    }
+
+    public void setNewMode(Integer newMode) {
+        this.newMode = newMode;
+    }
+
+    public String getOldId() {
+        return oldId;
+    }
+
+    public void setOldId(String oldId) {
+        this.oldId = oldId;
+    }
+
+    public String getNewId() {
+        return newId;
+    }
+
+    public void setNewId(String newId) {
+        this.newId = newId;
+    }
+
+    public Integer getScore() {
+        return score;
+    }
+
+    public void setScore(Integer score) {
+        this.score = score;
+    }
+
+    public String getAbsoluteTargetFilePath() {
+        return absoluteTargetFilePath;
+    }
+
+    public void setAbsoluteTargetFilePath(String absoluteTargetFilePath) {
+        this.absoluteTargetFilePath = absoluteTargetFilePath;
+    }
+
+    public String getAbsoluteBackupFilePath() {
+        return absoluteBackupFilePath;
+    }
+
+    public void setAbsoluteBackupFilePath(String absoluteBackupFilePath) {
+        this.absoluteBackupFilePath = absoluteBackupFilePath;
+    }
+
+    public TargetPreState getTargetPreState() {
+        return targetPreState;
+    }
+
+    public void setTargetPreState(TargetPreState targetPreState) {
+        this.targetPreState = targetPreState;
+    }
+
+    public String getOldAbsoluteTargetFilePath() {
+        return oldAbsoluteTargetFilePath;
+    }
+
+    public void setOldAbsoluteTargetFilePath(String oldAbsoluteTargetFilePath) {
+        this.oldAbsoluteTargetFilePath = oldAbsoluteTargetFilePath;
+    }
+
+    public TargetPreState getOldTargetPreState() {
+        return oldTargetPreState;
+    }
+
+    public void setOldTargetPreState(TargetPreState oldTargetPreState) {
+        this.oldTargetPreState = oldTargetPreState;
+    }
+}
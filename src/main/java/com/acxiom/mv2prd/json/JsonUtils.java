@@ -7,6 +7,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 
 public class JsonUtils {
+
+    // Shared for the per-line journal conversions, ObjectMapper is thread-safe once configured
+    private static final ObjectMapper lineObjectMapper = new ObjectMapper();
+
     public static byte[] readJsonData(Path path) throws IOException {
         return Files.readAllBytes(path);
     }
@@ -14,4 +18,36 @@ public class JsonUtils {
     public static Mv2prdHooks convertJsonDataToMv2prdHooks(byte[] jsonData) throws IOException {
         return new ObjectMapper().readValue(jsonData, Mv2prdHooks.class);
     }
+
+    public static byte[] convertInstallPlanToJsonData(InstallPlan installPlan) throws IOException {
+        return new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsBytes(installPlan);
+    }
+
+    public static InstallPlan convertJsonDataToInstallPlan(byte[] jsonData) throws IOException {
+        return new ObjectMapper().readValue(jsonData, InstallPlan.class);
+    }
+
+    public static byte[] convertBackupBlobRefToJsonData(BackupBlobRef backupBlobRef) throws IOException {
+        return lineObjectMapper.writeValueAsBytes(backupBlobRef);
+    }
+
+    public static BackupBlobRef convertJsonDataToBackupBlobRef(byte[] jsonData) throws IOException {
+        return lineObjectMapper.readValue(jsonData, BackupBlobRef.class);
+    }
+
+    public static String convertBackupIndexEntryToJsonLine(BackupIndexEntry backupIndexEntry) throws IOException {
+        return lineObjectMapper.writeValueAsString(backupIndexEntry);
+    }
+
+    public static BackupIndexEntry convertJsonLineToBackupIndexEntry(String jsonLine) throws IOException {
+        return lineObjectMapper.readValue(jsonLine, BackupIndexEntry.class);
+    }
+
+    public static String convertUndoJournalEntryToJsonLine(UndoJournalEntry undoJournalEntry) throws IOException {
+        return lineObjectMapper.writeValueAsString(undoJournalEntry);
+    }
+
+    public static UndoJournalEntry convertJsonLineToUndoJournalEntry(String jsonLine) throws IOException {
+        return lineObjectMapper.readValue(jsonLine, UndoJournalEntry.class);
+    }
 }
@@ -1,5 +1,7 @@
 package com.some.company.mv2prd.json;
 
+import com.some.company.mv2prd.util.PathMappingIndex;
+
 import java.util.List;
 import java.util.Map;
 
@@ -10,6 +12,9 @@ public class Mv2prdHooks {
     private Map<String,String> gitToTargetMap;
     private List<String> syncFilterList;
     private List<String> emailAddressList;
+    private BackupRetention backupRetention;
+    // Not in the json, Mv2prd compiles it from gitToTargetMap once the hooks are read
+    private PathMappingIndex pathMappingIndex;
 
     public String getLogFile() {
         return logFile;
@@ -51,6 +56,22 @@ public class Mv2prdHooks {
         this.emailAddressList = emailAddressList;
     }
 
+    public BackupRetention getBackupRetention() {
+        return backupRetention;
+    }
+
+    public void setBackupRetention(BackupRetention backupRetention) {
+        this.backupRetention = backupRetention;
+    }
+
+    public PathMappingIndex getPathMappingIndex() {
+        return pathMappingIndex;
+    }
+
+    public void setPathMappingIndex(PathMappingIndex pathMappingIndex) {
+        this.pathMappingIndex = pathMappingIndex;
+    }
+
     @Override
     public String toString() {
         return "Mv2prdHooks{" +
@@ -59,6 +80,7 @@ public class Mv2prdHooks {
                 ", gitToTargetMap=" + gitToTargetMap +
                 ", syncFilterList=" + syncFilterList +
                 ", emailAddressList=" + emailAddressList +
+                ", backupRetention=" + backupRetention +
                 '}';
     }
 }
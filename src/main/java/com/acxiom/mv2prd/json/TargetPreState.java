@@ -0,0 +1,59 @@
+package com.some.company.mv2prd.json;
+
+// The state a target was in when an install plan was made, re-checked by apply mode before anything is touched
+public class TargetPreState {
+    private Boolean exists;
+    private Long size;
+    private Long lastModifiedMillis;
+    // Git blob id of the content (of the link text for a symlink), null if the target is neither
+    private String blobId;
+
+    public TargetPreState() {
+    }
+
+    public TargetPreState(Boolean exists, Long size, Long lastModifiedMillis, String blobId) {
+        this.exists = exists;
+        this.size = size;
+        this.lastModifiedMillis = lastModifiedMillis;
+        this.blobId = blobId;
+    }
+
+    public Boolean getExists() {
+        return exists;
+    }
+
+    public void setExists(Boolean exists) {
+        this.exists = exists;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
+    public Long getLastModifiedMillis() {
+        return lastModifiedMillis;
+    }
+
+    public void setLastModifiedMillis(Long lastModifiedMillis) {
+        this.lastModifiedMillis = lastModifiedMillis;
+    }
+
+    public String getBlobId() {
+        return blobId;
+    }
+
+    public void setBlobId(String blobId) {
+        this.blobId = blobId;
+    }
+
+    @Override
+    public String toString() {
+        if (!exists)
+            return "missing";
+        return "size=" + size + " mtime=" + lastModifiedMillis + (blobId == null ? "" : " blob=" + blobId);
+    }
+}
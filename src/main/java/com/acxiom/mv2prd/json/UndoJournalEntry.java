@@ -0,0 +1,72 @@
+package com.some.company.mv2prd.json;
+
+// This class maps to one line of a per-tag undo journal (backupDirectory/<gitTag>.undo_journal)
+public class UndoJournalEntry {
+    private String action;
+    private String relativeGitFilePath;
+    private String absoluteTargetFilePath;
+    private String absoluteBackupFilePath;
+    // Only set for MOVED entries, where the target was before the move
+    private String previousAbsoluteTargetFilePath;
+
+    public UndoJournalEntry() {
+    }
+
+    public UndoJournalEntry(String action, String relativeGitFilePath, String absoluteTargetFilePath, String absoluteBackupFilePath) {
+        this.action = action;
+        this.relativeGitFilePath = relativeGitFilePath;
+        this.absoluteTargetFilePath = absoluteTargetFilePath;
+        this.absoluteBackupFilePath = absoluteBackupFilePath;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public void setAction(String action) {
+        this.action = action;
+    }
+
+    public String getRelativeGitFilePath() {
+        return relativeGitFilePath;
+    }
+
+    public void setRelativeGitFilePath(String relativeGitFilePath) {
+        this.relativeGitFilePath = relativeGitFilePath;
+    }
+
+    public String getAbsoluteTargetFilePath() {
+        return absoluteTargetFilePath;
+    }
+
+    public void setAbsoluteTargetFilePath(String absoluteTargetFilePath) {
+        this.absoluteTargetFilePath = absoluteTargetFilePath;
+    }
+
+    public String getAbsoluteBackupFilePath() {
+        return absoluteBackupFilePath;
+    }
+
+    public void setAbsoluteBackupFilePath(String absoluteBackupFilePath) {
+        this.absoluteBackupFilePath = absoluteBackupFilePath;
+    }
+
+    public String getPreviousAbsoluteTargetFilePath() {
+        return previousAbsoluteTargetFilePath;
+    }
+
+    public void setPreviousAbsoluteTargetFilePath(String previousAbsoluteTargetFilePath) {
+        this.previousAbsoluteTargetFilePath = previousAbsoluteTargetFilePath;
+    }
+
+    @Override
+    public String toString() {
+        return "UndoJournalEntry{" +
+                "action='" + action + '\'' +
+                ", relativeGitFilePath='" + relativeGitFilePath + '\'' +
+                ", absoluteTargetFilePath='" + absoluteTargetFilePath + '\'' +
+                ", absoluteBackupFilePath='" + absoluteBackupFilePath + '\'' +
+                ", previousAbsoluteTargetFilePath='" + previousAbsoluteTargetFilePath + '\'' +
+                '}';
+    }
+}
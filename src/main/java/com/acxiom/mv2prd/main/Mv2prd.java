@@ -4,16 +4,37 @@ import com.some.company.mv2prd.exceptions.GitTagInvalidException;
 import com.some.company.mv2prd.exceptions.InvalidArgumentsException;
 import com.some.company.mv2prd.file.install.FileChange;
 import com.some.company.mv2prd.file.install.FileChangeUtils;
+import com.some.company.mv2prd.file.install.InstallPlanUtils;
+import com.some.company.mv2prd.file.install.InstallSettingSingleton;
+import com.some.company.mv2prd.file.install.UndoJournalSingleton;
+import com.some.company.mv2prd.file.prune.PruneBackupUtils;
+import com.some.company.mv2prd.file.prune.PrunedBackup;
+import com.some.company.mv2prd.file.rollback.RollbackFile;
+import com.some.company.mv2prd.file.rollback.RollbackFileUtils;
+import com.some.company.mv2prd.file.sync.SyncCompareMode;
 import com.some.company.mv2prd.file.sync.SyncFile;
 import com.some.company.mv2prd.file.sync.SyncFileUtils;
+import com.some.company.mv2prd.file.sync.SyncSettingSingleton;
+import com.some.company.mv2prd.json.BackupIndexEntry;
+import com.some.company.mv2prd.json.BackupRetention;
+import com.some.company.mv2prd.json.InstallPlan;
 import com.some.company.mv2prd.json.Mv2prdHooks;
+import com.some.company.mv2prd.json.UndoJournalEntry;
+import com.some.company.mv2prd.util.BackupStoreSingleton;
+import com.some.company.mv2prd.util.CopyEngineSingleton;
+import com.some.company.mv2prd.util.DurabilityPolicy;
 import com.some.company.mv2prd.util.GitUtils;
+import com.some.company.mv2prd.util.HashCacheSingleton;
+import com.some.company.mv2prd.util.PathFilterMatcher;
+import com.some.company.mv2prd.util.PathMappingIndex;
+import com.some.company.mv2prd.util.TreeDiffIterator;
 import com.some.company.mv2prd.util.Utils;
 import com.some.company.mv2prd.util.logging.DebugSettingSingleton;
 import com.some.company.mv2prd.util.logging.LogWriterSingleton;
 import com.some.company.mv2prd.util.logging.Logger;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.Constants;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -21,6 +42,9 @@ import org.kohsuke.args4j.ParserProperties;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.UserPrincipal;
@@ -35,7 +59,9 @@ public class Mv2prd {
 
     private Mv2prdMode mv2prdMode;
 
-    @Option(name="--mode",usage="REQUIRED : Run mode, \"install\" or \"sync_check\"")
+    private DurabilityPolicy durabilityPolicy = DurabilityPolicy.NONE;
+
+    @Option(name="--mode",usage="REQUIRED : Run mode, \"install\", \"sync_check\", \"rollback\", \"plan\", \"apply\" or \"prune_backups\"")
     private String modeString = null;
 
     @Option(name="--project",usage="REQUIRED : GIT project name (without .git suffix)")
@@ -57,15 +83,70 @@ public class Mv2prd {
     @Option(name="--group",usage="REQUIRED : Files will be set to this group after being moved in, also used for mv2prd log file directory creation")
     private String group = null;
 
-    @Option(name="--gitTag",usage="REQUIRED(Install-only) : GIT tag name associated with this change")
+    @Option(name="--gitTag",usage="REQUIRED(Install/Rollback/Plan-only) : GIT tag name associated with this change. Optional for apply, where it must match the plan")
     private String gitTag = null;
 
-    @Option(name="--dryRun",usage="OPTIONAL(Install-only) : Preview/dry run, list changes but don't actually make any")
+    @Option(name="--fromTag",usage="OPTIONAL(Install-only) : Install everything between this GIT tag and --gitTag as one coalesced change, each file is backed up and written once")
+    private String fromTag = null;
+
+    @Option(name="--sinceLastDeployed",usage="OPTIONAL(Install-only) : Like --fromTag, using the tag of the last successful install as the start of the range")
+    private Boolean sinceLastDeployed = false;
+
+    @Option(name="--detectRenames",usage="OPTIONAL(Install-only) : Detect files renamed/moved in git and move them on the target instead of deleting and re-copying them")
+    private Boolean detectRenames = false;
+
+    @Option(name="--plan",usage="REQUIRED(Plan/Apply-only) : Install plan file, written by plan mode and run by apply mode")
+    private String planFile = null;
+
+    @Option(name="--dryRun",usage="OPTIONAL(Install/Rollback-only) : Preview/dry run, list changes but don't actually make any")
     private Boolean dryRun = false;
 
+    @Option(name="--installThreads",usage="OPTIONAL(Install/Rollback-only) : Number of worker threads used to install or roll back file changes in parallel. Defaults to 1 (serial).")
+    private Integer installThreads = 1;
+
+    @Option(name="--durability",usage="OPTIONAL(Install/Apply/Rollback-only) : When written files are fsync'ed: \"none\" (default, left to the OS), \"file\" (each file and its directory as it is written) or \"batch\" (all of them once at the end of the run)")
+    private String durabilityString = null;
+
+    @Option(name="--rangeCopyThreads",usage="OPTIONAL(Install/Apply/Rollback-only) : Copy files of --rangeCopyThresholdMB and up as this many ranges in parallel. Defaults to 1 (off).")
+    private Integer rangeCopyThreads = 1;
+
+    @Option(name="--rangeCopyThresholdMB",usage="OPTIONAL(Install/Apply/Rollback-only) : Smallest file size in MB that is copied in parallel ranges. Defaults to 256.")
+    private Integer rangeCopyThresholdMB = 256;
+
+    @Option(name="--skipIdentical",usage="OPTIONAL(Install-only) : Leave targets that already match the git content alone (no backup, rewrite or chown/chgrp/chmod) and report them as ALREADY_CURRENT")
+    private Boolean skipIdentical = false;
+
+    @Option(name="--preApproveDeletes",usage="OPTIONAL(Install/Prune-only) : Run the delete plan without asking for confirmation. The plan and its hash are still written to the log")
+    private Boolean preApproveDeletes = false;
+
+    @Option(name="--bareRepo",usage="OPTIONAL(Install-only) : Keep a bare clone (<workingTreeParentDir>/<project>.git) and install straight from the git object database without checking out a working tree")
+    private Boolean bareRepo = false;
+
+    @Option(name="--pruneThreads",usage="OPTIONAL(Prune-only) : Number of threads deleting backup files. Defaults to 2.")
+    private Integer pruneThreads = 2;
+
+    @Option(name="--pruneDeletesPerSecond",usage="OPTIONAL(Prune-only) : Upper limit on deletes per second across all prune threads. Defaults to 0 (no limit).")
+    private Integer pruneDeletesPerSecond = 0;
+
     @Option(name="--showInSync",usage="OPTIONAL(Sync-only) : Turn on printing of in-sync files. May result in large amount of output if most are synced already.")
     private Boolean showInSync = false;
 
+    @Option(name="--compare",usage="OPTIONAL(Sync-only) : How files are compared: \"size\" (default), \"content\" (files of the same size are also compared byte for byte) or \"blob\" (targets are compared with the blob ids in the HEAD tree of a bare clone, no working tree is checked out)")
+    private String compareModeString = null;
+    private SyncCompareMode syncCompareMode = SyncCompareMode.SIZE;
+
+    @Option(name="--syncWalkThreads",usage="OPTIONAL(Sync-only) : Number of threads listing the git and target directory trees. Defaults to 8.")
+    private Integer syncWalkThreads = 8;
+
+    @Option(name="--syncCompareThreads",usage="OPTIONAL(Sync-only) : Number of threads comparing files once both trees are listed. Defaults to 8.")
+    private Integer syncCompareThreads = 8;
+
+    @Option(name="--syncGitIoLimit",usage="OPTIONAL(Sync-only) : Upper limit on compare threads reading the git side at the same time. Defaults to 8.")
+    private Integer syncGitIoLimit = 8;
+
+    @Option(name="--syncTargetIoLimit",usage="OPTIONAL(Sync-only) : Upper limit on compare threads reading the target side at the same time. Defaults to 8.")
+    private Integer syncTargetIoLimit = 8;
+
     @Option(name="--emails",usage="OPTIONAL : Overrides the emailList in mv2prd_hooks.json. comma-delimited (no spaces) list of email recipients to send final report to.")
     private String emails = null;
 
@@ -110,7 +191,7 @@ public class Mv2prd {
         Map<String,String> requiredArgsMap = new HashMap<>();
         Map<String,String> invalidArgsMap = new HashMap<>();
 
-        if (mv2prdMode == Mv2prdMode.INSTALL) {
+        if (mv2prdMode == Mv2prdMode.INSTALL || mv2prdMode == Mv2prdMode.ROLLBACK || mv2prdMode == Mv2prdMode.PLAN || mv2prdMode == Mv2prdMode.APPLY) {
             requiredArgsMap = new HashMap<String, String>() {{
                     put("project", project);
                     put("stashProjectRootURL", stashProjectRootURL);
@@ -122,6 +203,51 @@ public class Mv2prd {
                 }};
             invalidArgsMap = new HashMap<String, String>() {{
                     put("showInSync", Boolean.toString(showInSync));
+                    put("compare", compareModeString);
+                }};
+            if (mv2prdMode == Mv2prdMode.INSTALL || mv2prdMode == Mv2prdMode.ROLLBACK)
+                invalidArgsMap.put("plan", planFile);
+            if (mv2prdMode == Mv2prdMode.PLAN) {
+                requiredArgsMap.put("plan", planFile);
+                // Plan mode never changes anything, the install options only matter when the plan is applied
+                invalidArgsMap.put("dryRun", Boolean.toString(dryRun));
+                invalidArgsMap.put("skipIdentical", Boolean.toString(skipIdentical));
+                invalidArgsMap.put("preApproveDeletes", Boolean.toString(preApproveDeletes));
+            }
+            if (mv2prdMode == Mv2prdMode.APPLY) {
+                // The gitTag and the range come from the plan
+                requiredArgsMap.remove("gitTag");
+                requiredArgsMap.put("plan", planFile);
+                invalidArgsMap.put("fromTag", fromTag);
+                invalidArgsMap.put("sinceLastDeployed", Boolean.toString(sinceLastDeployed));
+                invalidArgsMap.put("detectRenames", Boolean.toString(detectRenames));
+            }
+            if (mv2prdMode == Mv2prdMode.ROLLBACK) {
+                invalidArgsMap.put("skipIdentical", Boolean.toString(skipIdentical));
+                invalidArgsMap.put("preApproveDeletes", Boolean.toString(preApproveDeletes));
+                invalidArgsMap.put("fromTag", fromTag);
+                invalidArgsMap.put("sinceLastDeployed", Boolean.toString(sinceLastDeployed));
+                invalidArgsMap.put("detectRenames", Boolean.toString(detectRenames));
+            }
+        } else if (mv2prdMode == Mv2prdMode.PRUNE_BACKUPS) {
+            requiredArgsMap = new HashMap<String, String>() {{
+                    put("project", project);
+                    put("stashProjectRootURL", stashProjectRootURL);
+                    put("workingTreeParentDir", workingTreeParentDir);
+                    put("userId", userId);
+                    put("sccUserId", sccUserId);
+                    put("group", group);
+                }};
+            invalidArgsMap = new HashMap<String, String>() {{
+                    put("gitTag", gitTag);
+                    put("fromTag", fromTag);
+                    put("sinceLastDeployed", Boolean.toString(sinceLastDeployed));
+                    put("detectRenames", Boolean.toString(detectRenames));
+                    put("skipIdentical", Boolean.toString(skipIdentical));
+                    put("plan", planFile);
+                    put("durability", durabilityString);
+                    put("showInSync", Boolean.toString(showInSync));
+                    put("compare", compareModeString);
                 }};
         } else if (mv2prdMode == Mv2prdMode.SYNC_CHECK) {
             requiredArgsMap = new HashMap<String, String>() {{
@@ -135,6 +261,14 @@ public class Mv2prd {
             invalidArgsMap = new HashMap<String, String>() {{
                     put("gitTag", gitTag);
                     put("dryRun", Boolean.toString(dryRun));
+                    put("skipIdentical", Boolean.toString(skipIdentical));
+                    put("preApproveDeletes", Boolean.toString(preApproveDeletes));
+                    put("bareRepo", Boolean.toString(bareRepo));
+                    put("fromTag", fromTag);
+                    put("sinceLastDeployed", Boolean.toString(sinceLastDeployed));
+                    put("detectRenames", Boolean.toString(detectRenames));
+                    put("plan", planFile);
+                    put("durability", durabilityString);
                 }};
         }
 
@@ -149,6 +283,39 @@ public class Mv2prd {
             }
         }
 
+        if (Utils.isNotNullOrEmptyOrBlank(fromTag) && sinceLastDeployed)
+            invalidArgumentList.add("(EXCLUSIVE)fromTag:" + fromTag + " sinceLastDeployed:" + sinceLastDeployed);
+
+        if (installThreads == null || installThreads < 1)
+            invalidArgumentList.add("(INVALID)installThreads:" + installThreads);
+
+        if (Utils.isNotNullOrEmptyOrBlank(durabilityString)) {
+            durabilityPolicy = DurabilityPolicy.getDurabilityPolicyFromString(durabilityString);
+            if (durabilityPolicy == null)
+                invalidArgumentList.add("(INVALID)durability:" + durabilityString);
+        }
+        if (pruneThreads == null || pruneThreads < 1)
+            invalidArgumentList.add("(INVALID)pruneThreads:" + pruneThreads);
+        if (pruneDeletesPerSecond == null || pruneDeletesPerSecond < 0)
+            invalidArgumentList.add("(INVALID)pruneDeletesPerSecond:" + pruneDeletesPerSecond);
+        if (rangeCopyThreads == null || rangeCopyThreads < 1)
+            invalidArgumentList.add("(INVALID)rangeCopyThreads:" + rangeCopyThreads);
+        if (rangeCopyThresholdMB == null || rangeCopyThresholdMB < 1)
+            invalidArgumentList.add("(INVALID)rangeCopyThresholdMB:" + rangeCopyThresholdMB);
+        if (Utils.isNotNullOrEmptyOrBlank(compareModeString)) {
+            syncCompareMode = SyncCompareMode.getSyncCompareModeFromString(compareModeString);
+            if (syncCompareMode == null)
+                invalidArgumentList.add("(INVALID)compare:" + compareModeString);
+        }
+        if (syncWalkThreads == null || syncWalkThreads < 1)
+            invalidArgumentList.add("(INVALID)syncWalkThreads:" + syncWalkThreads);
+        if (syncCompareThreads == null || syncCompareThreads < 1)
+            invalidArgumentList.add("(INVALID)syncCompareThreads:" + syncCompareThreads);
+        if (syncGitIoLimit == null || syncGitIoLimit < 1)
+            invalidArgumentList.add("(INVALID)syncGitIoLimit:" + syncGitIoLimit);
+        if (syncTargetIoLimit == null || syncTargetIoLimit < 1)
+            invalidArgumentList.add("(INVALID)syncTargetIoLimit:" + syncTargetIoLimit);
+
         if (invalidArgumentList.size() > 0)
             throw new InvalidArgumentsException(invalidArgumentList);
 
@@ -175,13 +342,23 @@ public class Mv2prd {
 
         if (debug) DebugSettingSingleton.getInstance().enableDebugLogging();
         if (dryRun) logger.info("+++ Dry run/preview mode enabled. No filesystem changes will be made. +++");
-
-        Git git = GitUtils.initGit(stashProjectRootURL, project, workingTreeParentDir);
+        if (skipIdentical) InstallSettingSingleton.getInstance().enableSkipIdentical();
+        if (preApproveDeletes) InstallSettingSingleton.getInstance().enablePreApproveDeletes();
+        CopyEngineSingleton.getInstance().configure(durabilityPolicy, rangeCopyThresholdMB, rangeCopyThreads);
+
+        Git git;
+        // BLOB sync mode reads the git side straight from the object database, so it has no use for a working tree either
+        if (bareRepo || syncCompareMode == SyncCompareMode.BLOB) {
+            git = GitUtils.initBareGit(stashProjectRootURL, project, workingTreeParentDir);
+            InstallSettingSingleton.getInstance().setBlobSourceRepository(git.getRepository());
+        } else
+            git = GitUtils.initGit(stashProjectRootURL, project, workingTreeParentDir);
         logger.info("Git repo directory: " + git.getRepository().getDirectory().toString());
 
         GroupPrincipal groupPrincipal = Utils.getGroupPrincipal(group);
 
         Mv2prdHooks mv2prdHooks = GitUtils.readMv2prdHooks(git);
+        mv2prdHooks.setPathMappingIndex(PathMappingIndex.of(mv2prdHooks.getGitToTargetMap()));
         logger.info("From here on, logger statements should log to the mv2prd log: " + mv2prdHooks.getLogFile());
         LogWriterSingleton.getInstance().initPrintWriter(dryRun, mv2prdMode,
                 Paths.get(mv2prdHooks.getLogFile() + mv2prdMode.getLogSuffix()),
@@ -190,10 +367,21 @@ public class Mv2prd {
         logger.info("BLAME USER: " + userId);
         initEmailAddressList(mv2prdHooks);
 
+        if (mv2prdMode == Mv2prdMode.INSTALL || mv2prdMode == Mv2prdMode.APPLY)
+            BackupStoreSingleton.getInstance().configure(mv2prdHooks.getBackupDirectory());
+
         if (mv2prdMode == Mv2prdMode.INSTALL) {
             installChanges(git, mv2prdHooks, groupPrincipal, posixFilePermissionString);
         } else if (mv2prdMode == Mv2prdMode.SYNC_CHECK) {
             syncCheck(git, mv2prdHooks);
+        } else if (mv2prdMode == Mv2prdMode.ROLLBACK) {
+            rollbackChanges(git, mv2prdHooks, groupPrincipal, posixFilePermissionString);
+        } else if (mv2prdMode == Mv2prdMode.PLAN) {
+            planChanges(git, mv2prdHooks, groupPrincipal, posixFilePermissionString);
+        } else if (mv2prdMode == Mv2prdMode.APPLY) {
+            applyPlan(git, mv2prdHooks, groupPrincipal, posixFilePermissionString);
+        } else if (mv2prdMode == Mv2prdMode.PRUNE_BACKUPS) {
+            pruneBackups(mv2prdHooks, groupPrincipal, posixFilePermissionString);
         }
     }
 
@@ -210,34 +398,332 @@ public class Mv2prd {
         }
     }
 
-    private void installChanges(Git git, Mv2prdHooks mv2prdHooks, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException, GitTagInvalidException {
+    private void installChanges(Git git, Mv2prdHooks mv2prdHooks, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException, GitTagInvalidException, InterruptedException {
 
-        List<DiffEntry> diffEntryList = GitUtils.getTagDiffEntryList(git, gitTag);
-        if (diffEntryList.size() == 1) {
-            logger.info("No files are associated with the specified gitTag: \"" + gitTag + "\" Exiting.");
-            return;
-        }
+        String rangeStartTag = sinceLastDeployed ? GitUtils.readLastDeployedTag(mv2prdHooks.getBackupDirectory()) : fromTag;
+        boolean isRange = Utils.isNotNullOrEmptyOrBlank(rangeStartTag);
+        if (isRange)
+            logger.info("Installing the coalesced range of changes from gitTag: \"" + rangeStartTag + "\" to gitTag: \"" + gitTag + "\"");
 
         UserPrincipal userPrincipal = Utils.getUserPrincipal(sccUserId);
         logger.info("userPrincipal: " + userPrincipal.getName() + " group: " + group);
 
-        List<FileChange> fileChangeListPostExec = FileChangeUtils.executeAllFileChanges(dryRun, gitTag, diffEntryList, git.getRepository().getWorkTree().toString(),
-                userPrincipal, groupPrincipal, mv2prdHooks, posixFilePermissionString);
+        // A bare repo has no working tree, git paths are then only used for reporting
+        String workingTreeDir = git.getRepository().isBare() ? git.getRepository().getDirectory().toString() : git.getRepository().getWorkTree().toString();
+
+        List<FileChange> fileChangeListPostExec;
+        if (detectRenames) {
+            // Pairing adds with deletes needs the whole diff, so renames keep the materialised list
+            List<DiffEntry> diffEntryList = isRange ? GitUtils.getTagRangeDiffEntryList(git, rangeStartTag, gitTag, detectRenames)
+                    : GitUtils.getTagDiffEntryList(git, gitTag, detectRenames);
+            if (diffEntryList.size() < 1) {
+                logger.info("No files are associated with the specified gitTag: \"" + gitTag + "\" Exiting.");
+                return;
+            }
 
+            if (!dryRun) openUndoJournal(mv2prdHooks, groupPrincipal, posixFilePermissionString);
+            try {
+                fileChangeListPostExec = FileChangeUtils.executeAllFileChanges(dryRun, gitTag, diffEntryList, workingTreeDir,
+                        userPrincipal, groupPrincipal, mv2prdHooks, posixFilePermissionString, installThreads);
+            } finally {
+                UndoJournalSingleton.getInstance().close();
+            }
+        } else {
+            try (TreeDiffIterator treeDiffIterator = GitUtils.openTreeDiffIterator(git, isRange ? rangeStartTag : gitTag + "~1", gitTag)) {
+                if (!treeDiffIterator.hasNext()) {
+                    logger.info("No files are associated with the specified gitTag: \"" + gitTag + "\" Exiting.");
+                    return;
+                }
+
+                if (!dryRun) openUndoJournal(mv2prdHooks, groupPrincipal, posixFilePermissionString);
+                try {
+                    fileChangeListPostExec = FileChangeUtils.executeFileChangesStreaming(dryRun, gitTag, treeDiffIterator, workingTreeDir,
+                            userPrincipal, groupPrincipal, mv2prdHooks, posixFilePermissionString, installThreads);
+                } finally {
+                    UndoJournalSingleton.getInstance().close();
+                }
+            }
+        }
+
+        reportInstalledChanges(mv2prdHooks, groupPrincipal, fileChangeListPostExec);
+    }
+
+    private void reportInstalledChanges(Mv2prdHooks mv2prdHooks, GroupPrincipal groupPrincipal, List<FileChange> fileChangeListPostExec) throws IOException {
+        // Nothing is reported as installed before it is on disk
+        CopyEngineSingleton.getInstance().syncPendingBatch();
         logger.debug(FileChangeUtils.prettyPrintFileChangeList(fileChangeListPostExec).toString());
 
-        StringBuilder postExecReport = FileChangeUtils.generatePostExecReport(dryRun, fileChangeListPostExec);
+        if (!dryRun) {
+            BackupStoreSingleton.getInstance().recordRun(gitTag, mv2prdHooks.getBackupDirectory());
+            // --sinceLastDeployed starts from this tag, so it may only move once the whole tag is on the target
+            if (FileChangeUtils.allSucceeded(fileChangeListPostExec))
+                recordLastDeployedTag(mv2prdHooks.getBackupDirectory(), groupPrincipal);
+            else
+                logger.warn("Not every change was installed, the last deployed tag is left as it was.");
+        }
+
+        StringBuilder postExecReport = FileChangeUtils.generatePostExecReport(dryRun, fileChangeListPostExec)
+                .append(CopyEngineSingleton.getInstance().generateStatsReport())
+                .append(BackupStoreSingleton.getInstance().generateStatsReport());
         logger.info(postExecReport.toString());
 
         sendReportEmail(generateEmailSubject(), postExecReport, "mv2prd@some.company.com", emailAddressList);
 
+        if (FileChangeUtils.anyDeleteDenied(fileChangeListPostExec)) {
+            logger.error("User denied the delete plan, the deletes of this gitTag were not installed.");
+            this.exitCode = 7;
+            return;
+        }
+
         logger.info("Successfully installed changes!");
     }
 
-    private void syncCheck(Git git, Mv2prdHooks mv2prdHooks) throws IOException {
+    // Does everything an install does short of changing the target: diff, path mapping and target stats. The result
+    // is saved so that apply mode can run it later without redoing any of it.
+    private void planChanges(Git git, Mv2prdHooks mv2prdHooks, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException, GitTagInvalidException {
+
+        String rangeStartTag = sinceLastDeployed ? GitUtils.readLastDeployedTag(mv2prdHooks.getBackupDirectory()) : fromTag;
+        boolean isRange = Utils.isNotNullOrEmptyOrBlank(rangeStartTag);
+        List<DiffEntry> diffEntryList = isRange ? GitUtils.getTagRangeDiffEntryList(git, rangeStartTag, gitTag, detectRenames)
+                : GitUtils.getTagDiffEntryList(git, gitTag, detectRenames);
+        if (diffEntryList.size() < 1) {
+            logger.info("No files are associated with the specified gitTag: \"" + gitTag + "\" Nothing to plan. Exiting.");
+            return;
+        }
+
+        UserPrincipal userPrincipal = Utils.getUserPrincipal(sccUserId);
+        String workingTreeDir = git.getRepository().isBare() ? git.getRepository().getDirectory().toString() : git.getRepository().getWorkTree().toString();
+
+        List<FileChange> fileChangeList = FileChangeUtils.buildFileChangeList(true, gitTag, diffEntryList, workingTreeDir,
+                userPrincipal, groupPrincipal, mv2prdHooks, posixFilePermissionString);
+
+        InstallPlan installPlan = InstallPlanUtils.buildInstallPlan(project, gitTag, isRange ? rangeStartTag : null,
+                GitUtils.resolveCommitId(git, gitTag), fileChangeList);
+        InstallPlanUtils.writeInstallPlan(installPlan, Paths.get(planFile), groupPrincipal, posixFilePermissionString);
+
+        StringBuilder planReport = FileChangeUtils.generatePostExecReport(true, fileChangeList);
+        logger.info(planReport.toString());
+
+        logger.info("Successfully planned changes! Run them with --mode apply --plan " + planFile);
+    }
+
+    // Runs a plan made by plan mode. Nothing is re-diffed. Content is read from the object database by the blob ids
+    // in the plan, so apply writes exactly what was planned, whatever the working tree has since moved to.
+    private void applyPlan(Git git, Mv2prdHooks mv2prdHooks, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException, InterruptedException {
 
-        List<SyncFile> syncFileList = SyncFileUtils.getFilteredSyncFiles(mv2prdHooks, git.getRepository().getWorkTree().toString());
-        List<SyncFile> postExecSyncFileList = SyncFileUtils.executeAllSyncFiles(syncFileList);
+        InstallPlan installPlan = InstallPlanUtils.readInstallPlan(Paths.get(planFile));
+        if (Utils.isNotNullOrEmptyOrBlank(gitTag) && !gitTag.equals(installPlan.getGitTag())) {
+            logger.error("The gitTag: \"" + gitTag + "\" does not match the gitTag of the plan: \"" + installPlan.getGitTag() + "\" Exiting.");
+            this.exitCode = 5;
+            return;
+        }
+        this.gitTag = installPlan.getGitTag();
+        logger.info("Applying plan: " + planFile + " for gitTag: \"" + gitTag + "\" with " + installPlan.getInstallPlanEntryList().size() + " file changes.");
+
+        List<String> driftList = new ArrayList<>();
+        String currentCommitId;
+        try {
+            currentCommitId = GitUtils.resolveCommitId(git, gitTag);
+        } catch (GitTagInvalidException e) {
+            currentCommitId = null;
+        }
+        if (!Objects.equals(installPlan.getCommitId(), currentCommitId))
+            driftList.add("GITTAG   " + gitTag + " planned: " + installPlan.getCommitId() + " now: " + currentCommitId);
+        driftList.addAll(InstallPlanUtils.findDrift(installPlan, mv2prdHooks));
+        if (driftList.size() > 0) {
+            logger.error("The target or the repo has changed since the plan was made, refusing to apply it. Re-run plan mode. Drift:\n"
+                    + String.join("\n", driftList));
+            this.exitCode = 5;
+            return;
+        }
+        logger.info("Pre-state checks passed, nothing has drifted since the plan was made.");
+
+        InstallSettingSingleton.getInstance().setBlobSourceRepository(git.getRepository());
+        UserPrincipal userPrincipal = Utils.getUserPrincipal(sccUserId);
+        String workingTreeDir = git.getRepository().isBare() ? git.getRepository().getDirectory().toString() : git.getRepository().getWorkTree().toString();
+
+        List<FileChange> fileChangeListPostExec;
+        if (!dryRun) openUndoJournal(mv2prdHooks, groupPrincipal, posixFilePermissionString);
+        try {
+            fileChangeListPostExec = FileChangeUtils.executeAllFileChanges(dryRun, gitTag, InstallPlanUtils.rebuildDiffEntryList(installPlan),
+                    workingTreeDir, userPrincipal, groupPrincipal, mv2prdHooks, posixFilePermissionString, installThreads);
+        } finally {
+            UndoJournalSingleton.getInstance().close();
+        }
+
+        reportInstalledChanges(mv2prdHooks, groupPrincipal, fileChangeListPostExec);
+    }
+
+    private void recordLastDeployedTag(String backupDirectory, GroupPrincipal groupPrincipal) throws IOException {
+        String previousGitTag = readLastDeployedTagOrEmpty(backupDirectory);
+        // A re-run of the tag must not lose the tag the first run replaced
+        if (!gitTag.equals(previousGitTag)) {
+            Path previousLastDeployedTagPath = Paths.get(GitUtils.buildPreviousLastDeployedTagFilePath(gitTag, backupDirectory));
+            GitUtils.writeTagFile(previousLastDeployedTagPath, previousGitTag, groupPrincipal, posixFilePermissionString);
+        }
+        GitUtils.writeLastDeployedTag(gitTag, backupDirectory, groupPrincipal, posixFilePermissionString);
+    }
+
+    // Only if this tag is still the last deployed one, a later tag's install is not undone by rolling back an older tag
+    private void restoreLastDeployedTag(String backupDirectory, GroupPrincipal groupPrincipal) throws IOException {
+        Path previousLastDeployedTagPath = Paths.get(GitUtils.buildPreviousLastDeployedTagFilePath(gitTag, backupDirectory));
+        if (!Files.exists(previousLastDeployedTagPath))
+            return;
+        String lastDeployedGitTag = readLastDeployedTagOrEmpty(backupDirectory);
+        if (!gitTag.equals(lastDeployedGitTag)) {
+            logger.info("The last deployed tag is: \"" + lastDeployedGitTag + "\" not: \"" + gitTag + "\", leaving it as it is.");
+            return;
+        }
+
+        String previousGitTag = new String(Files.readAllBytes(previousLastDeployedTagPath), StandardCharsets.UTF_8).trim();
+        if (Utils.isNotNullOrEmptyOrBlank(previousGitTag))
+            GitUtils.writeLastDeployedTag(previousGitTag, backupDirectory, groupPrincipal, posixFilePermissionString);
+        else
+            Files.deleteIfExists(Paths.get(GitUtils.buildLastDeployedTagFilePath(backupDirectory)));
+        Files.delete(previousLastDeployedTagPath);
+        logger.info("Last deployed tag set back to: \"" + previousGitTag + "\"");
+    }
+
+    private static String readLastDeployedTagOrEmpty(String backupDirectory) throws IOException {
+        try {
+            return GitUtils.readLastDeployedTag(backupDirectory);
+        } catch (GitTagInvalidException e) {
+            return "";
+        }
+    }
+
+    private void openUndoJournal(Mv2prdHooks mv2prdHooks, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        Path undoJournalPath = Paths.get(GitUtils.buildUndoJournalFilePath(gitTag, mv2prdHooks.getBackupDirectory()));
+        if (!Files.exists(undoJournalPath.getParent()))
+            Utils.createDirectoriesWithGroupAndPerms(undoJournalPath.getParent(), groupPrincipal, posixFilePermissionString);
+        UndoJournalSingleton.getInstance().open(undoJournalPath);
+    }
+
+    private void rollbackChanges(Git git, Mv2prdHooks mv2prdHooks, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException, InterruptedException {
+
+        Path undoJournalPath = Paths.get(GitUtils.buildUndoJournalFilePath(gitTag, mv2prdHooks.getBackupDirectory()));
+        if (!Files.exists(undoJournalPath)) {
+            logger.error("No undo journal exists for gitTag: \"" + gitTag + "\" at: " + undoJournalPath + " Nothing to roll back. Exiting.");
+            this.exitCode = 3;
+            return;
+        }
+
+        List<UndoJournalEntry> undoJournalEntryList = UndoJournalSingleton.readJournal(undoJournalPath);
+        if (undoJournalEntryList.size() < 1) {
+            logger.info("Undo journal for gitTag: \"" + gitTag + "\" is empty. Nothing to roll back. Exiting.");
+            return;
+        }
+
+        // One confirmation for the whole rollback instead of one per file
+        if (!dryRun && !Utils.promptUserYesNo("About to roll back " + undoJournalEntryList.size() + " changes made by gitTag: " + gitTag
+                + " (journal: " + undoJournalPath + ").\nAre you sure you want to proceed?")) {
+            logger.error("User denied rollback, exiting...");
+            this.exitCode = 7;
+            return;
+        }
+
+        List<RollbackFile> rollbackFileListPostExec = RollbackFileUtils.executeAllRollbackFiles(dryRun, undoJournalEntryList, git.getRepository(),
+                groupPrincipal, posixFilePermissionString, installThreads);
+        CopyEngineSingleton.getInstance().syncPendingBatch();
+
+        StringBuilder postExecReport = RollbackFileUtils.generatePostExecReport(dryRun, gitTag, rollbackFileListPostExec)
+                .append(CopyEngineSingleton.getInstance().generateStatsReport());
+        logger.info(postExecReport.toString());
+
+        sendReportEmail(generateEmailSubject(), postExecReport, "mv2prd@some.company.com", emailAddressList);
+
+        if (!RollbackFileUtils.allSucceeded(rollbackFileListPostExec)) {
+            logger.error("Rollback finished with failures, leaving the undo journal in place: " + undoJournalPath);
+            this.exitCode = 4;
+            return;
+        }
+        // Move the journal aside so a second rollback run cannot replay it again
+        if (!dryRun) {
+            Path rolledBackJournalPath = Paths.get(undoJournalPath + ".rolled_back." + System.currentTimeMillis());
+            Files.move(undoJournalPath, rolledBackJournalPath);
+            logger.info("Undo journal moved to: " + rolledBackJournalPath);
+            restoreLastDeployedTag(mv2prdHooks.getBackupDirectory(), groupPrincipal);
+            if (!RollbackFileUtils.discardBackups(rollbackFileListPostExec)) {
+                logger.error("Rolled back, but some backups of gitTag: \"" + gitTag + "\" could not be deleted. Delete them before installing the gitTag again.");
+                this.exitCode = 4;
+                return;
+            }
+        }
+
+        logger.info("Successfully rolled back changes!");
+    }
+
+    private void pruneBackups(Mv2prdHooks mv2prdHooks, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException, InterruptedException {
+
+        BackupRetention backupRetention = mv2prdHooks.getBackupRetention();
+        if (backupRetention == null) {
+            logger.error("No backupRetention is set in mv2prd_hooks.json, nothing can be pruned. Exiting.");
+            this.exitCode = 3;
+            return;
+        }
+        String backupDirectory = mv2prdHooks.getBackupDirectory();
+        logger.info("Pruning backups in: " + backupDirectory + " with retention: " + backupRetention);
+
+        String lastDeployedGitTag;
+        try {
+            lastDeployedGitTag = GitUtils.readLastDeployedTag(backupDirectory);
+        } catch (GitTagInvalidException e) {
+            lastDeployedGitTag = null;
+        }
+
+        long nowMillis = System.currentTimeMillis();
+        List<BackupIndexEntry> backupIndexEntryList = PruneBackupUtils.readBackupIndex(backupDirectory, dryRun);
+        List<PrunedBackup> prunedBackupList = PruneBackupUtils.selectPrunedBackups(backupIndexEntryList, backupRetention, lastDeployedGitTag, nowMillis);
+
+        if (!dryRun && prunedBackupList.size() > 0) {
+            if (preApproveDeletes) {
+                logger.info("Pruning the backups of " + prunedBackupList.size() + " tags, pre-approved on the command line.");
+            } else if (!Utils.promptUserYesNo("About to prune the backups of " + prunedBackupList.size() + " of " + backupIndexEntryList.size()
+                    + " tags in: " + backupDirectory + "\nAre you sure you want to proceed?")) {
+                logger.error("User denied pruning, exiting...");
+                this.exitCode = 7;
+                return;
+            }
+        }
+
+        List<PrunedBackup> prunedBackupListPostExec = PruneBackupUtils.executeAllPrunedBackups(dryRun, backupDirectory, prunedBackupList,
+                groupPrincipal, posixFilePermissionString, pruneThreads, pruneDeletesPerSecond);
+
+        StringBuilder postExecReport = PruneBackupUtils.generatePostExecReport(dryRun, backupRetention, prunedBackupListPostExec, nowMillis);
+        logger.info(postExecReport.toString());
+
+        sendReportEmail(generateEmailSubject(), postExecReport, "mv2prd@some.company.com", emailAddressList);
+
+        if (!PruneBackupUtils.allSucceeded(prunedBackupListPostExec)) {
+            logger.error("Pruning finished with failures, the failed tags stay in the backup index and will be retried next time.");
+            this.exitCode = 4;
+            return;
+        }
+
+        logger.info("Successfully pruned backups!");
+    }
+
+    private void syncCheck(Git git, Mv2prdHooks mv2prdHooks) throws IOException, InterruptedException {
+
+        SyncSettingSingleton.getInstance().setSyncCompareMode(syncCompareMode);
+        SyncSettingSingleton.getInstance().configureIoLimits(syncGitIoLimit, syncTargetIoLimit);
+
+        // Content compares remember each file's digest by its stat, so the next run only reads what changed
+        if (syncCompareMode == SyncCompareMode.CONTENT || syncCompareMode == SyncCompareMode.BLOB)
+            HashCacheSingleton.getInstance().open(Paths.get(GitUtils.buildHashCacheFilePath(workingTreeParentDir, project)));
+
+        PathFilterMatcher pathFilterMatcher = PathFilterMatcher.of(mv2prdHooks.getSyncFilterList());
+        List<SyncFile> postExecSyncFileList;
+        try {
+            List<SyncFile> syncFileList;
+            if (syncCompareMode == SyncCompareMode.BLOB)
+                syncFileList = SyncFileUtils.getFilteredBlobSyncFiles(mv2prdHooks, pathFilterMatcher, git.getRepository(), Constants.HEAD, syncWalkThreads);
+            else
+                syncFileList = SyncFileUtils.getFilteredSyncFiles(mv2prdHooks, pathFilterMatcher, git.getRepository().getWorkTree().toString(), syncWalkThreads);
+            postExecSyncFileList = SyncFileUtils.executeAllSyncFiles(syncFileList, syncCompareThreads);
+        } finally {
+            HashCacheSingleton.getInstance().close();
+        }
 
         StringBuilder postExecReport = SyncFileUtils.generatePostExecReport(postExecSyncFileList, mv2prdHooks, showInSync);
         logger.info(postExecReport.toString());
@@ -248,7 +734,7 @@ public class Mv2prd {
     }
 
     private String generateEmailSubject() throws IOException {
-        String middle = (mv2prdMode == Mv2prdMode.SYNC_CHECK) ? "Sync Check" : "Install";
+        String middle = (mv2prdMode == Mv2prdMode.SYNC_CHECK) ? "Sync Check" : (mv2prdMode == Mv2prdMode.ROLLBACK) ? "Rollback" : (mv2prdMode == Mv2prdMode.PRUNE_BACKUPS) ? "Prune Backups" : "Install";
         return this.sccUserId + "@" + Utils.getHostname() + ": MV2PRD " + middle + " Report : " + Utils.getTodaysDate();
     }
 
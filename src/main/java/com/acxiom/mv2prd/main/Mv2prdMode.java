@@ -1,7 +1,7 @@
 package com.some.company.mv2prd.main;
 
 public enum Mv2prdMode {
-    INSTALL, SYNC_CHECK;
+    INSTALL, SYNC_CHECK, ROLLBACK, PLAN, APPLY, PRUNE_BACKUPS;
 
     public static Mv2prdMode getMv2prdModeFromString(String modeString) {
         // (?i:*) -> Ignore case
@@ -9,6 +9,14 @@ public enum Mv2prdMode {
             return Mv2prdMode.INSTALL;
         } else if (modeString.matches("(?i:" + Mv2prdMode.SYNC_CHECK.toString() + ")")) {
             return Mv2prdMode.SYNC_CHECK;
+        } else if (modeString.matches("(?i:" + Mv2prdMode.ROLLBACK.toString() + ")")) {
+            return Mv2prdMode.ROLLBACK;
+        } else if (modeString.matches("(?i:" + Mv2prdMode.PLAN.toString() + ")")) {
+            return Mv2prdMode.PLAN;
+        } else if (modeString.matches("(?i:" + Mv2prdMode.APPLY.toString() + ")")) {
+            return Mv2prdMode.APPLY;
+        } else if (modeString.matches("(?i:" + Mv2prdMode.PRUNE_BACKUPS.toString() + ")")) {
+            return Mv2prdMode.PRUNE_BACKUPS;
         } else
             return null;
     }
@@ -22,6 +30,10 @@ public enum Mv2prdMode {
         switch(this) {
             case INSTALL: return "INSTALL";
             case SYNC_CHECK: return "SYNC_CHECK";
+            case ROLLBACK: return "ROLLBACK";
+            case PLAN: return "PLAN";
+            case APPLY: return "APPLY";
+            case PRUNE_BACKUPS: return "PRUNE_BACKUPS";
             default: throw new IllegalArgumentException();
         }
     }
@@ -0,0 +1,223 @@
+package com.some.company.mv2prd.util;
+
+import com.some.company.mv2prd.json.BackupBlobRef;
+import com.some.company.mv2prd.json.BackupIndexEntry;
+import com.some.company.mv2prd.json.JsonUtils;
+import com.some.company.mv2prd.util.logging.Logger;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Content-addressed store for backups under backupDirectory/.objects. Each backed up file is stored once, keyed by
+// its git blob id, and every per-tag backup path (backupDirectory/<gitTag>/...) is a hard link to the stored object.
+// Content that was backed up before, by any tag, costs one read to hash it plus one link() instead of a full copy.
+// Hard links share an inode, so owner, group and mode are part of the key and the same content with other attributes
+// is stored separately. Symlinks, and backups whose link fails (e.g. another filesystem), fall back to a full copy.
+// A target that still holds the blob git had for it before the change is not stored at all: its backup is a small
+// pointer record (blob id plus attributes) and rollback rebuilds the file from git history.
+// A per-tag backup, once written, is never replaced: a re-run of the tag keeps the one taken before the tag's first
+// run touched the target, which is what every entry of the tag's undo journal expects to restore.
+public class BackupStoreSingleton {
+
+    private static final Logger logger = Logger.getLogger(BackupStoreSingleton.class);
+
+    private static BackupStoreSingleton instance;
+
+    // Null until configured, backups are then plain copies
+    private Path objectStorePath = null;
+
+    private final LongAdder storedObjectCount = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder linkedObjectCount = new LongAdder();
+    private final LongAdder dedupedBytes = new LongAdder();
+    private final LongAdder fullCopyCount = new LongAdder();
+    private final LongAdder fullCopyBytes = new LongAdder();
+    private final LongAdder blobRefCount = new LongAdder();
+    private final LongAdder blobRefBytes = new LongAdder();
+    private final LongAdder keptBackupCount = new LongAdder();
+    // Objects linked by this run, written to the tag's manifest so pruning only has to look at these
+    private final Set<Path> linkedObjectPathSet = ConcurrentHashMap.newKeySet();
+
+    private BackupStoreSingleton(){}
+
+    public static synchronized BackupStoreSingleton getInstance() {
+        if (instance == null) {
+            instance = new BackupStoreSingleton();
+        }
+        return instance;
+    }
+
+    public void configure(String backupDirectory) {
+        this.objectStorePath = Paths.get(GitUtils.buildObjectStorePath(backupDirectory));
+        logger.info("Backups will be stored once per content and hard linked from: " + objectStorePath);
+    }
+
+    public Path getObjectStorePath() {
+        return objectStorePath;
+    }
+
+    // expectedBlobId is the blob git had for the target before this change, or null if there is none to compare with
+    public void backupFile(String absoluteTargetFilePath, String absoluteBackupFilePath, AnyObjectId expectedBlobId, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        Path targetFilePath = Paths.get(absoluteTargetFilePath);
+        Path backupFilePath = Paths.get(absoluteBackupFilePath);
+        // Not through the metadata cache, which follows symlinks and would miss a backed up dangling symlink
+        if (Files.exists(backupFilePath, LinkOption.NOFOLLOW_LINKS) || blobRefExists(absoluteBackupFilePath)) {
+            logger.info("backupFile: Keeping the backup taken by an earlier run of this tag: " + backupFilePath);
+            keptBackupCount.increment();
+            return;
+        }
+
+        PosixFileAttributes targetAttributes = FileMetadataCacheSingleton.getInstance().getAttributes(targetFilePath);
+        if ((objectStorePath == null && expectedBlobId == null) || targetAttributes == null || !targetAttributes.isRegularFile() || Files.isSymbolicLink(targetFilePath)) {
+            copyInFull(absoluteTargetFilePath, absoluteBackupFilePath, targetAttributes == null ? 0 : targetAttributes.size(), groupPrincipal, posixFilePermissionString);
+            return;
+        }
+
+        ObjectId blobId = GitUtils.computeBlobId(targetFilePath, targetAttributes.size());
+        if (blobId.equals(expectedBlobId)) {
+            writeBlobRef(blobId, targetAttributes, backupFilePath, groupPrincipal, posixFilePermissionString);
+            blobRefCount.increment();
+            blobRefBytes.add(targetAttributes.size());
+            return;
+        }
+        if (objectStorePath == null) {
+            copyInFull(absoluteTargetFilePath, absoluteBackupFilePath, targetAttributes.size(), groupPrincipal, posixFilePermissionString);
+            return;
+        }
+
+        Path objectPath = buildObjectPath(blobId.name(), targetAttributes);
+        // Two changes of one run backing up the same content may both store it, the second rename simply replaces
+        // the first object with an identical one and links made to either stay valid
+        if (FileMetadataCacheSingleton.getInstance().exists(objectPath)) {
+            linkedObjectCount.increment();
+            dedupedBytes.add(targetAttributes.size());
+        } else {
+            Utils.copyFile(absoluteTargetFilePath, objectPath.toString(), null, groupPrincipal, posixFilePermissionString);
+            storedObjectCount.increment();
+            storedBytes.add(targetAttributes.size());
+        }
+
+        try {
+            linkIntoPlace(objectPath, backupFilePath, groupPrincipal, posixFilePermissionString);
+            linkedObjectPathSet.add(objectPath);
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.warn("backupFile: Could not link backup to the object store, copying it in full instead: " + backupFilePath + " : " + e);
+            copyInFull(absoluteTargetFilePath, absoluteBackupFilePath, targetAttributes.size(), groupPrincipal, posixFilePermissionString);
+        }
+    }
+
+    private static void writeBlobRef(ObjectId blobId, PosixFileAttributes targetAttributes, Path backupFilePath, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        BackupBlobRef backupBlobRef = new BackupBlobRef(blobId.name(), PosixFilePermissions.toString(targetAttributes.permissions()),
+                targetAttributes.owner().getName(), targetAttributes.group().getName(), targetAttributes.lastModifiedTime().toMillis());
+        Path blobRefFilePath = Paths.get(GitUtils.buildBackupBlobRefFilePath(backupFilePath.toString()));
+        Path tempFilePath = Utils.createTempSiblingFile(blobRefFilePath, groupPrincipal, posixFilePermissionString);
+        try {
+            Files.write(tempFilePath, JsonUtils.convertBackupBlobRefToJsonData(backupBlobRef));
+            // A rollback run by another operator in the group has to read it
+            Utils.applyGroupAndPerms(tempFilePath, groupPrincipal, posixFilePermissionString);
+            Utils.moveIntoPlace(tempFilePath, blobRefFilePath);
+        } catch (IOException e) {
+            Utils.deleteTempFileQuietly(tempFilePath);
+            throw e;
+        }
+        FileMetadataCacheSingleton.getInstance().invalidate(blobRefFilePath);
+    }
+
+    // Rebuilds a backed up file from its pointer record: blob content from the repository, then the recorded
+    // permissions, owner, group and mtime, then renamed into place like any other copy
+    public static void restoreFromBlobRef(Repository repository, String absoluteBackupFilePath, String absoluteTargetFilePath, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        BackupBlobRef backupBlobRef = JsonUtils.convertJsonDataToBackupBlobRef(
+                Files.readAllBytes(Paths.get(GitUtils.buildBackupBlobRefFilePath(absoluteBackupFilePath))));
+        Path tempFilePath = GitUtils.copyBlobToTempSibling(repository, ObjectId.fromString(backupBlobRef.getBlobId()), absoluteTargetFilePath, groupPrincipal, posixFilePermissionString);
+        try {
+            PosixFileAttributeView tempAttributeView = Files.getFileAttributeView(tempFilePath, PosixFileAttributeView.class);
+            tempAttributeView.setOwner(Utils.getUserPrincipal(backupBlobRef.getOwner()));
+            tempAttributeView.setGroup(Utils.getGroupPrincipal(backupBlobRef.getGroup()));
+            tempAttributeView.setPermissions(PosixFilePermissions.fromString(backupBlobRef.getPermissions()));
+            tempAttributeView.setTimes(FileTime.fromMillis(backupBlobRef.getLastModifiedMillis()), null, null);
+            Utils.moveIntoPlace(tempFilePath, Paths.get(absoluteTargetFilePath));
+        } catch (IOException e) {
+            Utils.deleteTempFileQuietly(tempFilePath);
+            throw e;
+        }
+    }
+
+    public static Boolean blobRefExists(String absoluteBackupFilePath) {
+        return FileMetadataCacheSingleton.getInstance().exists(Paths.get(GitUtils.buildBackupBlobRefFilePath(absoluteBackupFilePath)));
+    }
+
+    private void copyInFull(String absoluteTargetFilePath, String absoluteBackupFilePath, long size, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        Utils.copyFile(absoluteTargetFilePath, absoluteBackupFilePath, null, groupPrincipal, posixFilePermissionString);
+        fullCopyCount.increment();
+        fullCopyBytes.add(size);
+    }
+
+    // Called once at the end of a real install run. Appends the tag's manifest and its line in the backup index,
+    // which is all prune_backups mode needs to decide what to delete.
+    public void recordRun(String gitTag, String backupDirectory) throws IOException {
+        List<String> objectPathLineList = new ArrayList<>();
+        for (Path objectPath : linkedObjectPathSet)
+            objectPathLineList.add(objectPath.toString());
+        Collections.sort(objectPathLineList);
+        if (objectPathLineList.size() > 0)
+            Files.write(Paths.get(GitUtils.buildBackupManifestFilePath(gitTag, backupDirectory)), objectPathLineList, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        BackupIndexEntry backupIndexEntry = new BackupIndexEntry(gitTag, System.currentTimeMillis(), storedBytes.sum() + fullCopyBytes.sum());
+        Files.write(Paths.get(GitUtils.buildBackupIndexFilePath(backupDirectory)),
+                Collections.singletonList(JsonUtils.convertBackupIndexEntryToJsonLine(backupIndexEntry)), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // <objectStore>/<first 2 hex>/<remaining 38 hex>_<mode>_<owner>_<group>
+    private Path buildObjectPath(String blobId, PosixFileAttributes attributes) {
+        return objectStorePath.resolve(blobId.substring(0, 2)).resolve(blobId.substring(2)
+                + "_" + PosixFilePermissions.toString(attributes.permissions())
+                + "_" + attributes.owner().getName()
+                + "_" + attributes.group().getName());
+    }
+
+    private static void linkIntoPlace(Path objectPath, Path backupFilePath, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        Path backupFileParentPath = backupFilePath.getParent();
+        if (!FileMetadataCacheSingleton.getInstance().exists(backupFileParentPath))
+            Utils.createDirectoriesWithGroupAndPerms(backupFileParentPath, groupPrincipal, posixFilePermissionString);
+        try {
+            Files.createLink(backupFilePath, objectPath);
+        } finally {
+            FileMetadataCacheSingleton.getInstance().invalidate(backupFilePath);
+        }
+        CopyEngineSingleton.getInstance().recordWrittenFile(backupFilePath);
+    }
+
+    public StringBuilder generateStatsReport() {
+        final double megabyte = 1024.0 * 1024.0;
+        return new StringBuilder("Backup stats: ")
+                .append(storedObjectCount.sum()).append(" objects stored (")
+                .append(String.format("%.1f", storedBytes.sum() / megabyte)).append("MB), ")
+                .append(linkedObjectCount.sum()).append(" linked to existing objects (")
+                .append(String.format("%.1f", dedupedBytes.sum() / megabyte)).append("MB not copied), ")
+                .append(fullCopyCount.sum()).append(" copied in full, ")
+                .append(blobRefCount.sum()).append(" left in git history as pointers (")
+                .append(String.format("%.1f", blobRefBytes.sum() / megabyte)).append("MB not copied), ")
+                .append(keptBackupCount.sum()).append(" kept from an earlier run of the tag\n");
+    }
+}
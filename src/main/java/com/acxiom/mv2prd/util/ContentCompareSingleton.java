@@ -0,0 +1,230 @@
+package com.some.company.mv2prd.util;
+
+import com.some.company.mv2prd.util.logging.Logger;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.concurrent.atomic.LongAdder;
+
+// Byte-for-byte comparison of two files of the same size, used by sync_check's content mode. Files up to the map
+// limit are compared through memory-mapped windows, a long at a time, and the compare stops at the first difference.
+// Small files are read into heap buffers instead, mapping them costs more than it saves. Files above the map limit
+// are each run through a streaming digest (the git blob id, so the result means the same thing everywhere in mv2prd).
+// When HashCacheSingleton is open and holds both files' digests, the digests are compared and neither file is read.
+// Otherwise the files are compared as above, and the cache only learns digests of files that were read in full.
+// Bytes read and time spent are counted for the sync report.
+public class ContentCompareSingleton {
+
+    private static final Logger logger = Logger.getLogger(ContentCompareSingleton.class);
+
+    private static final long MEGABYTE = 1024L * 1024L;
+    // Below this both files are read with plain reads
+    private static final long MAP_MIN_BYTES = 64L * 1024L;
+    // Mapped a window at a time so a large file never needs one huge mapping
+    private static final long MAP_WINDOW_BYTES = 16L * MEGABYTE;
+    // Above this the files are digested rather than mapped
+    private static final long MAP_LIMIT_BYTES = 1024L * MEGABYTE;
+
+    private static ContentCompareSingleton instance;
+
+    private final LongAdder comparedFileCount = new LongAdder();
+    private final LongAdder differingFileCount = new LongAdder();
+    private final LongAdder digestedFileCount = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder compareNanos = new LongAdder();
+
+    private ContentCompareSingleton(){}
+
+    public static synchronized ContentCompareSingleton getInstance() {
+        if (instance == null) {
+            instance = new ContentCompareSingleton();
+        }
+        return instance;
+    }
+
+    // Both files must be regular files of the given size, the caller has already compared sizes
+    public Boolean sameContent(Path firstFilePath, Path secondFilePath, long size) throws IOException {
+        return sameContent(firstFilePath, null, secondFilePath, null, size);
+    }
+
+    // The attributes are the files' stats from FileMetadataCacheSingleton, they key the hash cache
+    public Boolean sameContent(Path firstFilePath, PosixFileAttributes firstFileAttributes,
+                               Path secondFilePath, PosixFileAttributes secondFileAttributes, long size) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean sameContent;
+        try {
+            if (HashCacheSingleton.getInstance().isOpen() && firstFileAttributes instanceof UnixFileAttributes
+                    && secondFileAttributes instanceof UnixFileAttributes)
+                sameContent = sameCachedContent(firstFilePath, (UnixFileAttributes) firstFileAttributes,
+                        secondFilePath, (UnixFileAttributes) secondFileAttributes, size);
+            else if (size > MAP_LIMIT_BYTES)
+                sameContent = sameDigest(firstFilePath, secondFilePath, size);
+            else
+                sameContent = sameMappedContent(firstFilePath, secondFilePath, size);
+        } finally {
+            compareNanos.add(System.nanoTime() - startNanos);
+        }
+        comparedFileCount.increment();
+        if (!sameContent)
+            differingFileCount.increment();
+        return sameContent;
+    }
+
+    // Used when the other side is only known by its git blob id. The attributes key the hash cache, as above.
+    public Boolean matchesBlobId(Path filePath, PosixFileAttributes fileAttributes, ObjectId blobId) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean sameContent;
+        try {
+            if (HashCacheSingleton.getInstance().isOpen() && fileAttributes instanceof UnixFileAttributes)
+                sameContent = cachedDigest(filePath, (UnixFileAttributes) fileAttributes).equals(blobId);
+            else
+                sameContent = digest(filePath, fileAttributes.size()).equals(blobId);
+        } finally {
+            compareNanos.add(System.nanoTime() - startNanos);
+        }
+        comparedFileCount.increment();
+        if (!sameContent)
+            differingFileCount.increment();
+        return sameContent;
+    }
+
+    // A cold cache must not cost more than no cache: unless both digests are cached, the mapped compare still stops at
+    // the first difference. Only a compare that read both files to the end, or a digest, tells the cache anything.
+    private Boolean sameCachedContent(Path firstFilePath, UnixFileAttributes firstFileAttributes,
+                                      Path secondFilePath, UnixFileAttributes secondFileAttributes, long size) throws IOException {
+        ObjectId firstBlobId = HashCacheSingleton.getInstance().lookup(firstFileAttributes);
+        ObjectId secondBlobId = HashCacheSingleton.getInstance().lookup(secondFileAttributes);
+        if (firstBlobId != null && secondBlobId != null)
+            return firstBlobId.equals(secondBlobId);
+
+        if (size > MAP_LIMIT_BYTES) {
+            if (firstBlobId == null) {
+                firstBlobId = digest(firstFilePath, size);
+                HashCacheSingleton.getInstance().store(firstFileAttributes, firstBlobId);
+            }
+            if (secondBlobId == null) {
+                secondBlobId = digest(secondFilePath, size);
+                HashCacheSingleton.getInstance().store(secondFileAttributes, secondBlobId);
+            }
+            return firstBlobId.equals(secondBlobId);
+        }
+
+        Boolean sameContent = sameMappedContent(firstFilePath, secondFilePath, size);
+        // Identical to the other side, so it has the other side's digest
+        if (sameContent && firstBlobId != null)
+            HashCacheSingleton.getInstance().store(secondFileAttributes, firstBlobId);
+        else if (sameContent && secondBlobId != null)
+            HashCacheSingleton.getInstance().store(firstFileAttributes, secondBlobId);
+        return sameContent;
+    }
+
+    private Boolean sameMappedContent(Path firstFilePath, Path secondFilePath, long size) throws IOException {
+        try (FileChannel firstFileChannel = FileChannel.open(firstFilePath, StandardOpenOption.READ);
+             FileChannel secondFileChannel = FileChannel.open(secondFilePath, StandardOpenOption.READ)) {
+
+            if (size < MAP_MIN_BYTES)
+                return sameReadContent(firstFileChannel, secondFileChannel, (int) size);
+
+            // The file changed size after it was stat'ed. A mapping past the end of the shorter file faults on first
+            // touch, so a size that no longer matches the stat is a difference.
+            if (firstFileChannel.size() != size || secondFileChannel.size() != size)
+                return false;
+
+            try {
+                for (long position = 0; position < size; position += MAP_WINDOW_BYTES) {
+                    long windowBytes = Math.min(MAP_WINDOW_BYTES, size - position);
+                    MappedByteBuffer firstBuffer = firstFileChannel.map(FileChannel.MapMode.READ_ONLY, position, windowBytes);
+                    MappedByteBuffer secondBuffer = secondFileChannel.map(FileChannel.MapMode.READ_ONLY, position, windowBytes);
+                    int comparedBytes = comparedLength(firstBuffer, secondBuffer);
+                    bytesRead.add(2L * comparedBytes);
+                    if (comparedBytes < windowBytes)
+                        return false;
+                }
+            } catch (InternalError e) {
+                // Truncated while mapped: the JVM turns the SIGBUS into an InternalError, the caller reports it as a failed compare
+                throw new IOException("sameMappedContent: File was truncated during the compare: " + firstFilePath + " or " + secondFilePath, e);
+            }
+            return true;
+        }
+    }
+
+    private Boolean sameReadContent(FileChannel firstFileChannel, FileChannel secondFileChannel, int size) throws IOException {
+        ByteBuffer firstBuffer = ByteBuffer.allocate(size);
+        ByteBuffer secondBuffer = ByteBuffer.allocate(size);
+        readFully(firstFileChannel, firstBuffer);
+        readFully(secondFileChannel, secondBuffer);
+        bytesRead.add((long) firstBuffer.position() + secondBuffer.position());
+        // The file changed size after it was stat'ed
+        if (firstBuffer.position() != size || secondBuffer.position() != size)
+            return false;
+        firstBuffer.flip();
+        secondBuffer.flip();
+        return comparedLength(firstBuffer, secondBuffer) == size;
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer) < 0)
+                break;
+        }
+    }
+
+    // Number of bytes (rounded down to the long that differs) the two buffers have in common from the start, stopping
+    // at the first difference. Equal buffers return their full length.
+    private static int comparedLength(ByteBuffer firstBuffer, ByteBuffer secondBuffer) {
+        int length = Math.min(firstBuffer.remaining(), secondBuffer.remaining());
+        int position = 0;
+        for (; position + Long.BYTES <= length; position += Long.BYTES) {
+            if (firstBuffer.getLong(position) != secondBuffer.getLong(position))
+                return position;
+        }
+        for (; position < length; position++) {
+            if (firstBuffer.get(position) != secondBuffer.get(position))
+                return position;
+        }
+        return length;
+    }
+
+    private Boolean sameDigest(Path firstFilePath, Path secondFilePath, long size) throws IOException {
+        ObjectId firstBlobId = digest(firstFilePath, size);
+        ObjectId secondBlobId = digest(secondFilePath, size);
+        return firstBlobId.equals(secondBlobId);
+    }
+
+    private ObjectId cachedDigest(Path filePath, UnixFileAttributes fileAttributes) throws IOException {
+        ObjectId blobId = HashCacheSingleton.getInstance().lookup(fileAttributes);
+        if (blobId == null) {
+            blobId = digest(filePath, fileAttributes.size());
+            HashCacheSingleton.getInstance().store(fileAttributes, blobId);
+        }
+        return blobId;
+    }
+
+    // Counted as digested and read here so every caller's hashing shows up in the same stats
+    public ObjectId digest(Path filePath, long size) throws IOException {
+        ObjectId blobId = GitUtils.computeBlobId(filePath, size);
+        digestedFileCount.increment();
+        bytesRead.add(size);
+        return blobId;
+    }
+
+    public StringBuilder generateStatsReport() {
+        long bytes = bytesRead.sum();
+        double compareSeconds = compareNanos.sum() / 1_000_000_000.0;
+        double megabytesPerSecond = compareSeconds > 0 ? (bytes / (double) MEGABYTE) / compareSeconds : 0;
+
+        return new StringBuilder("Content compare stats: ")
+                .append(comparedFileCount.sum()).append(" files compared, ")
+                .append(differingFileCount.sum()).append(" differ, ")
+                .append(digestedFileCount.sum()).append(" files digested | ")
+                .append(String.format("%.1f", bytes / (double) MEGABYTE)).append("MB read in ")
+                .append(String.format("%.2f", compareSeconds)).append("s (")
+                .append(String.format("%.1f", megabytesPerSecond)).append("MB/s)\n");
+    }
+}
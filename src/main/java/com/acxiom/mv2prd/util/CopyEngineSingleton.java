@@ -0,0 +1,243 @@
+package com.some.company.mv2prd.util;
+
+import com.some.company.mv2prd.util.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+// All file content mv2prd writes goes through here. Copies use FileChannel.transferTo/transferFrom so the kernel moves
+// the bytes without a trip through the Java heap. Files at or above the range threshold are split into ranges that
+// are copied in parallel. The durability policy decides when written files and their directories are fsync'ed.
+// Copy and fsync times are counted so the reports can show both.
+public class CopyEngineSingleton {
+
+    private static final Logger logger = Logger.getLogger(CopyEngineSingleton.class);
+
+    private static final long MEGABYTE = 1024L * 1024L;
+    // transferTo may move less than asked for, this caps a single call so large copies make steady progress
+    private static final long TRANSFER_CHUNK_BYTES = 64L * MEGABYTE;
+
+    private static CopyEngineSingleton instance;
+
+    private DurabilityPolicy durabilityPolicy = DurabilityPolicy.NONE;
+    private long rangeCopyThresholdBytes = Long.MAX_VALUE;
+    private int rangeCopyThreads = 1;
+    private ExecutorService rangeCopyExecutorService = null;
+
+    // Only filled for BATCH, synced and cleared by syncPendingBatch()
+    private final Set<Path> pendingSyncFileSet = ConcurrentHashMap.newKeySet();
+    private final Set<Path> pendingSyncDirectorySet = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder copiedFileCount = new LongAdder();
+    private final LongAdder copiedBytes = new LongAdder();
+    private final LongAdder copyNanos = new LongAdder();
+    private final LongAdder fsyncCount = new LongAdder();
+    private final LongAdder fsyncNanos = new LongAdder();
+
+    private CopyEngineSingleton(){}
+
+    public static synchronized CopyEngineSingleton getInstance() {
+        if (instance == null) {
+            instance = new CopyEngineSingleton();
+        }
+        return instance;
+    }
+
+    public synchronized void configure(DurabilityPolicy durabilityPolicy, int rangeCopyThresholdMB, int rangeCopyThreads) {
+        this.durabilityPolicy = durabilityPolicy;
+        this.rangeCopyThresholdBytes = rangeCopyThresholdMB * MEGABYTE;
+        this.rangeCopyThreads = rangeCopyThreads;
+        if (rangeCopyThreads > 1 && rangeCopyExecutorService == null) {
+            rangeCopyExecutorService = Executors.newFixedThreadPool(rangeCopyThreads, runnable -> {
+                Thread thread = new Thread(runnable, "mv2prd-rangecopy");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        logger.info("Copy engine: durability: " + durabilityPolicy + " range copy: "
+                + (rangeCopyThreads > 1 ? rangeCopyThreads + " threads for files of " + rangeCopyThresholdMB + "MB and up" : "off"));
+    }
+
+    public DurabilityPolicy getDurabilityPolicy() {
+        return durabilityPolicy;
+    }
+
+    // Copies content, permissions and mtime of the source into an existing (normally empty temp) target, like
+    // Files.copy with COPY_ATTRIBUTES. Owner and group are copied when permitted and silently left alone otherwise.
+    public void copyFile(Path sourceFilePath, Path targetFilePath) throws IOException {
+        long startNanos = System.nanoTime();
+        long size;
+        try (FileChannel sourceChannel = FileChannel.open(sourceFilePath, StandardOpenOption.READ);
+             FileChannel targetChannel = FileChannel.open(targetFilePath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            size = sourceChannel.size();
+            if (rangeCopyExecutorService != null && size >= rangeCopyThresholdBytes)
+                copyRangesInParallel(sourceFilePath, targetChannel, size);
+            else
+                copyRange(sourceChannel, targetChannel, 0, size);
+            recordCopy(size, startNanos);
+            if (durabilityPolicy == DurabilityPolicy.FILE)
+                force(targetChannel);
+        }
+        copyAttributes(sourceFilePath, targetFilePath);
+    }
+
+    // For content that only exists as a stream, such as a large git blob
+    public void copyStream(InputStream sourceInputStream, Path targetFilePath) throws IOException {
+        long startNanos = System.nanoTime();
+        long position = 0;
+        try (ReadableByteChannel sourceChannel = Channels.newChannel(sourceInputStream);
+             FileChannel targetChannel = FileChannel.open(targetFilePath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long transferred;
+            while ((transferred = targetChannel.transferFrom(sourceChannel, position, TRANSFER_CHUNK_BYTES)) > 0)
+                position += transferred;
+            recordCopy(position, startNanos);
+            if (durabilityPolicy == DurabilityPolicy.FILE)
+                force(targetChannel);
+        }
+    }
+
+    private static void copyRange(FileChannel sourceChannel, FileChannel targetChannel, long start, long end) throws IOException {
+        long position = start;
+        while (position < end) {
+            long transferred = sourceChannel.transferTo(position, Math.min(TRANSFER_CHUNK_BYTES, end - position), targetChannel);
+            if (transferred <= 0)
+                throw new IOException("copyRange: Source ended early at byte " + position + " of " + end);
+            position += transferred;
+        }
+    }
+
+    // Each range reads through its own source channel and writes at its own offset, positional writes to the shared
+    // target channel do not interfere with each other
+    private void copyRangesInParallel(Path sourceFilePath, FileChannel targetChannel, long size) throws IOException {
+        // transferFrom moves nothing at a position past the end of the target, so it is grown to its full size first
+        if (size > 0)
+            targetChannel.write(ByteBuffer.allocate(1), size - 1);
+        long rangeBytes = (size + rangeCopyThreads - 1) / rangeCopyThreads;
+        List<Future<Void>> futureList = new ArrayList<>();
+        for (long start = 0; start < size; start += rangeBytes) {
+            long rangeStart = start;
+            long rangeEnd = Math.min(size, start + rangeBytes);
+            futureList.add(rangeCopyExecutorService.submit(() -> {
+                try (FileChannel sourceChannel = FileChannel.open(sourceFilePath, StandardOpenOption.READ)) {
+                    long position = rangeStart;
+                    while (position < rangeEnd) {
+                        long transferred = targetChannel.transferFrom(sourceChannel.position(position), position, Math.min(TRANSFER_CHUNK_BYTES, rangeEnd - position));
+                        if (transferred <= 0)
+                            throw new IOException("copyRangesInParallel: Source ended early at byte " + position + " of " + rangeEnd);
+                        position += transferred;
+                    }
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<Void> future : futureList)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("copyRangesInParallel: Interrupted while copying: " + sourceFilePath, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("copyRangesInParallel: Range copy failed: " + sourceFilePath, e.getCause());
+        } finally {
+            for (Future<Void> future : futureList)
+                future.cancel(true);
+        }
+    }
+
+    private static void copyAttributes(Path sourceFilePath, Path targetFilePath) throws IOException {
+        PosixFileAttributes sourceAttributes = Files.readAttributes(sourceFilePath, PosixFileAttributes.class);
+        PosixFileAttributeView targetAttributeView = Files.getFileAttributeView(targetFilePath, PosixFileAttributeView.class);
+        try {
+            targetAttributeView.setOwner(sourceAttributes.owner());
+            targetAttributeView.setGroup(sourceAttributes.group());
+        } catch (IOException e) {
+            logger.debug("copyAttributes: Could not copy owner/group to: " + targetFilePath + " : " + e);
+        }
+        targetAttributeView.setPermissions(sourceAttributes.permissions());
+        targetAttributeView.setTimes(sourceAttributes.lastModifiedTime(), sourceAttributes.lastAccessTime(), null);
+    }
+
+    private void recordCopy(long bytes, long startNanos) {
+        copyNanos.add(System.nanoTime() - startNanos);
+        copiedBytes.add(bytes);
+        copiedFileCount.increment();
+    }
+
+    private void force(FileChannel fileChannel) throws IOException {
+        long startNanos = System.nanoTime();
+        fileChannel.force(true);
+        fsyncNanos.add(System.nanoTime() - startNanos);
+        fsyncCount.increment();
+    }
+
+    private void forcePath(Path path) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            force(fileChannel);
+        }
+    }
+
+    // Called once a file has been renamed into its final place. The rename itself only survives a crash once the
+    // directory holding it has been synced.
+    public void recordWrittenFile(Path targetFilePath) throws IOException {
+        if (durabilityPolicy == DurabilityPolicy.FILE) {
+            forcePath(targetFilePath.getParent());
+        } else if (durabilityPolicy == DurabilityPolicy.BATCH) {
+            pendingSyncFileSet.add(targetFilePath);
+            pendingSyncDirectorySet.add(targetFilePath.getParent());
+        }
+    }
+
+    // Files first, then their directories. Call once at the end of a run, before it is reported as done.
+    public void syncPendingBatch() throws IOException {
+        if (durabilityPolicy != DurabilityPolicy.BATCH)
+            return;
+        logger.info("Syncing " + pendingSyncFileSet.size() + " files and " + pendingSyncDirectorySet.size() + " directories to disk...");
+        for (Path filePath : pendingSyncFileSet) {
+            // A later change of the same run may have moved or deleted it, nothing left to sync then
+            if (Files.exists(filePath))
+                forcePath(filePath);
+        }
+        for (Path directoryPath : pendingSyncDirectorySet) {
+            if (Files.isDirectory(directoryPath))
+                forcePath(directoryPath);
+        }
+        pendingSyncFileSet.clear();
+        pendingSyncDirectorySet.clear();
+    }
+
+    public StringBuilder generateStatsReport() {
+        long bytes = copiedBytes.sum();
+        double copySeconds = copyNanos.sum() / 1_000_000_000.0;
+        double fsyncSeconds = fsyncNanos.sum() / 1_000_000_000.0;
+        double megabytesPerSecond = copySeconds > 0 ? (bytes / (double) MEGABYTE) / copySeconds : 0;
+
+        return new StringBuilder("Copy stats: ")
+                .append(copiedFileCount.sum()).append(" files, ")
+                .append(String.format("%.1f", bytes / (double) MEGABYTE)).append("MB in ")
+                .append(String.format("%.2f", copySeconds)).append("s of copy time (")
+                .append(String.format("%.1f", megabytesPerSecond)).append("MB/s)")
+                .append(" | Durability: ").append(durabilityPolicy).append(", ")
+                .append(fsyncCount.sum()).append(" fsyncs in ")
+                .append(String.format("%.2f", fsyncSeconds)).append("s\n");
+    }
+}
@@ -0,0 +1,29 @@
+package com.some.company.mv2prd.util;
+
+// When copied files are forced to disk. NONE leaves it to the OS, FILE fsyncs each file before it is renamed into
+// place (and its directory after), BATCH fsyncs every written file and directory once at the end of the run.
+public enum DurabilityPolicy {
+    NONE, FILE, BATCH;
+
+    public static DurabilityPolicy getDurabilityPolicyFromString(String policyString) {
+        // (?i:*) -> Ignore case
+        if (policyString.matches("(?i:" + DurabilityPolicy.NONE.toString() + ")")) {
+            return DurabilityPolicy.NONE;
+        } else if (policyString.matches("(?i:" + DurabilityPolicy.FILE.toString() + ")")) {
+            return DurabilityPolicy.FILE;
+        } else if (policyString.matches("(?i:" + DurabilityPolicy.BATCH.toString() + ")")) {
+            return DurabilityPolicy.BATCH;
+        } else
+            return null;
+    }
+
+    @Override
+    public String toString() {
+        switch(this) {
+            case NONE: return "NONE";
+            case FILE: return "FILE";
+            case BATCH: return "BATCH";
+            default: throw new IllegalArgumentException();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.some.company.mv2prd.util;
+
+import com.some.company.mv2prd.util.logging.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Per-run cache of filesystem metadata shared by Utils, FileChange and SyncFile. Each path is stat'ed with a single
+// readAttributes call and the result (including "does not exist") is kept for the rest of the run. Directories that
+// are known to exist, either because they were seen or because we created them, are tracked separately so that
+// ancestor checks during directory creation never go back to the filesystem.
+// Anything that writes to the filesystem on our behalf must call invalidate() or invalidateTree() afterwards.
+public class FileMetadataCacheSingleton {
+
+    private static final Logger logger = Logger.getLogger(FileMetadataCacheSingleton.class);
+
+    private static FileMetadataCacheSingleton instance;
+    private static volatile boolean unixViewSupported = true;
+
+    // Optional.empty() records a path that was stat'ed and did not exist
+    private final ConcurrentHashMap<Path, Optional<PosixFileAttributes>> attributesMap = new ConcurrentHashMap<>();
+    private final Set<Path> knownDirectorySet = ConcurrentHashMap.newKeySet();
+    // Directories whose every entry was put here by a walk, anything else in them does not exist
+    private final Set<Path> listedDirectorySet = ConcurrentHashMap.newKeySet();
+
+    private FileMetadataCacheSingleton(){}
+
+    public static synchronized FileMetadataCacheSingleton getInstance() {
+        if (instance == null) {
+            instance = new FileMetadataCacheSingleton();
+        }
+        return instance;
+    }
+
+    // Returns null if the path does not exist or could not be stat'ed, the same answer Files.exists() gives. For callers
+    // that only ask whether something is there. Anything that reports on the file itself uses getExistingAttributes.
+    public PosixFileAttributes getAttributes(Path path) {
+        try {
+            return getExistingAttributes(path);
+        } catch (IOException e) {
+            logger.debug("getAttributes: Could not read attributes, treating as missing: " + path + " : " + e);
+            return null;
+        }
+    }
+
+    // Returns null only if the path does not exist. Any other stat failure (EACCES, EIO, a stale NFS handle) is thrown
+    // and not remembered, since it may be transient.
+    public PosixFileAttributes getExistingAttributes(Path path) throws IOException {
+        Optional<PosixFileAttributes> cachedAttributes = attributesMap.get(path);
+        if (cachedAttributes != null)
+            return cachedAttributes.orElse(null);
+        Path parent = path.getParent();
+        if (parent != null && listedDirectorySet.contains(parent))
+            return null;
+
+        try {
+            PosixFileAttributes attributes = readAttributes(path);
+            attributesMap.put(path, Optional.of(attributes));
+            if (attributes.isDirectory())
+                knownDirectorySet.add(path);
+            return attributes;
+        } catch (NoSuchFileException e) {
+            attributesMap.put(path, Optional.empty());
+            return null;
+        }
+    }
+
+    // One stat, through the "unix" view where the platform has it so the device, inode and ctime come along
+    public static PosixFileAttributes readAttributes(Path path) throws IOException {
+        if (unixViewSupported) {
+            try {
+                return new UnixFileAttributes(Files.readAttributes(path, "unix:*"));
+            } catch (UnsupportedOperationException e) {
+                unixViewSupported = false;
+            }
+        }
+        return Files.readAttributes(path, PosixFileAttributes.class);
+    }
+
+    public boolean exists(Path path) {
+        if (knownDirectorySet.contains(path))
+            return true;
+        return getAttributes(path) != null;
+    }
+
+    public boolean isDirectory(Path path) {
+        if (knownDirectorySet.contains(path))
+            return true;
+        PosixFileAttributes attributes = getAttributes(path);
+        return attributes != null && attributes.isDirectory();
+    }
+
+    public void markDirectoryCreated(Path path) {
+        attributesMap.remove(path);
+        knownDirectorySet.add(path);
+        forgetListing(path);
+    }
+
+    // Records a stat done by someone else, e.g. ParallelDirectoryWalker while listing a directory
+    public void putAttributes(Path path, PosixFileAttributes attributes) {
+        attributesMap.put(path, Optional.of(attributes));
+        if (attributes.isDirectory())
+            knownDirectorySet.add(path);
+    }
+
+    // Call once every entry of the directory has been passed to putAttributes
+    public void markDirectoryListed(Path path) {
+        listedDirectorySet.add(path);
+    }
+
+    // Drops the cached stat of a single path, call after writing to or changing the attributes of that path.
+    // A known directory stays known, since nothing short of a delete turns it into something else.
+    public void invalidate(Path path) {
+        attributesMap.remove(path);
+        forgetListing(path);
+    }
+
+    // Drops the cached stat of a path and everything below it, call after deleting a directory
+    public void invalidateTree(Path path) {
+        attributesMap.keySet().removeIf(p -> p.startsWith(path));
+        knownDirectorySet.removeIf(p -> p.startsWith(path));
+        listedDirectorySet.removeIf(p -> p.startsWith(path));
+        forgetListing(path);
+    }
+
+    // The path may have been created, so its directory's listing no longer tells us what is missing
+    private void forgetListing(Path path) {
+        if (!listedDirectorySet.isEmpty() && path.getParent() != null)
+            listedDirectorySet.remove(path.getParent());
+    }
+}
@@ -0,0 +1,68 @@
+package com.some.company.mv2prd.util;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+
+// DiffEntry only has a protected constructor and package-private factories, this lets us build our own entries
+// (e.g. to split a detected rename back into a delete and an add) that the rest of the code treats like any other.
+public class GitDiffEntry extends DiffEntry {
+
+    private static final AbbreviatedObjectId ZERO_ID = AbbreviatedObjectId.fromObjectId(ObjectId.zeroId());
+
+    private GitDiffEntry() {
+    }
+
+    public static DiffEntry add(String path, FileMode mode, AnyObjectId id) {
+        GitDiffEntry gitDiffEntry = new GitDiffEntry();
+        gitDiffEntry.changeType = ChangeType.ADD;
+        gitDiffEntry.oldPath = DEV_NULL;
+        gitDiffEntry.oldMode = FileMode.MISSING;
+        gitDiffEntry.oldId = ZERO_ID;
+        gitDiffEntry.newPath = path;
+        gitDiffEntry.newMode = mode;
+        gitDiffEntry.newId = AbbreviatedObjectId.fromObjectId(id);
+        return gitDiffEntry;
+    }
+
+    public static DiffEntry modify(String path, FileMode oldMode, AnyObjectId oldId, FileMode newMode, AnyObjectId newId) {
+        GitDiffEntry gitDiffEntry = new GitDiffEntry();
+        gitDiffEntry.changeType = ChangeType.MODIFY;
+        gitDiffEntry.oldPath = path;
+        gitDiffEntry.oldMode = oldMode;
+        gitDiffEntry.oldId = AbbreviatedObjectId.fromObjectId(oldId);
+        gitDiffEntry.newPath = path;
+        gitDiffEntry.newMode = newMode;
+        gitDiffEntry.newId = AbbreviatedObjectId.fromObjectId(newId);
+        return gitDiffEntry;
+    }
+
+    // Rebuilds an entry from its recorded parts, e.g. from an install plan file
+    public static DiffEntry of(ChangeType changeType, String oldPath, FileMode oldMode, String oldId,
+                               String newPath, FileMode newMode, String newId, int score) {
+        GitDiffEntry gitDiffEntry = new GitDiffEntry();
+        gitDiffEntry.changeType = changeType;
+        gitDiffEntry.oldPath = oldPath;
+        gitDiffEntry.oldMode = oldMode;
+        gitDiffEntry.oldId = AbbreviatedObjectId.fromString(oldId);
+        gitDiffEntry.newPath = newPath;
+        gitDiffEntry.newMode = newMode;
+        gitDiffEntry.newId = AbbreviatedObjectId.fromString(newId);
+        gitDiffEntry.score = score;
+        return gitDiffEntry;
+    }
+
+    public static DiffEntry delete(String path, FileMode mode, AnyObjectId id) {
+        GitDiffEntry gitDiffEntry = new GitDiffEntry();
+        gitDiffEntry.changeType = ChangeType.DELETE;
+        gitDiffEntry.oldPath = path;
+        gitDiffEntry.oldMode = mode;
+        gitDiffEntry.oldId = AbbreviatedObjectId.fromObjectId(id);
+        gitDiffEntry.newPath = DEV_NULL;
+        gitDiffEntry.newMode = FileMode.MISSING;
+        gitDiffEntry.newId = ZERO_ID;
+        return gitDiffEntry;
+    }
+}
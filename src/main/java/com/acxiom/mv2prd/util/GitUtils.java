@@ -12,18 +12,28 @@ import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffFormatter;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TagOpt;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
 import org.eclipse.jgit.util.FS;
 import org.eclipse.jgit.util.io.DisabledOutputStream;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
 // All JGIT-related utilities
 public class GitUtils {
@@ -97,6 +107,76 @@ public class GitUtils {
         return git;
     }
 
+    // Worktree-less variant of initGit. Keeps a bare clone at <workingTreeParentDir>/<project>.git and only fetches into
+    // it, so there is no checkout, reset or clean of a working tree. Content is later read straight from the object database.
+    public static Git initBareGit(String stashProjectRootURL, String project, String workingTreeParentPathString) throws GitAPIException, GitRepoInvalidException, IOException {
+        Git git;
+
+        String remoteRepoURL = buildRemoteRepoURL(stashProjectRootURL, project);
+        // Ex: /..../repo_workspace/git_project_x.git
+        String bareRepoPathString = buildBareRepoPath(workingTreeParentPathString, project);
+        Path bareRepoPath = Paths.get(bareRepoPathString);
+
+        logger.debug("remoteRepoURL: " + remoteRepoURL);
+        logger.debug("bareRepoPathString: " + bareRepoPathString);
+
+        if (Files.exists(bareRepoPath)) {
+            if (Files.isDirectory(bareRepoPath) && isValidGitRepo(bareRepoPathString)) {
+                logger.info("Local bare repo is a valid git repo. Proceeding with fetch.");
+                git = initExistingRepoAsGit(bareRepoPath);
+                git = fetchBareToMatchRemote(git);
+            } else {
+                logger.info("Local bare repo path exists, but is not a valid repo. Removing it and cloning fresh.");
+                try {
+                    Utils.deleteFileWithUserConfirmation(bareRepoPath);
+                    logger.info("Local bare repo deleted: " + bareRepoPath.toString());
+                } catch (IOException e) {
+                    logger.error("initBareGit: Could not delete local bare repo: " + bareRepoPath.toString());
+                }
+                git = cloneBareRepository(remoteRepoURL, bareRepoPathString);
+            }
+        } else {
+            logger.info("Local bare repo does not exist. Cloning fresh.");
+            git = cloneBareRepository(remoteRepoURL, bareRepoPathString);
+        }
+
+        logger.info("Validating the bare repo once more to be safe...");
+        if (!isValidGitRepo(bareRepoPathString)) {
+            throw new GitRepoInvalidException("Bare git repo failed validation after fetch/clone. Cannot proceed.");
+        }
+
+        logger.info("Successfully initialized the bare git repo!");
+        return git;
+    }
+
+    // A bare clone maps refs/heads/* straight onto the remote branches, so a forced fetch is all the update it needs
+    private static Git fetchBareToMatchRemote(Git git) throws GitAPIException {
+        logger.info("Fetch origin (bare)");
+        git.fetch()
+                .setRemote("origin")
+                .setRefSpecs(new RefSpec("+refs/heads/*:refs/heads/*"))
+                .setTagOpt(TagOpt.FETCH_TAGS)
+                .call();
+        return git;
+    }
+
+    private static Git cloneBareRepository(String remoteRepoURL, String bareRepoPathString) throws GitAPIException {
+        Git git;
+        try {
+            logger.info("Cloning remote repo (bare): " + remoteRepoURL + " to " + bareRepoPathString);
+            git = Git.cloneRepository()
+                    .setURI(remoteRepoURL)
+                    .setBare(true)
+                    .setDirectory(new File(bareRepoPathString))
+                    .call();
+            logger.info("Bare clone successful, proceeding.");
+        } catch (GitAPIException e) {
+            logger.error("Bare clone failed: " + remoteRepoURL + " to " + bareRepoPathString);
+            throw e;
+        }
+        return git;
+    }
+
     private static Git resetLocalToMatchRemote(Git git) throws GitAPIException {
         logger.info("Fetch origin");
         git.fetch()
@@ -201,20 +281,36 @@ public class GitUtils {
         return Utils.formatPathString(gitRepoParentDir + "/" + project);
     }
 
+    private static String buildBareRepoPath(String gitRepoParentDir, String project) {
+        return Utils.formatPathString(gitRepoParentDir + "/" + project + ".git");
+    }
+
     // Compares a gitTag commit to its immediate predecessor
-    public static List<DiffEntry> getTagDiffEntryList(Git git, String gitTag) throws IOException, GitTagInvalidException {
+    public static List<DiffEntry> getTagDiffEntryList(Git git, String gitTag, Boolean detectRenames) throws IOException, GitTagInvalidException {
+        return getTreeDiffEntryList(git, gitTag + "~1", gitTag, gitTag, detectRenames);
+    }
+
+    // Compares the fromTag commit directly to the gitTag commit. Every file touched anywhere in the range shows up once,
+    // with its content before the range as the old side and its final content as the new side.
+    public static List<DiffEntry> getTagRangeDiffEntryList(Git git, String fromTag, String gitTag, Boolean detectRenames) throws IOException, GitTagInvalidException {
+        return getTreeDiffEntryList(git, fromTag, gitTag, fromTag + ".." + gitTag, detectRenames);
+    }
+
+    // With detectRenames, JGit's RenameDetector pairs up deletes and adds with the same or similar content into RENAME
+    // entries, scored 0-100 by content similarity (100 means the content is unchanged)
+    private static List<DiffEntry> getTreeDiffEntryList(Git git, String oldRevision, String newRevision, String description, Boolean detectRenames) throws IOException, GitTagInvalidException {
         List<DiffEntry> entries;
 
         ObjectReader reader = git.getRepository().newObjectReader();
 
         CanonicalTreeParser oldTreeIter = new CanonicalTreeParser();
-        ObjectId oldTree = git.getRepository().resolve(gitTag + "~1^{tree}");
+        ObjectId oldTree = git.getRepository().resolve(oldRevision + "^{tree}");
 
         CanonicalTreeParser newTreeIter = new CanonicalTreeParser();
-        ObjectId newTree = git.getRepository().resolve(gitTag + "^{tree}");
+        ObjectId newTree = git.getRepository().resolve(newRevision + "^{tree}");
 
         if (oldTree == null || newTree == null) {
-            throw new GitTagInvalidException("getTagDiffEntryList: The gitTag does not exist in the repo (make sure to 'push --tags'): " + gitTag);
+            throw new GitTagInvalidException("getTreeDiffEntryList: The gitTag does not exist in the repo (make sure to 'push --tags'): " + description);
         }
 
         oldTreeIter.reset(reader, oldTree);
@@ -222,12 +318,60 @@ public class GitUtils {
 
         DiffFormatter diffFormatter = new DiffFormatter(DisabledOutputStream.INSTANCE);
         diffFormatter.setRepository(git.getRepository());
+        diffFormatter.setDetectRenames(detectRenames);
 
         entries = diffFormatter.scan(oldTreeIter, newTreeIter);
 
         return entries;
     }
 
+    public static String resolveCommitId(Git git, String gitTag) throws IOException, GitTagInvalidException {
+        ObjectId commitId = git.getRepository().resolve(gitTag + "^{commit}");
+        if (commitId == null)
+            throw new GitTagInvalidException("resolveCommitId: The gitTag does not exist in the repo (make sure to 'push --tags'): " + gitTag);
+        return commitId.name();
+    }
+
+    // Streaming counterpart of getTagDiffEntryList/getTagRangeDiffEntryList (without rename detection). Entries come out
+    // as the tree walk finds them, so the caller can start working before the walk has finished.
+    public static TreeDiffIterator openTreeDiffIterator(Git git, String oldRevision, String newRevision) throws IOException, GitTagInvalidException {
+        ObjectId oldTree = git.getRepository().resolve(oldRevision + "^{tree}");
+        ObjectId newTree = git.getRepository().resolve(newRevision + "^{tree}");
+
+        if (oldTree == null || newTree == null) {
+            throw new GitTagInvalidException("openTreeDiffIterator: The gitTag does not exist in the repo (make sure to 'push --tags'): " + oldRevision + ".." + newRevision);
+        }
+
+        return new TreeDiffIterator(git.getRepository(), oldTree, newTree);
+    }
+
+    // Records the tag of the last successful (non dry run) install, used by --sinceLastDeployed
+    public static void writeLastDeployedTag(String gitTag, String backupDir, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        writeTagFile(Paths.get(buildLastDeployedTagFilePath(backupDir)), gitTag, groupPrincipal, posixFilePermissionString);
+    }
+
+    // One tag on one line, renamed into place with the configured group and mode so the next operator's run can read
+    // and replace it
+    public static void writeTagFile(Path tagFilePath, String gitTag, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        Path tempFilePath = Utils.createTempSiblingFile(tagFilePath, groupPrincipal, posixFilePermissionString);
+        try {
+            Files.write(tempFilePath, (gitTag + "\n").getBytes(StandardCharsets.UTF_8));
+            Utils.applyGroupAndPerms(tempFilePath, groupPrincipal, posixFilePermissionString);
+            Utils.moveIntoPlace(tempFilePath, tagFilePath);
+        } catch (IOException e) {
+            Utils.deleteTempFileQuietly(tempFilePath);
+            throw e;
+        }
+    }
+
+    public static String readLastDeployedTag(String backupDir) throws IOException, GitTagInvalidException {
+        Path lastDeployedTagPath = Paths.get(buildLastDeployedTagFilePath(backupDir));
+        if (!Files.exists(lastDeployedTagPath)) {
+            throw new GitTagInvalidException("readLastDeployedTag: No last deployed tag has been recorded yet: " + lastDeployedTagPath);
+        }
+        return new String(Files.readAllBytes(lastDeployedTagPath), StandardCharsets.UTF_8).trim();
+    }
+
     // This method is in GitUtils because the other two invocations allow a Git object to be passed in
     public static Mv2prdHooks readMv2prdHooks(String hooksAbsoluteFilePath) throws IOException {
 
@@ -241,9 +385,97 @@ public class GitUtils {
     }
 
     public static Mv2prdHooks readMv2prdHooks(Git git) throws IOException {
+        if (git.getRepository().isBare())
+            return readMv2prdHooksFromTree(git.getRepository(), Constants.HEAD, "mv2prd_hooks.json");
         return readMv2prdHooks(git.getRepository().getDirectory().getParent() + "/mv2prd_hooks.json");
     }
 
+    // Used with a bare repo, reads the hooks file out of the tree at the given revision instead of from a working tree
+    public static Mv2prdHooks readMv2prdHooksFromTree(Repository repository, String revision, String hooksRelativeFileName) throws IOException {
+        ObjectId treeId = repository.resolve(revision + "^{tree}");
+        if (treeId == null) {
+            throw new FileNotFoundException("Cannot resolve revision to read mv2prd hooks file from: " + revision);
+        }
+        try (TreeWalk treeWalk = TreeWalk.forPath(repository, hooksRelativeFileName, treeId)) {
+            if (treeWalk == null) {
+                throw new FileNotFoundException("Missing mv2prd hooks file in " + revision + ": " + hooksRelativeFileName);
+            }
+            byte[] jsonData = repository.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).getBytes();
+            return JsonUtils.convertJsonDataToMv2prdHooks(jsonData);
+        }
+    }
+
+    // Writes a blob straight from the object database into a new temp file in the target's directory (creating that
+    // directory if needed) and returns the temp file, for the caller to finish with Utils.moveIntoPlace().
+    // Large blobs are streamed so they are never held in memory.
+    public static Path copyBlobToTempSibling(Repository repository, ObjectId blobId, String targetFileString, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        Path tempFilePath = Utils.createTempSiblingFile(Paths.get(targetFileString), groupPrincipal, posixFilePermissionString);
+        try {
+            ObjectLoader objectLoader = repository.open(blobId, Constants.OBJ_BLOB);
+            try (InputStream blobInputStream = objectLoader.isLarge() ? objectLoader.openStream() : new ByteArrayInputStream(objectLoader.getCachedBytes())) {
+                CopyEngineSingleton.getInstance().copyStream(blobInputStream, tempFilePath);
+            }
+        } catch (IOException e) {
+            Utils.deleteTempFileQuietly(tempFilePath);
+            throw e;
+        }
+        return tempFilePath;
+    }
+
+    // The id git would give this file's content as a blob, without writing anything to a repository
+    public static ObjectId computeBlobId(Path filePath, long size) throws IOException {
+        try (InputStream fileInputStream = Files.newInputStream(filePath)) {
+            return new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, size, fileInputStream);
+        }
+    }
+
+    // The id git gives a symlink: a blob holding the link text
+    public static ObjectId computeSymlinkBlobId(Path linkPath) throws IOException {
+        byte[] linkBytes = Files.readSymbolicLink(linkPath).toString().getBytes(StandardCharsets.UTF_8);
+        return new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, linkBytes);
+    }
+
+    // Recursive walk of the tree at the given revision, limited to the given git directories (all of it if one of them
+    // is the repo root). Only tree objects are read, the caller gets each file's blob id and mode from the walk.
+    public static TreeWalk openTreeWalk(Repository repository, String revision, Collection<String> relativeGitDirList) throws IOException {
+        ObjectId treeId = repository.resolve(revision + "^{tree}");
+        if (treeId == null) {
+            throw new FileNotFoundException("Cannot resolve revision to walk: " + revision);
+        }
+        List<String> pathFilterList = new ArrayList<>();
+        for (String relativeGitDir : relativeGitDirList) {
+            String normalisedGitDir = NormalisedPath.normalise(relativeGitDir);
+            if (normalisedGitDir.isEmpty() || normalisedGitDir.equals("/")) {
+                pathFilterList.clear();
+                break;
+            }
+            pathFilterList.add(normalisedGitDir);
+        }
+
+        TreeWalk treeWalk = new TreeWalk(repository);
+        treeWalk.addTree(treeId);
+        treeWalk.setRecursive(true);
+        if (!pathFilterList.isEmpty())
+            treeWalk.setFilter(PathFilterGroup.createFromStrings(pathFilterList));
+        return treeWalk;
+    }
+
+    // Cheap size check against the blob header first, only reads content if the sizes agree
+    public static Boolean blobMatchesFile(Repository repository, ObjectId blobId, Path filePath) throws IOException {
+        PosixFileAttributes fileAttributes = FileMetadataCacheSingleton.getInstance().getAttributes(filePath);
+        if (fileAttributes == null || !fileAttributes.isRegularFile())
+            return false;
+
+        ObjectLoader objectLoader = repository.open(blobId, Constants.OBJ_BLOB);
+        if (objectLoader.getSize() != fileAttributes.size())
+            return false;
+
+        try (InputStream blobInputStream = objectLoader.openStream();
+             InputStream fileInputStream = Files.newInputStream(filePath)) {
+            return Utils.streamsHaveSameContent(blobInputStream, fileInputStream);
+        }
+    }
+
     public static Mv2prdHooks readMv2prdHooks(Git git, String hooksRelativeFileName) throws IOException {
         return readMv2prdHooks(git.getRepository().getDirectory().getParent() + "/" + hooksRelativeFileName);
     }
@@ -256,39 +488,80 @@ public class GitUtils {
         }
     }
 
-    public static String determineRelativeGitFilePathFromAbsTarget(String absoluteTargetFilePath, Map<String,String> gitToTargetMap) {
-        for (Map.Entry<String,String> entry : gitToTargetMap.entrySet()) {
-            if (absoluteTargetFilePath.matches(Utils.formatPathString(entry.getValue() + "/.*"))) {
-                return Utils.formatPathString(absoluteTargetFilePath.replace(entry.getValue(),entry.getKey()));
-            }
-        }
-        return null;
+    public static String determineRelativeGitFilePathFromAbsTarget(String absoluteTargetFilePath, PathMappingIndex pathMappingIndex) {
+        return pathMappingIndex.mapTargetToGit(absoluteTargetFilePath);
     }
 
-    public static String determineRelativeGitFilePathFromAbsGit(String absoluteGitFilePath, Map<String,String> gitToTargetMap) {
-        for (Map.Entry<String,String> entry : gitToTargetMap.entrySet()) {
-            if (absoluteGitFilePath.matches(Utils.formatPathString(".*/" + entry.getKey() + "/.*"))) {
-                return Utils.formatPathString(absoluteGitFilePath.replaceAll(Utils.formatPathString(".*/" + entry.getKey()), entry.getKey()));
-            }
-        }
-        return null;
+    public static NormalisedPath determineRelativeGitFilePathFromAbsTarget(NormalisedPath absoluteTargetFilePath, PathMappingIndex pathMappingIndex) {
+        return pathMappingIndex.mapTargetToGit(absoluteTargetFilePath);
+    }
+
+    public static String determineRelativeGitFilePathFromAbsGit(String absoluteGitFilePath, String workingTreeDir, PathMappingIndex pathMappingIndex) {
+        return pathMappingIndex.mapAbsoluteGitToRelative(absoluteGitFilePath, workingTreeDir);
+    }
+
+    public static NormalisedPath determineRelativeGitFilePathFromAbsGit(NormalisedPath absoluteGitFilePath, NormalisedPath workingTreeDir, PathMappingIndex pathMappingIndex) {
+        return pathMappingIndex.mapAbsoluteGitToRelative(absoluteGitFilePath, workingTreeDir);
     }
 
     public static String buildAbsoluteGitFilePath(String workingTreeDir, String relativeGitFilePath) {
         return Utils.formatPathString(workingTreeDir + "/" + relativeGitFilePath);
     }
 
-    public static String buildAbsoluteTargetFilePath(String relativeGitFilePath, Map<String,String> gitToTargetMap) {
-        for (Map.Entry<String,String> entry : gitToTargetMap.entrySet()) {
-            if (relativeGitFilePath.matches(Utils.formatPathString(entry.getKey() + "/.*"))) {
-                return Utils.formatPathString(relativeGitFilePath.replace(entry.getKey(),entry.getValue()));
-            }
-        }
-        return null;
+    // Shares the relative path's characters rather than copying them
+    public static NormalisedPath buildAbsoluteGitFilePath(NormalisedPath workingTreeDir, NormalisedPath relativeGitFilePath) {
+        return workingTreeDir.resolve(relativeGitFilePath);
+    }
+
+    public static String buildAbsoluteTargetFilePath(String relativeGitFilePath, PathMappingIndex pathMappingIndex) {
+        return pathMappingIndex.mapGitToTarget(relativeGitFilePath);
+    }
+
+    public static NormalisedPath buildAbsoluteTargetFilePath(NormalisedPath relativeGitFilePath, PathMappingIndex pathMappingIndex) {
+        return pathMappingIndex.mapGitToTarget(relativeGitFilePath);
     }
 
     public static String buildAbsoluteBackupFilePath(String relativeGitFilePath, String gitTag, String backupDir) {
         return Utils.formatPathString(backupDir + "/" + gitTag + "/" + relativeGitFilePath);
     }
 
+    // Pointer record written in place of a backup whose content is still in git history
+    public static String buildBackupBlobRefFilePath(String absoluteBackupFilePath) {
+        return absoluteBackupFilePath + ".blobref";
+    }
+
+    // Shared by all tags, the leading dot keeps it from colliding with a tag's backup directory
+    public static String buildObjectStorePath(String backupDir) {
+        return Utils.formatPathString(backupDir + "/.objects");
+    }
+
+    // One line per install run, read by prune_backups mode instead of walking the backup tree
+    public static String buildBackupIndexFilePath(String backupDir) {
+        return Utils.formatPathString(backupDir + "/.backup_index");
+    }
+
+    // The object store entries a tag's backups link to, one path per line
+    public static String buildBackupManifestFilePath(String gitTag, String backupDir) {
+        return Utils.formatPathString(backupDir + "/" + gitTag + ".backup_manifest");
+    }
+
+    // Lives next to the working tree rather than in it, so git never sees it
+    public static String buildHashCacheFilePath(String workingTreeParentDir, String project) {
+        return Utils.formatPathString(workingTreeParentDir + "/" + project + ".hash_cache");
+    }
+
+    public static String buildLastDeployedTagFilePath(String backupDir) {
+        return Utils.formatPathString(backupDir + "/.last_deployed_tag");
+    }
+
+    // Sits next to the tag's backup directory rather than inside it, so it can never collide with a backed up git path
+    public static String buildUndoJournalFilePath(String gitTag, String backupDir) {
+        return Utils.formatPathString(backupDir + "/" + gitTag + ".undo_journal");
+    }
+
+    // The last deployed tag an install of gitTag replaced (empty if there was none), for a rollback of gitTag to put back
+    public static String buildPreviousLastDeployedTagFilePath(String gitTag, String backupDir) {
+        return buildUndoJournalFilePath(gitTag, backupDir) + ".previous_last_deployed_tag";
+    }
+
 }
@@ -0,0 +1,299 @@
+package com.some.company.mv2prd.util;
+
+import com.some.company.mv2prd.util.logging.Logger;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+// Persistent map from a file's stat tuple (device, inode, size, mtime, ctime) to its content digest (the git blob id),
+// kept across runs in one memory-mapped file so a repeated content sync_check only reads files that changed since the
+// last one. The file is an open-addressed hash table keyed by device and inode: a header and fixed-size slots, looked
+// up and updated in place. A slot only answers for a file whose whole tuple still matches, any change to the file
+// moves its mtime or ctime and the file is hashed again.
+// The header is marked dirty while the cache is open. A cache that was not closed cleanly is thrown away on the next
+// open, since its slots may have been half written.
+public class HashCacheSingleton {
+
+    private static final Logger logger = Logger.getLogger(HashCacheSingleton.class);
+
+    private static final int MAGIC = 0x4D324843; // "M2HC"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int SLOT_BYTES = 64;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    // Slots a run has not touched for this many runs are dropped the next time the table grows
+    private static final int STALE_GENERATIONS = 30;
+
+    // Header layout
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int GENERATION_OFFSET = 16;
+    private static final int CLEAN_OFFSET = 20;
+
+    // Slot layout, a generation of 0 marks an empty slot
+    private static final int DEVICE_OFFSET = 0;
+    private static final int INODE_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int MTIME_OFFSET = 24;
+    private static final int CTIME_OFFSET = 32;
+    private static final int DIGEST_OFFSET = 40;
+    private static final int SLOT_GENERATION_OFFSET = 60;
+
+    private static HashCacheSingleton instance;
+
+    private Path cacheFilePath = null;
+    private FileChannel fileChannel = null;
+    private MappedByteBuffer buffer = null;
+    private int capacity;
+    private int count;
+    private int generation;
+    private Boolean wasUsed = false;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    private HashCacheSingleton(){}
+
+    public static synchronized HashCacheSingleton getInstance() {
+        if (instance == null) {
+            instance = new HashCacheSingleton();
+        }
+        return instance;
+    }
+
+    // A cache that cannot be opened is logged and left closed, the compare then reads every file as before
+    public synchronized void open(Path cacheFilePath) {
+        this.cacheFilePath = cacheFilePath;
+        try {
+            if (!mapExisting()) {
+                logger.info("Hash cache: Starting a new cache: " + cacheFilePath);
+                createNew(cacheFilePath, INITIAL_CAPACITY);
+                if (!mapExisting())
+                    throw new IOException("New cache could not be mapped");
+            }
+            this.generation = this.buffer.getInt(GENERATION_OFFSET) + 1;
+            this.buffer.putInt(GENERATION_OFFSET, this.generation);
+            this.buffer.putInt(CLEAN_OFFSET, 0);
+            this.buffer.force();
+            this.wasUsed = true;
+            logger.info("Hash cache: Opened " + cacheFilePath + " with " + this.count + " entries, run " + this.generation);
+        } catch (IOException e) {
+            logger.warn("Hash cache: Could not open " + cacheFilePath + ", content will be read without it : " + e);
+            closeQuietly();
+        }
+    }
+
+    public synchronized Boolean isOpen() {
+        return this.buffer != null;
+    }
+
+    // Returns the cached digest if the file's stat tuple is unchanged since it was stored, otherwise null
+    public synchronized ObjectId lookup(UnixFileAttributes attributes) {
+        if (this.buffer == null)
+            return null;
+        int slotOffset = findSlot(attributes.device(), attributes.inode());
+        if (this.buffer.getInt(slotOffset + SLOT_GENERATION_OFFSET) == 0 || !tupleMatches(slotOffset, attributes)) {
+            missCount.increment();
+            return null;
+        }
+        this.buffer.putInt(slotOffset + SLOT_GENERATION_OFFSET, this.generation);
+        hitCount.increment();
+        byte[] digest = new byte[20];
+        for (int i = 0; i < digest.length; i++)
+            digest[i] = this.buffer.get(slotOffset + DIGEST_OFFSET + i);
+        return ObjectId.fromRaw(digest);
+    }
+
+    public synchronized void store(UnixFileAttributes attributes, ObjectId digest) {
+        if (this.buffer == null)
+            return;
+        try {
+            // Keep the table at most 60% full so probes stay short
+            if ((this.count + 1) * 10L > this.capacity * 6L)
+                grow();
+        } catch (IOException e) {
+            logger.warn("Hash cache: Could not grow " + this.cacheFilePath + ", no longer caching this run : " + e);
+            closeQuietly();
+            return;
+        }
+
+        int slotOffset = findSlot(attributes.device(), attributes.inode());
+        if (this.buffer.getInt(slotOffset + SLOT_GENERATION_OFFSET) == 0)
+            this.count++;
+        writeSlot(this.buffer, slotOffset, attributes.device(), attributes.inode(), attributes.size(),
+                attributes.lastModifiedNanos(), attributes.ctimeNanos(), digest, this.generation);
+    }
+
+    public synchronized void close() {
+        if (this.buffer == null)
+            return;
+        this.buffer.putInt(COUNT_OFFSET, this.count);
+        this.buffer.force();
+        this.buffer.putInt(CLEAN_OFFSET, 1);
+        this.buffer.force();
+        closeQuietly();
+    }
+
+    public StringBuilder generateStatsReport() {
+        if (!this.wasUsed)
+            return new StringBuilder("Hash cache: not used\n");
+        long hits = hitCount.sum();
+        long misses = missCount.sum();
+        return new StringBuilder("Hash cache: ")
+                .append(hits).append(" digests reused for unchanged files, ")
+                .append(misses).append(" computed for new or changed files | ").append(this.cacheFilePath).append("\n");
+    }
+
+    // Maps the cache file if it is there and sound. Returns false if it has to be (re)created.
+    private boolean mapExisting() throws IOException {
+        if (!Files.isRegularFile(this.cacheFilePath) || Files.size(this.cacheFilePath) < HEADER_BYTES)
+            return false;
+        FileChannel existingFileChannel = FileChannel.open(this.cacheFilePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer existingBuffer = existingFileChannel.map(FileChannel.MapMode.READ_WRITE, 0, existingFileChannel.size());
+        int existingCapacity = existingBuffer.getInt(CAPACITY_OFFSET);
+
+        String problem = null;
+        if (existingBuffer.getInt(MAGIC_OFFSET) != MAGIC || existingBuffer.getInt(VERSION_OFFSET) != VERSION)
+            problem = "not a version " + VERSION + " hash cache";
+        else if (existingCapacity <= 0 || Integer.bitCount(existingCapacity) != 1 || existingFileChannel.size() != HEADER_BYTES + (long) existingCapacity * SLOT_BYTES)
+            problem = "size does not match its header";
+        else if (existingBuffer.getInt(CLEAN_OFFSET) != 1)
+            problem = "not closed cleanly by the last run";
+
+        if (problem != null) {
+            logger.warn("Hash cache: Discarding " + this.cacheFilePath + ", " + problem);
+            existingFileChannel.close();
+            return false;
+        }
+
+        this.fileChannel = existingFileChannel;
+        this.buffer = existingBuffer;
+        this.capacity = existingCapacity;
+        this.count = existingBuffer.getInt(COUNT_OFFSET);
+        return true;
+    }
+
+    // Writes an empty table next to the cache file and renames it into place
+    private static void createNew(Path cacheFilePath, int capacity) throws IOException {
+        Path tempFilePath = cacheFilePath.resolveSibling(cacheFilePath.getFileName() + ".tmp");
+        try (FileChannel newFileChannel = FileChannel.open(tempFilePath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer newBuffer = newFileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * SLOT_BYTES);
+            // Clean, an empty table cannot be half written
+            writeHeader(newBuffer, capacity, 0, 0, 1);
+            newBuffer.force();
+        }
+        Files.move(tempFilePath, cacheFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeHeader(MappedByteBuffer headerBuffer, int capacity, int count, int generation, int clean) {
+        headerBuffer.putInt(MAGIC_OFFSET, MAGIC);
+        headerBuffer.putInt(VERSION_OFFSET, VERSION);
+        headerBuffer.putInt(CAPACITY_OFFSET, capacity);
+        headerBuffer.putInt(COUNT_OFFSET, count);
+        headerBuffer.putInt(GENERATION_OFFSET, generation);
+        headerBuffer.putInt(CLEAN_OFFSET, clean);
+    }
+
+    // Rehashes into a table twice the size (or the same size if dropping stale slots made enough room)
+    private void grow() throws IOException {
+        int oldestKeptGeneration = this.generation - STALE_GENERATIONS;
+        int keptCount = 0;
+        for (int slot = 0; slot < this.capacity; slot++) {
+            int slotGeneration = this.buffer.getInt(HEADER_BYTES + slot * SLOT_BYTES + SLOT_GENERATION_OFFSET);
+            if (slotGeneration != 0 && slotGeneration >= oldestKeptGeneration)
+                keptCount++;
+        }
+        int newCapacity = ((keptCount + 1) * 10L > this.capacity * 3L) ? this.capacity * 2 : this.capacity;
+
+        Path tempFilePath = this.cacheFilePath.resolveSibling(this.cacheFilePath.getFileName() + ".tmp");
+        FileChannel newFileChannel = FileChannel.open(tempFilePath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer newBuffer = newFileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) newCapacity * SLOT_BYTES);
+        writeHeader(newBuffer, newCapacity, keptCount, this.generation, 0);
+
+        byte[] digest = new byte[20];
+        for (int slot = 0; slot < this.capacity; slot++) {
+            int slotOffset = HEADER_BYTES + slot * SLOT_BYTES;
+            int slotGeneration = this.buffer.getInt(slotOffset + SLOT_GENERATION_OFFSET);
+            if (slotGeneration == 0 || slotGeneration < oldestKeptGeneration)
+                continue;
+            long device = this.buffer.getLong(slotOffset + DEVICE_OFFSET);
+            long inode = this.buffer.getLong(slotOffset + INODE_OFFSET);
+            for (int i = 0; i < digest.length; i++)
+                digest[i] = this.buffer.get(slotOffset + DIGEST_OFFSET + i);
+            int newSlotOffset = findSlot(newBuffer, newCapacity, device, inode);
+            writeSlot(newBuffer, newSlotOffset, device, inode, this.buffer.getLong(slotOffset + SIZE_OFFSET),
+                    this.buffer.getLong(slotOffset + MTIME_OFFSET), this.buffer.getLong(slotOffset + CTIME_OFFSET),
+                    ObjectId.fromRaw(digest), slotGeneration);
+        }
+        newBuffer.force();
+
+        this.fileChannel.close();
+        Files.move(tempFilePath, this.cacheFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Hash cache: Resized from " + this.capacity + " to " + newCapacity + " slots, kept " + keptCount + " of " + this.count + " entries");
+        this.fileChannel = newFileChannel;
+        this.buffer = newBuffer;
+        this.capacity = newCapacity;
+        this.count = keptCount;
+    }
+
+    private int findSlot(long device, long inode) {
+        return findSlot(this.buffer, this.capacity, device, inode);
+    }
+
+    // Offset of the slot holding this device and inode, or of the empty slot where it belongs
+    private static int findSlot(MappedByteBuffer tableBuffer, int tableCapacity, long device, long inode) {
+        long hash = device * 0x9E3779B97F4A7C15L + inode;
+        hash ^= (hash >>> 32);
+        int slot = (int) (hash & (tableCapacity - 1));
+        while (true) {
+            int slotOffset = HEADER_BYTES + slot * SLOT_BYTES;
+            if (tableBuffer.getInt(slotOffset + SLOT_GENERATION_OFFSET) == 0)
+                return slotOffset;
+            if (tableBuffer.getLong(slotOffset + DEVICE_OFFSET) == device && tableBuffer.getLong(slotOffset + INODE_OFFSET) == inode)
+                return slotOffset;
+            slot = (slot + 1) & (tableCapacity - 1);
+        }
+    }
+
+    private boolean tupleMatches(int slotOffset, UnixFileAttributes attributes) {
+        return this.buffer.getLong(slotOffset + SIZE_OFFSET) == attributes.size()
+                && this.buffer.getLong(slotOffset + MTIME_OFFSET) == attributes.lastModifiedNanos()
+                && this.buffer.getLong(slotOffset + CTIME_OFFSET) == attributes.ctimeNanos();
+    }
+
+    private static void writeSlot(MappedByteBuffer tableBuffer, int slotOffset, long device, long inode, long size,
+                                  long mtimeNanos, long ctimeNanos, ObjectId digest, int slotGeneration) {
+        tableBuffer.putLong(slotOffset + DEVICE_OFFSET, device);
+        tableBuffer.putLong(slotOffset + INODE_OFFSET, inode);
+        tableBuffer.putLong(slotOffset + SIZE_OFFSET, size);
+        tableBuffer.putLong(slotOffset + MTIME_OFFSET, mtimeNanos);
+        tableBuffer.putLong(slotOffset + CTIME_OFFSET, ctimeNanos);
+        byte[] digestBytes = new byte[20];
+        digest.copyRawTo(digestBytes, 0);
+        for (int i = 0; i < digestBytes.length; i++)
+            tableBuffer.put(slotOffset + DIGEST_OFFSET + i, digestBytes[i]);
+        tableBuffer.putInt(slotOffset + SLOT_GENERATION_OFFSET, slotGeneration);
+    }
+
+    private void closeQuietly() {
+        try {
+            if (this.fileChannel != null)
+                this.fileChannel.close();
+        } catch (IOException e) {
+            logger.debug("Hash cache: Could not close " + this.cacheFilePath + " : " + e);
+        }
+        this.fileChannel = null;
+        this.buffer = null;
+    }
+}
@@ -0,0 +1,221 @@
+package com.some.company.mv2prd.util;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// An immutable path string with empty and "." segments and any trailing "/" removed, normalised once by a hand-written
+// scanner instead of the two replaceAll regexes formatPathString used to run. A path is either a plain string or a
+// prefix path plus a tail that is a suffix of some other path's string, so building "<workingTreeDir>/<relative>" or
+// "<targetDir>/<rest of relative>" shares the relative path's characters instead of copying them.
+// hashCode, equals and compareTo agree with the plain String form, but are computed from the parts; toString builds
+// (and keeps) the String the first time something actually needs it.
+public final class NormalisedPath implements Comparable<NormalisedPath> {
+
+    // Null for a plain path
+    private final NormalisedPath prefix;
+    // The tail is text[start..]. For a plain path this is the whole path, for a joined path it never starts with "/"
+    private final String text;
+    private final int start;
+    private final int length;
+    // 1 if a "/" sits between the prefix and the tail
+    private final int separator;
+
+    private int hash;
+    private String value;
+
+    private NormalisedPath(NormalisedPath prefix, String text, int start) {
+        this.prefix = prefix;
+        this.text = text;
+        this.start = start;
+        int tailLength = text.length() - start;
+        // No separator after the root "/", after an empty prefix or before an empty tail
+        this.separator = (prefix == null || tailLength == 0 || prefix.length == 0 || prefix.charAt(prefix.length - 1) == '/') ? 0 : 1;
+        this.length = (prefix == null ? 0 : prefix.length) + this.separator + tailLength;
+    }
+
+    // Returns null for null, so unmapped paths can be carried through as before
+    public static NormalisedPath of(String path) {
+        if (path == null)
+            return null;
+        return new NormalisedPath(null, normalise(path), 0);
+    }
+
+    // Plain paths only, for lookups that walk the characters in place
+    String text() {
+        return this.prefix == null ? this.text : toString();
+    }
+
+    int start() {
+        return this.prefix == null ? this.start : 0;
+    }
+
+    // Normalised tail of a plain path, starting at offset (which must be the start of a segment). Shares the characters.
+    NormalisedPath tail(int offset) {
+        return new NormalisedPath(null, text(), start() + offset);
+    }
+
+    // This path with the relative path appended, sharing the relative path's characters
+    public NormalisedPath resolve(NormalisedPath relativePath) {
+        if (relativePath == null)
+            return null;
+        if (relativePath.prefix == null) {
+            int childStart = relativePath.start;
+            // A plain relative path never starts with "/", but an absolute one handed in here is treated as relative
+            while (childStart < relativePath.text.length() && relativePath.text.charAt(childStart) == '/')
+                childStart++;
+            return new NormalisedPath(this, relativePath.text, childStart);
+        }
+        return new NormalisedPath(resolve(relativePath.prefix), relativePath.text, relativePath.start);
+    }
+
+    public NormalisedPath resolve(String relativePath) {
+        return resolve(of(relativePath));
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public char charAt(int index) {
+        if (this.prefix == null)
+            return this.text.charAt(this.start + index);
+        if (index < this.prefix.length)
+            return this.prefix.charAt(index);
+        if (this.separator == 1 && index == this.prefix.length)
+            return '/';
+        return this.text.charAt(this.start + index - this.prefix.length - this.separator);
+    }
+
+    // Segment aware: "/opt/app/x" starts with "/opt/app" but not with "/opt/ap"
+    public boolean startsWith(NormalisedPath other) {
+        if (other.length > this.length)
+            return false;
+        for (int i = 0; i < other.length; i++) {
+            if (charAt(i) != other.charAt(i))
+                return false;
+        }
+        return other.length == this.length || other.length == 0 || other.charAt(other.length - 1) == '/' || charAt(other.length) == '/';
+    }
+
+    public Path toPath() {
+        return Paths.get(toString());
+    }
+
+    @Override
+    public String toString() {
+        String result = this.value;
+        if (result == null) {
+            if (this.prefix == null) {
+                result = this.start == 0 ? this.text : this.text.substring(this.start);
+            } else {
+                StringBuilder sb = new StringBuilder(this.length);
+                sb.append(this.prefix.toString());
+                if (this.separator == 1)
+                    sb.append('/');
+                sb.append(this.text, this.start, this.text.length());
+                result = sb.toString();
+            }
+            this.value = result;
+        }
+        return result;
+    }
+
+    // Same value String.hashCode would give for toString(), without building it
+    @Override
+    public int hashCode() {
+        int h = this.hash;
+        if (h == 0 && this.length > 0) {
+            if (this.prefix == null) {
+                for (int i = this.start; i < this.text.length(); i++)
+                    h = 31 * h + this.text.charAt(i);
+            } else {
+                h = this.prefix.hashCode();
+                if (this.separator == 1)
+                    h = 31 * h + '/';
+                for (int i = this.start; i < this.text.length(); i++)
+                    h = 31 * h + this.text.charAt(i);
+            }
+            this.hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof NormalisedPath))
+            return false;
+        NormalisedPath other = (NormalisedPath) obj;
+        if (other.length != this.length || other.hashCode() != hashCode())
+            return false;
+        for (int i = 0; i < this.length; i++) {
+            if (charAt(i) != other.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int compareTo(NormalisedPath other) {
+        int limit = Math.min(this.length, other.length);
+        for (int i = 0; i < limit; i++) {
+            char c1 = charAt(i);
+            char c2 = other.charAt(i);
+            if (c1 != c2)
+                return c1 - c2;
+        }
+        return this.length - other.length;
+    }
+
+    // Collapses repeated "/", drops "." segments and a trailing "/". A leading "/" is kept. Returns the argument itself
+    // when it is already normalised, which is the common case for paths git and the filesystem hand us.
+    public static String normalise(String path) {
+        int len = path.length();
+        if (isNormalised(path))
+            return path;
+
+        StringBuilder sb = new StringBuilder(len);
+        if (len > 0 && path.charAt(0) == '/')
+            sb.append('/');
+        int pos = 0;
+        while (true) {
+            while (pos < len && path.charAt(pos) == '/')
+                pos++;
+            if (pos >= len)
+                break;
+            int segEnd = path.indexOf('/', pos);
+            if (segEnd < 0)
+                segEnd = len;
+            if (!(segEnd - pos == 1 && path.charAt(pos) == '.')) {
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != '/')
+                    sb.append('/');
+                sb.append(path, pos, segEnd);
+            }
+            pos = segEnd;
+        }
+        return sb.toString();
+    }
+
+    private static boolean isNormalised(String path) {
+        int len = path.length();
+        if (len == 1 && path.charAt(0) == '/')
+            return true;
+        if (len > 1 && path.charAt(len - 1) == '/')
+            return false;
+        int segStart = 0;
+        for (int i = 0; i <= len; i++) {
+            if (i == len || path.charAt(i) == '/') {
+                int segLen = i - segStart;
+                // An empty segment is only allowed before a leading "/"
+                if (segLen == 0 && i != 0)
+                    return false;
+                if (segLen == 1 && path.charAt(segStart) == '.')
+                    return false;
+                segStart = i + 1;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.some.company.mv2prd.util;
+
+import com.some.company.mv2prd.util.logging.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+// Lists every non-directory below a root, fanning out over subdirectories on a fork/join pool so that slow (e.g. NFS)
+// directory reads overlap. Symlinks are followed, and a directory that is its own ancestor (a symlink loop) is skipped
+// with a warning. Each entry is stat'ed once during the walk and the result is handed to FileMetadataCacheSingleton,
+// so whatever runs next (execCompare) does not stat it again. Every fully listed directory is marked in the cache too,
+// which lets it answer "does not exist" for other paths in that directory without a stat.
+// Directories that cannot be read are returned in WalkResult instead of being dropped. A directory the caller's
+// predicate excludes (e.g. everything below it is filtered out) is not descended into at all.
+public class ParallelDirectoryWalker implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(ParallelDirectoryWalker.class);
+
+    private final ForkJoinPool forkJoinPool;
+
+    public ParallelDirectoryWalker(int threadCount) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("ParallelDirectoryWalker: threadCount must be at least 1, was: " + threadCount);
+        this.forkJoinPool = new ForkJoinPool(threadCount);
+    }
+
+    public WalkResult walk(Path root) {
+        return walk(root, path -> false);
+    }
+
+    // A missing root is an empty walk, the other side of the compare reports its files
+    public WalkResult walk(Path root, Predicate<Path> excludedDirectoryPredicate) {
+        PosixFileAttributes rootAttributes = FileMetadataCacheSingleton.getInstance().getAttributes(root);
+        if (rootAttributes == null) {
+            logger.warn("walk: Directory does not exist, nothing to list: " + root);
+            return new WalkResult();
+        }
+        if (!rootAttributes.isDirectory()) {
+            logger.warn("walk: Not a directory, nothing to list: " + root);
+            return new WalkResult();
+        }
+        if (excludedDirectoryPredicate.test(root)) {
+            logger.info("walk: Directory is excluded, nothing to list: " + root);
+            WalkResult walkResult = new WalkResult();
+            walkResult.excludedDirectoryList.add(root);
+            return walkResult;
+        }
+        return forkJoinPool.invoke(new DirectoryTask(root, new Ancestor(fileKeyOf(root, rootAttributes), null), excludedDirectoryPredicate));
+    }
+
+    @Override
+    public void close() {
+        forkJoinPool.shutdown();
+    }
+
+    // The chain of directories from the root down to the one being listed, used to spot symlink loops
+    private static class Ancestor {
+        private final Object fileKey;
+        private final Ancestor parent;
+
+        private Ancestor(Object fileKey, Ancestor parent) {
+            this.fileKey = fileKey;
+            this.parent = parent;
+        }
+
+        private boolean contains(Object otherFileKey) {
+            for (Ancestor ancestor = this; ancestor != null; ancestor = ancestor.parent) {
+                if (ancestor.fileKey.equals(otherFileKey))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    // Not every filesystem provides a fileKey, the real path identifies a directory just as well (if more slowly)
+    private static Object fileKeyOf(Path directory, PosixFileAttributes attributes) {
+        if (attributes.fileKey() != null)
+            return attributes.fileKey();
+        try {
+            return directory.toRealPath();
+        } catch (IOException e) {
+            return directory.toAbsolutePath().normalize();
+        }
+    }
+
+    private static class DirectoryTask extends RecursiveTask<WalkResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final Ancestor ancestor;
+        private final Predicate<Path> excludedDirectoryPredicate;
+
+        private DirectoryTask(Path directory, Ancestor ancestor, Predicate<Path> excludedDirectoryPredicate) {
+            this.directory = directory;
+            this.ancestor = ancestor;
+            this.excludedDirectoryPredicate = excludedDirectoryPredicate;
+        }
+
+        @Override
+        protected WalkResult compute() {
+            WalkResult walkResult = new WalkResult();
+            List<DirectoryTask> subdirectoryTaskList = new ArrayList<>();
+            FileMetadataCacheSingleton fileMetadataCache = FileMetadataCacheSingleton.getInstance();
+
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.directory)) {
+                // Only a directory whose every entry was cached may answer "does not exist" for the rest
+                boolean allEntriesCached = true;
+                for (Path path : directoryStream) {
+                    PosixFileAttributes attributes;
+                    try {
+                        attributes = FileMetadataCacheSingleton.readAttributes(path);
+                    } catch (NoSuchFileException e) {
+                        // A dangling symlink, following it finds nothing, which is what the compare will see too
+                        walkResult.filePathList.add(path);
+                        continue;
+                    } catch (IOException e) {
+                        logger.debug("walk: Could not read attributes, listing it as a file: " + path + " : " + e);
+                        allEntriesCached = false;
+                        walkResult.filePathList.add(path);
+                        continue;
+                    }
+
+                    fileMetadataCache.putAttributes(path, attributes);
+                    if (attributes.isDirectory()) {
+                        if (this.excludedDirectoryPredicate.test(path)) {
+                            logger.debug("walk: Skipping excluded directory: " + path);
+                            walkResult.excludedDirectoryList.add(path);
+                            continue;
+                        }
+                        Object fileKey = fileKeyOf(path, attributes);
+                        if (this.ancestor.contains(fileKey)) {
+                            logger.warn("walk: Skipping symlink loop, directory is its own ancestor: " + path);
+                            walkResult.symlinkLoopList.add(path);
+                            continue;
+                        }
+                        DirectoryTask subdirectoryTask = new DirectoryTask(path, new Ancestor(fileKey, this.ancestor), this.excludedDirectoryPredicate);
+                        subdirectoryTask.fork();
+                        subdirectoryTaskList.add(subdirectoryTask);
+                    } else {
+                        walkResult.filePathList.add(path);
+                    }
+                }
+                if (allEntriesCached)
+                    fileMetadataCache.markDirectoryListed(this.directory);
+            } catch (IOException | DirectoryIteratorException e) {
+                logger.error("walk: Could not read directory, its contents are not checked: " + this.directory + " : " + e);
+                walkResult.unreadableDirectoryList.add(this.directory);
+            }
+
+            // Joined in listing order so the result does not depend on thread timing
+            for (DirectoryTask subdirectoryTask : subdirectoryTaskList)
+                walkResult.addAll(subdirectoryTask.join());
+            return walkResult;
+        }
+    }
+
+    public static class WalkResult {
+        private final List<Path> filePathList = new ArrayList<>();
+        private final List<Path> unreadableDirectoryList = new ArrayList<>();
+        private final List<Path> symlinkLoopList = new ArrayList<>();
+        private final List<Path> excludedDirectoryList = new ArrayList<>();
+
+        private void addAll(WalkResult other) {
+            this.filePathList.addAll(other.filePathList);
+            this.unreadableDirectoryList.addAll(other.unreadableDirectoryList);
+            this.symlinkLoopList.addAll(other.symlinkLoopList);
+            this.excludedDirectoryList.addAll(other.excludedDirectoryList);
+        }
+
+        public List<Path> getFilePathList() {
+            return filePathList;
+        }
+
+        public List<Path> getUnreadableDirectoryList() {
+            return unreadableDirectoryList;
+        }
+
+        public List<Path> getSymlinkLoopList() {
+            return symlinkLoopList;
+        }
+
+        public List<Path> getExcludedDirectoryList() {
+            return excludedDirectoryList;
+        }
+    }
+
+}
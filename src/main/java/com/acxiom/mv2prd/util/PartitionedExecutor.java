@@ -0,0 +1,85 @@
+package com.some.company.mv2prd.util;
+
+import com.some.company.mv2prd.util.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Runs tasks on a fixed number of worker threads. Every task is submitted with a partition key and all tasks that share
+// a key are routed to the same worker, so they run one at a time and in the order they were submitted. Tasks with
+// different keys run concurrently. Each worker has a bounded queue, so submit() blocks when that worker is behind.
+public class PartitionedExecutor {
+
+    private static final Logger logger = Logger.getLogger(PartitionedExecutor.class);
+
+    // Placed on each worker queue by awaitCompletion() to tell the worker to exit once its queue has drained
+    private static final Runnable POISON_PILL = () -> {};
+
+    private final List<BlockingQueue<Runnable>> workerQueueList = new ArrayList<>();
+    private final List<Thread> workerThreadList = new ArrayList<>();
+
+    private volatile Throwable firstFailure = null;
+
+    public PartitionedExecutor(String name, int threadCount, int queueCapacityPerThread) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("PartitionedExecutor: threadCount must be at least 1, was: " + threadCount);
+
+        for (int i = 0; i < threadCount; i++) {
+            BlockingQueue<Runnable> workerQueue = new ArrayBlockingQueue<>(queueCapacityPerThread);
+            Thread workerThread = new Thread(() -> runWorker(workerQueue), name + "-" + i);
+            workerThread.setDaemon(true);
+            workerQueueList.add(workerQueue);
+            workerThreadList.add(workerThread);
+        }
+        for (Thread workerThread : workerThreadList)
+            workerThread.start();
+    }
+
+    private void runWorker(BlockingQueue<Runnable> workerQueue) {
+        while (true) {
+            Runnable task;
+            try {
+                task = workerQueue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (task == POISON_PILL)
+                return;
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.error("PartitionedExecutor: Task failed on thread " + Thread.currentThread().getName() + ": " + t);
+                if (firstFailure == null)
+                    firstFailure = t;
+            }
+        }
+    }
+
+    public void submit(String partitionKey, Runnable task) throws InterruptedException {
+        // floorMod keeps the index positive for negative hash codes
+        int index = Math.floorMod(partitionKey == null ? 0 : partitionKey.hashCode(), workerQueueList.size());
+        workerQueueList.get(index).put(task);
+    }
+
+    // Lets every worker drain its queue, waits for all of them to exit, then rethrows the first task failure if any
+    public void awaitCompletion() throws InterruptedException {
+        for (BlockingQueue<Runnable> workerQueue : workerQueueList)
+            workerQueue.put(POISON_PILL);
+        for (Thread workerThread : workerThreadList)
+            workerThread.join();
+
+        if (firstFailure instanceof RuntimeException)
+            throw (RuntimeException) firstFailure;
+        if (firstFailure instanceof Error)
+            throw (Error) firstFailure;
+        if (firstFailure != null)
+            throw new IllegalStateException("PartitionedExecutor: A task failed", firstFailure);
+    }
+
+    public int getThreadCount() {
+        return workerThreadList.size();
+    }
+}
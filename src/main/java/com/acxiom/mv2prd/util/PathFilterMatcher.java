@@ -0,0 +1,154 @@
+package com.some.company.mv2prd.util;
+
+import com.some.company.mv2prd.util.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// The syncFilterList compiled for matching absolute paths: literal, prefix, suffix and ".*" glob filters are matched
+// without a regex, the rest are joined into one Pattern as before
+public class PathFilterMatcher {
+
+    private static final Logger logger = Logger.getLogger(PathFilterMatcher.class);
+
+    private final List<GlobRule> globRuleList = new ArrayList<>();
+    // Null if every filter was compiled into a glob rule
+    private final Pattern regexPattern;
+
+    private PathFilterMatcher(List<String> filterList) {
+        List<String> regexFilterList = new ArrayList<>();
+        for (String filter : filterList) {
+            GlobRule globRule = GlobRule.parse(filter);
+            if (globRule != null)
+                globRuleList.add(globRule);
+            else
+                regexFilterList.add(filter);
+        }
+        this.regexPattern = regexFilterList.isEmpty() ? null : Pattern.compile(String.join("|", regexFilterList));
+        logger.info("PathFilterMatcher: " + globRuleList.size() + " literal/glob filters, " + regexFilterList.size() + " regex filters");
+    }
+
+    public static PathFilterMatcher of(List<String> filterList) {
+        return new PathFilterMatcher(filterList);
+    }
+
+    // Same result as find() of the joined filter regex on the path
+    public Boolean matches(String path) {
+        for (GlobRule globRule : globRuleList) {
+            if (globRule.matches(path))
+                return true;
+        }
+        return this.regexPattern != null && this.regexPattern.matcher(path).find();
+    }
+
+    // True only if every path below the directory matches some filter. A glob rule that is not end-anchored and already
+    // matches "<directory>/" matches everything below it too. A regex match on "<directory>/" says nothing about longer
+    // paths (lookarounds and \b look past the end), so regex filters are left to matches() on each file.
+    public Boolean excludesSubtree(String directoryPath) {
+        String directoryPrefix = directoryPath.endsWith("/") ? directoryPath : directoryPath + "/";
+        for (GlobRule globRule : globRuleList) {
+            if (!globRule.anchoredEnd && globRule.matches(directoryPrefix))
+                return true;
+        }
+        return false;
+    }
+
+    // Literal pieces that must appear in order, with anything (".*") between them
+    private static class GlobRule {
+        private final String[] pieces;
+        private final boolean anchoredStart;
+        private final boolean anchoredEnd;
+
+        private GlobRule(String[] pieces, boolean anchoredStart, boolean anchoredEnd) {
+            this.pieces = pieces;
+            this.anchoredStart = anchoredStart;
+            this.anchoredEnd = anchoredEnd;
+        }
+
+        // Returns null if the filter uses regex syntax beyond "^", "$", ".*" and escaped punctuation
+        private static GlobRule parse(String filter) {
+            int start = 0;
+            int end = filter.length();
+            boolean anchoredStart = false;
+            boolean anchoredEnd = false;
+            if (end > start && filter.charAt(start) == '^') {
+                anchoredStart = true;
+                start++;
+            }
+            if (end > start && filter.charAt(end - 1) == '$' && !isEscaped(filter, end - 1, start)) {
+                anchoredEnd = true;
+                end--;
+            }
+
+            List<String> pieceList = new ArrayList<>();
+            StringBuilder piece = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                char c = filter.charAt(i);
+                if (c == '\\') {
+                    if (i + 1 >= end)
+                        return null;
+                    char escaped = filter.charAt(++i);
+                    // \d, \w, \b, \Q and friends are regex classes, not literals
+                    if (Character.isLetterOrDigit(escaped))
+                        return null;
+                    piece.append(escaped);
+                } else if (c == '.' && i + 1 < end && filter.charAt(i + 1) == '*') {
+                    pieceList.add(piece.toString());
+                    piece.setLength(0);
+                    i++;
+                } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+                    return null;
+                } else {
+                    piece.append(c);
+                }
+            }
+            pieceList.add(piece.toString());
+
+            // A trailing ".*$" anchors nothing
+            if (anchoredEnd && pieceList.size() > 1 && pieceList.get(pieceList.size() - 1).isEmpty())
+                anchoredEnd = false;
+            return new GlobRule(pieceList.toArray(new String[0]), anchoredStart, anchoredEnd);
+        }
+
+        // An odd number of backslashes before the character escapes it
+        private static boolean isEscaped(String filter, int index, int start) {
+            int backslashCount = 0;
+            for (int i = index - 1; i >= start && filter.charAt(i) == '\\'; i--)
+                backslashCount++;
+            return backslashCount % 2 == 1;
+        }
+
+        // Leftmost placement of each piece is enough, a later placement can only leave less room for the rest
+        private boolean matches(String path) {
+            int lastIndex = this.pieces.length - 1;
+            String lastPiece = this.pieces[lastIndex];
+            if (this.anchoredEnd && !path.endsWith(lastPiece))
+                return false;
+
+            int position;
+            if (this.anchoredStart) {
+                if (!path.startsWith(this.pieces[0]))
+                    return false;
+                position = this.pieces[0].length();
+            } else {
+                int index = path.indexOf(this.pieces[0]);
+                if (index < 0)
+                    return false;
+                position = index + this.pieces[0].length();
+            }
+            if (lastIndex == 0)
+                return !this.anchoredEnd || !this.anchoredStart || path.length() == position;
+
+            for (int i = 1; i < lastIndex; i++) {
+                int index = path.indexOf(this.pieces[i], position);
+                if (index < 0)
+                    return false;
+                position = index + this.pieces[i].length();
+            }
+            if (this.anchoredEnd)
+                return path.length() - lastPiece.length() >= position;
+            return path.indexOf(lastPiece, position) >= 0;
+        }
+    }
+}
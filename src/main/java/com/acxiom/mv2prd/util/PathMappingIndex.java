@@ -0,0 +1,187 @@
+package com.some.company.mv2prd.util;
+
+import com.some.company.mv2prd.util.logging.Logger;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// The gitToTargetMap compiled into a prefix trie for each direction, the deepest mapping a path passes through wins
+public class PathMappingIndex {
+
+    private static final Logger logger = Logger.getLogger(PathMappingIndex.class);
+
+    private final Node gitRoot = new Node(0);
+    private final Node targetRoot = new Node(0);
+
+    private PathMappingIndex(Map<String,String> gitToTargetMap) {
+        // Sorted so that a target claimed by two git directories resolves to the same one on every run
+        for (Map.Entry<String,String> entry : new TreeMap<>(gitToTargetMap).entrySet()) {
+            NormalisedPath gitPrefix = NormalisedPath.of(entry.getKey());
+            NormalisedPath targetPrefix = NormalisedPath.of(entry.getValue());
+
+            Node gitNode = insert(gitRoot, gitPrefix.toString());
+            if (gitNode.mappedPath != null)
+                logger.warn("PathMappingIndex: Git path mapped more than once, keeping the first: " + gitPrefix);
+            else
+                gitNode.mappedPath = targetPrefix;
+
+            Node targetNode = insert(targetRoot, targetPrefix.toString());
+            if (targetNode.mappedPath != null)
+                logger.warn("PathMappingIndex: Target path mapped from more than one git path, keeping the first: " + targetPrefix);
+            else
+                targetNode.mappedPath = gitPrefix;
+        }
+    }
+
+    public static PathMappingIndex of(Map<String,String> gitToTargetMap) {
+        return new PathMappingIndex(gitToTargetMap);
+    }
+
+    // Returns null if no mapping covers the path
+    public NormalisedPath mapGitToTarget(NormalisedPath relativeGitFilePath) {
+        return lookup(gitRoot, relativeGitFilePath);
+    }
+
+    // Returns null if no mapping covers the path
+    public NormalisedPath mapTargetToGit(NormalisedPath absoluteTargetFilePath) {
+        return lookup(targetRoot, absoluteTargetFilePath);
+    }
+
+    // Strips the working tree from an absolute git path and returns the relative path, as long as some mapping covers
+    // it. Returns null otherwise.
+    public NormalisedPath mapAbsoluteGitToRelative(NormalisedPath absoluteGitFilePath, NormalisedPath workingTreeDir) {
+        if (absoluteGitFilePath == null || !absoluteGitFilePath.startsWith(workingTreeDir) || absoluteGitFilePath.length() == workingTreeDir.length())
+            return null;
+        int offset = workingTreeDir.length();
+        if (absoluteGitFilePath.charAt(offset) == '/')
+            offset++;
+        if (lookupNode(gitRoot, absoluteGitFilePath.text(), absoluteGitFilePath.start() + offset) == null)
+            return null;
+        return absoluteGitFilePath.tail(offset);
+    }
+
+    public String mapGitToTarget(String relativeGitFilePath) {
+        return toStringOrNull(mapGitToTarget(NormalisedPath.of(relativeGitFilePath)));
+    }
+
+    public String mapTargetToGit(String absoluteTargetFilePath) {
+        return toStringOrNull(mapTargetToGit(NormalisedPath.of(absoluteTargetFilePath)));
+    }
+
+    public String mapAbsoluteGitToRelative(String absoluteGitFilePath, String workingTreeDir) {
+        return toStringOrNull(mapAbsoluteGitToRelative(NormalisedPath.of(absoluteGitFilePath), NormalisedPath.of(workingTreeDir)));
+    }
+
+    private static String toStringOrNull(NormalisedPath path) {
+        return path == null ? null : path.toString();
+    }
+
+    // Joins the deepest mapping the path passes through to the rest of the path
+    private static NormalisedPath lookup(Node root, NormalisedPath path) {
+        if (path == null)
+            return null;
+        String text = path.text();
+        int start = path.start();
+        Node best = lookupNode(root, text, start);
+        if (best == null)
+            return null;
+        return best.mappedPath.resolve(path.tail(skipSegments(text, start, best.depth) - start));
+    }
+
+    // The deepest mapped node with at least one segment of the path after it, the same as the old "<prefix>/.*" match.
+    // The path must already be normalised.
+    private static Node lookupNode(Node root, String path, int start) {
+        Node node = root;
+        Node best = null;
+        int pos = start;
+        int len = path.length();
+
+        while (true) {
+            while (pos < len && path.charAt(pos) == '/')
+                pos++;
+            if (pos >= len)
+                return best;
+            if (node.mappedPath != null)
+                best = node;
+
+            int segEnd = path.indexOf('/', pos);
+            if (segEnd < 0)
+                segEnd = len;
+            node = node.child(path, pos, segEnd);
+            if (node == null)
+                return best;
+            pos = segEnd;
+        }
+    }
+
+    // Offset of the first segment after the given number of segments
+    private static int skipSegments(String path, int start, int segments) {
+        int pos = start;
+        int len = path.length();
+        for (int i = 0; i < segments; i++) {
+            while (pos < len && path.charAt(pos) == '/')
+                pos++;
+            while (pos < len && path.charAt(pos) != '/')
+                pos++;
+        }
+        while (pos < len && path.charAt(pos) == '/')
+            pos++;
+        return pos;
+    }
+
+    private static Node insert(Node root, String path) {
+        Node node = root;
+        int pos = 0;
+        int len = path.length();
+        while (true) {
+            while (pos < len && path.charAt(pos) == '/')
+                pos++;
+            if (pos >= len)
+                return node;
+            int segEnd = path.indexOf('/', pos);
+            if (segEnd < 0)
+                segEnd = len;
+            Node child = node.child(path, pos, segEnd);
+            if (child == null)
+                child = node.addChild(path.substring(pos, segEnd));
+            node = child;
+            pos = segEnd;
+        }
+    }
+
+    // Mapped directories have few children, a linear scan over an array beats hashing a substring for every lookup
+    private static class Node {
+        private final int depth;
+        private String[] segments = new String[0];
+        private Node[] children = new Node[0];
+        private NormalisedPath mappedPath;
+
+        private Node(int depth) {
+            this.depth = depth;
+        }
+
+        private Node child(String path, int start, int end) {
+            int segLen = end - start;
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (segment.length() == segLen && path.regionMatches(start, segment, 0, segLen))
+                    return children[i];
+            }
+            return null;
+        }
+
+        private Node addChild(String segment) {
+            String[] newSegments = new String[segments.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(segments, 0, newSegments, 0, segments.length);
+            System.arraycopy(children, 0, newChildren, 0, children.length);
+            Node child = new Node(depth + 1);
+            newSegments[segments.length] = segment;
+            newChildren[children.length] = child;
+            segments = newSegments;
+            children = newChildren;
+            return child;
+        }
+    }
+
+}
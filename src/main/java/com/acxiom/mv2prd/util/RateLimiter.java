@@ -0,0 +1,28 @@
+package com.some.company.mv2prd.util;
+
+// Spaces calls to acquire() evenly so that, across all threads, at most permitsPerSecond of them return per second.
+// A rate of 0 or less means no limit.
+public class RateLimiter {
+
+    private final long nanosPerPermit;
+    private long nextFreeNanos = System.nanoTime();
+
+    public RateLimiter(int permitsPerSecond) {
+        this.nanosPerPermit = permitsPerSecond > 0 ? 1_000_000_000L / permitsPerSecond : 0;
+    }
+
+    public void acquire() throws InterruptedException {
+        if (nanosPerPermit == 0)
+            return;
+        long waitNanos;
+        synchronized (this) {
+            long nowNanos = System.nanoTime();
+            if (nextFreeNanos < nowNanos)
+                nextFreeNanos = nowNanos;
+            waitNanos = nextFreeNanos - nowNanos;
+            nextFreeNanos += nanosPerPermit;
+        }
+        if (waitNanos > 0)
+            Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+    }
+}
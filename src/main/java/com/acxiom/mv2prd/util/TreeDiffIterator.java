@@ -0,0 +1,74 @@
+package com.some.company.mv2prd.util;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Walks two trees and hands out one DiffEntry per changed file as the walk finds it, instead of scanning the whole
+// diff into a list up front. Produces the same entries as DiffFormatter.scan without rename detection: a path whose
+// type changed (e.g. file <-> symlink) comes out as a delete followed by an add.
+public class TreeDiffIterator implements Iterator<DiffEntry>, AutoCloseable {
+
+    private final TreeWalk treeWalk;
+    private final Deque<DiffEntry> pendingDiffEntryQueue = new ArrayDeque<>();
+
+    public TreeDiffIterator(Repository repository, ObjectId oldTreeId, ObjectId newTreeId) throws IOException {
+        this.treeWalk = new TreeWalk(repository);
+        this.treeWalk.setRecursive(true);
+        this.treeWalk.setFilter(TreeFilter.ANY_DIFF);
+        this.treeWalk.addTree(oldTreeId);
+        this.treeWalk.addTree(newTreeId);
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (pendingDiffEntryQueue.isEmpty() && treeWalk.next())
+                queueCurrentEntry();
+        } catch (IOException e) {
+            throw new UncheckedIOException("TreeDiffIterator: Failed walking git trees", e);
+        }
+        return !pendingDiffEntryQueue.isEmpty();
+    }
+
+    @Override
+    public DiffEntry next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return pendingDiffEntryQueue.poll();
+    }
+
+    private void queueCurrentEntry() {
+        String path = treeWalk.getPathString();
+        FileMode oldMode = treeWalk.getFileMode(0);
+        FileMode newMode = treeWalk.getFileMode(1);
+        ObjectId oldId = treeWalk.getObjectId(0);
+        ObjectId newId = treeWalk.getObjectId(1);
+
+        if (oldMode == FileMode.MISSING) {
+            pendingDiffEntryQueue.add(GitDiffEntry.add(path, newMode, newId));
+        } else if (newMode == FileMode.MISSING) {
+            pendingDiffEntryQueue.add(GitDiffEntry.delete(path, oldMode, oldId));
+        } else if ((oldMode.getBits() & FileMode.TYPE_MASK) != (newMode.getBits() & FileMode.TYPE_MASK)) {
+            pendingDiffEntryQueue.add(GitDiffEntry.delete(path, oldMode, oldId));
+            pendingDiffEntryQueue.add(GitDiffEntry.add(path, newMode, newId));
+        } else {
+            pendingDiffEntryQueue.add(GitDiffEntry.modify(path, oldMode, oldId, newMode, newId));
+        }
+    }
+
+    @Override
+    public void close() {
+        treeWalk.close();
+    }
+}
@@ -0,0 +1,99 @@
+package com.some.company.mv2prd.util;
+
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// PosixFileAttributes read through the "unix" attribute view, which comes from the same single stat but also carries
+// the device, inode and ctime. HashCacheSingleton keys its entries on those, so reading them here means the walk's one
+// stat per file is all the cache needs.
+public class UnixFileAttributes implements PosixFileAttributes {
+
+    private final Map<String, Object> attributeMap;
+
+    UnixFileAttributes(Map<String, Object> attributeMap) {
+        this.attributeMap = attributeMap;
+    }
+
+    public long device() {
+        return (Long) attributeMap.get("dev");
+    }
+
+    public long inode() {
+        return (Long) attributeMap.get("ino");
+    }
+
+    public long ctimeNanos() {
+        return ((FileTime) attributeMap.get("ctime")).to(TimeUnit.NANOSECONDS);
+    }
+
+    public long lastModifiedNanos() {
+        return lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public UserPrincipal owner() {
+        return (UserPrincipal) attributeMap.get("owner");
+    }
+
+    @Override
+    public GroupPrincipal group() {
+        return (GroupPrincipal) attributeMap.get("group");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<PosixFilePermission> permissions() {
+        return (Set<PosixFilePermission>) attributeMap.get("permissions");
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return (FileTime) attributeMap.get("lastModifiedTime");
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return (FileTime) attributeMap.get("lastAccessTime");
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return (FileTime) attributeMap.get("creationTime");
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return (Boolean) attributeMap.get("isRegularFile");
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return (Boolean) attributeMap.get("isDirectory");
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return (Boolean) attributeMap.get("isSymbolicLink");
+    }
+
+    @Override
+    public boolean isOther() {
+        return (Boolean) attributeMap.get("isOther");
+    }
+
+    @Override
+    public long size() {
+        return (Long) attributeMap.get("size");
+    }
+
+    @Override
+    public Object fileKey() {
+        return attributeMap.get("fileKey");
+    }
+}
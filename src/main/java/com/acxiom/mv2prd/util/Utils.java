@@ -12,19 +12,29 @@ import javax.mail.internet.MimeMessage;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class Utils {
 
     private static final Logger logger = Logger.getLogger(Utils.class);
 
+    // Longest piece of the target name put into a temp sibling's name. The random part and the suffix add about 32
+    // bytes, so temp names stay well inside NAME_MAX (255 bytes) whatever the target is called.
+    private static final int TEMP_NAME_MAX_BYTES = 128;
+
+    // Permission strings are parsed once per run, every file and directory uses the same one or two policies
+    private static final Map<String, Set<PosixFilePermission>> posixFilePermissionSetMap = new ConcurrentHashMap<>();
+
     public static Boolean promptUserYesNo(String promptText) {
         BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
         String userInput = null;
@@ -58,10 +68,14 @@ public class Utils {
     }
 
     public static void deleteFileNoConfirmation(Path filePath) throws IOException {
-        if (Files.isDirectory(filePath)) {
-            deleteDir(filePath.toFile());
-        } else {
-            Files.delete(filePath);
+        try {
+            if (Files.isDirectory(filePath)) {
+                deleteDir(filePath.toFile());
+            } else {
+                Files.delete(filePath);
+            }
+        } finally {
+            FileMetadataCacheSingleton.getInstance().invalidateTree(filePath);
         }
     }
 
@@ -82,27 +96,154 @@ public class Utils {
     }
 
 
+    // The copy lands in a temp file next to the target and is then renamed over it, so anything reading the target sees
+    // either the old or the new file and never a partially written one.
     public static Boolean copyFile(String sourceFileString, String targetFileString, UserPrincipal userPrincipal, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        Path targetFilePath = Paths.get(targetFileString);
+        Path tempFilePath = copyFileToTempSibling(sourceFileString, targetFileString, groupPrincipal, posixFilePermissionString);
+        try {
+            moveIntoPlace(tempFilePath, targetFilePath);
+        } catch (IOException e) {
+            deleteTempFileQuietly(tempFilePath);
+            throw e;
+        }
+        return true;
+    }
+
+    // Copies the source into a new temp file in the target's directory (creating that directory if needed) and returns
+    // the temp file. The caller finishes it off with moveIntoPlace() or removes it with deleteTempFileQuietly().
+    public static Path copyFileToTempSibling(String sourceFileString, String targetFileString, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
         Path sourceFilePath = Paths.get(sourceFileString);
+        Path tempFilePath = createTempSiblingFile(Paths.get(targetFileString), groupPrincipal, posixFilePermissionString);
+        try {
+            CopyEngineSingleton.getInstance().copyFile(sourceFilePath, tempFilePath);
+        } catch (IOException e) {
+            deleteTempFileQuietly(tempFilePath);
+            throw e;
+        }
+        return tempFilePath;
+    }
+
+    // The temp file lives in the target's own directory so the final rename never crosses filesystems
+    public static Path createTempSiblingFile(Path targetFilePath, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        Path targetFileParentPath = targetFilePath.getParent();
+        if (!FileMetadataCacheSingleton.getInstance().exists(targetFileParentPath))
+            createDirectoriesWithGroupAndPerms(targetFileParentPath, groupPrincipal, posixFilePermissionString);
+        return Files.createTempFile(targetFileParentPath, "." + truncateUtf8(targetFilePath.getFileName().toString(), TEMP_NAME_MAX_BYTES) + ".", ".mv2prd_tmp");
+    }
+
+    // For files mv2prd writes for itself next to the targets and backups (pointers, plans, tag records). createTempFile
+    // makes them 0600, so they get the configured group and mode before they are moved into place, for other operators
+    // in the deploy group to read and replace.
+    public static void applyGroupAndPerms(Path filePath, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+        PosixFileAttributeView posixFileAttributeView = Files.getFileAttributeView(filePath, PosixFileAttributeView.class);
+        try {
+            if (groupPrincipal != null)
+                posixFileAttributeView.setGroup(groupPrincipal);
+            if (posixFilePermissionString != null)
+                posixFileAttributeView.setPermissions(getPosixFilePermissionSet(posixFilePermissionString));
+        } finally {
+            FileMetadataCacheSingleton.getInstance().invalidate(filePath);
+        }
+    }
+
+    // Cut at a code point boundary, so the name never ends in half a multi-byte character
+    static String truncateUtf8(String name, int maxBytes) {
+        if (name.length() * 4 <= maxBytes || name.getBytes(StandardCharsets.UTF_8).length <= maxBytes)
+            return name;
+        int bytes = 0;
+        int index = 0;
+        while (index < name.length()) {
+            int codePoint = name.codePointAt(index);
+            int codePointBytes = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if (bytes + codePointBytes > maxBytes)
+                break;
+            bytes += codePointBytes;
+            index += Character.charCount(codePoint);
+        }
+        return name.substring(0, index);
+    }
+
+    public static void moveIntoPlace(Path tempFilePath, Path targetFilePath) throws IOException {
+        try {
+            try {
+                Files.move(tempFilePath, targetFilePath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                logger.warn("moveIntoPlace: Atomic move not supported, falling back to a plain replace: " + targetFilePath);
+                Files.move(tempFilePath, targetFilePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            CopyEngineSingleton.getInstance().recordWrittenFile(targetFilePath);
+        } finally {
+            FileMetadataCacheSingleton.getInstance().invalidate(tempFilePath);
+            FileMetadataCacheSingleton.getInstance().invalidate(targetFilePath);
+        }
+    }
+
+    // Moves an existing file to a new path, creating the new parent directories as copyFile does. Within one filesystem
+    // this is a single rename, across filesystems Files.move falls back to a copy and delete.
+    public static Boolean moveFile(String sourceFileString, String targetFileString, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
         Path targetFilePath = Paths.get(targetFileString);
         Path targetFileParentPath = targetFilePath.getParent();
-        if (!Files.exists(targetFileParentPath))
+        if (!FileMetadataCacheSingleton.getInstance().exists(targetFileParentPath))
             createDirectoriesWithGroupAndPerms(targetFileParentPath, groupPrincipal, posixFilePermissionString);
-        Files.copy(sourceFilePath,
-                targetFilePath,
-                StandardCopyOption.COPY_ATTRIBUTES,
-                StandardCopyOption.REPLACE_EXISTING);
+        moveIntoPlace(Paths.get(sourceFileString), targetFilePath);
         return true;
     }
 
+    public static void deleteTempFileQuietly(Path tempFilePath) {
+        try {
+            Files.deleteIfExists(tempFilePath);
+        } catch (IOException e) {
+            logger.warn("deleteTempFileQuietly: Could not remove temp file: " + tempFilePath + " : " + e);
+        }
+    }
+
+    // Streams both files and stops at the first differing block. Callers should compare sizes first.
+    public static Boolean filesHaveSameContent(Path firstFilePath, Path secondFilePath) throws IOException {
+        try (InputStream firstInputStream = Files.newInputStream(firstFilePath);
+             InputStream secondInputStream = Files.newInputStream(secondFilePath)) {
+            return streamsHaveSameContent(firstInputStream, secondInputStream);
+        }
+    }
+
+    public static Boolean streamsHaveSameContent(InputStream firstInputStream, InputStream secondInputStream) throws IOException {
+        byte[] firstBuffer = new byte[65536];
+        byte[] secondBuffer = new byte[65536];
+        while (true) {
+            int firstRead = readFully(firstInputStream, firstBuffer);
+            int secondRead = readFully(secondInputStream, secondBuffer);
+            if (firstRead != secondRead)
+                return false;
+            if (firstRead <= 0)
+                return true;
+            for (int i = 0; i < firstRead; i++) {
+                if (firstBuffer[i] != secondBuffer[i])
+                    return false;
+            }
+        }
+    }
+
+    // Fills the buffer unless the stream ends first, returns the number of bytes read (0 at end of stream)
+    public static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = inputStream.read(buffer, total, buffer.length - total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
     // This method walks through all subdirectories on a single directory and creates each subdir one at a time as needed
     // in order to also set the group and permissions on each one.
-    public static void createDirectoriesWithGroupAndPerms(Path pathToCreate, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
+    // Synchronized so that parallel install workers never race each other creating the same parent directory.
+    public static synchronized void createDirectoriesWithGroupAndPerms(Path pathToCreate, GroupPrincipal groupPrincipal, String posixFilePermissionString) throws IOException {
         List<Path> orderedSubPathList = buildSubPathList(pathToCreate);
 
         logger.info("+++ Attempting to create needed sub-directories one-by-one for: " + pathToCreate);
         for (Path path : orderedSubPathList) {
-            if (!Files.exists(path)) {
+            if (!FileMetadataCacheSingleton.getInstance().exists(path)) {
                 createDirectoryWithPerm(path, posixFilePermissionString);
                 chgrpFile(path, groupPrincipal);
             }
@@ -111,10 +252,11 @@ public class Utils {
     }
 
     public static Boolean createDirectoryWithPerm(Path path, String posixFilePermissionString) throws IOException {
-        Set<PosixFilePermission> perms = PosixFilePermissions.fromString(posixFilePermissionString);
+        Set<PosixFilePermission> perms = getPosixFilePermissionSet(posixFilePermissionString);
         FileAttribute<Set<PosixFilePermission>> attr = PosixFilePermissions.asFileAttribute(perms);
         logger.info("Creating directory: " + path.toString() + " with permissions: " + posixFilePermissionString);
         Files.createDirectory(path, attr);
+        FileMetadataCacheSingleton.getInstance().markDirectoryCreated(path);
         logger.info("Directory created.");
         return true;
     }
@@ -131,9 +273,17 @@ public class Utils {
         return orderedSubPathList;
     }
 
+    public static Boolean chownFile(Path targetFilePath, UserPrincipal userPrincipal) throws IOException {
+        return chownFile(targetFilePath.toString(), userPrincipal);
+    }
+
     public static Boolean chownFile(String targetFileString, UserPrincipal userPrincipal) throws IOException {
         Path targetFilePath = Paths.get(targetFileString);
-        Files.setOwner(targetFilePath, userPrincipal);
+        try {
+            Files.setOwner(targetFilePath, userPrincipal);
+        } finally {
+            FileMetadataCacheSingleton.getInstance().invalidate(targetFilePath);
+        }
         return true;
     }
 
@@ -143,7 +293,11 @@ public class Utils {
 
     public static Boolean chgrpFile(String targetFileString, GroupPrincipal groupPrincipal) throws IOException {
         Path targetFilePath = Paths.get(targetFileString);
-        Files.getFileAttributeView(targetFilePath, PosixFileAttributeView.class).setGroup(groupPrincipal);
+        try {
+            Files.getFileAttributeView(targetFilePath, PosixFileAttributeView.class).setGroup(groupPrincipal);
+        } finally {
+            FileMetadataCacheSingleton.getInstance().invalidate(targetFilePath);
+        }
         return true;
     }
 
@@ -153,10 +307,20 @@ public class Utils {
 
     public static Boolean chmodFile(String targetFileString, String posixFilePermissionString) throws IOException {
         Path targetFilePath = Paths.get(targetFileString);
-        Files.setPosixFilePermissions(targetFilePath, PosixFilePermissions.fromString(posixFilePermissionString));
+        try {
+            Files.setPosixFilePermissions(targetFilePath, getPosixFilePermissionSet(posixFilePermissionString));
+        } finally {
+            FileMetadataCacheSingleton.getInstance().invalidate(targetFilePath);
+        }
         return true;
     }
 
+    // The returned set is shared, callers must not modify it
+    public static Set<PosixFilePermission> getPosixFilePermissionSet(String posixFilePermissionString) {
+        return posixFilePermissionSetMap.computeIfAbsent(posixFilePermissionString,
+                permissionString -> Collections.unmodifiableSet(PosixFilePermissions.fromString(permissionString)));
+    }
+
     public static UserPrincipal getUserPrincipal(String user) throws IOException {
         FileSystem fileSystem = FileSystems.getDefault();
         UserPrincipalLookupService service = fileSystem.getUserPrincipalLookupService();
@@ -170,7 +334,7 @@ public class Utils {
     }
 
     public static String formatPathString(String pathString) {
-        return pathString.replaceAll("//", "/").replaceAll("/\\./", "/");
+        return NormalisedPath.normalise(pathString);
     }
 
     public static String printNTimes(String string, int number) {
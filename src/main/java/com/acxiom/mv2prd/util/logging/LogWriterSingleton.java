@@ -33,7 +33,7 @@ public class LogWriterSingleton {
     public void initPrintWriter(Boolean dryRun, Mv2prdMode mv2prdMode, Path logPath, GroupPrincipal groupPrincipal, String posixFilePermissionsString) {
 
         // If it's a dryRun, we don't want to log to the file
-        if (dryRun && mv2prdMode == Mv2prdMode.INSTALL) {
+        if (dryRun && (mv2prdMode == Mv2prdMode.INSTALL || mv2prdMode == Mv2prdMode.ROLLBACK || mv2prdMode == Mv2prdMode.APPLY || mv2prdMode == Mv2prdMode.PRUNE_BACKUPS)) {
             logger.info("dryRun enabled, will NOT attempt any writes to log: " + logPath.toString());
             return;
         }
@@ -0,0 +1,98 @@
+package com.some.company.mv2prd.file.install;
+
+import com.some.company.mv2prd.json.Mv2prdHooks;
+import com.some.company.mv2prd.util.GitDiffEntry;
+import com.some.company.mv2prd.util.PathMappingIndex;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileChangeUtilsTest {
+
+    private static final Mv2prdHooks MV2PRD_HOOKS = new Mv2prdHooks();
+    static {
+        MV2PRD_HOOKS.setGitToTargetMap(Collections.singletonMap("app", "/opt/app"));
+        MV2PRD_HOOKS.setPathMappingIndex(PathMappingIndex.of(MV2PRD_HOOKS.getGitToTargetMap()));
+        MV2PRD_HOOKS.setBackupDirectory("/opt/backup");
+    }
+
+    private static MoveFileChange move(String oldName, String newName) {
+        String blobId = ObjectId.zeroId().name();
+        DiffEntry diffEntry = GitDiffEntry.of(DiffEntry.ChangeType.RENAME, "app/" + oldName, FileMode.REGULAR_FILE, blobId,
+                "app/" + newName, FileMode.REGULAR_FILE, blobId, 100);
+        return new MoveFileChange(false, "v1", diffEntry, "/repo", null, null, null, MV2PRD_HOOKS);
+    }
+
+    private static List<List<String>> describe(List<List<MoveFileChange>> moveGroupList) {
+        List<List<String>> descriptionList = new ArrayList<>();
+        for (List<MoveFileChange> moveGroup : moveGroupList) {
+            List<String> groupDescriptionList = new ArrayList<>();
+            for (MoveFileChange moveFileChange : moveGroup)
+                groupDescriptionList.add(moveFileChange.getClassType() + " " + moveFileChange.getOldRelativeGitFilePath() + "->" + moveFileChange.getRelativeGitFilePath());
+            descriptionList.add(groupDescriptionList);
+        }
+        return descriptionList;
+    }
+
+    @Test
+    public void independentMovesGetTheirOwnGroups() {
+        List<List<MoveFileChange>> orderedList = FileChangeUtils.orderMoveFileChanges(Arrays.asList(move("a", "b"), move("c", "d")));
+
+        assertEquals(Arrays.asList(Collections.singletonList("MOVE app/a->app/b"), Collections.singletonList("MOVE app/c->app/d")), describe(orderedList));
+    }
+
+    @Test
+    public void chainedMovesVacateTheirTargetFirst() {
+        // b->c must run before a->b, and c->d before b->c
+        List<List<MoveFileChange>> orderedList = FileChangeUtils.orderMoveFileChanges(Arrays.asList(move("a", "b"), move("b", "c"), move("c", "d")));
+
+        assertEquals(Collections.singletonList(Arrays.asList("MOVE app/c->app/d", "MOVE app/b->app/c", "MOVE app/a->app/b")), describe(orderedList));
+    }
+
+    @Test
+    public void chainListedBackwardsKeepsItsOrder() {
+        List<List<MoveFileChange>> orderedList = FileChangeUtils.orderMoveFileChanges(Arrays.asList(move("c", "d"), move("b", "c"), move("a", "b")));
+
+        assertEquals(Collections.singletonList(Arrays.asList("MOVE app/c->app/d", "MOVE app/b->app/c", "MOVE app/a->app/b")), describe(orderedList));
+    }
+
+    @Test
+    public void twoMoveCycleTurnsOneMoveIntoADeferredCopy() {
+        List<List<MoveFileChange>> orderedList = FileChangeUtils.orderMoveFileChanges(Arrays.asList(move("a", "b"), move("b", "a")));
+
+        assertEquals(Collections.singletonList(Arrays.asList("MOVE app/b->app/a", "COPY app/a->app/b")), describe(orderedList));
+    }
+
+    @Test
+    public void longerCycleNeedsOnlyOneCopy() {
+        List<List<MoveFileChange>> orderedList = FileChangeUtils.orderMoveFileChanges(Arrays.asList(
+                move("a", "b"), move("b", "c"), move("c", "a"), move("x", "y")));
+
+        // x->y is not part of the cycle and gets its own group, a->b is copied last and the rest of the cycle unwinds before it
+        assertEquals(Arrays.asList(
+                Arrays.asList("MOVE app/c->app/a", "MOVE app/b->app/c", "COPY app/a->app/b"),
+                Collections.singletonList("MOVE app/x->app/y")), describe(orderedList));
+    }
+
+    @Test
+    public void everyMoveIsPlacedOnceInALongChain() {
+        List<MoveFileChange> moveFileChangeList = new ArrayList<>();
+        for (int i = 0; i < 20000; i++)
+            moveFileChangeList.add(move("f" + i, "f" + (i + 1)));
+
+        List<List<MoveFileChange>> orderedList = FileChangeUtils.orderMoveFileChanges(moveFileChangeList);
+
+        assertEquals(1, orderedList.size());
+        assertEquals(20000, orderedList.get(0).size());
+        assertEquals("app/f19999", orderedList.get(0).get(0).getOldRelativeGitFilePath());
+        assertEquals("app/f0", orderedList.get(0).get(19999).getOldRelativeGitFilePath());
+    }
+}
@@ -0,0 +1,170 @@
+package com.some.company.mv2prd.file.install;
+
+import com.some.company.mv2prd.json.InstallPlan;
+import com.some.company.mv2prd.json.Mv2prdHooks;
+import com.some.company.mv2prd.util.FileMetadataCacheSingleton;
+import com.some.company.mv2prd.util.GitDiffEntry;
+import com.some.company.mv2prd.util.PathMappingIndex;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InstallPlanUtilsTest {
+
+    private static final String OLD_ID = "1111111111111111111111111111111111111111";
+    private static final String NEW_ID = "2222222222222222222222222222222222222222";
+
+    private Path rootPath;
+    private Path targetPath;
+    private Path installPlanPath;
+    private Mv2prdHooks mv2prdHooks;
+
+    @Before
+    public void setUp() throws IOException {
+        rootPath = Files.createTempDirectory("mv2prd-install-plan");
+        targetPath = Files.createDirectories(rootPath.resolve("target"));
+        installPlanPath = rootPath.resolve("plans/v2.install_plan");
+        mv2prdHooks = new Mv2prdHooks();
+        mv2prdHooks.setGitToTargetMap(Collections.singletonMap("app", targetPath.toString()));
+        mv2prdHooks.setPathMappingIndex(PathMappingIndex.of(mv2prdHooks.getGitToTargetMap()));
+        mv2prdHooks.setBackupDirectory(rootPath.resolve("backup").toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileMetadataCacheSingleton.getInstance().invalidateTree(rootPath);
+        try (Stream<Path> pathStream = Files.walk(rootPath)) {
+            for (Path path : pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    private FileChange fileChange(DiffEntry.ChangeType changeType, String name, FileMode oldMode, String oldId) {
+        DiffEntry diffEntry = GitDiffEntry.of(changeType, changeType == DiffEntry.ChangeType.ADD ? DiffEntry.DEV_NULL : "app/" + name, oldMode, oldId,
+                "app/" + name, FileMode.REGULAR_FILE, NEW_ID, 0);
+        return FileChangeFactory.getFileChange(false, "v2", diffEntry, rootPath.resolve("wt").toString(), null, null, null, mv2prdHooks);
+    }
+
+    // app/modified.txt is on the target, app/added.txt is not yet
+    private InstallPlan buildPlan() throws IOException {
+        Files.write(targetPath.resolve("modified.txt"), "before".getBytes("UTF-8"));
+        return InstallPlanUtils.buildInstallPlan("project", "v2", "v1", NEW_ID, Arrays.asList(
+                fileChange(DiffEntry.ChangeType.MODIFY, "modified.txt", FileMode.REGULAR_FILE, OLD_ID),
+                fileChange(DiffEntry.ChangeType.ADD, "added.txt", FileMode.MISSING, ObjectId.zeroId().name())));
+    }
+
+    private static List<String> describe(List<DiffEntry> diffEntryList) {
+        List<String> descriptionList = new ArrayList<>();
+        for (DiffEntry diffEntry : diffEntryList)
+            descriptionList.add(diffEntry.getChangeType() + " " + diffEntry.getOldPath() + " " + diffEntry.getOldMode() + " " + diffEntry.getOldId().name()
+                    + " " + diffEntry.getNewPath() + " " + diffEntry.getNewMode() + " " + diffEntry.getNewId().name());
+        return descriptionList;
+    }
+
+    private InstallPlan writeAndRead(InstallPlan installPlan) throws IOException {
+        GroupPrincipal groupPrincipal = Files.readAttributes(rootPath, PosixFileAttributes.class).group();
+        InstallPlanUtils.writeInstallPlan(installPlan, installPlanPath, groupPrincipal, "rw-rw----");
+        return InstallPlanUtils.readInstallPlan(installPlanPath);
+    }
+
+    // Edits a target behind the metadata cache's back, the way another process would
+    private void touchTarget(String name, String content, FileTime lastModifiedTime) throws IOException {
+        Path path = targetPath.resolve(name);
+        Files.write(path, content.getBytes("UTF-8"));
+        if (lastModifiedTime != null)
+            Files.setLastModifiedTime(path, lastModifiedTime);
+        FileMetadataCacheSingleton.getInstance().invalidate(path);
+    }
+
+    private static void assertOneDrift(String expectedPrefix, List<String> driftList) {
+        assertEquals(driftList.toString(), 1, driftList.size());
+        assertTrue(driftList.get(0), driftList.get(0).startsWith(expectedPrefix));
+    }
+
+    @Test
+    public void planSurvivesTheRoundTrip() throws IOException {
+        InstallPlan installPlan = buildPlan();
+        InstallPlan readInstallPlan = writeAndRead(installPlan);
+
+        assertEquals(NEW_ID, readInstallPlan.getCommitId());
+        assertEquals("v2", readInstallPlan.getGitTag());
+        assertEquals(Arrays.asList(
+                "MODIFY app/modified.txt " + FileMode.REGULAR_FILE + " " + OLD_ID + " app/modified.txt " + FileMode.REGULAR_FILE + " " + NEW_ID,
+                "ADD /dev/null " + FileMode.MISSING + " " + ObjectId.zeroId().name() + " app/added.txt " + FileMode.REGULAR_FILE + " " + NEW_ID),
+                describe(InstallPlanUtils.rebuildDiffEntryList(readInstallPlan)));
+        assertEquals(targetPath.resolve("modified.txt").toString(), readInstallPlan.getInstallPlanEntryList().get(0).getAbsoluteTargetFilePath());
+        assertEquals(Collections.emptyList(), InstallPlanUtils.findDrift(readInstallPlan, mv2prdHooks));
+        assertEquals("rw-rw----", PosixFilePermissions.toString(Files.getPosixFilePermissions(installPlanPath)));
+    }
+
+    @Test
+    public void changedTargetIsDrift() throws IOException {
+        InstallPlan installPlan = writeAndRead(buildPlan());
+        touchTarget("modified.txt", "after, and longer", null);
+
+        assertOneDrift("TARGET   " + targetPath.resolve("modified.txt"), InstallPlanUtils.findDrift(installPlan, mv2prdHooks));
+    }
+
+    @Test
+    public void editKeepingSizeAndMtimeIsDrift() throws IOException {
+        InstallPlan installPlan = writeAndRead(buildPlan());
+        FileTime lastModifiedTime = Files.getLastModifiedTime(targetPath.resolve("modified.txt"));
+        touchTarget("modified.txt", "BEFORE", lastModifiedTime);
+
+        assertOneDrift("TARGET   " + targetPath.resolve("modified.txt"), InstallPlanUtils.findDrift(installPlan, mv2prdHooks));
+    }
+
+    @Test
+    public void targetThatAppearedIsDrift() throws IOException {
+        InstallPlan installPlan = writeAndRead(buildPlan());
+        touchTarget("added.txt", "surprise", null);
+
+        assertOneDrift("TARGET   " + targetPath.resolve("added.txt"), InstallPlanUtils.findDrift(installPlan, mv2prdHooks));
+    }
+
+    @Test
+    public void changedMappingOrBackupDirectoryIsDrift() throws IOException {
+        InstallPlan installPlan = writeAndRead(buildPlan());
+
+        mv2prdHooks.setBackupDirectory(rootPath.resolve("elsewhere").toString());
+        assertEquals(2, InstallPlanUtils.findDrift(installPlan, mv2prdHooks).size());
+        assertTrue(InstallPlanUtils.findDrift(installPlan, mv2prdHooks).get(0).startsWith("BACKUP   app/modified.txt"));
+
+        mv2prdHooks.setPathMappingIndex(PathMappingIndex.of(Collections.singletonMap("app", rootPath.resolve("moved").toString())));
+        assertTrue(InstallPlanUtils.findDrift(installPlan, mv2prdHooks).get(0).startsWith("MAPPING  app/modified.txt"));
+    }
+
+    @Test
+    public void planWithoutCommitIsRejected() throws IOException {
+        InstallPlan installPlan = buildPlan();
+        installPlan.setCommitId(null);
+        try {
+            writeAndRead(installPlan);
+            fail("readInstallPlan accepted a plan without a commitId");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("commitId"));
+        }
+    }
+}
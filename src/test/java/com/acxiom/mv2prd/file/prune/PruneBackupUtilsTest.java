@@ -0,0 +1,190 @@
+package com.some.company.mv2prd.file.prune;
+
+import com.some.company.mv2prd.json.BackupIndexEntry;
+import com.some.company.mv2prd.json.BackupRetention;
+import com.some.company.mv2prd.json.JsonUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PruneBackupUtilsTest {
+
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+    private static final long NOW = 1000L * DAY;
+
+    // Tag v<n> was installed n days ago and holds the given bytes
+    private static BackupIndexEntry entry(String gitTag, int daysAgo, long bytes) {
+        return new BackupIndexEntry(gitTag, NOW - daysAgo * DAY, bytes);
+    }
+
+    private static List<String> describe(List<PrunedBackup> prunedBackupList) {
+        List<String> descriptionList = new ArrayList<>();
+        for (PrunedBackup prunedBackup : prunedBackupList)
+            descriptionList.add(prunedBackup.getGitTag() + " " + prunedBackup.getReason());
+        return descriptionList;
+    }
+
+    private static BackupRetention retention(Integer keepLastTags, Integer maxDays, Long maxBytes) {
+        BackupRetention backupRetention = new BackupRetention();
+        backupRetention.setKeepLastTags(keepLastTags);
+        backupRetention.setMaxDays(maxDays);
+        backupRetention.setMaxBytes(maxBytes);
+        return backupRetention;
+    }
+
+    private static final List<BackupIndexEntry> FIVE_TAGS = Arrays.asList(
+            entry("v3", 3, 100), entry("v1", 10, 100), entry("v5", 1, 100), entry("v2", 5, 100), entry("v4", 2, 100));
+
+    @Test
+    public void keepLastTagsKeepsTheNewest() {
+        List<PrunedBackup> prunedBackupList = PruneBackupUtils.selectPrunedBackups(FIVE_TAGS, retention(2, null, null), null, NOW);
+
+        assertEquals(Arrays.asList("v3 keepLastTags:2", "v2 keepLastTags:2", "v1 keepLastTags:2"), describe(prunedBackupList));
+    }
+
+    @Test
+    public void maxDaysPrunesOlderTags() {
+        List<PrunedBackup> prunedBackupList = PruneBackupUtils.selectPrunedBackups(FIVE_TAGS, retention(null, 4, null), null, NOW);
+
+        assertEquals(Arrays.asList("v2 maxDays:4", "v1 maxDays:4"), describe(prunedBackupList));
+    }
+
+    @Test
+    public void maxBytesPrunesEverythingOlderOnceReached() {
+        List<BackupIndexEntry> backupIndexEntryList = Arrays.asList(
+                entry("v1", 4, 10), entry("v2", 3, 500), entry("v3", 2, 300), entry("v4", 1, 300));
+
+        // v4 and v3 fit in 700 bytes, v2 does not, and v1 goes too even though it would fit on its own
+        List<PrunedBackup> prunedBackupList = PruneBackupUtils.selectPrunedBackups(backupIndexEntryList, retention(null, null, 700L), null, NOW);
+
+        assertEquals(Arrays.asList("v2 maxBytes:700", "v1 maxBytes:700"), describe(prunedBackupList));
+    }
+
+    @Test
+    public void rulesCombine() {
+        List<PrunedBackup> prunedBackupList = PruneBackupUtils.selectPrunedBackups(FIVE_TAGS, retention(4, 4, 150L), null, NOW);
+
+        // Only v5 fits the byte cap, and the first rule that prunes a tag is the one reported
+        assertEquals(Arrays.asList("v4 maxBytes:150", "v3 maxBytes:150", "v2 maxDays:4", "v1 maxDays:4"), describe(prunedBackupList));
+    }
+
+    @Test
+    public void lastDeployedTagIsAlwaysKept() {
+        List<PrunedBackup> prunedBackupList = PruneBackupUtils.selectPrunedBackups(FIVE_TAGS, retention(1, null, null), "v2", NOW);
+
+        assertEquals(Arrays.asList("v4 keepLastTags:1", "v3 keepLastTags:1", "v1 keepLastTags:1"), describe(prunedBackupList));
+    }
+
+    @Test
+    public void directoryHoldingTheLastDeployedTagIsKept() {
+        List<BackupIndexEntry> backupIndexEntryList = Arrays.asList(
+                entry("release", 30, 100), entry("release/1.0", 20, 100), entry("release/1.01", 10, 100), entry("v9", 1, 100));
+
+        List<PrunedBackup> prunedBackupList = PruneBackupUtils.selectPrunedBackups(backupIndexEntryList, retention(null, 5, null), "release/1.0", NOW);
+
+        assertEquals(Collections.singletonList("release/1.01 maxDays:5"), describe(prunedBackupList));
+    }
+
+    @Test
+    public void nothingToPruneWithinRetention() {
+        List<PrunedBackup> prunedBackupList = PruneBackupUtils.selectPrunedBackups(FIVE_TAGS, retention(10, 30, 10000L), null, NOW);
+
+        assertEquals(0, prunedBackupList.size());
+    }
+
+    @Test
+    public void unindexedTagsAreFoundByTheirSideFiles() throws IOException {
+        Path backupDirectoryPath = Files.createTempDirectory("mv2prd-prune");
+        try {
+            write(backupDirectoryPath.resolve("release/1.0/app/a.txt"));
+            write(backupDirectoryPath.resolve("release/1.0.undo_journal"));
+            write(backupDirectoryPath.resolve("release/2.0/app/a.txt"));
+            write(backupDirectoryPath.resolve("release/2.0.backup_manifest"));
+            write(backupDirectoryPath.resolve("release/3.0/app/a.txt"));
+            write(backupDirectoryPath.resolve("release/3.0.undo_journal.rolled_back.123"));
+            write(backupDirectoryPath.resolve("legacy/app/a.txt"));
+            Files.createDirectories(backupDirectoryPath.resolve("emptied/app"));
+            write(backupDirectoryPath.resolve(".objects/ab/cdef"));
+
+            assertEquals(Arrays.asList("legacy", "release/1.0", "release/2.0", "release/3.0"),
+                    sorted(PruneBackupUtils.findUnindexedTagDirectories(backupDirectoryPath, "", Collections.emptySet())));
+            // An indexed tag is skipped, and the directory above it is only searched through
+            assertEquals(Arrays.asList("legacy", "release/2.0", "release/3.0"),
+                    sorted(PruneBackupUtils.findUnindexedTagDirectories(backupDirectoryPath, "", new HashSet<>(Collections.singletonList("release/1.0")))));
+        } finally {
+            deleteTree(backupDirectoryPath);
+        }
+    }
+
+    @Test
+    public void directoryAboveAnIndexedTagIsNeverATag() throws IOException {
+        Path backupDirectoryPath = Files.createTempDirectory("mv2prd-prune");
+        try {
+            write(backupDirectoryPath.resolve("release/1.0/app/a.txt"));
+            write(backupDirectoryPath.resolve("release/notes/readme.txt"));
+
+            assertEquals(Collections.emptyList(),
+                    PruneBackupUtils.findUnindexedTagDirectories(backupDirectoryPath, "", new HashSet<>(Collections.singletonList("release/1.0"))));
+        } finally {
+            deleteTree(backupDirectoryPath);
+        }
+    }
+
+    @Test
+    public void rewrittenIndexKeepsItsMode() throws IOException, InterruptedException {
+        Path backupDirectoryPath = Files.createTempDirectory("mv2prd-prune");
+        try {
+            write(backupDirectoryPath.resolve("v1/app/a.txt"));
+            write(backupDirectoryPath.resolve("v2/app/a.txt"));
+            Path backupIndexPath = backupDirectoryPath.resolve(".backup_index");
+            Files.write(backupIndexPath, Arrays.asList(
+                    JsonUtils.convertBackupIndexEntryToJsonLine(entry("v1", 10, 1)),
+                    JsonUtils.convertBackupIndexEntryToJsonLine(entry("v2", 1, 1))), StandardCharsets.UTF_8);
+            Files.setPosixFilePermissions(backupIndexPath, PosixFilePermissions.fromString("rw-rw-r--"));
+
+            List<PrunedBackup> prunedBackupList = PruneBackupUtils.selectPrunedBackups(
+                    PruneBackupUtils.readBackupIndex(backupDirectoryPath.toString(), true), retention(1, null, null), null, NOW);
+            PruneBackupUtils.executeAllPrunedBackups(false, backupDirectoryPath.toString(), prunedBackupList, null, "rwx------", 1, 0);
+
+            assertEquals(Collections.singletonList("v1 keepLastTags:1"), describe(prunedBackupList));
+            assertFalse(Files.exists(backupDirectoryPath.resolve("v1")));
+            assertEquals(1, Files.readAllLines(backupIndexPath, StandardCharsets.UTF_8).size());
+            assertEquals("rw-rw-r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(backupIndexPath)));
+        } finally {
+            deleteTree(backupDirectoryPath);
+        }
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> sortedList = new ArrayList<>(list);
+        Collections.sort(sortedList);
+        return sortedList;
+    }
+
+    private static void write(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, new byte[]{1});
+    }
+
+    private static void deleteTree(Path rootPath) throws IOException {
+        try (Stream<Path> pathStream = Files.walk(rootPath)) {
+            for (Path path : pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+}
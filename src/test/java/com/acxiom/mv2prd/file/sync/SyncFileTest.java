@@ -0,0 +1,121 @@
+package com.some.company.mv2prd.file.sync;
+
+import com.some.company.mv2prd.util.NormalisedPath;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class SyncFileTest {
+
+    private Path rootPath;
+    private Path workingTreePath;
+    private Path targetPath;
+
+    @Before
+    public void setUp() throws IOException {
+        rootPath = Files.createTempDirectory("mv2prd-sync-file");
+        workingTreePath = Files.createDirectories(rootPath.resolve("wt"));
+        targetPath = Files.createDirectories(rootPath.resolve("target"));
+        SyncSettingSingleton.getInstance().setSyncCompareMode(SyncCompareMode.SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SyncSettingSingleton.getInstance().setSyncCompareMode(SyncCompareMode.SIZE);
+        try (Stream<Path> pathStream = Files.walk(rootPath)) {
+            for (Path path : pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    private SyncFile pendingSyncFile(String relativeGitFilePath, Path absoluteTargetFilePath) {
+        SyncListingEntry entry = new SyncListingEntry(NormalisedPath.of(relativeGitFilePath), NormalisedPath.of(absoluteTargetFilePath.toString()));
+        return new SyncFile(SyncFileStatus.PENDING, entry, entry, NormalisedPath.of(workingTreePath.toString()));
+    }
+
+    // BLOB mode: the git side is only the blob id, size and mode from the tree
+    private SyncFile pendingBlobSyncFile(String gitContent, FileMode gitFileMode, Path absoluteTargetFilePath) throws IOException {
+        byte[] gitBytes = gitContent.getBytes("UTF-8");
+        ObjectId gitBlobId = new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, gitBytes);
+        SyncListingEntry gitEntry = new SyncListingEntry(NormalisedPath.of("app/" + absoluteTargetFilePath.getFileName()),
+                NormalisedPath.of(absoluteTargetFilePath.toString()), gitBlobId, gitBytes.length, gitFileMode);
+        return new SyncFile(SyncFileStatus.PENDING, gitEntry, gitEntry, NormalisedPath.of(workingTreePath.toString()));
+    }
+
+    private static void write(Path path, String content) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void sizeCompareSettlesPresenceAndSize() throws IOException {
+        write(workingTreePath.resolve("app/same"), "abc");
+        write(targetPath.resolve("same"), "xyz");
+        write(workingTreePath.resolve("app/longer"), "abcd");
+        write(targetPath.resolve("longer"), "abc");
+        write(workingTreePath.resolve("app/git_only"), "abc");
+        write(targetPath.resolve("target_only"), "abc");
+
+        assertEquals(SyncFileStatus.SYNCED, pendingSyncFile("app/same", targetPath.resolve("same")).execCompare());
+        assertEquals(SyncFileStatus.DIFF, pendingSyncFile("app/longer", targetPath.resolve("longer")).execCompare());
+        assertEquals(SyncFileStatus.SCM_ONLY, pendingSyncFile("app/git_only", targetPath.resolve("git_only")).execCompare());
+        assertEquals(SyncFileStatus.TAR_ONLY, pendingSyncFile("app/target_only", targetPath.resolve("target_only")).execCompare());
+        assertEquals(SyncFileStatus.MISSING_BOTH, pendingSyncFile("app/nowhere", targetPath.resolve("nowhere")).execCompare());
+    }
+
+    @Test
+    public void failedStatIsACompareFailureNotAMissingFile() throws IOException {
+        write(workingTreePath.resolve("app/a"), "abc");
+        // Stat'ing a path below a regular file fails with ENOTDIR, which is not "no such file"
+        write(targetPath.resolve("not_a_directory"), "abc");
+
+        assertEquals(SyncFileStatus.COMP_FAILED, pendingSyncFile("app/a", targetPath.resolve("not_a_directory/a")).execCompare());
+    }
+
+    @Test
+    public void blobCompareReadsOnlyTheTarget() throws IOException {
+        SyncSettingSingleton.getInstance().setSyncCompareMode(SyncCompareMode.BLOB);
+        write(targetPath.resolve("same"), "abc");
+        write(targetPath.resolve("edited"), "abd");
+        write(targetPath.resolve("longer"), "abcd");
+
+        // Nothing is in the working tree, the git side comes from the blob id alone
+        assertEquals(SyncFileStatus.SYNCED, pendingBlobSyncFile("abc", FileMode.REGULAR_FILE, targetPath.resolve("same")).execCompare());
+        assertEquals(SyncFileStatus.SYNCED, pendingBlobSyncFile("abc", FileMode.EXECUTABLE_FILE, targetPath.resolve("same")).execCompare());
+        assertEquals(SyncFileStatus.DIFF, pendingBlobSyncFile("abc", FileMode.REGULAR_FILE, targetPath.resolve("edited")).execCompare());
+        assertEquals(SyncFileStatus.DIFF, pendingBlobSyncFile("abc", FileMode.REGULAR_FILE, targetPath.resolve("longer")).execCompare());
+        assertEquals(SyncFileStatus.SCM_ONLY, pendingBlobSyncFile("abc", FileMode.REGULAR_FILE, targetPath.resolve("missing")).execCompare());
+        assertEquals(SyncFileStatus.DIFF, pendingBlobSyncFile("abc", FileMode.REGULAR_FILE, targetPath).execCompare());
+    }
+
+    @Test
+    public void blobCompareOfASymlinkComparesItsLinkText() throws IOException {
+        SyncSettingSingleton.getInstance().setSyncCompareMode(SyncCompareMode.BLOB);
+        write(targetPath.resolve("real"), "abc");
+        Files.createSymbolicLink(targetPath.resolve("link"), Paths.get("real"));
+        Files.createSymbolicLink(targetPath.resolve("other_link"), Paths.get("elsewhere"));
+        write(targetPath.resolve("plain"), "real");
+
+        assertEquals(SyncFileStatus.SYNCED, pendingBlobSyncFile("real", FileMode.SYMLINK, targetPath.resolve("link")).execCompare());
+        assertEquals(SyncFileStatus.DIFF, pendingBlobSyncFile("real", FileMode.SYMLINK, targetPath.resolve("other_link")).execCompare());
+        // A dangling link is still there to compare
+        assertEquals(SyncFileStatus.SYNCED, pendingBlobSyncFile("elsewhere", FileMode.SYMLINK, targetPath.resolve("other_link")).execCompare());
+        assertEquals(SyncFileStatus.SCM_ONLY, pendingBlobSyncFile("real", FileMode.SYMLINK, targetPath.resolve("missing")).execCompare());
+        // Same bytes as the link text, but a regular file is not a symlink
+        assertEquals(SyncFileStatus.DIFF, pendingBlobSyncFile("real", FileMode.SYMLINK, targetPath.resolve("plain")).execCompare());
+    }
+}
@@ -0,0 +1,129 @@
+package com.some.company.mv2prd.file.sync;
+
+import com.some.company.mv2prd.util.NormalisedPath;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class SyncFileUtilsTest {
+
+    private static final NormalisedPath WORKING_TREE_DIR = NormalisedPath.of("/repo/wt");
+
+    private static SyncListingEntry entry(String relativeGitFilePath, String absoluteTargetFilePath) {
+        return new SyncListingEntry(NormalisedPath.of(relativeGitFilePath), NormalisedPath.of(absoluteTargetFilePath));
+    }
+
+    // app/<name> maps to /opt/app/<name>
+    private static SyncListingEntry appEntry(String name) {
+        return entry("app/" + name, "/opt/app/" + name);
+    }
+
+    private static List<String> describe(List<SyncFile> syncFileList) {
+        List<String> descriptionList = new ArrayList<>();
+        for (SyncFile syncFile : syncFileList)
+            descriptionList.add(syncFile.getSyncFileStatus() + " " + syncFile.getRelativeGitFilePath() + " " + syncFile.getAbsoluteTargetFilePath());
+        return descriptionList;
+    }
+
+    private static List<SyncFile> join(List<SyncListingEntry> gitListingEntryList, List<SyncListingEntry> targetListingEntryList) {
+        return SyncFileUtils.joinListings(new ArrayList<>(gitListingEntryList), new ArrayList<>(targetListingEntryList), WORKING_TREE_DIR, new ArrayList<>());
+    }
+
+    @Test
+    public void bothSidesArePendingAndTheRestIsSettled() {
+        List<SyncFile> syncFileList = join(
+                Arrays.asList(appEntry("d"), appEntry("a"), appEntry("b")),
+                Arrays.asList(appEntry("c"), appEntry("b"), appEntry("d")));
+
+        assertEquals(Arrays.asList(
+                "SCM_ONLY app/a /opt/app/a",
+                "PENDING app/b /opt/app/b",
+                "TAR_ONLY app/c /opt/app/c",
+                "PENDING app/d /opt/app/d"), describe(syncFileList));
+        assertEquals("/repo/wt/app/a", syncFileList.get(0).getAbsoluteGitFilePath());
+        assertEquals(SyncFileSource.SCM, syncFileList.get(1).getSyncFileSource());
+        assertEquals(SyncFileSource.TAR, syncFileList.get(2).getSyncFileSource());
+    }
+
+    @Test
+    public void repeatsFromOverlappingMappingsBecomeOneFile() {
+        List<SyncFile> syncFileList = join(
+                Arrays.asList(appEntry("a"), appEntry("a"), appEntry("b"), appEntry("b")),
+                Arrays.asList(appEntry("a"), appEntry("c"), appEntry("c"), appEntry("a")));
+
+        assertEquals(Arrays.asList(
+                "PENDING app/a /opt/app/a",
+                "SCM_ONLY app/b /opt/app/b",
+                "TAR_ONLY app/c /opt/app/c"), describe(syncFileList));
+    }
+
+    @Test
+    public void oneGitFileMappedToTwoTargetsIsJoinedPerTarget() {
+        List<SyncFile> syncFileList = join(
+                Arrays.asList(entry("app/x", "/opt/one/x"), entry("app/x", "/opt/two/x")),
+                Collections.singletonList(entry("app/x", "/opt/two/x")));
+
+        assertEquals(Arrays.asList(
+                "SCM_ONLY app/x /opt/one/x",
+                "PENDING app/x /opt/two/x"), describe(syncFileList));
+    }
+
+    @Test
+    public void filesSettledWhileListingStayFirst() {
+        List<SyncFile> settledSyncFileList = new ArrayList<>();
+        settledSyncFileList.add(new SyncFile(SyncFileStatus.COMP_FAILED, null, appEntry("unreadable"), WORKING_TREE_DIR));
+
+        List<SyncFile> syncFileList = SyncFileUtils.joinListings(new ArrayList<>(Collections.singletonList(appEntry("a"))),
+                new ArrayList<>(), WORKING_TREE_DIR, settledSyncFileList);
+
+        assertEquals(Arrays.asList(
+                "COMP_FAILED app/unreadable /opt/app/unreadable",
+                "SCM_ONLY app/a /opt/app/a"), describe(syncFileList));
+    }
+
+    @Test
+    public void emptyListingsJoinToNothing() {
+        assertEquals(0, join(Collections.emptyList(), Collections.emptyList()).size());
+    }
+
+    // The merge must give what the old concat-then-dedup did: one file per distinct (git path, target path), PENDING
+    // if both sides listed it
+    @Test
+    public void matchesAMapBasedJoinOnRandomListings() {
+        Random random = new Random(20240601L);
+        for (int round = 0; round < 200; round++) {
+            List<SyncListingEntry> gitListingEntryList = new ArrayList<>();
+            List<SyncListingEntry> targetListingEntryList = new ArrayList<>();
+            TreeMap<String, String> expectedMap = new TreeMap<>();
+            int fileCount = random.nextInt(40);
+            for (int i = 0; i < fileCount; i++) {
+                String name = "d" + random.nextInt(5) + "/f" + random.nextInt(30);
+                SyncListingEntry listingEntry = appEntry(name);
+                boolean inGit = random.nextBoolean();
+                boolean inTarget = !inGit || random.nextBoolean();
+                if (inGit)
+                    gitListingEntryList.add(listingEntry);
+                if (inTarget)
+                    targetListingEntryList.add(listingEntry);
+                String key = "app/" + name + " /opt/app/" + name;
+                String previous = expectedMap.get(key);
+                boolean bothSides = (inGit && inTarget) || (previous != null && !previous.equals(inGit ? "SCM_ONLY" : "TAR_ONLY"));
+                expectedMap.put(key, bothSides ? "PENDING" : inGit ? "SCM_ONLY" : "TAR_ONLY");
+            }
+            Collections.shuffle(gitListingEntryList, random);
+            Collections.shuffle(targetListingEntryList, random);
+
+            List<String> expectedList = new ArrayList<>();
+            for (String key : expectedMap.keySet())
+                expectedList.add(expectedMap.get(key) + " " + key);
+            assertEquals(expectedList, describe(join(gitListingEntryList, targetListingEntryList)));
+        }
+    }
+}
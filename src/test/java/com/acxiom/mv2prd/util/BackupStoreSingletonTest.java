@@ -0,0 +1,142 @@
+package com.some.company.mv2prd.util;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackupStoreSingletonTest {
+
+    private Path rootPath;
+    private Path targetPath;
+    private Path backupPath;
+    private GroupPrincipal groupPrincipal;
+
+    @Before
+    public void setUp() throws IOException {
+        rootPath = Files.createTempDirectory("mv2prd-backup-store");
+        targetPath = Files.createDirectories(rootPath.resolve("target"));
+        backupPath = rootPath.resolve("backup");
+        groupPrincipal = Files.readAttributes(rootPath, PosixFileAttributes.class).group();
+        BackupStoreSingleton.getInstance().configure(backupPath.toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileMetadataCacheSingleton.getInstance().invalidateTree(rootPath);
+        try (Stream<Path> pathStream = Files.walk(rootPath)) {
+            for (Path path : pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    private Path writeTarget(String name, String content, String permissions) throws IOException {
+        Path path = targetPath.resolve(name);
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+        return path;
+    }
+
+    private Path backUp(Path path, String gitTag, ObjectId expectedBlobId) throws IOException {
+        Path backupFilePath = backupPath.resolve(gitTag).resolve(path.getFileName());
+        BackupStoreSingleton.getInstance().backupFile(path.toString(), backupFilePath.toString(), expectedBlobId, groupPrincipal, "rw-rw----");
+        return backupFilePath;
+    }
+
+    private List<Path> storedObjects() throws IOException {
+        try (Stream<Path> pathStream = Files.walk(BackupStoreSingleton.getInstance().getObjectStorePath())) {
+            return pathStream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static ObjectId blobId(String content) {
+        return new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void sameContentAndAttributesAreStoredOnce() throws IOException {
+        Path firstBackupFilePath = backUp(writeTarget("a.txt", "shared", "rw-r--r--"), "v1", null);
+        Path secondBackupFilePath = backUp(writeTarget("b.txt", "shared", "rw-r--r--"), "v2", null);
+
+        List<Path> objectPathList = storedObjects();
+        assertEquals(1, objectPathList.size());
+        // <first 2 hex>/<remaining 38 hex>_<mode>_<owner>_<group>
+        String blobId = blobId("shared").name();
+        assertEquals(blobId.substring(0, 2), objectPathList.get(0).getParent().getFileName().toString());
+        assertTrue(objectPathList.get(0).getFileName().toString().startsWith(blobId.substring(2) + "_rw-r--r--_"));
+        assertTrue(Files.isSameFile(objectPathList.get(0), firstBackupFilePath));
+        assertTrue(Files.isSameFile(objectPathList.get(0), secondBackupFilePath));
+        assertEquals("shared", new String(Files.readAllBytes(secondBackupFilePath), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void sameContentWithOtherModeIsStoredSeparately() throws IOException {
+        Path firstBackupFilePath = backUp(writeTarget("a.txt", "shared", "rw-r--r--"), "v1", null);
+        Path secondBackupFilePath = backUp(writeTarget("b.txt", "shared", "rwxr-xr-x"), "v2", null);
+
+        assertEquals(2, storedObjects().size());
+        assertFalse(Files.isSameFile(firstBackupFilePath, secondBackupFilePath));
+        assertEquals("rwxr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(secondBackupFilePath)));
+    }
+
+    @Test
+    public void earlierBackupOfTheTagIsKept() throws IOException {
+        Path path = writeTarget("a.txt", "first run", "rw-r--r--");
+        Path backupFilePath = backUp(path, "v1", null);
+        writeTarget("a.txt", "second run", "rw-r--r--");
+        FileMetadataCacheSingleton.getInstance().invalidate(path);
+        backUp(path, "v1", null);
+
+        assertEquals("first run", new String(Files.readAllBytes(backupFilePath), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void unchangedTargetIsRestoredFromItsBlobRef() throws Exception {
+        Path path = writeTarget("a.txt", "in git history", "rwxr-x---");
+        FileTime lastModifiedTime = FileTime.fromMillis(1500000000000L);
+        Files.setLastModifiedTime(path, lastModifiedTime);
+        ObjectId blobId = blobId("in git history");
+
+        Path backupFilePath = backUp(path, "v1", blobId);
+
+        // Only the pointer record is written, shared with the group like any other backup
+        Path blobRefFilePath = backupFilePath.resolveSibling("a.txt.blobref");
+        assertFalse(Files.exists(backupFilePath));
+        assertFalse(Files.exists(BackupStoreSingleton.getInstance().getObjectStorePath()));
+        assertEquals("rw-rw----", PosixFilePermissions.toString(Files.getPosixFilePermissions(blobRefFilePath)));
+        assertTrue(BackupStoreSingleton.blobRefExists(backupFilePath.toString()));
+
+        try (Git git = Git.init().setBare(true).setDirectory(rootPath.resolve("repo.git").toFile()).call();
+             ObjectInserter objectInserter = git.getRepository().newObjectInserter()) {
+            assertEquals(blobId, objectInserter.insert(Constants.OBJ_BLOB, "in git history".getBytes(StandardCharsets.UTF_8)));
+            objectInserter.flush();
+
+            Files.write(path, "changed by the install".getBytes(StandardCharsets.UTF_8));
+            BackupStoreSingleton.restoreFromBlobRef(git.getRepository(), backupFilePath.toString(), path.toString(), groupPrincipal, "rw-rw----");
+        }
+
+        assertEquals("in git history", new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        assertEquals("rwxr-x---", PosixFilePermissions.toString(Files.getPosixFilePermissions(path)));
+        assertEquals(lastModifiedTime, Files.getLastModifiedTime(path));
+    }
+}
@@ -0,0 +1,104 @@
+package com.some.company.mv2prd.util;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentCompareSingletonTest {
+
+    // Above the plain read limit, so the mapped compare is used
+    private static final int FILE_BYTES = 1024 * 1024;
+
+    private Path directoryPath;
+    private Path firstFilePath;
+    private Path secondFilePath;
+
+    @Before
+    public void setUp() throws IOException {
+        directoryPath = Files.createTempDirectory("mv2prd-content-compare");
+        firstFilePath = directoryPath.resolve("first");
+        secondFilePath = directoryPath.resolve("second");
+        HashCacheSingleton.getInstance().open(directoryPath.resolve("hash_cache"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        HashCacheSingleton.getInstance().close();
+        try (Stream<Path> pathStream = Files.walk(directoryPath)) {
+            for (Path path : pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    private static byte[] content(byte firstByte) {
+        byte[] content = new byte[FILE_BYTES];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) i;
+        content[0] = firstByte;
+        return content;
+    }
+
+    private static UnixFileAttributes attributes(Path path) throws IOException {
+        return (UnixFileAttributes) FileMetadataCacheSingleton.readAttributes(path);
+    }
+
+    private static Boolean sameContent(Path firstFilePath, Path secondFilePath) throws IOException {
+        return ContentCompareSingleton.getInstance().sameContent(firstFilePath, attributes(firstFilePath), secondFilePath, attributes(secondFilePath), FILE_BYTES);
+    }
+
+    @Test
+    public void coldCacheDifferenceIsNotCached() throws IOException {
+        Files.write(firstFilePath, content((byte) 1));
+        Files.write(secondFilePath, content((byte) 2));
+
+        assertFalse(sameContent(firstFilePath, secondFilePath));
+        // The compare stopped at the first long, neither file was read in full
+        assertNull(HashCacheSingleton.getInstance().lookup(attributes(firstFilePath)));
+        assertNull(HashCacheSingleton.getInstance().lookup(attributes(secondFilePath)));
+    }
+
+    @Test
+    public void coldCacheMatchIsComparedWithoutDigests() throws IOException {
+        Files.write(firstFilePath, content((byte) 1));
+        Files.write(secondFilePath, content((byte) 1));
+
+        assertTrue(sameContent(firstFilePath, secondFilePath));
+        assertNull(HashCacheSingleton.getInstance().lookup(attributes(firstFilePath)));
+    }
+
+    @Test
+    public void matchTeachesTheCacheTheOtherSide() throws IOException {
+        Files.write(firstFilePath, content((byte) 1));
+        Files.write(secondFilePath, content((byte) 1));
+        ObjectId blobId = GitUtils.computeBlobId(firstFilePath, FILE_BYTES);
+        HashCacheSingleton.getInstance().store(attributes(firstFilePath), blobId);
+
+        assertTrue(sameContent(firstFilePath, secondFilePath));
+        assertEquals(blobId, HashCacheSingleton.getInstance().lookup(attributes(secondFilePath)));
+    }
+
+    @Test
+    public void bothCachedIsAnsweredWithoutReading() throws IOException {
+        Files.write(firstFilePath, content((byte) 1));
+        Files.write(secondFilePath, content((byte) 2));
+        // Deliberately wrong digests: only an answer taken from the cache can call these files the same
+        ObjectId cachedBlobId = ObjectId.zeroId();
+        HashCacheSingleton.getInstance().store(attributes(firstFilePath), cachedBlobId);
+        HashCacheSingleton.getInstance().store(attributes(secondFilePath), cachedBlobId);
+
+        assertTrue(sameContent(firstFilePath, secondFilePath));
+    }
+}
@@ -0,0 +1,98 @@
+package com.some.company.mv2prd.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CopyEngineSingletonTest {
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    private Path directoryPath;
+    private Path sourceFilePath;
+    private Path targetFilePath;
+
+    @Before
+    public void setUp() throws IOException {
+        directoryPath = Files.createTempDirectory("mv2prd-copy-engine");
+        sourceFilePath = directoryPath.resolve("source");
+        targetFilePath = directoryPath.resolve("target");
+        // Files of 1MB and up are split over 4 ranges
+        CopyEngineSingleton.getInstance().configure(DurabilityPolicy.NONE, 1, 4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        CopyEngineSingleton.getInstance().configure(DurabilityPolicy.NONE, 256, 1);
+        try (Stream<Path> pathStream = Files.walk(directoryPath)) {
+            for (Path path : pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    private static byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private void assertCopied(byte[] content) throws IOException {
+        Files.write(sourceFilePath, content);
+        CopyEngineSingleton.getInstance().copyFile(sourceFilePath, targetFilePath);
+
+        assertArrayEquals(content, Files.readAllBytes(targetFilePath));
+    }
+
+    @Test
+    public void rangesJoinUpToTheSourceBytes() throws IOException {
+        // Not a multiple of the range count, so the last range is shorter than the others
+        Files.createFile(targetFilePath);
+        assertCopied(randomContent(3 * MEGABYTE + 12345));
+    }
+
+    @Test
+    public void fileOfExactlyTheThresholdIsRangeCopied() throws IOException {
+        Files.createFile(targetFilePath);
+        assertCopied(randomContent(MEGABYTE));
+    }
+
+    @Test
+    public void smallFileAndEmptyFileAreCopiedWhole() throws IOException {
+        Files.createFile(targetFilePath);
+        assertCopied(randomContent(MEGABYTE - 1));
+        assertCopied(new byte[0]);
+    }
+
+    @Test
+    public void longerTargetIsTruncated() throws IOException {
+        Files.write(targetFilePath, randomContent(5 * MEGABYTE));
+        assertCopied(randomContent(2 * MEGABYTE + 1));
+    }
+
+    @Test
+    public void permissionsAndMtimeComeAlong() throws IOException {
+        Files.write(sourceFilePath, randomContent(2 * MEGABYTE));
+        Files.setPosixFilePermissions(sourceFilePath, PosixFilePermissions.fromString("rwxr-x---"));
+        FileTime lastModifiedTime = FileTime.fromMillis(1500000000000L);
+        Files.setLastModifiedTime(sourceFilePath, lastModifiedTime);
+        Files.createFile(targetFilePath);
+
+        CopyEngineSingleton.getInstance().copyFile(sourceFilePath, targetFilePath);
+
+        assertEquals("rwxr-x---", PosixFilePermissions.toString(Files.getPosixFilePermissions(targetFilePath)));
+        assertEquals(lastModifiedTime, Files.getLastModifiedTime(targetFilePath));
+    }
+}
@@ -0,0 +1,151 @@
+package com.some.company.mv2prd.util;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HashCacheSingletonTest {
+
+    // Header is 32 bytes, each slot 64, and a new table has 65536 slots
+    private static final long INITIAL_FILE_BYTES = 32L + 65536L * 64L;
+    private static final int CLEAN_OFFSET = 20;
+
+    private Path cacheDirectoryPath;
+    private Path cacheFilePath;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDirectoryPath = Files.createTempDirectory("mv2prd-hash-cache");
+        cacheFilePath = cacheDirectoryPath.resolve("hash_cache");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        HashCacheSingleton.getInstance().close();
+        try (Stream<Path> pathStream = Files.walk(cacheDirectoryPath)) {
+            for (Path path : pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    private static UnixFileAttributes attributes(long inode, long size, long mtimeMillis, long ctimeMillis) {
+        Map<String, Object> attributeMap = new HashMap<>();
+        attributeMap.put("dev", 42L);
+        attributeMap.put("ino", inode);
+        attributeMap.put("size", size);
+        attributeMap.put("lastModifiedTime", FileTime.from(mtimeMillis, TimeUnit.MILLISECONDS));
+        attributeMap.put("ctime", FileTime.from(ctimeMillis, TimeUnit.MILLISECONDS));
+        return new UnixFileAttributes(attributeMap);
+    }
+
+    private static ObjectId digest(long inode) {
+        byte[] raw = new byte[20];
+        for (int i = 0; i < 8; i++)
+            raw[i] = (byte) (inode >>> (8 * i));
+        raw[19] = 1;
+        return ObjectId.fromRaw(raw);
+    }
+
+    @Test
+    public void digestsSurviveACleanReopen() {
+        HashCacheSingleton hashCache = HashCacheSingleton.getInstance();
+        hashCache.open(cacheFilePath);
+        assertTrue(hashCache.isOpen());
+        for (long inode = 1; inode <= 100; inode++)
+            hashCache.store(attributes(inode, inode * 10, 1000, 2000), digest(inode));
+        hashCache.close();
+
+        hashCache.open(cacheFilePath);
+        for (long inode = 1; inode <= 100; inode++)
+            assertEquals(digest(inode), hashCache.lookup(attributes(inode, inode * 10, 1000, 2000)));
+    }
+
+    @Test
+    public void changedStatTupleIsAMiss() {
+        HashCacheSingleton hashCache = HashCacheSingleton.getInstance();
+        hashCache.open(cacheFilePath);
+        hashCache.store(attributes(7, 70, 1000, 2000), digest(7));
+
+        assertNull(hashCache.lookup(attributes(7, 71, 1000, 2000)));
+        assertNull(hashCache.lookup(attributes(7, 70, 1001, 2000)));
+        assertNull(hashCache.lookup(attributes(7, 70, 1000, 2001)));
+        assertNull(hashCache.lookup(attributes(8, 70, 1000, 2000)));
+        assertEquals(digest(7), hashCache.lookup(attributes(7, 70, 1000, 2000)));
+
+        // Storing the file again after it changed replaces its slot
+        hashCache.store(attributes(7, 71, 1500, 2500), digest(70));
+        assertNull(hashCache.lookup(attributes(7, 70, 1000, 2000)));
+        assertEquals(digest(70), hashCache.lookup(attributes(7, 71, 1500, 2500)));
+    }
+
+    @Test
+    public void tableGrowsAndKeepsEveryEntry() throws IOException {
+        HashCacheSingleton hashCache = HashCacheSingleton.getInstance();
+        hashCache.open(cacheFilePath);
+        assertEquals(INITIAL_FILE_BYTES, Files.size(cacheFilePath));
+
+        // Past 60% of 65536 slots the table has to double
+        int entryCount = 50000;
+        for (long inode = 1; inode <= entryCount; inode++)
+            hashCache.store(attributes(inode, inode, 1000, 2000), digest(inode));
+        assertEquals(32L + 131072L * 64L, Files.size(cacheFilePath));
+        for (long inode = 1; inode <= entryCount; inode++)
+            assertEquals(digest(inode), hashCache.lookup(attributes(inode, inode, 1000, 2000)));
+        hashCache.close();
+
+        hashCache.open(cacheFilePath);
+        for (long inode = 1; inode <= entryCount; inode++)
+            assertEquals(digest(inode), hashCache.lookup(attributes(inode, inode, 1000, 2000)));
+    }
+
+    @Test
+    public void cacheLeftDirtyIsDiscarded() throws IOException {
+        HashCacheSingleton hashCache = HashCacheSingleton.getInstance();
+        hashCache.open(cacheFilePath);
+        hashCache.store(attributes(1, 10, 1000, 2000), digest(1));
+        hashCache.close();
+
+        // What a run that died while the cache was open leaves behind
+        try (FileChannel fileChannel = FileChannel.open(cacheFilePath, StandardOpenOption.WRITE)) {
+            ByteBuffer dirtyFlag = ByteBuffer.allocate(4);
+            dirtyFlag.putInt(0, 0);
+            fileChannel.write(dirtyFlag, CLEAN_OFFSET);
+        }
+
+        hashCache.open(cacheFilePath);
+        assertTrue(hashCache.isOpen());
+        assertNull(hashCache.lookup(attributes(1, 10, 1000, 2000)));
+        assertEquals(INITIAL_FILE_BYTES, Files.size(cacheFilePath));
+    }
+
+    @Test
+    public void unreadableCacheIsReplaced() throws IOException {
+        Files.write(cacheFilePath, new byte[4096]);
+
+        HashCacheSingleton hashCache = HashCacheSingleton.getInstance();
+        hashCache.open(cacheFilePath);
+        assertTrue(hashCache.isOpen());
+        assertEquals(INITIAL_FILE_BYTES, Files.size(cacheFilePath));
+        hashCache.store(attributes(1, 10, 1000, 2000), digest(1));
+        assertEquals(digest(1), hashCache.lookup(attributes(1, 10, 1000, 2000)));
+    }
+}
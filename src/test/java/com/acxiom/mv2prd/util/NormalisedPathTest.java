@@ -0,0 +1,109 @@
+package com.some.company.mv2prd.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NormalisedPathTest {
+
+    @Test
+    public void normaliseCollapsesSlashesAndDotSegments() {
+        assertEquals("/opt/app/x.txt", NormalisedPath.normalise("/opt//app/./x.txt"));
+        assertEquals("/opt/app", NormalisedPath.normalise("/opt/app/"));
+        assertEquals("/opt/app", NormalisedPath.normalise("//opt///app//"));
+        assertEquals("/opt/app", NormalisedPath.normalise("/./opt/./app/."));
+        assertEquals("app/conf", NormalisedPath.normalise("./app/conf/"));
+        assertEquals("app/conf", NormalisedPath.normalise("app//conf"));
+        assertEquals("/", NormalisedPath.normalise("/"));
+        assertEquals("/", NormalisedPath.normalise("///"));
+        assertEquals("", NormalisedPath.normalise(""));
+        assertEquals("", NormalisedPath.normalise("./"));
+    }
+
+    @Test
+    public void normaliseKeepsDotDotAndDotPrefixedNames() {
+        // Only "." is dropped, ".." and names that merely start with a dot are real segments
+        assertEquals("/opt/../app", NormalisedPath.normalise("/opt/../app"));
+        assertEquals("/opt/.hidden/.x", NormalisedPath.normalise("/opt/.hidden//.x/"));
+    }
+
+    @Test
+    public void normaliseReturnsAnAlreadyNormalisedPathItself() {
+        String path = "/opt/app/conf/x.cfg";
+        assertSame(path, NormalisedPath.normalise(path));
+        String relativePath = "app/conf/x.cfg";
+        assertSame(relativePath, NormalisedPath.normalise(relativePath));
+    }
+
+    @Test
+    public void ofNullIsNull() {
+        assertNull(NormalisedPath.of(null));
+    }
+
+    @Test
+    public void hashCodeIsTheStringHashCode() {
+        for (String path : Arrays.asList("", "/", "/opt", "/opt/app/x.txt", "app/conf/x.cfg", "/opt//app/./x/"))
+            assertEquals(path, NormalisedPath.normalise(path).hashCode(), NormalisedPath.of(path).hashCode());
+    }
+
+    @Test
+    public void joinedPathsMatchTheirPlainForm() {
+        NormalisedPath relativePath = NormalisedPath.of("app/conf/x.cfg");
+        List<NormalisedPath> joinedPathList = Arrays.asList(
+                NormalisedPath.of("/opt/repo").resolve(relativePath),
+                NormalisedPath.of("/").resolve(relativePath),
+                NormalisedPath.of("").resolve(relativePath),
+                NormalisedPath.of("/opt/repo").resolve("/app/x"),
+                NormalisedPath.of("/opt").resolve(NormalisedPath.of("repo").resolve(relativePath)),
+                NormalisedPath.of("/opt/repo").resolve(""));
+        List<String> expectedList = Arrays.asList(
+                "/opt/repo/app/conf/x.cfg", "/app/conf/x.cfg", "app/conf/x.cfg", "/opt/repo/app/x", "/opt/repo/app/conf/x.cfg", "/opt/repo");
+
+        for (int i = 0; i < joinedPathList.size(); i++) {
+            NormalisedPath joinedPath = joinedPathList.get(i);
+            String expected = expectedList.get(i);
+            NormalisedPath plainPath = NormalisedPath.of(expected);
+            assertEquals(expected.length(), joinedPath.length());
+            assertEquals(expected, expected.hashCode(), joinedPath.hashCode());
+            assertEquals(expected, plainPath, joinedPath);
+            assertEquals(expected, joinedPath, plainPath);
+            assertEquals(expected, 0, joinedPath.compareTo(plainPath));
+            assertEquals(expected, joinedPath.toString());
+        }
+    }
+
+    @Test
+    public void compareToSortsLikeString() {
+        List<String> stringList = Arrays.asList("/opt/app/b", "/opt/app", "/opt/app-x", "/opt/app/a/z", "/opt/ap", "/opt/app/a");
+        List<NormalisedPath> pathList = new ArrayList<>();
+        for (String path : stringList)
+            pathList.add(path.startsWith("/opt/app/") ? NormalisedPath.of("/opt/app").resolve(path.substring("/opt/app/".length())) : NormalisedPath.of(path));
+
+        List<String> sortedStringList = new ArrayList<>(stringList);
+        Collections.sort(sortedStringList);
+        Collections.sort(pathList);
+        List<String> sortedPathStringList = new ArrayList<>();
+        for (NormalisedPath path : pathList)
+            sortedPathStringList.add(path.toString());
+        assertEquals(sortedStringList, sortedPathStringList);
+    }
+
+    @Test
+    public void startsWithIsSegmentAware() {
+        NormalisedPath path = NormalisedPath.of("/opt/app/x");
+        assertTrue(path.startsWith(NormalisedPath.of("/opt/app")));
+        assertTrue(path.startsWith(NormalisedPath.of("/opt/app/x")));
+        assertTrue(path.startsWith(NormalisedPath.of("/")));
+        assertFalse(path.startsWith(NormalisedPath.of("/opt/ap")));
+        assertFalse(path.startsWith(NormalisedPath.of("/opt/app/x/y")));
+    }
+}
@@ -0,0 +1,114 @@
+package com.some.company.mv2prd.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PartitionedExecutorTest {
+
+    @Test
+    public void tasksWithTheSameKeyRunInSubmitOrder() throws InterruptedException {
+        Map<String, List<Integer>> seenMap = new HashMap<>();
+        for (int key = 0; key < 10; key++)
+            seenMap.put("key" + key, Collections.synchronizedList(new ArrayList<>()));
+
+        // A small queue makes submit() block, so the order must also hold across back pressure
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("test", 4, 2);
+        for (int i = 0; i < 200; i++) {
+            for (Map.Entry<String, List<Integer>> entry : seenMap.entrySet()) {
+                int sequence = i;
+                partitionedExecutor.submit(entry.getKey(), () -> entry.getValue().add(sequence));
+            }
+        }
+        partitionedExecutor.awaitCompletion();
+
+        for (Map.Entry<String, List<Integer>> entry : seenMap.entrySet()) {
+            List<Integer> seenList = entry.getValue();
+            assertEquals(entry.getKey(), 200, seenList.size());
+            for (int i = 0; i < seenList.size(); i++)
+                assertEquals(entry.getKey(), i, (int) seenList.get(i));
+        }
+    }
+
+    @Test
+    public void tasksWithDifferentKeysRunConcurrently() throws InterruptedException {
+        // "a" and "b" land on different workers of two (hash codes 97 and 98)
+        CountDownLatch secondStarted = new CountDownLatch(1);
+        AtomicBoolean ranTogether = new AtomicBoolean(false);
+
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("test", 2, 4);
+        partitionedExecutor.submit("a", () -> {
+            try {
+                ranTogether.set(secondStarted.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        partitionedExecutor.submit("b", secondStarted::countDown);
+        partitionedExecutor.awaitCompletion();
+
+        assertTrue(ranTogether.get());
+    }
+
+    @Test
+    public void awaitCompletionRethrowsTheFirstFailureAfterDraining() throws InterruptedException {
+        IllegalStateException failure = new IllegalStateException("boom");
+        AtomicInteger completedCount = new AtomicInteger();
+
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("test", 1, 16);
+        partitionedExecutor.submit("key", () -> { throw failure; });
+        for (int i = 0; i < 10; i++)
+            partitionedExecutor.submit("key", completedCount::incrementAndGet);
+        try {
+            partitionedExecutor.awaitCompletion();
+            fail("awaitCompletion should rethrow the task failure");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        // A failed task does not stop the worker, the rest of its queue still runs
+        assertEquals(10, completedCount.get());
+    }
+
+    @Test
+    public void awaitCompletionRethrowsAnErrorAsItIs() throws InterruptedException {
+        AssertionError failure = new AssertionError("broken");
+
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("test", 2, 4);
+        partitionedExecutor.submit("key", () -> { throw failure; });
+        try {
+            partitionedExecutor.awaitCompletion();
+            fail("awaitCompletion should rethrow the task failure");
+        } catch (AssertionError e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void nullKeyIsAccepted() throws InterruptedException {
+        AtomicInteger completedCount = new AtomicInteger();
+
+        PartitionedExecutor partitionedExecutor = new PartitionedExecutor("test", 3, 4);
+        partitionedExecutor.submit(null, completedCount::incrementAndGet);
+        partitionedExecutor.awaitCompletion();
+
+        assertEquals(1, completedCount.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroThreadsIsRejected() {
+        new PartitionedExecutor("test", 0, 4);
+    }
+}
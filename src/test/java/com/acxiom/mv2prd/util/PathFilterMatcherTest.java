@@ -0,0 +1,122 @@
+package com.some.company.mv2prd.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathFilterMatcherTest {
+
+    // Literals, prefixes, suffixes, globs, escapes and filters that need the real regex engine
+    private static final List<String> FILTER_LIST = Arrays.asList(
+            "/logs/",
+            "^/opt/app/tmp/",
+            "\\.log$",
+            "^/opt/app/.*/cache/",
+            "\\.bak",
+            "^/opt/app/exact\\.txt$",
+            "/build/.*\\.class$",
+            "^/opt/app/data[0-9]+/",
+            "^/opt/app/(?!keep)[^/]+/scratch",
+            "\\bcore\\b",
+            "~$");
+
+    private static final List<String> PATH_LIST = Arrays.asList(
+            "/opt/app/logs/a.txt", "/opt/app/logsx/a.txt", "/opt/logs",
+            "/opt/app/tmp/x", "/opt/app/tmp", "/opt/app/tmpx/y", "/var/opt/app/tmp/x",
+            "/opt/app/x.log", "/opt/app/x.log.1", "/opt/app/.log",
+            "/opt/app/a/cache/b", "/opt/app/a/b/cache/c", "/opt/app/cache/b", "/opt/other/a/cache/b",
+            "/opt/app/x.bak", "/opt/app/x.bak2", "/opt/app/xbak",
+            "/opt/app/exact.txt", "/opt/app/exact.txt2", "/opt/app/exactxtxt",
+            "/opt/app/build/a/B.class", "/opt/app/build/a/B.classes", "/opt/app/B.class",
+            "/opt/app/data12/x", "/opt/app/data/x", "/opt/app/dataX/x",
+            "/opt/app/other/scratch/x", "/opt/app/keep/scratch/x", "/opt/app/keeper/scratch",
+            "/opt/app/core", "/opt/app/core.1", "/opt/app/hardcore", "/opt/app/core/x",
+            "/opt/app/x.txt~", "/opt/app/x~y", "/opt/app/plain.txt");
+
+    @Test
+    public void matchesAgreesWithFindOnTheJoinedRegex() {
+        Pattern joinedPattern = Pattern.compile(String.join("|", FILTER_LIST));
+        PathFilterMatcher pathFilterMatcher = PathFilterMatcher.of(FILTER_LIST);
+
+        for (String path : PATH_LIST)
+            assertEquals(path, joinedPattern.matcher(path).find(), pathFilterMatcher.matches(path));
+    }
+
+    @Test
+    public void matchesAgreesWithFindForEachFilterOnItsOwn() {
+        for (String filter : FILTER_LIST) {
+            List<String> filterList = Collections.singletonList(filter);
+            Pattern pattern = Pattern.compile(filter);
+            PathFilterMatcher pathFilterMatcher = PathFilterMatcher.of(filterList);
+            for (String path : PATH_LIST)
+                assertEquals(filter + " on " + path, pattern.matcher(path).find(), pathFilterMatcher.matches(path));
+        }
+    }
+
+    // Every directory the walk could ask about, checked against every listed path below it
+    @Test
+    public void excludedSubtreesOnlyHoldMatchingPaths() {
+        Pattern joinedPattern = Pattern.compile(String.join("|", FILTER_LIST));
+        PathFilterMatcher pathFilterMatcher = PathFilterMatcher.of(FILTER_LIST);
+
+        for (String path : PATH_LIST) {
+            for (int slash = path.indexOf('/', 1); slash > 0; slash = path.indexOf('/', slash + 1)) {
+                String directoryPath = path.substring(0, slash);
+                if (!pathFilterMatcher.excludesSubtree(directoryPath))
+                    continue;
+                for (String otherPath : PATH_LIST) {
+                    if (otherPath.startsWith(directoryPath + "/"))
+                        assertTrue(directoryPath + " excluded but " + otherPath + " does not match", joinedPattern.matcher(otherPath).find());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void globRulesPruneTheirDirectories() {
+        PathFilterMatcher pathFilterMatcher = PathFilterMatcher.of(Arrays.asList("/logs/", "^/opt/app/tmp/", "^/opt/app/.*/cache/"));
+
+        assertTrue(pathFilterMatcher.excludesSubtree("/opt/app/logs"));
+        assertTrue(pathFilterMatcher.excludesSubtree("/opt/app/tmp"));
+        assertTrue(pathFilterMatcher.excludesSubtree("/opt/app/tmp/sub"));
+        assertTrue(pathFilterMatcher.excludesSubtree("/opt/app/a/b/cache"));
+        assertFalse(pathFilterMatcher.excludesSubtree("/opt/app"));
+        assertFalse(pathFilterMatcher.excludesSubtree("/opt/app/tmpx"));
+        assertFalse(pathFilterMatcher.excludesSubtree("/var/opt/app/tmp"));
+    }
+
+    @Test
+    public void endAnchoredFiltersNeverPrune() {
+        PathFilterMatcher pathFilterMatcher = PathFilterMatcher.of(Arrays.asList("\\.log$", "^/opt/app/exact\\.txt$"));
+
+        assertFalse(pathFilterMatcher.excludesSubtree("/opt/app/x.log"));
+        assertFalse(pathFilterMatcher.excludesSubtree("/opt/app/exact.txt"));
+    }
+
+    @Test
+    public void regexFiltersNeverPrune() {
+        // Each of these finds a match on "<directory>/" but not on some path below it
+        PathFilterMatcher pathFilterMatcher = PathFilterMatcher.of(Arrays.asList("^/opt/app/(?!keep)[^/]+/scratch", "\\bcore\\b", "^/opt/app/data[0-9]+/(?=x)"));
+
+        assertFalse(pathFilterMatcher.excludesSubtree("/opt/app/other/scratch"));
+        assertFalse(pathFilterMatcher.excludesSubtree("/opt/app/core"));
+        assertFalse(pathFilterMatcher.excludesSubtree("/opt/app/data1"));
+        assertTrue(pathFilterMatcher.matches("/opt/app/core/x"));
+        assertFalse(pathFilterMatcher.matches("/opt/app/data1/y"));
+    }
+
+    @Test
+    public void noFiltersMatchNothing() {
+        PathFilterMatcher pathFilterMatcher = PathFilterMatcher.of(Collections.emptyList());
+
+        assertFalse(pathFilterMatcher.matches("/opt/app/x"));
+        assertFalse(pathFilterMatcher.excludesSubtree("/opt/app"));
+    }
+}
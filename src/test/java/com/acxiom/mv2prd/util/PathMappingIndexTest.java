@@ -0,0 +1,79 @@
+package com.some.company.mv2prd.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PathMappingIndexTest {
+
+    private static Map<String,String> mappings(String... gitAndTargetPairs) {
+        Map<String,String> gitToTargetMap = new LinkedHashMap<>();
+        for (int i = 0; i < gitAndTargetPairs.length; i += 2)
+            gitToTargetMap.put(gitAndTargetPairs[i], gitAndTargetPairs[i + 1]);
+        return gitToTargetMap;
+    }
+
+    @Test
+    public void deepestMappingWinsWhateverTheOrder() {
+        List<Map<String,String>> gitToTargetMapList = Arrays.asList(
+                mappings("app", "/opt/app", "app/conf", "/etc/app", "app/conf/secret", "/secure/app"),
+                mappings("app/conf/secret", "/secure/app", "app/conf", "/etc/app", "app", "/opt/app"));
+        for (Map<String,String> gitToTargetMap : gitToTargetMapList) {
+            PathMappingIndex pathMappingIndex = PathMappingIndex.of(gitToTargetMap);
+
+            assertEquals("/opt/app/bin/run.sh", pathMappingIndex.mapGitToTarget("app/bin/run.sh"));
+            assertEquals("/etc/app/x.cfg", pathMappingIndex.mapGitToTarget("app/conf/x.cfg"));
+            assertEquals("/etc/app/sub/x.cfg", pathMappingIndex.mapGitToTarget("app/conf/sub/x.cfg"));
+            assertEquals("/secure/app/key", pathMappingIndex.mapGitToTarget("app/conf/secret/key"));
+
+            assertEquals("app/bin/run.sh", pathMappingIndex.mapTargetToGit("/opt/app/bin/run.sh"));
+            assertEquals("app/conf/x.cfg", pathMappingIndex.mapTargetToGit("/etc/app/x.cfg"));
+            assertEquals("app/conf/secret/key", pathMappingIndex.mapTargetToGit("/secure/app/key"));
+        }
+    }
+
+    @Test
+    public void prefixesMatchWholeSegmentsOnly() {
+        PathMappingIndex pathMappingIndex = PathMappingIndex.of(mappings("app", "/opt/app"));
+
+        assertNull(pathMappingIndex.mapGitToTarget("application/x"));
+        assertNull(pathMappingIndex.mapGitToTarget("ap/x"));
+        assertNull(pathMappingIndex.mapTargetToGit("/opt/application/x"));
+        assertNull(pathMappingIndex.mapGitToTarget("other/app/x"));
+    }
+
+    @Test
+    public void mappedDirectoryItselfIsNotMapped() {
+        PathMappingIndex pathMappingIndex = PathMappingIndex.of(mappings("app", "/opt/app", "app/conf", "/etc/app"));
+
+        assertNull(pathMappingIndex.mapGitToTarget("app"));
+        // app/conf itself has nothing after the deeper mapping, so the shallower one maps it
+        assertEquals("/opt/app/conf", pathMappingIndex.mapGitToTarget("app/conf"));
+    }
+
+    @Test
+    public void pathsAreNormalisedOnBothSides() {
+        PathMappingIndex pathMappingIndex = PathMappingIndex.of(mappings("./app/", "/opt//app/"));
+
+        assertEquals("/opt/app/x/y.txt", pathMappingIndex.mapGitToTarget("app//x/./y.txt"));
+        assertEquals("app/x/y.txt", pathMappingIndex.mapTargetToGit("/opt/app/x//y.txt/"));
+        assertNull(pathMappingIndex.mapGitToTarget((String) null));
+    }
+
+    @Test
+    public void absoluteGitPathsAreStrippedOfTheWorkingTree() {
+        PathMappingIndex pathMappingIndex = PathMappingIndex.of(mappings("app", "/opt/app"));
+
+        assertEquals("app/x.txt", pathMappingIndex.mapAbsoluteGitToRelative("/repo/wt/app/x.txt", "/repo/wt"));
+        assertEquals("app/x.txt", pathMappingIndex.mapAbsoluteGitToRelative("/repo/wt/app/x.txt", "/repo/wt/"));
+        assertNull(pathMappingIndex.mapAbsoluteGitToRelative("/repo/wt/other/x.txt", "/repo/wt"));
+        assertNull(pathMappingIndex.mapAbsoluteGitToRelative("/repo/wt2/app/x.txt", "/repo/wt"));
+        assertNull(pathMappingIndex.mapAbsoluteGitToRelative("/repo/wt", "/repo/wt"));
+    }
+}
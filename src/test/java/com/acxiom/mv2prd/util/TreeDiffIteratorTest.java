@@ -0,0 +1,147 @@
+package com.some.company.mv2prd.util;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// TreeDiffIterator must hand out exactly what DiffFormatter.scan (GitUtils.getTagDiffEntryList) returns, in the same order
+public class TreeDiffIteratorTest {
+
+    private Path workTreePath;
+    private Git git;
+
+    @Before
+    public void setUp() throws Exception {
+        workTreePath = Files.createTempDirectory("mv2prd-tree-diff");
+        git = Git.init().setDirectory(workTreePath.toFile()).call();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        git.close();
+        try (Stream<Path> pathStream = Files.walk(workTreePath)) {
+            for (Path path : pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    private void write(String relativePath, String content) throws IOException {
+        Path path = workTreePath.resolve(relativePath);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void commitAndTag(String gitTag) throws Exception {
+        git.add().addFilepattern(".").call();
+        git.add().setUpdate(true).addFilepattern(".").call();
+        git.commit().setMessage(gitTag).setSign(false).call();
+        git.tag().setName(gitTag).setSigned(false).call();
+    }
+
+    private static List<String> describe(Iterable<DiffEntry> diffEntries) {
+        List<String> descriptionList = new ArrayList<>();
+        for (DiffEntry diffEntry : diffEntries)
+            descriptionList.add(diffEntry.getChangeType() + " " + diffEntry.getOldPath() + " " + diffEntry.getOldMode() + " " + diffEntry.getOldId().name()
+                    + " -> " + diffEntry.getNewPath() + " " + diffEntry.getNewMode() + " " + diffEntry.getNewId().name());
+        return descriptionList;
+    }
+
+    private List<String> describeIterator(String oldRevision, String newRevision) throws Exception {
+        List<DiffEntry> diffEntryList = new ArrayList<>();
+        try (TreeDiffIterator treeDiffIterator = GitUtils.openTreeDiffIterator(git, oldRevision, newRevision)) {
+            while (treeDiffIterator.hasNext())
+                diffEntryList.add(treeDiffIterator.next());
+        }
+        return describe(diffEntryList);
+    }
+
+    @Test
+    public void matchesDiffFormatterScan() throws Exception {
+        write("app/keep.txt", "same");
+        write("app/modify.txt", "before");
+        write("app/delete.txt", "gone soon");
+        write("app/conf/deep/nested.cfg", "a=1");
+        write("app/becomes_dir", "file first");
+        write("app/mode.sh", "#!/bin/sh");
+        commitAndTag("v1");
+
+        write("app/modify.txt", "after");
+        Files.delete(workTreePath.resolve("app/delete.txt"));
+        write("app/added.txt", "new");
+        write("app/conf/deep/nested.cfg", "a=2");
+        write("app/conf/other/new.cfg", "b=1");
+        Files.delete(workTreePath.resolve("app/becomes_dir"));
+        write("app/becomes_dir/inner.txt", "now a directory");
+        workTreePath.resolve("app/mode.sh").toFile().setExecutable(true);
+        commitAndTag("v2");
+
+        List<String> expectedList = describe(GitUtils.getTagDiffEntryList(git, "v2", false));
+        assertEquals(8, expectedList.size());
+        assertEquals(expectedList, describeIterator("v2~1", "v2"));
+    }
+
+    @Test
+    public void fileReplacedBySymlinkIsADeleteThenAnAdd() throws Exception {
+        write("app/link", "a plain file");
+        write("app/target.txt", "target");
+        commitAndTag("v1");
+
+        Files.delete(workTreePath.resolve("app/link"));
+        Files.createSymbolicLink(workTreePath.resolve("app/link"), workTreePath.resolve("app/target.txt").getFileName());
+        commitAndTag("v2");
+
+        List<String> expectedList = describe(GitUtils.getTagDiffEntryList(git, "v2", false));
+        List<String> actualList = describeIterator("v2~1", "v2");
+        assertEquals(expectedList, actualList);
+        assertEquals(2, actualList.size());
+        assertTrue(actualList.get(0).startsWith("DELETE app/link 100644"));
+        assertTrue(actualList.get(1).startsWith("ADD ") && actualList.get(1).contains("-> app/link 120000"));
+    }
+
+    @Test
+    public void rangeMatchesDiffFormatterScan() throws Exception {
+        write("app/a.txt", "1");
+        write("app/b.txt", "1");
+        commitAndTag("v1");
+        write("app/a.txt", "2");
+        write("app/c.txt", "2");
+        commitAndTag("v2");
+        write("app/a.txt", "1");
+        Files.delete(workTreePath.resolve("app/b.txt"));
+        commitAndTag("v3");
+
+        // a.txt went back to its v1 content, so across the range it did not change at all
+        List<String> expectedList = describe(GitUtils.getTagRangeDiffEntryList(git, "v1", "v3", false));
+        assertEquals(2, expectedList.size());
+        assertEquals(expectedList, describeIterator("v1", "v3"));
+    }
+
+    @Test
+    public void noChangesMeansNoEntries() throws Exception {
+        write("app/a.txt", "1");
+        commitAndTag("v1");
+        git.commit().setMessage("empty").setSign(false).setAllowEmpty(true).call();
+        git.tag().setName("v2").setSigned(false).call();
+
+        try (TreeDiffIterator treeDiffIterator = GitUtils.openTreeDiffIterator(git, "v2~1", "v2")) {
+            assertFalse(treeDiffIterator.hasNext());
+        }
+        assertEquals(0, GitUtils.getTagDiffEntryList(git, "v2", false).size());
+    }
+}